@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * The rolling checksum of rsync over a window of a fixed size, which moves
+ * forward by one byte in constant time.
+ *
+ * It is Adler-32 with s1 starting at 0: for a window of n bytes b[0, n),
+ * s1 = sum(b[i]) and s2 = sum((n - i) * b[i]), both modulo 65521, and the
+ * checksum is (s2 << 16) | s1.
+ *
+ * The sums are reduced once per {@link #NMAX} bytes instead of once per
+ * byte, and a window can be rolled over many bytes at once with
+ * {@link #rollUntil}, which stops at the windows whose rsync tag is in a
+ * bitmap of candidate tags.
+ */
+@InterfaceAudience.LimitedPrivate({"HDFS"})
+@InterfaceStability.Evolving
+public class RollingAdler32 {
+  /** The largest prime below 2^16. */
+  public static final int MOD = 65521;
+  /** The number of longs in a bitmap of all 16-bit tags. */
+  public static final int TAG_BITMAP_LENGTH = (1 << 16) / Long.SIZE;
+
+  /**
+   * The most bytes summed before s2 has to be reduced: the largest multiple
+   * of 8 such that 255 n (n + 1) / 2 + (n + 1) (MOD - 1) fits in an int.
+   */
+  static final int NMAX = 3848;
+
+  private final int windowSize;
+  /** windowSize modulo MOD. */
+  private final int windowFactor;
+  private int s1;
+  private int s2;
+
+  /**
+   * @param windowSize the number of bytes of the window
+   */
+  public RollingAdler32(int windowSize) {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("windowSize = " + windowSize
+          + " <= 0");
+    }
+    this.windowSize = windowSize;
+    this.windowFactor = windowSize % MOD;
+  }
+
+  /**
+   * @return the checksum of b[off, off + len).
+   */
+  public static int checksum(byte[] b, int off, int len) {
+    int s1 = 0;
+    int s2 = 0;
+    while (len > 0) {
+      final int n = Math.min(len, NMAX);
+      final int end = off + n;
+      len -= n;
+      for (; off + 8 <= end; off += 8) {
+        s1 += b[off] & 0xff;
+        s2 += s1;
+        s1 += b[off + 1] & 0xff;
+        s2 += s1;
+        s1 += b[off + 2] & 0xff;
+        s2 += s1;
+        s1 += b[off + 3] & 0xff;
+        s2 += s1;
+        s1 += b[off + 4] & 0xff;
+        s2 += s1;
+        s1 += b[off + 5] & 0xff;
+        s2 += s1;
+        s1 += b[off + 6] & 0xff;
+        s2 += s1;
+        s1 += b[off + 7] & 0xff;
+        s2 += s1;
+      }
+      for (; off < end; off++) {
+        s1 += b[off] & 0xff;
+        s2 += s1;
+      }
+      s1 %= MOD;
+      s2 %= MOD;
+    }
+    return (s2 << 16) | s1;
+  }
+
+  /**
+   * @return the checksum of a window of windowSize bytes whose checksum was
+   *         checksum, once its first byte out is dropped and the byte in is
+   *         appended.
+   */
+  public static int roll(int checksum, byte out, byte in, int windowSize) {
+    final int o = out & 0xff;
+    int s1 = (checksum & 0xffff) + (in & 0xff) - o;
+    if (s1 < 0) {
+      s1 += MOD;
+    } else if (s1 >= MOD) {
+      s1 -= MOD;
+    }
+    // in (-MOD * 256, 2 * MOD)
+    int s2 = ((checksum >>> 16) + s1 - windowSize % MOD * o) % MOD;
+    if (s2 < 0) {
+      s2 += MOD;
+    }
+    return (s2 << 16) | s1;
+  }
+
+  /** @return the rsync tag of a checksum, (s1 + s2) & 0xffff. */
+  public static int tag(int checksum) {
+    return ((checksum >>> 16) + checksum) & 0xffff;
+  }
+
+  /** Add the tag of a checksum to a bitmap of TAG_BITMAP_LENGTH longs. */
+  public static void addTag(long[] tags, int checksum) {
+    final int tag = tag(checksum);
+    tags[tag >>> 6] |= 1L << tag;
+  }
+
+  /** @return whether the tag of a checksum is in a bitmap. */
+  public static boolean hasTag(long[] tags, int checksum) {
+    final int tag = tag(checksum);
+    return (tags[tag >>> 6] & (1L << tag)) != 0;
+  }
+
+  /**
+   * Start at the window b[off, off + windowSize).
+   *
+   * @return the checksum of the window
+   */
+  public int reset(byte[] b, int off) {
+    final int checksum = checksum(b, off, windowSize);
+    s1 = checksum & 0xffff;
+    s2 = checksum >>> 16;
+    return checksum;
+  }
+
+  /** @return the checksum of the current window. */
+  public int getValue() {
+    return (s2 << 16) | s1;
+  }
+
+  /**
+   * Roll the window starting at off of b, the current window, forward over
+   * the following bytes of b until its tag is in the bitmap tags.
+   *
+   * @param b holds the current window at [off, off + windowSize) and at
+   *          least n bytes after it
+   * @param n the most bytes to roll
+   * @param tags a bitmap of TAG_BITMAP_LENGTH longs, as built by
+   *             {@link #addTag}
+   * @return the number of bytes rolled k, at most n: the window now is
+   *         b[off + k, off + k + windowSize), and k &lt; n only if its tag
+   *         is in tags.
+   */
+  public int rollUntil(byte[] b, int off, int n, long[] tags) {
+    int a = s1;
+    int c = s2;
+    final int factor = windowFactor;
+    int k = 0;
+    while (k < n) {
+      final int o = b[off + k] & 0xff;
+      a += (b[off + k + windowSize] & 0xff) - o;
+      if (a < 0) {
+        a += MOD;
+      } else if (a >= MOD) {
+        a -= MOD;
+      }
+      c = (c + a - factor * o) % MOD;
+      if (c < 0) {
+        c += MOD;
+      }
+      k++;
+      final int tag = (c + a) & 0xffff;
+      if ((tags[tag >>> 6] & (1L << tag)) != 0) {
+        break;
+      }
+    }
+    s1 = a;
+    s2 = c;
+    return k;
+  }
+}
@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Test {@link RollingAdler32}. */
+public class TestRollingAdler32 {
+  private static final Random RAN = new Random();
+
+  /** The per-byte implementation the rsync ops used to have. */
+  static int legacyChecksum(byte[] buf, int offset, int length) {
+    int s1 = 0;
+    int s2 = 0;
+    for (int i = offset; i < length + offset; i++) {
+      s1 = (s1 + (buf[i] & 0xff)) % RollingAdler32.MOD;
+      s2 = (s1 + s2) % RollingAdler32.MOD;
+    }
+    return (s2 << 16) + s1;
+  }
+
+  static int legacyRoll(int checksum, byte out, byte in, int windowSize) {
+    int s1 = checksum & 0xffff;
+    int s2 = (checksum >> 16) & 0xffff;
+    s1 = (s1 - (out & 0xff) + (in & 0xff) + RollingAdler32.MOD)
+        % RollingAdler32.MOD;
+    s2 = (s2 + s1 - (windowSize * (out & 0xff)) % RollingAdler32.MOD
+        + RollingAdler32.MOD) % RollingAdler32.MOD;
+    return (s2 << 16) + s1;
+  }
+
+  @Test
+  public void testChecksum() {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final byte[] data = new byte[3 * RollingAdler32.NMAX + 100];
+    r.nextBytes(data);
+    final byte[] ones = new byte[data.length];
+    Arrays.fill(ones, (byte) 0xff);
+    for (byte[] b : new byte[][] {data, ones}) {
+      for (int len : new int[] {0, 1, 7, 8, 9, RollingAdler32.NMAX - 1,
+          RollingAdler32.NMAX, RollingAdler32.NMAX + 1, b.length - 3}) {
+        assertEquals("seed=" + seed + ", len=" + len,
+            legacyChecksum(b, 3, len), RollingAdler32.checksum(b, 3, len));
+      }
+    }
+  }
+
+  @Test
+  public void testRoll() {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final byte[] data = new byte[20000];
+    r.nextBytes(data);
+    for (int windowSize : new int[] {1, 100, RollingAdler32.MOD + 3}) {
+      final byte[] b = windowSize < data.length ? data
+          : new byte[windowSize + 1000];
+      if (b != data) {
+        r.nextBytes(b);
+      }
+      int checksum = RollingAdler32.checksum(b, 0, windowSize);
+      for (int i = windowSize; i < b.length; i++) {
+        checksum = RollingAdler32.roll(checksum, b[i - windowSize], b[i],
+            windowSize);
+        assertEquals("seed=" + seed + ", windowSize=" + windowSize
+            + ", i=" + i, RollingAdler32.checksum(b, i - windowSize + 1,
+                windowSize), checksum);
+      }
+    }
+  }
+
+  /** rollUntil stops exactly at the windows of candidate tags. */
+  @Test
+  public void testRollUntil() {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final int windowSize = 1000;
+    final byte[] data = new byte[100 * windowSize];
+    r.nextBytes(data);
+
+    // the tags of a few windows
+    final long[] tags = new long[RollingAdler32.TAG_BITMAP_LENGTH];
+    for (int i = 0; i < 10; i++) {
+      RollingAdler32.addTag(tags, RollingAdler32.checksum(data,
+          r.nextInt(data.length - windowSize), windowSize));
+    }
+
+    final RollingAdler32 roller = new RollingAdler32(windowSize);
+    assertEquals(RollingAdler32.checksum(data, 0, windowSize),
+        roller.reset(data, 0));
+    int off = 0;
+    while (off + windowSize < data.length) {
+      final int n = Math.min(1 + r.nextInt(3 * windowSize),
+          data.length - windowSize - off);
+      final int k = roller.rollUntil(data, off, n, tags);
+      assertTrue(k >= 1 && k <= n);
+      // no candidate was skipped
+      for (int i = off + 1; i < off + k; i++) {
+        assertFalse("seed=" + seed + ", i=" + i, RollingAdler32.hasTag(tags,
+            RollingAdler32.checksum(data, i, windowSize)));
+      }
+      off += k;
+      final int checksum = RollingAdler32.checksum(data, off, windowSize);
+      assertEquals("seed=" + seed + ", off=" + off, checksum,
+          roller.getValue());
+      assertTrue(k == n || RollingAdler32.hasTag(tags, checksum));
+    }
+  }
+
+  /**
+   * Compare the throughput of the legacy per-byte implementation and of
+   * RollingAdler32. Run with
+   *
+   *   java -cp path/to/test/classes:path/to/common/classes \
+   *      'org.apache.hadoop.util.TestRollingAdler32$PerformanceTest' [dataSizeMB]
+   */
+  public static class PerformanceTest {
+    /** Keeps the results so that the loops are not optimized away. */
+    static volatile long sink;
+
+    public static void main(String[] args) {
+      final int dataSize = (args.length > 0 ? Integer.parseInt(args[0]) : 64)
+          << 20;
+      doBench(dataSize, System.out);
+    }
+
+    /** @return random bytes, or text-like bytes made of repeated words */
+    private static byte[] blockData(int size, boolean text, Random r) {
+      final byte[] b = new byte[size];
+      if (!text) {
+        r.nextBytes(b);
+        return b;
+      }
+      final String[] words = new String[1000];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = Long.toString(r.nextLong() >>> (r.nextInt(50) + 10), 36);
+      }
+      for (int i = 0; i < size;) {
+        final String w = words[r.nextInt(words.length)];
+        for (int j = 0; j < w.length() && i < size; j++) {
+          b[i++] = (byte) w.charAt(j);
+        }
+        if (i < size) {
+          b[i++] = (byte) (r.nextInt(10) == 0 ? '\n' : ',');
+        }
+      }
+      return b;
+    }
+
+    private static void doBench(int dataSize, PrintStream out) {
+      final Random r = new Random(0);
+      out.printf("\nData size %d MB, one thread (throughput in MB/sec)\n"
+          + "|| Data || Window || legacy checksum || checksum "
+          + "|| legacy roll || roll || rollUntil ||\n", dataSize >> 20);
+      for (boolean text : new boolean[] {false, true}) {
+        final byte[] data = blockData(dataSize, text, r);
+        for (int windowSize = 4 << 10; windowSize <= 4 << 20;
+            windowSize <<= 4) {
+          // the tags of the chunks of a destination file of the same size
+          final long[] tags = new long[RollingAdler32.TAG_BITMAP_LENGTH];
+          for (int i = 0; i < dataSize / windowSize; i++) {
+            RollingAdler32.addTag(tags, r.nextInt());
+          }
+
+          out.printf("| %s | %d |", text ? "text" : "random", windowSize);
+          for (int impl = 0; impl < 5; impl++) {
+            run(impl, data, windowSize, tags); // warm up
+            final long start = System.nanoTime();
+            final long result = run(impl, data, windowSize, tags);
+            out.printf(" %.1f |", dataSize * 1000.0
+                / (System.nanoTime() - start));
+            sink += result;
+          }
+          out.println();
+        }
+      }
+    }
+
+    private static long run(int impl, byte[] data, int windowSize,
+        long[] tags) {
+      long result = 0;
+      switch (impl) {
+      case 0:
+        for (int off = 0; off + windowSize <= data.length; off += windowSize) {
+          result += legacyChecksum(data, off, windowSize);
+        }
+        break;
+      case 1:
+        for (int off = 0; off + windowSize <= data.length; off += windowSize) {
+          result += RollingAdler32.checksum(data, off, windowSize);
+        }
+        break;
+      case 2:
+      case 3:
+        int checksum = RollingAdler32.checksum(data, 0, windowSize);
+        for (int i = windowSize; i < data.length; i++) {
+          checksum = impl == 2
+              ? legacyRoll(checksum, data[i - windowSize], data[i], windowSize)
+              : RollingAdler32.roll(checksum, data[i - windowSize], data[i],
+                  windowSize);
+          if (RollingAdler32.hasTag(tags, checksum)) {
+            result++;
+          }
+        }
+        break;
+      default:
+        final RollingAdler32 roller = new RollingAdler32(windowSize);
+        roller.reset(data, 0);
+        for (int off = 0; off + windowSize < data.length;) {
+          off += roller.rollUntil(data, off, data.length - windowSize - off,
+              tags);
+          result++;
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -1730,6 +1730,25 @@ dfsClientConf.socketTimeout, getDataEncryptionKey(),
         dfsClientConf.connectToDnViaHostname);
   }
   
+  /**
+   * Rsync the file src of srcClient's cluster to the existing file dst of
+   * this client's cluster. Only the data of src not found in dst is sent
+   * between the datanodes.
+   * 
+   * @param srcClient the client of the cluster of src, may be this client
+   * @param src the source file
+   * @param dst the destination file, replaced with the content of src
+   * @param options the rsync options
+   * @return the statistics of the rsync
+   * @see DistributedFileSystem#rsync(Path, Path, RsyncOptions)
+   */
+  public RsyncStatistics rsync(DFSClient srcClient, String src, String dst,
+      RsyncOptions options) throws IOException {
+    checkOpen();
+    srcClient.checkOpen();
+    return new DFSRsync(srcClient, this, src, dst, options).run();
+  }
+
   @InterfaceAudience.Private
   public void clearDataEncryptionKey() {
     LOG.debug("Clearing encryption key");
@@ -1950,7 +1969,7 @@ else if (bpc != bytesPerCRC) {
    * Connect to the given datanode's datantrasfer port, and return
    * the resulting IOStreamPair. This includes encryption wrapping, etc.
    */
-  private static IOStreamPair connectToDN(
+  static IOStreamPair connectToDN(
       SocketFactory socketFactory, boolean connectToDnViaHostname,
       DataEncryptionKey encryptionKey, DatanodeInfo dn, int timeout)
       throws IOException
@@ -1998,7 +2017,7 @@ private static IOStreamPair connectToDN(
    * @return the inferred checksum type
    * @throws IOException if an error occurs
    */
-  private static Type inferChecksumTypeByReading(
+  static Type inferChecksumTypeByReading(
       String clientName, SocketFactory socketFactory, int socketTimeout,
       LocatedBlock lb, DatanodeInfo dn,
       DataEncryptionKey encryptionKey, boolean connectToDnViaHostname)
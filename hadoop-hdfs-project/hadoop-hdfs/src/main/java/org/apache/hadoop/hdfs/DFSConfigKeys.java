@@ -154,6 +154,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_NAMENODE_REPLICATION_MAX_STREAMS_DEFAULT = 2;
   public static final String  DFS_NAMENODE_REPLICATION_STREAMS_HARD_LIMIT_KEY = "dfs.namenode.replication.max-streams-hard-limit";
   public static final int     DFS_NAMENODE_REPLICATION_STREAMS_HARD_LIMIT_DEFAULT = 4;
+  public static final String  DFS_NAMENODE_REPLICATION_RSYNC_REPAIR_ENABLED_KEY = "dfs.namenode.replication.rsync.repair.enabled";
+  public static final boolean DFS_NAMENODE_REPLICATION_RSYNC_REPAIR_ENABLED_DEFAULT = false;
   public static final String  DFS_WEBHDFS_ENABLED_KEY = "dfs.webhdfs.enabled";
   public static final boolean DFS_WEBHDFS_ENABLED_DEFAULT = false;
   public static final String  DFS_PERMISSIONS_ENABLED_KEY = "dfs.permissions.enabled";
@@ -315,6 +317,26 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_DATANODE_SCAN_PERIOD_HOURS_DEFAULT = 0;
   public static final String  DFS_DATANODE_TRANSFERTO_ALLOWED_KEY = "dfs.datanode.transferTo.allowed";
   public static final boolean DFS_DATANODE_TRANSFERTO_ALLOWED_DEFAULT = true;
+  public static final String  DFS_DATANODE_RSYNC_SIGNATURE_CACHE_ENABLED_KEY = "dfs.datanode.rsync.signature.cache.enabled";
+  public static final boolean DFS_DATANODE_RSYNC_SIGNATURE_CACHE_ENABLED_DEFAULT = true;
+  public static final String  DFS_DATANODE_RSYNC_DIRECT_WRITE_ENABLED_KEY = "dfs.datanode.rsync.direct.write.enabled";
+  public static final boolean DFS_DATANODE_RSYNC_DIRECT_WRITE_ENABLED_DEFAULT = true;
+  public static final String  DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_MAX_KEY = "dfs.datanode.rsync.checksum.sessions.max";
+  public static final int     DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_MAX_DEFAULT = 16;
+  public static final String  DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_EXPIRY_MS_KEY = "dfs.datanode.rsync.checksum.sessions.expiry.ms";
+  public static final long    DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_EXPIRY_MS_DEFAULT = 10 * 60 * 1000;
+  public static final String  DFS_DATANODE_RSYNC_CHECKSUMS_MAX_KEY = "dfs.datanode.rsync.checksums.max";
+  public static final int     DFS_DATANODE_RSYNC_CHECKSUMS_MAX_DEFAULT = 1024 * 1024;
+  public static final String  DFS_DATANODE_RSYNC_TMP_EXPIRY_MS_KEY = "dfs.datanode.rsync.tmp.expiry.ms";
+  public static final long    DFS_DATANODE_RSYNC_TMP_EXPIRY_MS_DEFAULT = 60 * 60 * 1000;
+  public static final String  DFS_DATANODE_RSYNC_BANDWIDTHPERSEC_KEY = "dfs.datanode.rsync.bandwidthPerSec";
+  public static final long    DFS_DATANODE_RSYNC_BANDWIDTHPERSEC_DEFAULT = 0;
+  public static final String  DFS_DATANODE_RSYNC_MAX_CONCURRENT_OPS_KEY = "dfs.datanode.rsync.max.concurrent.ops";
+  public static final int     DFS_DATANODE_RSYNC_MAX_CONCURRENT_OPS_DEFAULT = 0;
+  public static final String  DFS_DATANODE_RSYNC_REPAIR_ENABLED_KEY = "dfs.datanode.rsync.repair.enabled";
+  public static final boolean DFS_DATANODE_RSYNC_REPAIR_ENABLED_DEFAULT = false;
+  public static final String  DFS_DATANODE_RSYNC_REPAIR_CHUNK_SIZE_KEY = "dfs.datanode.rsync.repair.chunk.size";
+  public static final int     DFS_DATANODE_RSYNC_REPAIR_CHUNK_SIZE_DEFAULT = 64 * 1024;
   public static final String  DFS_HEARTBEAT_INTERVAL_KEY = "dfs.heartbeat.interval";
   public static final long    DFS_HEARTBEAT_INTERVAL_DEFAULT = 3;
   public static final String  DFS_NAMENODE_DECOMMISSION_INTERVAL_KEY = "dfs.namenode.decommission.interval";
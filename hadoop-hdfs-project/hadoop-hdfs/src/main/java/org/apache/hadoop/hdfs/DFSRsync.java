@@ -0,0 +1,2136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.net.SocketFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.hadoop.hdfs.protocol.datatransfer.IOStreamPair;
+import org.apache.hadoop.hdfs.protocol.datatransfer.RsyncChecksums;
+import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumPairProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumStrongProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpBlockChecksumResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpCalculateSegmentsResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpChunksAdaptiveChecksumResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpChunksChecksumResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.hdfs.protocolPB.PBHelper;
+import org.apache.hadoop.hdfs.security.token.block.DataEncryptionKey;
+import org.apache.hadoop.hdfs.security.token.block.InvalidBlockTokenException;
+import org.apache.hadoop.hdfs.server.namenode.NotReplicatedYetException;
+import org.apache.hadoop.io.EnumSetWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.util.Time;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+
+/**
+ * 用rsync的方式把src的内容同步到已存在的dst，见
+ * {@link DistributedFileSystem#rsync(Path, Path, RsyncOptions)}。工作过程如下：
+ * 
+ * 1) 从NN获取文件所有block的位置，包括源文件src和目标文件dst的。
+ * 
+ * 2) 从src和dst的所有block中获取checksum列表。
+ * 
+ * 3) 比对后，把dst中部分block的checksum列表传递给src中的部分DN。
+ * 
+ * 4) 得到checksum列表的DN计算block差异，回传给client。
+ * 
+ * 5) client根据收到的信息，控制DN把block差异传递给需要的DN。
+ * 
+ * 6) DN之间传递block差异，并将差异存到本地的临时文件夹。
+ * 
+ * 7）client确认所有差异传递完毕后，控制DN将block差异合成最后的文件
+ * 
+ * src和dst可以在不同的集群（如生产集群和灾备集群），各自由其{@link DFSClient}访问。
+ * 只有src中新增的数据从src集群的DN发往dst集群，未变的数据在dst集群内部复制。
+ * 访问每个集群的DN时使用其client的socket factory和加密密钥；DN之间传送segments时，
+ * dst集群的DN检查新block的token。
+ * 
+ * 新文件先在dst旁的.rsync文件中构建，以dst的client的名字持有其lease。
+ * 续传时.rsync文件的lease可能属于上次运行的client，{@link LeaseRenewer}只为
+ * {@link DFSOutputStream}续约，所以.rsync文件的lease由这里的线程续约。
+ */
+@InterfaceAudience.Private
+public class DFSRsync {
+  public static final Log LOG = LogFactory.getLog(DFSRsync.class);
+
+  /** 测试用：模拟在某个block构建完成后中断 */
+  @VisibleForTesting
+  public static class FaultInjector {
+    public void blockFinished(int index) throws IOException {
+    }
+  }
+
+  @VisibleForTesting
+  public static FaultInjector faultInjector = new FaultInjector();
+
+  /** src和dst所在集群的client，在同一集群时为同一个对象 */
+  private final DFSClient srcClient;
+  private final DFSClient dstClient;
+  private final String srcPath;
+  private final String dstPath;
+  private final RsyncOptions options;
+  private final ClientProtocol srcNamenode;
+  private final ClientProtocol dstNamenode;
+  /** 续传时改为上次运行的client，以取得.rsync文件的lease */
+  private String clientName;
+  private final SocketFactory socketFactory;
+  private final int socketTimeout;
+  private final boolean connectToDnViaHostname;
+  /** src文件的block所在的block pool，用于区分一个block属于哪个集群 */
+  private String srcBlockPoolId;
+  private final TmpFileLeaseRenewer renewer;
+  private final Thread renewerThread;
+
+  /** 为.rsync文件的lease持有者续约，只需要dst集群的lease */
+  private static class TmpFileLeaseRenewer implements Runnable {
+    /** A fixed lease renewal time period in milliseconds */
+    private final long renewal = HdfsConstants.LEASE_SOFTLIMIT_PERIOD / 2;
+    /** 持有.rsync文件lease的client，续传时为上次运行的client */
+    private volatile String clientName;
+    private final ClientProtocol namenode;
+
+    TmpFileLeaseRenewer(ClientProtocol namenode, String clientName) {
+      this.namenode = namenode;
+      this.clientName = clientName;
+    }
+
+    void setClientName(String clientName) {
+      this.clientName = clientName;
+    }
+
+    /**
+     * 每renewal续约一次lease，失败时短暂sleep后重试，
+     * 直到超过LEASE_HARDLIMIT_PERIOD未能续约
+     */
+    @Override
+    public void run() {
+      try {
+        for (long lastRenewed = Time.monotonicNow() - renewal;;
+            Thread.sleep(LeaseRenewer.LEASE_RENEWER_SLEEP_DEFAULT)) {
+          final long elapsed = Time.monotonicNow() - lastRenewed;
+          if (elapsed < renewal) {
+            continue;
+          }
+          try {
+            namenode.renewLease(clientName);
+            lastRenewed = Time.monotonicNow();
+          } catch (InterruptedIOException e) {
+            return;
+          } catch (IOException e) {
+            if (elapsed >= HdfsConstants.LEASE_HARDLIMIT_PERIOD) {
+              LOG.error("Failed to renew lease for " + clientName + " for "
+                  + (elapsed / 1000) + " seconds.  Giving up", e);
+              return;
+            }
+            LOG.warn("Failed to renew lease for " + clientName + " for "
+                + (elapsed / 1000) + " seconds.  Will retry shortly ...", e);
+          }
+        }
+      } catch (InterruptedException e) {
+        // finished
+      }
+    }
+  }
+
+  private class ChecksumPair {
+    private Integer simple;
+    private byte[] md5;
+
+    public ChecksumPair(Integer simple, byte[] bs) {
+      this.simple = simple;
+      this.md5 = bs;
+    }
+
+    public Integer getSimple() {
+      return simple;
+    }
+
+    public void setSimple(Integer simple) {
+      this.simple = simple;
+    }
+
+    public byte[] getMd5() {
+      return md5;
+    }
+
+    public void setMd5(byte[] md5) {
+      this.md5 = md5;
+    }
+  }
+
+  private class BlockInfo {
+    private LocatedBlock locatedBlock;
+    private LinkedList<ChecksumPair> checksums;
+    private List<ChecksumStrongProto> checksumsAdaptive;
+    private LinkedList<SegmentProto> segments;
+
+    public BlockInfo(LocatedBlock locatedBlock) {
+      this.locatedBlock = locatedBlock;
+      this.checksums = new LinkedList<ChecksumPair>();
+      this.segments = new LinkedList<SegmentProto>();
+    }
+
+    public BlockInfo(LocatedBlock locatedBlock,
+        LinkedList<ChecksumPair> checksums,
+        LinkedList<SegmentProto> segments) {
+      this.locatedBlock = locatedBlock;
+      this.checksums = checksums;
+      this.segments = segments;
+    }
+
+    public LocatedBlock getLocatedBlock() {
+      return locatedBlock;
+    }
+
+    public void setLocatedBlock(LocatedBlock locatedBlock) {
+      this.locatedBlock = locatedBlock;
+    }
+
+    public List<ChecksumPair> getChecksums() {
+      return checksums;
+    }
+
+    public void setChecksums(LinkedList<ChecksumPair> checksums) {
+      this.checksums = checksums;
+    }
+
+    public void addChecksum(ChecksumPair checksum) {
+      this.checksums.add(checksum);
+    }
+
+    public LinkedList<SegmentProto> getSegments() {
+      return segments;
+    }
+
+    public void setSegments(LinkedList<SegmentProto> segments) {
+      this.segments = segments;
+    }
+
+    public List<ChecksumStrongProto> getChecksumsAdaptive() {
+      return checksumsAdaptive;
+    }
+
+    public void setChecksumsAdaptive(List<ChecksumStrongProto> list) {
+      this.checksumsAdaptive = list;
+    }
+  }
+
+  private class FileInfo {
+    private List<BlockInfo> blocks;
+    private String filepath;
+    private long fileSize;
+
+    public FileInfo(String filepath) {
+      this.setFilepath(filepath);
+      this.blocks = new LinkedList<BlockInfo>();
+    }
+
+    public List<BlockInfo> getBlocks() {
+      return blocks;
+    }
+
+    public void setBlocks(List<BlockInfo> blocks) {
+      this.blocks = blocks;
+    }
+
+    public void addBlock(BlockInfo block) {
+      this.blocks.add(block);
+    }
+
+    public String getFilepath() {
+      return filepath;
+    }
+
+    public void setFilepath(String filepath) {
+      this.filepath = filepath;
+    }
+
+    public long getFileSize() {
+      return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+      this.fileSize = fileSize;
+    }
+  }
+
+  private FileInfo srcFileInfo;
+  private FileInfo dstFileInfo;
+  private final List<FileInfo> basisFileInfos = new ArrayList<FileInfo>();
+  /** 可复用其chunk的目标集群block：先是目标文件的，再是basis文件的 */
+  private final List<BlockInfo> matchBlocks = new ArrayList<BlockInfo>();
+  /**
+   * 定长分块时，matchBlocks中每个block的第一个完整chunk在上传的签名中的序号，
+   * 由chunk序号可得到其所在的block和偏移
+   */
+  private int[] chunkStarts;
+
+  /** 执行datanode请求的线程池，并行度为1时在调用线程中顺序执行 */
+  private ExecutorService executor;
+  private final int parallelism;
+  private final int maxRequestsPerDatanode;
+  private final int strongChecksumBytes;
+  private final boolean compressChecksums;
+  private final StrongHashTypeProto strongHash;
+  /** segments的压缩codec，不压缩时为null */
+  private final String segmentsCodec;
+  private final boolean appendEnabled;
+  /** dst文件是否仍在写入，此时不能append */
+  private boolean dstUnderConstruction;
+  /** 每个datanode的请求许可，key为datanode的xfer地址 */
+  private final ConcurrentHashMap<String, Semaphore> datanodePermits = new ConcurrentHashMap<String, Semaphore>();
+
+  private final boolean resumeEnabled;
+  /** 本次会话的进度 */
+  private RsyncManifest manifest;
+  private String manifestPath;
+  /** 每个src block已知的传送计划，来自manifest或已完成的计算，未知时为null */
+  private List<List<SegmentTransfer>> plans;
+  /** .rsync文件中续用的block数，及其最后一个block */
+  private int resumedBlocks = 0;
+  private ExtendedBlock resumedLastBlock;
+  /** 不能续写的上次的.rsync文件，其已完成的block在本地复制后删除 */
+  private String prevFilePath;
+  /** 本次运行的结果，在openManifest时创建 */
+  private RsyncStatistics summary;
+
+  /**
+   * @param srcClient src所在集群的client
+   * @param dstClient dst所在集群的client
+   * @param srcPath src的路径
+   * @param dstPath dst的路径，须已存在
+   */
+  DFSRsync(DFSClient srcClient, DFSClient dstClient, String srcPath,
+      String dstPath, RsyncOptions options) throws IOException {
+    this.srcClient = srcClient;
+    this.dstClient = dstClient;
+    this.srcPath = srcPath;
+    this.dstPath = dstPath;
+    this.options = options;
+    this.srcNamenode = srcClient.getNamenode();
+    this.dstNamenode = dstClient.getNamenode();
+    this.clientName = dstClient.getClientName();
+    this.socketFactory = dstClient.socketFactory;
+    this.socketTimeout = dstClient.getConf().socketTimeout;
+    this.connectToDnViaHostname = dstClient.getConf().connectToDnViaHostname;
+
+    this.parallelism = options.getParallelism();
+    this.maxRequestsPerDatanode = options.getMaxRequestsPerDatanode();
+    this.strongChecksumBytes = options.getStrongChecksumBytes();
+    if (strongChecksumBytes <= 0
+        || strongChecksumBytes > RsyncChecksums.MAX_STRONG_LENGTH) {
+      throw new IOException("strongChecksumBytes = " + strongChecksumBytes
+          + " is not in [1, " + RsyncChecksums.MAX_STRONG_LENGTH + "]");
+    }
+    if (options.getMethod() == RsyncOptions.METHOD_ADAPTIVE) {
+      // datanode只接受bmax > bmin + chunkSize的自适应分块
+      final int bminRatio = options.getBminRatio();
+      final int bmaxRatio = options.getBmaxRatio();
+      if (bminRatio < 0 || bmaxRatio <= bminRatio + 1
+          || (long) bmaxRatio * options.getChunkSize() > Integer.MAX_VALUE) {
+        throw new IOException("bminRatio = " + bminRatio + ", bmaxRatio = "
+            + bmaxRatio + " do not satisfy 0 <= bminRatio < bmaxRatio - 1"
+            + " with bmaxRatio * chunkSize <= " + Integer.MAX_VALUE);
+      }
+    }
+    this.compressChecksums = options.getCompressChecksums();
+    final String hash = options.getStrongHash();
+    try {
+      this.strongHash = StrongHashTypeProto.valueOf(hash.trim()
+          .toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("strongHash = " + hash + " is not one of "
+          + Arrays.toString(StrongHashTypeProto.values()));
+    }
+    this.resumeEnabled = options.getResume();
+    final String codec = options.getSegmentsCodec() == null ? null : options
+        .getSegmentsCodec().trim();
+    if (codec != null && !codec.isEmpty()
+        && new CompressionCodecFactory(dstClient.getConfiguration())
+            .getCodecByName(codec) == null) {
+      throw new IOException("segmentsCodec = " + codec
+          + " is not a known compression codec");
+    }
+    this.segmentsCodec = codec == null || codec.isEmpty() ? null : codec;
+    this.appendEnabled = options.getAppend();
+
+    this.renewer = new TmpFileLeaseRenewer(dstNamenode, clientName);
+    this.renewerThread = new Thread(renewer, "DFSRsync LeaseRenewer:"
+        + clientName);
+    this.renewerThread.setDaemon(true);
+  }
+
+  /**
+   * Get the source file blocks information from NN Get the destination
+   * file blocks information from NN Create the new temp file in dst file
+   * system.
+   */
+  void getSDFileInfo() throws IOException {
+    LocatedBlocks srcLocatedBlocks = DFSClient.callGetBlockLocations(
+        srcNamenode, srcPath, 0, Long.MAX_VALUE);
+    if (srcLocatedBlocks == null) {
+      throw new IOException(
+          "Null block locations, mostly because non-existent file "
+              + srcPath);
+    }
+    LocatedBlocks dstLocatedBlocks = DFSClient.callGetBlockLocations(
+        dstNamenode, dstPath, 0, Long.MAX_VALUE);
+    if (dstLocatedBlocks == null) {
+      throw new IOException(
+          "Null block locations, mostly because non-existent file "
+              + dstPath);
+    }
+
+    this.srcFileInfo = new FileInfo(srcPath);
+    this.dstFileInfo = new FileInfo(dstPath);
+
+    this.srcFileInfo.setFileSize(srcLocatedBlocks.getFileLength());
+    this.dstFileInfo.setFileSize(dstLocatedBlocks.getFileLength());
+    this.dstUnderConstruction = dstLocatedBlocks.isUnderConstruction();
+
+    for (LocatedBlock lb : srcLocatedBlocks.getLocatedBlocks()) {
+      srcFileInfo.addBlock(new BlockInfo(lb));
+      srcBlockPoolId = lb.getBlock().getBlockPoolId();
+    }
+    for (LocatedBlock lb : dstLocatedBlocks.getLocatedBlocks()) {
+      dstFileInfo.addBlock(new BlockInfo(lb));
+    }
+    getBasisFileInfo();
+
+    matchBlocks.addAll(dstFileInfo.getBlocks());
+    for (FileInfo basis : basisFileInfos) {
+      matchBlocks.addAll(basis.getBlocks());
+    }
+  }
+
+  /**
+   * Get the block information of the basis files, skipping the
+   * missing ones and the destination file.
+   */
+  private void getBasisFileInfo() throws IOException {
+    for (String basis : options.getBasisPaths()) {
+      for (String path : listBasisFiles(basis.trim())) {
+        if (path.equals(dstFileInfo.getFilepath())) {
+          continue;
+        }
+        LocatedBlocks locatedBlocks = DFSClient.callGetBlockLocations(
+            dstNamenode, path, 0, Long.MAX_VALUE);
+        if (locatedBlocks == null) {
+          continue;
+        }
+        FileInfo fileInfo = new FileInfo(path);
+        fileInfo.setFileSize(locatedBlocks.getFileLength());
+        for (LocatedBlock lb : locatedBlocks.getLocatedBlocks()) {
+          fileInfo.addBlock(new BlockInfo(lb));
+        }
+        basisFileInfos.add(fileInfo);
+        LOG.info("Basis file " + path + " of "
+            + fileInfo.getFileSize() + " bytes");
+      }
+    }
+  }
+
+  /** @return the files of a basis file or directory, or none if missing */
+  private List<String> listBasisFiles(String basis) throws IOException {
+    List<String> files = new ArrayList<String>();
+    HdfsFileStatus status = dstClient.getFileInfo(basis);
+    if (status == null) {
+      LOG.warn("Basis " + basis + " does not exist, ignored");
+      return files;
+    }
+    if (!status.isDir()) {
+      files.add(basis);
+      return files;
+    }
+    byte[] startAfter = HdfsFileStatus.EMPTY_NAME;
+    DirectoryListing listing;
+    do {
+      listing = dstClient.listPaths(basis, startAfter);
+      if (listing == null) {
+        break;
+      }
+      for (HdfsFileStatus child : listing.getPartialListing()) {
+        if (!child.isDir()) {
+          files.add(child.getFullName(basis));
+        }
+      }
+      startAfter = listing.getLastName();
+    } while (listing.hasMore());
+    return files;
+  }
+
+  /**
+   * Get the checksum of the source, the destination and the basis
+   * files. The checksums of all the blocks of the files are requested
+   * at once.
+   */
+  void getSDFileChecksum(int chunkSize) throws IOException {
+    srcClient.checkOpen();
+    dstClient.checkOpen();
+    List<Future<OpChunksChecksumResponseProto>> srcReplies = submitFileChecksum(
+        srcFileInfo, chunkSize);
+    List<Future<OpChunksChecksumResponseProto>> dstReplies = submitFileChecksum(
+        dstFileInfo, chunkSize);
+    List<List<Future<OpChunksChecksumResponseProto>>> basisReplies = new ArrayList<List<Future<OpChunksChecksumResponseProto>>>();
+    for (FileInfo basis : basisFileInfos) {
+      basisReplies.add(submitFileChecksum(basis, chunkSize));
+    }
+    getFileChecksum(srcFileInfo, srcReplies);
+    getFileChecksum(dstFileInfo, dstReplies);
+    for (int i = 0; i < basisFileInfos.size(); i++) {
+      getFileChecksum(basisFileInfos.get(i), basisReplies.get(i));
+    }
+  }
+
+  private List<Future<OpChunksChecksumResponseProto>> submitFileChecksum(
+      final FileInfo fileInfo, final int chunkSize) {
+    LOG.info("getFileChecksum start " + fileInfo.getFilepath());
+    List<Future<OpChunksChecksumResponseProto>> replies = new ArrayList<Future<OpChunksChecksumResponseProto>>();
+    for (final BlockInfo bi : fileInfo.getBlocks()) {
+      replies.add(executor
+          .submit(new Callable<OpChunksChecksumResponseProto>() {
+            @Override
+            public OpChunksChecksumResponseProto call()
+                throws IOException {
+              return getBlockChecksum(fileInfo,
+                  bi.getLocatedBlock(), chunkSize);
+            }
+          }));
+    }
+    return replies;
+  }
+
+  /**
+   * Collect the chunk checksums of a file into its blocks.
+   * 
+   * @param fileInfo
+   *            The file
+   * @param replies
+   *            The checksums of each block of the file
+   */
+  void getFileChecksum(FileInfo fileInfo,
+      List<Future<OpChunksChecksumResponseProto>> replies)
+      throws IOException {
+    int bytesPerCRC = -1;
+
+    for (int i = 0; i < fileInfo.getBlocks().size(); i++) {
+      OpChunksChecksumResponseProto checksumData = getResult(replies
+          .get(i));
+
+      // read byte-per-checksum
+      final int bpc = checksumData.getBytesPerCrc();
+      if (i == 0) { // first block
+        bytesPerCRC = bpc;
+      } else if (bpc != bytesPerCRC) {
+        throw new IOException("Byte-per-checksum not matched: bpc="
+            + bpc + " but bytesPerCRC=" + bytesPerCRC);
+      }
+
+      final List<ChecksumPairProto> checksums = checksumData
+          .getChecksumsList();
+      for (ChecksumPairProto cs : checksums) {
+        final MD5Hash md5s = new MD5Hash(cs.getMd5().toByteArray());
+        fileInfo.getBlocks()
+            .get(i)
+            .getChecksums()
+            .add(new ChecksumPair(cs.getSimple(), md5s
+                .getDigest()));
+      }
+    }
+  }
+
+  /**
+   * Get the chunk checksums of a block from one of its datanodes.
+   * 
+   * @return the checksums, always with the crc type
+   */
+  private OpChunksChecksumResponseProto getBlockChecksum(
+      FileInfo fileInfo, LocatedBlock lb, int chunkSize)
+      throws IOException {
+    final ExtendedBlock block = lb.getBlock();
+    final DatanodeInfo[] datanodes = lb.getLocations();
+    boolean retried = false;
+
+    // try each datanode location of the block
+    final int timeout = 3000 * datanodes.length + socketTimeout;
+    for (int j = 0; j < datanodes.length; j++) {
+      DataOutputStream out = null;
+      DataInputStream in = null;
+      final Semaphore permits = acquire(datanodes[j]);
+
+      try {
+        // connect to a datanode
+        IOStreamPair pair = DFSClient.connectToDN(socketFactory,
+            connectToDnViaHostname, getDataEncryptionKey(lb),
+            datanodes[j], timeout);
+        out = new DataOutputStream(new BufferedOutputStream(
+            pair.out, HdfsConstants.SMALL_BUFFER_SIZE));
+        in = new DataInputStream(pair.in);
+
+        // get block MD5
+        int bytesPerBlock = chunkSize;
+        new Sender(out).chunksChecksum(block, lb.getBlockToken(),
+            bytesPerBlock, strongHash);
+
+        final BlockOpResponseProto reply = BlockOpResponseProto
+            .parseFrom(PBHelper.vintPrefixed(in));
+
+        if (reply.getStatus() != Status.SUCCESS) {
+          if (reply.getStatus() == Status.ERROR_ACCESS_TOKEN) {
+            throw new InvalidBlockTokenException();
+          } else {
+            throw new IOException("Bad response " + reply
+                + " for block " + block + " from datanode "
+                + datanodes[j]);
+          }
+        }
+
+        OpChunksChecksumResponseProto checksumData = reply
+            .getChunksChecksumResponse();
+        checkStrongHash(checksumData.getStrongHash(), datanodes[j]);
+        if (!checksumData.hasCrcType()) {
+          LOG.debug("Retrieving checksum from an earlier-version DataNode: "
+              + "inferring checksum by reading first byte");
+          checksumData = checksumData
+              .toBuilder()
+              .setCrcType(
+                  PBHelper.convert(DFSClient.inferChecksumTypeByReading(
+                      clientName, socketFactory,
+                      socketTimeout, lb, datanodes[j],
+                      getDataEncryptionKey(lb),
+                      connectToDnViaHostname)))
+              .build();
+        }
+        return checksumData;
+      } catch (InvalidBlockTokenException ibte) {
+        if (!retried) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Got access token error in response to OP_BLOCK_CHECKSUM "
+                + "for file " + fileInfo.getFilepath()
+                + " for block " + block + " from datanode "
+                + datanodes[j]
+                + ". Will retry the block once.");
+          }
+          retried = true;
+          j = -1; // repeat the block
+        }
+      } catch (IOException ie) {
+        LOG.warn("src=" + fileInfo.getFilepath() + ", datanodes["
+            + j + "]=" + datanodes[j], ie);
+      } finally {
+        IOUtils.closeStream(in);
+        IOUtils.closeStream(out);
+        permits.release();
+      }
+    }
+    throw new IOException("Fail to get block MD5 for " + block);
+  }
+
+  private List<Future<OpChunksAdaptiveChecksumResponseProto>> submitFileAdaptiveChecksum(
+      final FileInfo fileInfo, final int chunkSize,
+      final int bminRatio, final int bmaxRatio) {
+    LOG.info("getFileAdaptiveChecksum start " + fileInfo.getFilepath());
+    List<Future<OpChunksAdaptiveChecksumResponseProto>> replies = new ArrayList<Future<OpChunksAdaptiveChecksumResponseProto>>();
+    for (final BlockInfo bi : fileInfo.getBlocks()) {
+      replies.add(executor
+          .submit(new Callable<OpChunksAdaptiveChecksumResponseProto>() {
+            @Override
+            public OpChunksAdaptiveChecksumResponseProto call()
+                throws IOException {
+              return getBlockAdaptiveChecksum(fileInfo,
+                  bi.getLocatedBlock(), chunkSize,
+                  bminRatio, bmaxRatio);
+            }
+          }));
+    }
+    return replies;
+  }
+
+  /**
+   * Collect the adaptive chunk checksums of a file into its blocks.
+   * 
+   * @param fileInfo
+   *            The file
+   * @param replies
+   *            The checksums of each block of the file
+   */
+  void getFileAdaptiveChecksum(FileInfo fileInfo,
+      List<Future<OpChunksAdaptiveChecksumResponseProto>> replies)
+      throws IOException {
+    int bytesPerCRC = -1;
+
+    for (int i = 0; i < fileInfo.getBlocks().size(); i++) {
+      OpChunksAdaptiveChecksumResponseProto checksumData = getResult(replies
+          .get(i));
+
+      fileInfo.getBlocks().get(i)
+          .setChecksumsAdaptive(checksumData.getChecksumsList());
+
+      // read byte-per-checksum
+      final int bpc = checksumData.getBytesPerCrc();
+      if (i == 0) { // first block
+        bytesPerCRC = bpc;
+      } else if (bpc != bytesPerCRC) {
+        throw new IOException("Byte-per-checksum not matched: bpc="
+            + bpc + " but bytesPerCRC=" + bytesPerCRC);
+      }
+    }
+  }
+
+  /**
+   * Get the adaptive chunk checksums of a block from one of its
+   * datanodes.
+   * 
+   * @return the checksums, always with the crc type
+   */
+  private OpChunksAdaptiveChecksumResponseProto getBlockAdaptiveChecksum(
+      FileInfo fileInfo, LocatedBlock lb, int chunkSize,
+      int bminRatio, int bmaxRatio) throws IOException {
+    final ExtendedBlock block = lb.getBlock();
+    final DatanodeInfo[] datanodes = lb.getLocations();
+    boolean retried = false;
+
+    // try each datanode location of the block
+    final int timeout = 3000 * datanodes.length + socketTimeout;
+    for (int j = 0; j < datanodes.length; j++) {
+      DataOutputStream out = null;
+      DataInputStream in = null;
+      final Semaphore permits = acquire(datanodes[j]);
+
+      try {
+        // connect to a datanode
+        IOStreamPair pair = DFSClient.connectToDN(socketFactory,
+            connectToDnViaHostname, getDataEncryptionKey(lb),
+            datanodes[j], timeout);
+        out = new DataOutputStream(new BufferedOutputStream(
+            pair.out, HdfsConstants.SMALL_BUFFER_SIZE));
+        in = new DataInputStream(pair.in);
+
+        // get block MD5
+        int bytesPerChunk = chunkSize; // 1MB
+        int bmin = bminRatio * bytesPerChunk;
+        int bmax = bmaxRatio * bytesPerChunk;
+        new Sender(out).chunksAdaptiveChecksum(block,
+            lb.getBlockToken(), bytesPerChunk, bmin, bmax,
+            strongHash);
+
+        final BlockOpResponseProto reply = BlockOpResponseProto
+            .parseFrom(PBHelper.vintPrefixed(in));
+
+        if (reply.getStatus() != Status.SUCCESS) {
+          if (reply.getStatus() == Status.ERROR_ACCESS_TOKEN) {
+            throw new InvalidBlockTokenException();
+          } else {
+            throw new IOException("Bad response " + reply
+                + " for block " + block + " from datanode "
+                + datanodes[j]);
+          }
+        }
+
+        OpChunksAdaptiveChecksumResponseProto checksumData = reply
+            .getChunksAdaptiveChecksumResponse();
+        checkStrongHash(checksumData.getStrongHash(), datanodes[j]);
+        if (!checksumData.hasCrcType()) {
+          LOG.debug("Retrieving checksum from an earlier-version DataNode: "
+              + "inferring checksum by reading first byte");
+          checksumData = checksumData
+              .toBuilder()
+              .setCrcType(
+                  PBHelper.convert(DFSClient.inferChecksumTypeByReading(
+                      clientName, socketFactory,
+                      socketTimeout, lb, datanodes[j],
+                      getDataEncryptionKey(lb),
+                      connectToDnViaHostname)))
+              .build();
+        }
+        return checksumData;
+      } catch (InvalidBlockTokenException ibte) {
+        if (!retried) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Got access token error in response to OP_BLOCK_CHECKSUM "
+                + "for file " + fileInfo.getFilepath()
+                + " for block " + block + " from datanode "
+                + datanodes[j]
+                + ". Will retry the block once.");
+          }
+          retried = true;
+          j = -1; // repeat the block
+        }
+      } catch (IOException ie) {
+        LOG.warn("src=" + fileInfo.getFilepath() + ", datanodes["
+            + j + "]=" + datanodes[j], ie);
+      } finally {
+        IOUtils.closeStream(in);
+        IOUtils.closeStream(out);
+        permits.release();
+      }
+    }
+    throw new IOException("Fail to get block MD5 for " + block);
+  }
+
+  private void calculateAdaptiveSegments(int chunkSize, int bminRatio,
+      int bmaxRatio) throws IOException {
+    LOG.info("calculateAdaptiveSegments start");
+    List<Future<OpChunksAdaptiveChecksumResponseProto>> dstReplies = submitFileAdaptiveChecksum(
+        dstFileInfo, chunkSize, bminRatio, bmaxRatio);
+    List<Future<OpChunksAdaptiveChecksumResponseProto>> srcReplies = submitFileAdaptiveChecksum(
+        srcFileInfo, chunkSize, bminRatio, bmaxRatio);
+    List<List<Future<OpChunksAdaptiveChecksumResponseProto>>> basisReplies = new ArrayList<List<Future<OpChunksAdaptiveChecksumResponseProto>>>();
+    for (FileInfo basis : basisFileInfos) {
+      basisReplies.add(submitFileAdaptiveChecksum(basis, chunkSize,
+          bminRatio, bmaxRatio));
+    }
+    getFileAdaptiveChecksum(dstFileInfo, dstReplies);
+    getFileAdaptiveChecksum(srcFileInfo, srcReplies);
+    for (int i = 0; i < basisFileInfos.size(); i++) {
+      getFileAdaptiveChecksum(basisFileInfos.get(i),
+          basisReplies.get(i));
+    }
+    // segment的index为chunk所在block在matchBlocks中的序号，
+    // 相同的chunk优先取自目标文件
+    HashMap<ByteString, ChecksumStrongProto> dstChecksums = new HashMap<ByteString, ChecksumStrongProto>();
+    for (int b = 0; b < matchBlocks.size(); b++) {
+      for (ChecksumStrongProto csp : matchBlocks.get(b)
+          .getChecksumsAdaptive()) {
+        if (dstChecksums.containsKey(csp.getMd5())) {
+          continue;
+        }
+        dstChecksums.put(
+            csp.getMd5(),
+            ChecksumStrongProto.newBuilder()
+                .setIndex(b)
+                .setOffset(csp.getOffset())
+                .setLength(csp.getLength())
+                .setMd5(csp.getMd5()).build());
+      }
+    }
+
+    int index = 0;
+    for (BlockInfo bi : srcFileInfo.getBlocks()) {
+      for (ChecksumStrongProto csp : bi.getChecksumsAdaptive()) {
+        if (!dstChecksums.containsKey(csp.getMd5())) {
+          bi.segments.add(SegmentProto.newBuilder().setIndex(-1)
+              .setLength(csp.getLength())
+              .setOffset(csp.getOffset()).build());
+        } else {
+          ChecksumStrongProto dstCsp = dstChecksums.get(csp
+              .getMd5());
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("[Found] block " + index + " segment "
+                + csp.getIndex() + " offset "
+                + csp.getOffset() + " length "
+                + csp.getLength());
+          }
+          bi.segments.add(SegmentProto.newBuilder()
+              .setIndex(dstCsp.getIndex())
+              .setOffset(dstCsp.getOffset())
+              .setLength(dstCsp.getLength()).build());
+        }
+      }
+      index++;
+    }
+  }
+
+  /**
+   * Calculate the segments of every source block on one of its
+   * datanodes. The dst file signatures are packed once and uploaded
+   * once per datanode, the following requests to the datanode naming
+   * the session only.
+   * 
+   * @return the calculation of each block, in block order, null for
+   *         the blocks whose plan is known already
+   */
+  private List<Future<?>> calculateSegments(final int chunkSize) {
+    LOG.info("calculateSegments start");
+    // 只上传完整的chunk：每个block末尾未达到chunkSize的chunk不能匹配
+    chunkStarts = new int[matchBlocks.size()];
+    int count = 0;
+    for (int b = 0; b < matchBlocks.size(); b++) {
+      chunkStarts[b] = count;
+      count += getFullChunks(matchBlocks.get(b), chunkSize);
+    }
+
+    final int[] weak = new int[count];
+    final byte[] strong = new byte[count * strongChecksumBytes];
+    int i = 0;
+    for (BlockInfo bi : matchBlocks) {
+      int fullChunks = getFullChunks(bi, chunkSize);
+      for (ChecksumPair cp : bi.getChecksums()) {
+        if (fullChunks-- == 0) {
+          break;
+        }
+        weak[i] = cp.getSimple();
+        System.arraycopy(cp.getMd5(), 0, strong, i
+            * strongChecksumBytes, strongChecksumBytes);
+        i++;
+      }
+    }
+    final PackedChecksumsProto checksums = new RsyncChecksums(weak,
+        strong, strongChecksumBytes, strongHash)
+        .toProto(compressChecksums);
+    LOG.info("Packed " + count + " chunk checksums into "
+        + checksums.getData().size() + " bytes");
+
+    final String sessionId = clientName + "_" + UUID.randomUUID();
+    // 已保存本次签名的datanode的xfer地址
+    final Set<String> uploaded = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    List<Future<?>> calculated = new ArrayList<Future<?>>();
+    int index = 0;
+    for (final BlockInfo bi : srcFileInfo.getBlocks()) {
+      final int blockIndex = index++;
+      if (plans.get(blockIndex) != null
+          || blockIndex < resumedBlocks) {
+        calculated.add(null);
+        continue;
+      }
+      calculated.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          calculateSegments(bi, blockIndex, sessionId,
+              checksums, uploaded, chunkSize);
+          return null;
+        }
+      }));
+    }
+    return calculated;
+  }
+
+  /**
+   * 旧版本datanode忽略请求的强校验和算法，总是使用MD5，其结果不能与其他datanode的混用
+   * 
+   * @throws IOException
+   *             if the datanode did not use the strong hash requested
+   */
+  private void checkStrongHash(StrongHashTypeProto used,
+      DatanodeInfo datanode) throws IOException {
+    if (used != strongHash) {
+      throw new IOException("Datanode " + datanode + " used strong hash "
+          + used + " instead of " + strongHash);
+    }
+  }
+
+  /** @return the number of whole chunks at the start of a block */
+  private int getFullChunks(BlockInfo bi, int chunkSize) {
+    return (int) Math.min(bi.getChecksums().size(), bi
+        .getLocatedBlock().getBlockSize() / chunkSize);
+  }
+
+  private void calculateSegments(BlockInfo bi, int index,
+      String sessionId, PackedChecksumsProto checksums,
+      Set<String> uploaded, int chunkSize) throws IOException {
+    DatanodeInfo[] datanodes = bi.getLocatedBlock().getLocations();
+    final int timeout = 3000 * datanodes.length + socketTimeout;
+    boolean calculated = false;
+    for (int j = 0; j < datanodes.length; j++) {
+      final Semaphore permits = acquire(datanodes[j]);
+
+      try {
+        final String dnAddr = datanodes[j].getXferAddr();
+        BlockOpResponseProto reply = null;
+        if (uploaded.contains(dnAddr)) {
+          reply = calculateSegments(bi.getLocatedBlock(),
+              datanodes[j], sessionId, null, chunkSize,
+              timeout);
+        }
+        // datanode未保存或已丢弃本次签名时，重新上传
+        if (reply == null
+            || reply.getStatus() == Status.ERROR_INVALID) {
+          reply = calculateSegments(bi.getLocatedBlock(),
+              datanodes[j], sessionId, checksums, chunkSize,
+              timeout);
+          if (reply.getStatus() == Status.SUCCESS) {
+            uploaded.add(dnAddr);
+          }
+        }
+
+        if (reply.getStatus() != Status.SUCCESS) {
+          if (reply.getStatus() == Status.ERROR_ACCESS_TOKEN) {
+            throw new InvalidBlockTokenException();
+          } else {
+            throw new IOException("Bad response " + reply
+                + " for block "
+                + bi.getLocatedBlock().getBlock()
+                + " from datanode " + datanodes[j]);
+          }
+        }
+
+        OpCalculateSegmentsResponseProto segmentsData = reply
+            .getCalculateSegmentsResponse();
+        checkStrongHash(segmentsData.getStrongHash(), datanodes[j]);
+
+        LinkedList<SegmentProto> segments = new LinkedList<SegmentProto>(
+            segmentsData.getSegmentsList());
+        bi.setSegments(segments);
+        calculated = true;
+        break;
+
+      } catch (IOException ie) {
+        // e.g. the rsync ops quota of the datanode is full: try the next one
+        LOG.warn("Failed to calculate segments of block "
+            + bi.getLocatedBlock().getBlock() + " on datanode "
+            + datanodes[j], ie);
+      } finally {
+        permits.release();
+      }
+    }
+    if (!calculated) {
+      throw new IOException("Fail to calculate segments of block "
+          + bi.getLocatedBlock().getBlock() + " on any of "
+          + Arrays.toString(datanodes));
+    }
+
+    if (LOG.isDebugEnabled()) {
+      int offset = 0;
+      for (SegmentProto sp : bi.getSegments()) {
+        if (sp.getIndex() != -1) {
+          LOG.debug("[Found] block " + index + " segment "
+              + offset + " offset " + offset * chunkSize
+              + " length " + chunkSize);
+        }
+        offset++;
+      }
+    }
+  }
+
+
+  /**
+   * Send one RSYNC_CALCULATE_SEGMENTS request.
+   * 
+   * @param checksums the dst file signatures, or null if the datanode
+   *            keeps them for the session
+   */
+  private BlockOpResponseProto calculateSegments(LocatedBlock block,
+      DatanodeInfo datanode, String sessionId,
+      PackedChecksumsProto checksums, int chunkSize, int timeout)
+      throws IOException {
+    DataOutputStream out = null;
+    DataInputStream in = null;
+    try {
+      // connect to a datanode
+      IOStreamPair pair = DFSClient.connectToDN(socketFactory,
+          connectToDnViaHostname, getDataEncryptionKey(block),
+          datanode, timeout);
+      out = new DataOutputStream(new BufferedOutputStream(pair.out,
+          HdfsConstants.SMALL_BUFFER_SIZE));
+      in = new DataInputStream(pair.in);
+
+      // call calculateSegments
+      new Sender(out).calculateSegments(block.getBlock(),
+          block.getBlockToken(), clientName, sessionId,
+          checksums, chunkSize);
+
+      // read reply
+      return BlockOpResponseProto.parseFrom(PBHelper
+          .vintPrefixed(in));
+    } finally {
+      IOUtils.closeStream(in);
+      IOUtils.closeStream(out);
+    }
+  }
+
+  /** 新block中的一个segment，及其数据来源 */
+  private class SegmentTransfer {
+    /** the block to read the segment from */
+    private final LocatedBlock block;
+    private final long offset;
+    private final long length;
+    /** the offset of the segment in the new block */
+    private final long destOffset;
+
+    SegmentTransfer(LocatedBlock block, long offset, long length,
+        long destOffset) {
+      this.block = block;
+      this.offset = offset;
+      this.length = length;
+      this.destOffset = destOffset;
+    }
+  }
+
+  /**
+   * 计算一个block所需传送的segments
+   * 
+   * @param blockInfo
+   *            所需要传送的block信息
+   */
+  private List<SegmentTransfer> getSegmentTransfers(BlockInfo blockInfo,
+      int chunkSize) {
+    List<SegmentTransfer> transfers = new ArrayList<SegmentTransfer>();
+    for (SegmentProto segment : blockInfo.getSegments()) {
+      // 如果dstFile中没有这个segment
+      if (segment.getIndex() == -1) {
+        transfers.add(new SegmentTransfer(blockInfo
+            .getLocatedBlock(), segment.getOffset(), segment
+            .getLength(), segment.getOffset()));
+      } else {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("SendSegment from dstFile " + "index : "
+              + segment.getIndex() + "; offset : "
+              + segment.getOffset() + "; length : "
+              + segment.getLength());
+        }
+        // chunk序号所在的block：最后一个起始序号不大于它的block
+        int chunk = (int) segment.getIndex();
+        int b = Arrays.binarySearch(chunkStarts, chunk);
+        if (b < 0) {
+          b = -b - 2;
+        }
+        while (b + 1 < chunkStarts.length
+            && chunkStarts[b + 1] <= chunk) {
+          b++;
+        }
+        transfers.add(new SegmentTransfer(matchBlocks.get(b)
+            .getLocatedBlock(), (long) (chunk - chunkStarts[b])
+            * chunkSize, chunkSize, segment.getOffset()));
+      }
+    }
+    return transfers;
+  }
+
+  /**
+   * 计算一个block所需传送的segments
+   * 
+   * @param blockInfo
+   *            所需要传送的block信息
+   */
+  private List<SegmentTransfer> getAdaptiveSegmentTransfers(
+      BlockInfo blockInfo) {
+    List<SegmentTransfer> transfers = new ArrayList<SegmentTransfer>();
+    long dstOffset = 0;
+    for (SegmentProto segment : blockInfo.getSegments()) {
+      // 如果dstFile中没有这个segment
+      if (segment.getIndex() == -1) {
+        transfers.add(new SegmentTransfer(blockInfo
+            .getLocatedBlock(), segment.getOffset(), segment
+            .getLength(), dstOffset));
+      } else {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("SendSegment from dstFile " + "index : "
+              + segment.getIndex() + "; offset : "
+              + segment.getOffset() + "; length : "
+              + segment.getLength());
+        }
+        transfers.add(new SegmentTransfer(matchBlocks
+            .get((int) segment.getIndex()).getLocatedBlock(),
+            segment.getOffset(), segment.getLength(), dstOffset));
+      }
+      dstOffset += segment.getLength();
+    }
+    return transfers;
+  }
+
+  /**
+   * 传送一个block所需的segments，与updateBlock配合使用
+   * 
+   * 来自同一个源block的segments合并为一次RSYNC_SEND_SEGMENTS请求，
+   * 首尾相接的segments合并为一个range。
+   * 源block以ExtendedBlock区分：blockId只在一个集群内唯一，
+   * 跨集群时src与dst的block可能有相同的blockId。
+   * 
+   * @param transfers
+   *            所需要传送的segments
+   * @param addedBlock
+   *            所传送的block在目标文件中对应的block
+   * @return 每个源block的传送
+   */
+  private List<Future<?>> sendSegments(List<SegmentTransfer> transfers,
+      final LocatedBlock addedBlock) {
+    LOG.info("sendSegments for block " + addedBlock.getBlock()
+        + " start.");
+    Map<ExtendedBlock, LocatedBlock> sources = new LinkedHashMap<ExtendedBlock, LocatedBlock>();
+    Map<ExtendedBlock, List<SegmentRangeProto>> ranges = new HashMap<ExtendedBlock, List<SegmentRangeProto>>();
+    for (SegmentTransfer transfer : transfers) {
+      ExtendedBlock block = transfer.block.getBlock();
+      List<SegmentRangeProto> blockRanges = ranges.get(block);
+      if (blockRanges == null) {
+        sources.put(block, transfer.block);
+        blockRanges = new ArrayList<SegmentRangeProto>();
+        ranges.put(block, blockRanges);
+      }
+      SegmentRangeProto last = blockRanges.isEmpty() ? null
+          : blockRanges.get(blockRanges.size() - 1);
+      if (last != null
+          && last.getOffset() + last.getLength() == transfer.offset
+          && last.getDestOffset() + last.getLength() == transfer.destOffset) {
+        blockRanges.set(blockRanges.size() - 1, last.toBuilder()
+            .setLength(last.getLength() + transfer.length)
+            .build());
+      } else {
+        blockRanges.add(SegmentRangeProto.newBuilder()
+            .setOffset(transfer.offset)
+            .setLength(transfer.length)
+            .setDestOffset(transfer.destOffset).build());
+      }
+    }
+
+    List<Future<?>> sent = new ArrayList<Future<?>>();
+    for (final Map.Entry<ExtendedBlock, LocatedBlock> source : sources
+        .entrySet()) {
+      final List<SegmentRangeProto> blockRanges = ranges.get(source
+          .getKey());
+      sent.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          sendSegments(source.getValue(), blockRanges, addedBlock);
+          return null;
+        }
+      }));
+    }
+    return sent;
+  }
+
+  /**
+   * 新block的副本所在datanode上有源block的副本时，该datanode在本地复制segments，
+   * 其余datanode组成pipeline从源block所在的datanode接收segments
+   */
+  private void sendSegments(LocatedBlock block,
+      List<SegmentRangeProto> ranges, LocatedBlock addedBlock)
+      throws IOException {
+    if (getClient(block) != dstClient
+        && (srcClient.shouldEncryptData() || dstClient.shouldEncryptData())) {
+      // 数据传输加密的密钥只在一个集群内有效
+      throw new IOException("Cannot send the segments of "
+          + block.getBlock() + " to another cluster with encrypted data "
+          + "transfer");
+    }
+    List<DatanodeInfo> srcDatanodes = Arrays.asList(block
+        .getLocations());
+    List<DatanodeInfo> remoteTargets = new ArrayList<DatanodeInfo>();
+    for (DatanodeInfo target : addedBlock.getLocations()) {
+      DatanodeInfo[] local = { target };
+      if (!srcDatanodes.contains(target)
+          || !sendSegments(block, ranges, addedBlock, local, local)) {
+        remoteTargets.add(target);
+      }
+    }
+    if (!remoteTargets.isEmpty()
+        && !sendSegments(block, ranges, addedBlock,
+            block.getLocations(), remoteTargets
+                .toArray(new DatanodeInfo[remoteTargets
+                    .size()]))) {
+      throw new IOException("Failed to send segments of "
+          + block.getBlock() + " to " + remoteTargets);
+    }
+  }
+
+  /**
+   * 依次尝试各个源datanode，将ranges经targets组成的pipeline传送，
+   * 源datanode为targets中的第一个时在本地复制。
+   * targets直接把segments写入新block的副本，或存为segment文件。
+   * targets检查新block的token，源block可以在另一个集群
+   * 
+   * @return 是否传送成功
+   */
+  private boolean sendSegments(LocatedBlock block,
+      List<SegmentRangeProto> ranges, LocatedBlock addedBlock,
+      DatanodeInfo[] srcDatanodes, DatanodeInfo[] dstDatanodes)
+      throws InterruptedIOException {
+    ExtendedBlock newBlock = addedBlock.getBlock();
+    String blockDirName = newBlock.getBlockId() + "_"
+        + newBlock.getGenerationStamp();
+    final int timeout = 3000 * dstDatanodes.length + socketTimeout;
+
+    for (int k = 0; k < srcDatanodes.length; k++) {
+      DataOutputStream out = null;
+      DataInputStream in = null;
+      final Semaphore permits = acquire(srcDatanodes[k]);
+
+      try {
+        // connect to a datanode
+        IOStreamPair pair = DFSClient.connectToDN(socketFactory,
+            connectToDnViaHostname, getDataEncryptionKey(block),
+            srcDatanodes[k], timeout);
+        out = new DataOutputStream(new BufferedOutputStream(
+            pair.out, HdfsConstants.SMALL_BUFFER_SIZE));
+        in = new DataInputStream(pair.in);
+
+        // call sendSegments
+        new Sender(out).sendSegments(block.getBlock(),
+            block.getBlockToken(), clientName, ranges, true,
+            blockDirName, dstDatanodes, newBlock, segmentsCodec,
+            addedBlock.getBlockToken());
+
+        // read reply
+        final BlockOpResponseProto reply = BlockOpResponseProto
+            .parseFrom(PBHelper.vintPrefixed(in));
+
+        if (reply.getStatus() != Status.SUCCESS) {
+          LOG.warn("Bad response " + reply + " for block "
+              + block.getBlock() + " from datanode "
+              + srcDatanodes[k]);
+        } else {
+          return true;
+        }
+
+      } catch (InvalidBlockTokenException ibte) {
+        LOG.warn("Invalid block token for block "
+            + block.getBlock() + " from datanode "
+            + srcDatanodes[k], ibte);
+      } catch (IOException ie) {
+        LOG.warn("Failed to send segments of block "
+            + block.getBlock() + " from datanode "
+            + srcDatanodes[k], ie);
+      } finally {
+        IOUtils.closeStream(in);
+        IOUtils.closeStream(out);
+        permits.release();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 新block的副本尽量放在提供最多未变数据的dstFile block所在的datanode上，
+   * 这样未变的segments可以在这些datanode本地复制，不经过网络
+   * 
+   * @param srcBlock
+   *            新block对应的src block
+   * @return addBlock的favoredNodes，没有来自dstFile的segments时为null
+   */
+  private String[] getFavoredNodes(LocatedBlock srcBlock,
+      List<SegmentTransfer> transfers) {
+    Map<ExtendedBlock, Long> matchedBytes = new HashMap<ExtendedBlock, Long>();
+    LocatedBlock favored = null;
+    long favoredBytes = 0;
+    for (SegmentTransfer transfer : transfers) {
+      ExtendedBlock block = transfer.block.getBlock();
+      if (block.equals(srcBlock.getBlock())) {
+        continue;
+      }
+      Long bytes = matchedBytes.get(block);
+      bytes = (bytes == null ? 0 : bytes) + transfer.length;
+      matchedBytes.put(block, bytes);
+      if (bytes > favoredBytes) {
+        favored = transfer.block;
+        favoredBytes = bytes;
+      }
+    }
+    if (favored == null) {
+      return null;
+    }
+    DatanodeInfo[] locations = favored.getLocations();
+    String[] favoredNodes = new String[locations.length];
+    for (int i = 0; i < locations.length; i++) {
+      favoredNodes[i] = locations[i].getXferAddr();
+    }
+    return favoredNodes;
+  }
+
+  /**
+   * 用于构建新的block，每个datanode上的副本同时构建
+   * 
+   * @param block
+   *            目标文件块
+   * @throws IOException
+   */
+  private void updateBlock(final LocatedBlock block) throws IOException {
+    LOG.info("updateBlock for block " + block.getBlock() + " start.");
+
+    List<Future<?>> updated = new ArrayList<Future<?>>();
+    for (final DatanodeInfo datanode : block.getLocations()) {
+      updated.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          updateBlock(block, datanode);
+          return null;
+        }
+      }));
+    }
+    for (Future<?> f : updated) {
+      getResult(f);
+    }
+  }
+
+  private void updateBlock(LocatedBlock block, DatanodeInfo datanode)
+      throws IOException {
+    final int timeout = 3000 * block.getLocations().length
+        + socketTimeout;
+    DataOutputStream out = null;
+    DataInputStream in = null;
+    final Semaphore permits = acquire(datanode);
+
+    try {
+      // connect to a datanode
+      IOStreamPair pair = DFSClient.connectToDN(socketFactory,
+          connectToDnViaHostname, getDataEncryptionKey(block),
+          datanode, timeout);
+      out = new DataOutputStream(new BufferedOutputStream(pair.out,
+          HdfsConstants.SMALL_BUFFER_SIZE));
+      in = new DataInputStream(pair.in);
+
+      // call updateBlock
+      LOG.info("updateBlock " + block.getBlock());
+      new Sender(out).updateBlock(block.getBlock(),
+          block.getBlockToken());
+
+      // read reply
+      final BlockOpResponseProto reply = BlockOpResponseProto
+          .parseFrom(PBHelper.vintPrefixed(in));
+
+      if (reply.getStatus() != Status.SUCCESS) {
+        if (reply.getStatus() == Status.ERROR_ACCESS_TOKEN) {
+          throw new InvalidBlockTokenException("Got access token error"
+              + " updating block " + block.getBlock() + " on datanode "
+              + datanode);
+        }
+        throw new IOException("Bad response " + reply + " for block "
+            + block.getBlock() + " from datanode " + datanode);
+      }
+    } finally {
+      IOUtils.closeStream(in);
+      IOUtils.closeStream(out);
+      permits.release();
+    }
+  }
+
+  private void sleepFor(long ms) throws IOException {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * dst为src的前缀时，把src多出的部分append到dst。
+   * 
+   * dst的block边界须与src的一致：除最后一个block外，各dst block与对应的src block等长，
+   * 且其block checksum与src block相同长度前缀的block checksum相同。
+   * 只比较meta文件中的CRC，不读取block数据。
+   * 
+   * @return 是否已用append完成
+   */
+  private boolean appendIfPrefix() throws IOException {
+    final long srcLen = srcFileInfo.getFileSize();
+    final long dstLen = dstFileInfo.getFileSize();
+    final List<BlockInfo> srcBlocks = srcFileInfo.getBlocks();
+    final List<BlockInfo> dstBlocks = dstFileInfo.getBlocks();
+    if (dstUnderConstruction || dstLen == 0 || dstLen > srcLen
+        || dstBlocks.size() > srcBlocks.size()) {
+      return false;
+    }
+    List<Future<OpBlockChecksumResponseProto>> dstReplies = new ArrayList<Future<OpBlockChecksumResponseProto>>();
+    List<Future<OpBlockChecksumResponseProto>> srcReplies = new ArrayList<Future<OpBlockChecksumResponseProto>>();
+    for (int i = 0; i < dstBlocks.size(); i++) {
+      final LocatedBlock dst = dstBlocks.get(i).getLocatedBlock();
+      final LocatedBlock src = srcBlocks.get(i).getLocatedBlock();
+      final long length = dst.getBlockSize();
+      if (length > src.getBlockSize()
+          || (i < dstBlocks.size() - 1 && length != src
+              .getBlockSize())) {
+        return false;
+      }
+      dstReplies.add(executor
+          .submit(new Callable<OpBlockChecksumResponseProto>() {
+            @Override
+            public OpBlockChecksumResponseProto call()
+                throws IOException {
+              return getBlockMd5(dst, length);
+            }
+          }));
+      srcReplies.add(executor
+          .submit(new Callable<OpBlockChecksumResponseProto>() {
+            @Override
+            public OpBlockChecksumResponseProto call()
+                throws IOException {
+              return getBlockMd5(src, length);
+            }
+          }));
+    }
+    for (int i = 0; i < dstBlocks.size(); i++) {
+      OpBlockChecksumResponseProto dstSum = getResult(dstReplies
+          .get(i));
+      OpBlockChecksumResponseProto srcSum = getResult(srcReplies
+          .get(i));
+      if (dstSum.getBytesPerCrc() != srcSum.getBytesPerCrc()
+          || dstSum.getCrcType() != srcSum.getCrcType()
+          || !dstSum.getMd5().equals(srcSum.getMd5())) {
+        LOG.info(dstFileInfo.getFilepath() + " is not a prefix of "
+            + srcFileInfo.getFilepath() + ": block " + i
+            + " differs");
+        return false;
+      }
+    }
+
+    summary = new RsyncStatistics(srcFileInfo.getFilepath(), srcLen);
+    summary.addSegment(dstLen, false);
+    if (srcLen > dstLen) {
+      summary.addSegment(srcLen - dstLen, true);
+      LOG.info("Append " + (srcLen - dstLen) + " bytes of "
+          + srcFileInfo.getFilepath() + " to its prefix "
+          + dstFileInfo.getFilepath());
+      DFSInputStream in = srcClient.open(srcPath);
+      try {
+        in.seek(dstLen);
+        OutputStream out = dstClient.append(dstPath,
+            dstClient.getConf().ioBufferSize, null, null);
+        try {
+          IOUtils.copyBytes(in, out, srcLen - dstLen, false);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the checksum of the first length bytes of a block from one of
+   * its datanodes.
+   */
+  private OpBlockChecksumResponseProto getBlockMd5(LocatedBlock lb,
+      long length) throws IOException {
+    final ExtendedBlock block = new ExtendedBlock(lb.getBlock());
+    block.setNumBytes(length);
+    final DatanodeInfo[] datanodes = lb.getLocations();
+    final int timeout = 3000 * datanodes.length + socketTimeout;
+    for (int j = 0; j < datanodes.length; j++) {
+      DataOutputStream out = null;
+      DataInputStream in = null;
+      final Semaphore permits = acquire(datanodes[j]);
+
+      try {
+        IOStreamPair pair = DFSClient.connectToDN(socketFactory,
+            connectToDnViaHostname, getDataEncryptionKey(lb),
+            datanodes[j], timeout);
+        out = new DataOutputStream(new BufferedOutputStream(
+            pair.out, HdfsConstants.SMALL_BUFFER_SIZE));
+        in = new DataInputStream(pair.in);
+
+        new Sender(out).blockChecksum(block, lb.getBlockToken());
+
+        final BlockOpResponseProto reply = BlockOpResponseProto
+            .parseFrom(PBHelper.vintPrefixed(in));
+        if (reply.getStatus() != Status.SUCCESS) {
+          throw new IOException("Bad response " + reply
+              + " for block " + block + " from datanode "
+              + datanodes[j]);
+        }
+        return reply.getChecksumResponse();
+      } catch (IOException ie) {
+        LOG.warn("Failed to get checksum of " + block
+            + " from datanode " + datanodes[j], ie);
+      } finally {
+        IOUtils.closeStream(in);
+        IOUtils.closeStream(out);
+        permits.release();
+      }
+    }
+    throw new IOException("Fail to get block MD5 for " + block);
+  }
+
+  /**
+   * 读取dst旁保存的进度，src、dst和参数都未变时续用，否则开始新的会话。
+   * manifest中的传送计划在其引用的block都还存在时才续用。
+   */
+  private void openManifest(int method, int chunkSize, int bminRatio,
+      int bmaxRatio) throws IOException {
+    HdfsFileStatus srcStatus = srcNamenode.getFileInfo(srcFileInfo
+        .getFilepath());
+    HdfsFileStatus dstStatus = dstNamenode.getFileInfo(dstFileInfo
+        .getFilepath());
+    if (srcStatus == null || dstStatus == null) {
+      throw new FileNotFoundException(srcFileInfo.getFilepath()
+          + " or " + dstFileInfo.getFilepath() + " does not exist");
+    }
+    List<BlockInfo> srcBlocks = srcFileInfo.getBlocks();
+    String srcPoolId = srcBlocks.isEmpty() ? "" : srcBlocks.get(0)
+        .getLocatedBlock().getBlock().getBlockPoolId();
+    long[] srcBlockIds = new long[srcBlocks.size()];
+    for (int i = 0; i < srcBlockIds.length; i++) {
+      srcBlockIds[i] = srcBlocks.get(i).getLocatedBlock().getBlock()
+          .getBlockId();
+    }
+    summary = new RsyncStatistics(srcFileInfo.getFilepath(),
+        srcStatus.getLen());
+    manifest = new RsyncManifest(srcFileInfo.getFilepath(), srcPoolId,
+        srcStatus.getLen(), srcStatus.getModificationTime(),
+        dstStatus.getLen(), dstStatus.getModificationTime(), method,
+        chunkSize, bminRatio, bmaxRatio, strongHash.name(),
+        srcBlockIds);
+    manifestPath = RsyncManifest.getPath(dstFileInfo.getFilepath());
+    plans = new ArrayList<List<SegmentTransfer>>(Collections.nCopies(
+        srcBlockIds.length, (List<SegmentTransfer>) null));
+    if (!resumeEnabled) {
+      return;
+    }
+
+    RsyncManifest saved = RsyncManifest.load(dstClient, manifestPath);
+    if (saved == null || !saved.isSameSession(manifest)) {
+      return;
+    }
+    LOG.info("Resume " + saved);
+    manifest = saved;
+    Map<ExtendedBlock, LocatedBlock> blocks =
+        new HashMap<ExtendedBlock, LocatedBlock>();
+    for (BlockInfo bi : srcBlocks) {
+      blocks.put(bi.getLocatedBlock().getBlock(), bi.getLocatedBlock());
+    }
+    for (BlockInfo bi : matchBlocks) {
+      blocks.put(bi.getLocatedBlock().getBlock(), bi.getLocatedBlock());
+    }
+    for (int i = 0; i < srcBlockIds.length; i++) {
+      List<RsyncManifest.Segment> plan = manifest.getBlock(i)
+          .getPlan();
+      if (plan == null) {
+        continue;
+      }
+      List<SegmentTransfer> transfers = new ArrayList<SegmentTransfer>();
+      for (RsyncManifest.Segment segment : plan) {
+        LocatedBlock block = blocks.get(new ExtendedBlock(segment.poolId,
+            segment.blockId));
+        if (block == null) {
+          transfers = null;
+          break;
+        }
+        transfers.add(new SegmentTransfer(block, segment.offset,
+            segment.length, segment.destOffset));
+      }
+      if (transfers != null && isComplete(transfers, srcBlocks.get(i))) {
+        plans.set(i, transfers);
+      }
+    }
+  }
+
+  /** @return 传送计划是否覆盖了整个src block */
+  private boolean isComplete(List<SegmentTransfer> transfers,
+      BlockInfo srcBlock) {
+    long length = 0;
+    for (SegmentTransfer transfer : transfers) {
+      length += transfer.length;
+    }
+    return length == srcBlock.getLocatedBlock().getBlockSize();
+  }
+
+  /** @return 所有未完成的block的传送计划是否都已知 */
+  private boolean isPlanned() {
+    for (int i = resumedBlocks; i < plans.size(); i++) {
+      if (plans.get(i) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 续用上次运行留下的.rsync文件：文件仍在构建中时，以上次的client取得其lease，
+   * 放弃未完成的block，已完成的block不再构建；否则把它改名为.rsync.prev，
+   * 已完成的block作为整体从中复制，新block的副本放在其所在的datanode上时
+   * 在本地复制，不经过网络。
+   */
+  private void resume(String tmpFilePath) throws IOException {
+    final int finished = manifest.getFinishedBlocks();
+    if (finished == 0) {
+      return;
+    }
+    LocatedBlocks tmpBlocks;
+    HdfsFileStatus tmpStatus;
+    try {
+      tmpBlocks = DFSClient.callGetBlockLocations(dstNamenode, tmpFilePath, 0,
+          Long.MAX_VALUE);
+      tmpStatus = dstNamenode.getFileInfo(tmpFilePath);
+    } catch (FileNotFoundException e) {
+      tmpBlocks = null;
+      tmpStatus = null;
+    }
+    if (tmpBlocks == null || tmpStatus == null
+        || tmpStatus.getFileId() != manifest.getFileId()) {
+      LOG.info(tmpFilePath + " of " + manifest + " is gone");
+      manifest.clearFinished();
+      return;
+    }
+    List<LocatedBlock> located = tmpBlocks.getLocatedBlocks();
+    int kept = 0;
+    while (kept < finished && kept < located.size()
+        && located.get(kept).getBlock().getBlockId() == manifest
+            .getBlock(kept).getNewBlockId()) {
+      kept++;
+    }
+
+    if (tmpBlocks.isUnderConstruction() && kept > 0) {
+      final String ownName = clientName;
+      try {
+        clientName = manifest.getClientName();
+        renewer.setClientName(clientName);
+        dstNamenode.renewLease(clientName);
+        for (int j = located.size() - 1; j >= kept; j--) {
+          dstNamenode.abandonBlock(located.get(j).getBlock(),
+              tmpFilePath, clientName);
+        }
+        resumedBlocks = kept;
+        resumedLastBlock = new ExtendedBlock(located.get(kept - 1)
+            .getBlock());
+        resumedLastBlock.setNumBytes(manifest.getBlock(kept - 1)
+            .getNewNumBytes());
+        LOG.info("Resume " + tmpFilePath + " after " + kept
+            + " blocks");
+        return;
+      } catch (IOException e) {
+        LOG.warn("Failed to resume " + tmpFilePath + " as "
+            + clientName, e);
+        clientName = ownName;
+        renewer.setClientName(clientName);
+      }
+    }
+
+    prevFilePath = tmpFilePath + ".prev";
+    dstNamenode.rename2(tmpFilePath, prevFilePath,
+        org.apache.hadoop.fs.Options.Rename.OVERWRITE);
+    for (int j = 0; j < kept; j++) {
+      long length = manifest.getBlock(j).getNewNumBytes();
+      plans.set(j, Collections.singletonList(new SegmentTransfer(
+          located.get(j), 0, length, 0)));
+    }
+    manifest.clearFinished();
+    LOG.info("Copy " + kept + " blocks from " + prevFilePath);
+  }
+
+  /**
+   * 保存进度，其中包括所有已计算出的传送计划
+   * 
+   * @param calculated
+   *            每个src block的segments计算，自适应分块时为null
+   */
+  private void saveManifest(List<Future<?>> calculated, int chunkSize,
+      boolean adaptive) throws IOException {
+    if (!resumeEnabled) {
+      return;
+    }
+    for (int i = 0; i < plans.size(); i++) {
+      List<SegmentTransfer> transfers = plans.get(i);
+      if (transfers == null && i >= resumedBlocks) {
+        BlockInfo bi = srcFileInfo.getBlocks().get(i);
+        if (adaptive) {
+          transfers = getAdaptiveSegmentTransfers(bi);
+        } else if (calculated != null && calculated.get(i) != null
+            && calculated.get(i).isDone()) {
+          transfers = getSegmentTransfers(bi, chunkSize);
+        }
+        if (transfers != null && isComplete(transfers, bi)) {
+          plans.set(i, transfers);
+        } else {
+          continue;
+        }
+      }
+      if (transfers != null) {
+        List<RsyncManifest.Segment> plan = new ArrayList<RsyncManifest.Segment>();
+        for (SegmentTransfer transfer : transfers) {
+          ExtendedBlock block = transfer.block.getBlock();
+          plan.add(new RsyncManifest.Segment(block.getBlockPoolId(),
+              block.getBlockId(), transfer.offset, transfer.length,
+              transfer.destOffset));
+        }
+        manifest.setPlan(i, plan);
+      }
+    }
+    manifest.save(dstClient, manifestPath);
+  }
+
+  /**
+   * 新建一个临时文件，文件名为dstFilePath+".rsync"，在这个文件中恢复新的文件内容，再用这个文件替代原有文件
+   * 
+   * 各block依次执行addBlock、sendSegments、updateBlock，并行度大于1时，
+   * 下一个block的segments计算与传送和当前block的updateBlock同时进行。
+   * NameNode要求倒数第二个block已完成才能addBlock，所以同时最多有两个block在构建。
+   * 每个block构建完成后保存进度；续传时.rsync文件中已完成的block被跳过。
+   * 
+   * @param calculated
+   *            每个src block的segments计算，自适应分块时为null
+   * @param adaptive
+   *            是否为自适应分块
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void updateDstFile(List<Future<?>> calculated, int chunkSize,
+      boolean adaptive) throws IOException, InterruptedException {
+    String tmpFilePath = getTmpFilePath();
+    LOG.info("updateDstFile " + tmpFilePath);
+    long fileId;
+    ExtendedBlock lastBlock = null;
+    if (resumedBlocks > 0) {
+      fileId = manifest.getFileId();
+      lastBlock = resumedLastBlock;
+    } else {
+      short replication = options.getReplication() > 0 ? options
+          .getReplication() : dstClient.getDefaultReplication();
+      long blockSize = options.getBlockSize() > 0 ? options.getBlockSize()
+          : dstClient.getDefaultBlockSize();
+      EnumSetWritable<CreateFlag> flag = new EnumSetWritable<CreateFlag>(
+          EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE));
+      // 上次运行中断时留下的.rsync文件可能仍在其lease下，不能直接覆盖
+      dstNamenode.delete(tmpFilePath, false);
+      HdfsFileStatus status = dstNamenode.create(tmpFilePath,
+          FsPermission.getFileDefault(), clientName, flag,
+          true/* createParent */, replication, blockSize);
+
+      fileId = status.getFileId();
+      manifest.setClientName(clientName);
+      manifest.setFileId(fileId);
+    }
+    saveManifest(calculated, chunkSize, adaptive);
+    long BLK_WAIT_TIME = 30000;
+    long WAIT_SLEEP_TIME = 1000;
+    // 已经addBlock、尚未updateBlock的block、其序号及segments传送
+    ArrayDeque<LocatedBlock> pendingBlocks = new ArrayDeque<LocatedBlock>();
+    ArrayDeque<Integer> pendingIndexes = new ArrayDeque<Integer>();
+    ArrayDeque<List<Future<?>>> pendingSends = new ArrayDeque<List<Future<?>>>();
+    int window = parallelism > 1 ? 2 : 1;
+    for (int i = 0; i < resumedBlocks; i++) {
+      summary.addResumed(srcFileInfo.getBlocks().get(i)
+          .getLocatedBlock().getBlockSize());
+    }
+    for (int i = resumedBlocks; i < srcFileInfo.getBlocks().size(); i++) {
+      BlockInfo blockInfo = srcFileInfo.getBlocks().get(i);
+      List<SegmentTransfer> transfers = plans.get(i);
+      if (transfers == null) {
+        if (calculated != null) {
+          getResult(calculated.get(i));
+        }
+        transfers = adaptive ? getAdaptiveSegmentTransfers(blockInfo)
+            : getSegmentTransfers(blockInfo, chunkSize);
+      }
+      ExtendedBlock srcBlock = blockInfo.getLocatedBlock().getBlock();
+      for (SegmentTransfer transfer : transfers) {
+        summary.addSegment(transfer.length, transfer.block.getBlock()
+            .equals(srcBlock));
+      }
+      String[] favoredNodes = getFavoredNodes(
+          blockInfo.getLocatedBlock(), transfers);
+
+      LocatedBlock currentBlock = null;
+      long startTime = System.currentTimeMillis();
+      do{
+        try {
+          currentBlock = dstNamenode.addBlock(tmpFilePath,
+              clientName, lastBlock, (DatanodeInfo[]) null,
+              fileId, favoredNodes);
+        } catch (RemoteException re) {
+          if (re.unwrapRemoteException() instanceof NotReplicatedYetException) {
+            if (System.currentTimeMillis() - startTime > BLK_WAIT_TIME) {
+              throw re;
+            }
+            LOG.warn("File not replicated yet : " + dstFileInfo.getFilepath()
+                + " will retry in " + WAIT_SLEEP_TIME / 1000
+                + " seconds");
+            sleepFor(WAIT_SLEEP_TIME);
+            continue;
+          } else {
+            LOG.warn(re);
+            throw re;
+          }
+        }
+      }while(currentBlock == null);
+
+      LOG.info("Add new block " + currentBlock.getBlock());
+
+      // sendSegments and updateBlock
+      pendingBlocks.add(currentBlock);
+      pendingIndexes.add(i);
+      pendingSends.add(sendSegments(transfers, currentBlock));
+      while (pendingBlocks.size() >= window) {
+        finishBlock(pendingBlocks.poll(), pendingIndexes.poll(),
+            pendingSends.poll(), calculated, chunkSize, adaptive);
+      }
+
+      lastBlock = new ExtendedBlock(currentBlock.getBlock());
+      lastBlock.setNumBytes(blockInfo.getLocatedBlock().getBlock()
+          .getNumBytes());
+      LOG.info("lastBlock " + lastBlock.getBlockName() + " size "
+          + lastBlock.getNumBytes());
+    }
+    while (!pendingBlocks.isEmpty()) {
+      finishBlock(pendingBlocks.poll(), pendingIndexes.poll(),
+          pendingSends.poll(), calculated, chunkSize, adaptive);
+    }
+
+    int cSegments = 0;
+    for (BlockInfo bi : srcFileInfo.getBlocks()) {
+      cSegments += bi.getSegments().size();
+    }
+    LOG.info("File Segments Number : " + cSegments);
+
+    long startTime = System.currentTimeMillis();
+    while (!dstNamenode.complete(tmpFilePath, clientName, lastBlock,
+        fileId)) {
+      if (System.currentTimeMillis() - startTime > BLK_WAIT_TIME) {
+        throw new IOException("Unable to close file " + tmpFilePath
+            + " because the last block does not have enough"
+            + " number of replicas.");
+      }
+      LOG.info("Could not complete " + tmpFilePath + " retrying...");
+      sleepFor(WAIT_SLEEP_TIME);
+    }
+    LOG.info("File " + tmpFilePath + " complete");
+    // 用新文件替代原有文件
+    dstNamenode.rename2(tmpFilePath, dstFileInfo.getFilepath(),
+        org.apache.hadoop.fs.Options.Rename.OVERWRITE);
+    LOG.info("Rename " + tmpFilePath + " to "
+        + dstFileInfo.getFilepath());
+    dstClient.delete(manifestPath, false);
+    if (prevFilePath != null) {
+      dstNamenode.delete(prevFilePath, false);
+    }
+  }
+
+  private String getTmpFilePath() {
+    return getTmpPath(dstFileInfo.getFilepath());
+  }
+
+  /** @return the path of the temporary file an rsync to dstPath builds */
+  public static String getTmpPath(String dstPath) {
+    return dstPath + ".rsync";
+  }
+
+  /** 删除之前中断的运行留在dst旁的临时文件和manifest，dst被append后它们已经过时 */
+  private void deleteStaleSession() throws IOException {
+    for (String path : new String[] { getTmpFilePath(),
+        RsyncManifest.getPath(dstFileInfo.getFilepath()) }) {
+      if (dstClient.delete(path, false)) {
+        LOG.info("Delete stale " + path);
+      }
+    }
+  }
+
+  /** 等待block的segments传送完成，再构建这个block，然后保存进度 */
+  private void finishBlock(LocatedBlock block, int index,
+      List<Future<?>> sent, List<Future<?>> calculated,
+      int chunkSize, boolean adaptive) throws IOException {
+    for (Future<?> f : sent) {
+      getResult(f);
+    }
+    updateBlock(block);
+    manifest.setFinished(index, block.getBlock().getBlockId(), block
+        .getBlock().getGenerationStamp(), srcFileInfo.getBlocks()
+        .get(index).getLocatedBlock().getBlockSize());
+    saveManifest(calculated, chunkSize, adaptive);
+    faultInjector.blockFinished(index);
+  }
+
+  /**
+   * 占用datanode的一个请求许可，限制同时发往一个datanode的请求数
+   * 
+   * @return 需要在请求结束后release的许可
+   */
+  private Semaphore acquire(DatanodeInfo datanode)
+      throws InterruptedIOException {
+    Semaphore permits = datanodePermits.get(datanode.getXferAddr());
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(maxRequestsPerDatanode);
+      permits = datanodePermits.putIfAbsent(datanode.getXferAddr(),
+          newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while waiting for datanode " + datanode);
+    }
+    return permits;
+  }
+
+  /** 等待一个提交到executor的任务完成，并抛出其异常 */
+  private <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting "
+          + "for " + srcFileInfo.getFilepath());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private ExecutorService newExecutor() {
+    if (parallelism <= 1) {
+      return MoreExecutors.sameThreadExecutor();
+    }
+    return Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("DFSRsync-" + clientName + "-%d")
+            .build());
+  }
+
+  /** @return the client of the cluster of a src, dst or basis block */
+  private DFSClient getClient(LocatedBlock block) {
+    if (srcClient == dstClient
+        || block.getBlock().getBlockPoolId().equals(srcBlockPoolId)) {
+      return srcClient;
+    }
+    return dstClient;
+  }
+
+  /**
+   * @return the key to encrypt the data transfer with the datanodes of
+   *         block, or null if its cluster does not encrypt it
+   */
+  private DataEncryptionKey getDataEncryptionKey(LocatedBlock block)
+      throws IOException {
+    return getClient(block).getDataEncryptionKey();
+  }
+
+  /**
+   * 记录从start到现在的一个阶段
+   * 
+   * @return 现在，即下一个阶段的开始
+   */
+  private long addPhase(String phase, long start) {
+    long now = Time.monotonicNow();
+    summary.addPhase(phase, now - start);
+    return now;
+  }
+
+  void printFileInfo(FileInfo fileInfo) {
+    LOG.info("File Info of " + fileInfo.getFilepath());
+    LOG.info("\tblock count : " + fileInfo.getBlocks().size());
+    for (BlockInfo bi : fileInfo.getBlocks()) {
+      LOG.info("\tblock id : "
+          + bi.getLocatedBlock().getBlock().getBlockId()
+          + "; genstamp : "
+          + bi.getLocatedBlock().getBlock().getGenerationStamp()
+          + "; checksum size :" + bi.getChecksums().size()
+          + "; segment size : " + bi.getSegments().size());
+    }
+  }
+
+  /**
+   * 依次执行各阶段，完成后输出本次运行的结果。
+   * 
+   * method 1的segments计算是异步的，与update阶段同时进行，
+   * segments阶段只计入提交计算的时间，等待计算完成的时间计入update阶段。
+   * 
+   * @return 本次运行的结果
+   */
+  RsyncStatistics run() throws IOException {
+    final int method = options.getMethod();
+    final int chunkSize = options.getChunkSize();
+    executor = newExecutor();
+    renewerThread.start();
+    try {
+      long start = Time.monotonicNow();
+      getSDFileInfo();
+      if (appendEnabled && appendIfPrefix()) {
+        deleteStaleSession();
+        addPhase("append", start);
+        LOG.info(summary);
+        return summary;
+      }
+      openManifest(method, chunkSize, options.getBminRatio(),
+          options.getBmaxRatio());
+      resume(getTmpFilePath());
+      start = addPhase("info", start);
+      // 续传时只计算传送计划未知的block
+      if (method == RsyncOptions.METHOD_FIXED) {
+        List<Future<?>> calculated = null;
+        if (!isPlanned()) {
+          getSDFileChecksum(chunkSize);
+          start = addPhase("checksum", start);
+          calculated = calculateSegments(chunkSize);
+          start = addPhase("segments", start);
+        }
+        updateDstFile(calculated, chunkSize, false);
+      } else {
+        if (!isPlanned()) {
+          calculateAdaptiveSegments(chunkSize, options.getBminRatio(),
+              options.getBmaxRatio());
+          start = addPhase("segments", start);
+        }
+        updateDstFile(null, chunkSize, true);
+      }
+      addPhase("update", start);
+      LOG.info(summary);
+      return summary;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while rsyncing "
+          + srcPath + " to " + dstPath);
+    } catch (IOException e) {
+      LOG.error("Failed to rsync " + srcPath + " to " + dstPath, e);
+      throw e;
+    } finally {
+      executor.shutdownNow();
+      renewerThread.interrupt();
+    }
+  }
+}
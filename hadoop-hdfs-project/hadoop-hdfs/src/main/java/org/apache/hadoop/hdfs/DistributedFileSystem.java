@@ -1236,6 +1236,34 @@ public FileChecksum next(final FileSystem fs, final Path p)
     }.resolve(this, absF);
   }
 
+  /**
+   * Rsync the file src to the existing file dst of this file system. The
+   * chunks of dst, and of the basis files in the options, are copied by
+   * the datanodes holding them; only the rest of src is sent from the
+   * datanodes of src. dst is replaced atomically once the new file is
+   * complete.
+   *
+   * @param src the source file, in this or another HDFS cluster; a path
+   *          without a scheme is in this file system
+   * @param dst the destination file in this file system
+   * @param options the rsync options
+   * @return the statistics of the rsync
+   * @throws IOException if src is not in HDFS, or the rsync failed
+   */
+  public RsyncStatistics rsync(Path src, Path dst, RsyncOptions options)
+      throws IOException {
+    statistics.incrementWriteOps(1);
+    final FileSystem srcFs = src.toUri().getScheme() == null ? this : src
+        .getFileSystem(getConf());
+    if (!(srcFs instanceof DistributedFileSystem)) {
+      throw new IOException("Cannot rsync from " + src
+          + ", which is not in HDFS");
+    }
+    final DistributedFileSystem srcDfs = (DistributedFileSystem) srcFs;
+    return dfs.rsync(srcDfs.dfs, srcDfs.getPathName(srcDfs
+        .fixRelativePart(src)), getPathName(fixRelativePart(dst)), options);
+  }
+
   @Override
   public void setPermission(Path p, final FsPermission permission
       ) throws IOException {
@@ -0,0 +1,357 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+
+/**
+ * 一次{@link DFSClient#rsync}会话的进度，保存在目标集群上dst旁的side文件中，
+ * 以便中断后重新运行时跳过已完成的block。
+ *
+ * 记录会话的参数、临时文件.rsync的lease持有者和fileId，以及每个src block的传送计划
+ * （segments来自哪个block的哪个位置）和已完成的新block。
+ * src、dst或参数变化后，旧的进度不再有效。
+ */
+@InterfaceAudience.Private
+public class RsyncManifest {
+  private static final Log LOG = LogFactory.getLog(RsyncManifest.class);
+
+  static final String SUFFIX = ".rsync.manifest";
+  private static final int VERSION = 2;
+  /** 一个block的记录至少占用的字节数：srcBlockId、finished、新block和segments数 */
+  private static final int MIN_BLOCK_BYTES = 8 + 1 + 3 * 8 + 4;
+  /** 一个segment至少占用的字节数：poolId的长度和四个long */
+  private static final int MIN_SEGMENT_BYTES = 1 + 4 * 8;
+
+  /**
+   * 新block中的一段数据，来自block pool poolId中blockId的[offset, offset + length)。
+   * blockId只在一个集群内唯一，src与dst的block以poolId区分。
+   */
+  static class Segment {
+    final String poolId;
+    final long blockId;
+    final long offset;
+    final long length;
+    final long destOffset;
+
+    Segment(String poolId, long blockId, long offset, long length,
+        long destOffset) {
+      this.poolId = poolId;
+      this.blockId = blockId;
+      this.offset = offset;
+      this.length = length;
+      this.destOffset = destOffset;
+    }
+  }
+
+  /** 一个src block的进度 */
+  static class BlockState {
+    private final long srcBlockId;
+    /** 传送计划，未知时为null */
+    private List<Segment> plan;
+    private boolean finished;
+    private long newBlockId;
+    private long newGenerationStamp;
+    private long newNumBytes;
+
+    private BlockState(long srcBlockId) {
+      this.srcBlockId = srcBlockId;
+    }
+
+    List<Segment> getPlan() {
+      return plan;
+    }
+
+    boolean isFinished() {
+      return finished;
+    }
+
+    long getNewBlockId() {
+      return newBlockId;
+    }
+
+    long getNewGenerationStamp() {
+      return newGenerationStamp;
+    }
+
+    long getNewNumBytes() {
+      return newNumBytes;
+    }
+  }
+
+  private final String srcPath;
+  private final String srcPoolId;
+  private final long srcLength;
+  private final long srcModificationTime;
+  private final long dstLength;
+  private final long dstModificationTime;
+  private final int method;
+  private final int chunkSize;
+  private final int bminRatio;
+  private final int bmaxRatio;
+  private final String strongHash;
+
+  private String clientName = "";
+  private long fileId;
+  private final BlockState[] blocks;
+
+  RsyncManifest(String srcPath, String srcPoolId, long srcLength, long srcModificationTime,
+      long dstLength, long dstModificationTime, int method,
+      int chunkSize, int bminRatio, int bmaxRatio, String strongHash,
+      long[] srcBlockIds) {
+    this.srcPath = srcPath;
+    this.srcPoolId = srcPoolId;
+    this.srcLength = srcLength;
+    this.srcModificationTime = srcModificationTime;
+    this.dstLength = dstLength;
+    this.dstModificationTime = dstModificationTime;
+    this.method = method;
+    this.chunkSize = chunkSize;
+    this.bminRatio = bminRatio;
+    this.bmaxRatio = bmaxRatio;
+    this.strongHash = strongHash;
+    this.blocks = new BlockState[srcBlockIds.length];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = new BlockState(srcBlockIds[i]);
+    }
+  }
+
+  /** @return the path of the manifest of a dst file */
+  public static String getPath(String dstPath) {
+    return dstPath + SUFFIX;
+  }
+
+  /** @return 两者是否为同一会话：src、dst及参数都相同 */
+  boolean isSameSession(RsyncManifest that) {
+    if (!srcPath.equals(that.srcPath) || !srcPoolId.equals(that.srcPoolId)
+        || srcLength != that.srcLength
+        || srcModificationTime != that.srcModificationTime
+        || dstLength != that.dstLength
+        || dstModificationTime != that.dstModificationTime
+        || method != that.method || chunkSize != that.chunkSize
+        || bminRatio != that.bminRatio || bmaxRatio != that.bmaxRatio
+        || !strongHash.equals(that.strongHash)
+        || blocks.length != that.blocks.length) {
+      return false;
+    }
+    for (int i = 0; i < blocks.length; i++) {
+      if (blocks[i].srcBlockId != that.blocks[i].srcBlockId) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public String getClientName() {
+    return clientName;
+  }
+
+  void setClientName(String clientName) {
+    this.clientName = clientName;
+  }
+
+  long getFileId() {
+    return fileId;
+  }
+
+  void setFileId(long fileId) {
+    this.fileId = fileId;
+  }
+
+  BlockState getBlock(int index) {
+    return blocks[index];
+  }
+
+  void setPlan(int index, List<Segment> plan) {
+    blocks[index].plan = plan;
+  }
+
+  /** 新block已在所有datanode上构建完成 */
+  void setFinished(int index, long newBlockId, long newGenerationStamp,
+      long newNumBytes) {
+    BlockState block = blocks[index];
+    block.finished = true;
+    block.newBlockId = newBlockId;
+    block.newGenerationStamp = newGenerationStamp;
+    block.newNumBytes = newNumBytes;
+  }
+
+  /** 临时文件不能续写时，已完成的block也需重新构建 */
+  void clearFinished() {
+    for (BlockState block : blocks) {
+      block.finished = false;
+    }
+  }
+
+  /** @return 从第一个block开始连续完成的block数 */
+  int getFinishedBlocks() {
+    int n = 0;
+    while (n < blocks.length && blocks[n].finished) {
+      n++;
+    }
+    return n;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(VERSION);
+    Text.writeString(out, srcPath);
+    Text.writeString(out, srcPoolId);
+    out.writeLong(srcLength);
+    out.writeLong(srcModificationTime);
+    out.writeLong(dstLength);
+    out.writeLong(dstModificationTime);
+    out.writeInt(method);
+    out.writeInt(chunkSize);
+    out.writeInt(bminRatio);
+    out.writeInt(bmaxRatio);
+    Text.writeString(out, strongHash);
+    Text.writeString(out, clientName);
+    out.writeLong(fileId);
+    out.writeInt(blocks.length);
+    for (BlockState block : blocks) {
+      out.writeLong(block.srcBlockId);
+      out.writeBoolean(block.finished);
+      out.writeLong(block.newBlockId);
+      out.writeLong(block.newGenerationStamp);
+      out.writeLong(block.newNumBytes);
+      out.writeInt(block.plan == null ? -1 : block.plan.size());
+      if (block.plan != null) {
+        for (Segment segment : block.plan) {
+          Text.writeString(out, segment.poolId);
+          out.writeLong(segment.blockId);
+          out.writeLong(segment.offset);
+          out.writeLong(segment.length);
+          out.writeLong(segment.destOffset);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param length manifest文件的长度，用来检查读到的数量，
+   *            损坏的文件不会导致分配巨大的数组
+   */
+  static RsyncManifest read(DataInput in, long length) throws IOException {
+    int maxString = (int) Math.min(length, Integer.MAX_VALUE);
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported manifest version " + version);
+    }
+    String srcPath = Text.readString(in, maxString);
+    String srcPoolId = Text.readString(in, maxString);
+    long srcLength = in.readLong();
+    long srcModificationTime = in.readLong();
+    long dstLength = in.readLong();
+    long dstModificationTime = in.readLong();
+    int method = in.readInt();
+    int chunkSize = in.readInt();
+    int bminRatio = in.readInt();
+    int bmaxRatio = in.readInt();
+    String strongHash = Text.readString(in, maxString);
+    String clientName = Text.readString(in, maxString);
+    long fileId = in.readLong();
+    int n = in.readInt();
+    if (n < 0 || n > length / MIN_BLOCK_BYTES) {
+      throw new IOException("Invalid number of blocks " + n
+          + " in a manifest of " + length + " bytes");
+    }
+    long[] srcBlockIds = new long[n];
+    BlockState[] blocks = new BlockState[n];
+    for (int i = 0; i < n; i++) {
+      blocks[i] = new BlockState(in.readLong());
+      srcBlockIds[i] = blocks[i].srcBlockId;
+      blocks[i].finished = in.readBoolean();
+      blocks[i].newBlockId = in.readLong();
+      blocks[i].newGenerationStamp = in.readLong();
+      blocks[i].newNumBytes = in.readLong();
+      int segments = in.readInt();
+      if (segments < -1 || segments > length / MIN_SEGMENT_BYTES) {
+        throw new IOException("Invalid number of segments " + segments
+            + " in a manifest of " + length + " bytes");
+      }
+      if (segments >= 0) {
+        blocks[i].plan = new ArrayList<Segment>(segments);
+        for (int j = 0; j < segments; j++) {
+          blocks[i].plan.add(new Segment(Text.readString(in, maxString),
+              in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+        }
+      }
+    }
+
+    RsyncManifest manifest = new RsyncManifest(srcPath, srcPoolId,
+        srcLength, srcModificationTime, dstLength,
+        dstModificationTime, method, chunkSize, bminRatio, bmaxRatio,
+        strongHash, srcBlockIds);
+    System.arraycopy(blocks, 0, manifest.blocks, 0, n);
+    manifest.clientName = clientName;
+    manifest.fileId = fileId;
+    return manifest;
+  }
+
+  /** @return the manifest saved at path, or null if none or unreadable */
+  public static RsyncManifest load(DFSClient client, String path) {
+    DataInputStream in = null;
+    try {
+      DFSInputStream dfsIn = client.open(path);
+      in = new DataInputStream(dfsIn);
+      return read(in, dfsIn.getFileLength());
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      LOG.warn("Ignored unreadable manifest " + path, e);
+      return null;
+    } finally {
+      IOUtils.closeStream(in);
+    }
+  }
+
+  /** 先写入临时文件再改名，中断时不会留下残缺的manifest */
+  void save(DFSClient client, String path) throws IOException {
+    String tmp = path + ".tmp";
+    DataOutputStream out = new DataOutputStream(client.create(tmp, true));
+    try {
+      write(out);
+      out.close();
+      out = null;
+    } finally {
+      IOUtils.closeStream(out);
+    }
+    client.rename(tmp, path, Options.Rename.OVERWRITE);
+  }
+
+  @Override
+  public String toString() {
+    return "RsyncManifest(src=" + srcPath + ", clientName="
+        + clientName + ", finished=" + getFinishedBlocks() + "/"
+        + blocks.length + ")";
+  }
+}
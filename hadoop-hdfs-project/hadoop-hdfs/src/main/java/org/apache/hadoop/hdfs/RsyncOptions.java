@@ -0,0 +1,269 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Options of {@link DistributedFileSystem#rsync}. The setters return this so
+ * that calls can be chained. Options that are not set take their defaults.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class RsyncOptions {
+  /**
+   * Fixed-size chunks: the chunk signatures of dst are sent to the datanodes
+   * of src, which compute the segments.
+   */
+  public static final int METHOD_FIXED = 1;
+  /**
+   * Content-defined chunks between chunkSize * bminRatio and
+   * chunkSize * bmaxRatio bytes, about chunkSize * (bminRatio + 1) on average.
+   * Requires bmaxRatio > bminRatio + 1.
+   */
+  public static final int METHOD_ADAPTIVE = 2;
+
+  private int method = METHOD_FIXED;
+  private int chunkSize = 1024 * 1024;
+  private int bminRatio = 1;
+  private int bmaxRatio = 4;
+  private int parallelism = 1;
+  private int maxRequestsPerDatanode = 2;
+  private int strongChecksumBytes = 8;
+  private boolean compressChecksums = false;
+  private String strongHash = "MD5";
+  private String[] basisPaths = new String[0];
+  private boolean resume = true;
+  private String segmentsCodec;
+  private boolean append = true;
+  private short replication = 0;
+  private long blockSize = 0;
+
+  public int getMethod() {
+    return method;
+  }
+
+  /** @param method {@link #METHOD_FIXED} or {@link #METHOD_ADAPTIVE} */
+  public RsyncOptions setMethod(int method) {
+    if (method != METHOD_FIXED && method != METHOD_ADAPTIVE) {
+      throw new IllegalArgumentException("Unrecognized method " + method);
+    }
+    this.method = method;
+    return this;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @param chunkSize the chunk size in bytes of {@link #METHOD_FIXED}, and the
+   *          unit of the chunk bounds of {@link #METHOD_ADAPTIVE}
+   */
+  public RsyncOptions setChunkSize(int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize = " + chunkSize
+          + " <= 0");
+    }
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  public int getBminRatio() {
+    return bminRatio;
+  }
+
+  /** @param bminRatio the minimum adaptive chunk size, in chunkSize units */
+  public RsyncOptions setBminRatio(int bminRatio) {
+    this.bminRatio = bminRatio;
+    return this;
+  }
+
+  public int getBmaxRatio() {
+    return bmaxRatio;
+  }
+
+  /** @param bmaxRatio the maximum adaptive chunk size, in chunkSize units */
+  public RsyncOptions setBmaxRatio(int bmaxRatio) {
+    this.bmaxRatio = bmaxRatio;
+    return this;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param parallelism the number of datanode requests run at the same time;
+   *          the blocks are processed one by one when it is 1
+   */
+  public RsyncOptions setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism = " + parallelism
+          + " < 1");
+    }
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  public int getMaxRequestsPerDatanode() {
+    return maxRequestsPerDatanode;
+  }
+
+  /**
+   * @param maxRequestsPerDatanode the maximum number of requests sent to one
+   *          datanode at the same time
+   */
+  public RsyncOptions setMaxRequestsPerDatanode(int maxRequestsPerDatanode) {
+    if (maxRequestsPerDatanode < 1) {
+      throw new IllegalArgumentException("maxRequestsPerDatanode = "
+          + maxRequestsPerDatanode + " < 1");
+    }
+    this.maxRequestsPerDatanode = maxRequestsPerDatanode;
+    return this;
+  }
+
+  public int getStrongChecksumBytes() {
+    return strongChecksumBytes;
+  }
+
+  /**
+   * @param strongChecksumBytes the number of bytes of each chunk's strong
+   *          checksum kept in the uploaded dst signatures
+   */
+  public RsyncOptions setStrongChecksumBytes(int strongChecksumBytes) {
+    this.strongChecksumBytes = strongChecksumBytes;
+    return this;
+  }
+
+  public boolean getCompressChecksums() {
+    return compressChecksums;
+  }
+
+  /** @param compressChecksums whether to compress the uploaded signatures */
+  public RsyncOptions setCompressChecksums(boolean compressChecksums) {
+    this.compressChecksums = compressChecksums;
+    return this;
+  }
+
+  public String getStrongHash() {
+    return strongHash;
+  }
+
+  /**
+   * @param strongHash the strong checksum of the chunks: MD5, MURMUR3_128 or
+   *          CRC32C_MURMUR3_128. Older datanodes only support MD5.
+   */
+  public RsyncOptions setStrongHash(String strongHash) {
+    this.strongHash = strongHash;
+    return this;
+  }
+
+  public String[] getBasisPaths() {
+    return basisPaths;
+  }
+
+  /**
+   * @param basisPaths basis files or directories in the cluster of dst, whose
+   *          chunks can be reused like those of dst, e.g. the partition of
+   *          the same table from the day before
+   */
+  public RsyncOptions setBasisPaths(String... basisPaths) {
+    this.basisPaths = basisPaths == null ? new String[0] : basisPaths;
+    return this;
+  }
+
+  public boolean getResume() {
+    return resume;
+  }
+
+  /**
+   * @param resume whether to save the progress in a side file beside dst so
+   *          that an interrupted rsync can be resumed, see
+   *          {@link RsyncManifest}
+   */
+  public RsyncOptions setResume(boolean resume) {
+    this.resume = resume;
+    return this;
+  }
+
+  public String getSegmentsCodec() {
+    return segmentsCodec;
+  }
+
+  /**
+   * @param segmentsCodec the codec, a class name or an alias such as snappy
+   *          or lz4, compressing the segments sent between datanodes. Null or
+   *          empty sends them uncompressed.
+   */
+  public RsyncOptions setSegmentsCodec(String segmentsCodec) {
+    this.segmentsCodec = segmentsCodec;
+    return this;
+  }
+
+  public boolean getAppend() {
+    return append;
+  }
+
+  /**
+   * @param append whether to only append the rest of src to dst when dst is a
+   *          prefix of src
+   */
+  public RsyncOptions setAppend(boolean append) {
+    this.append = append;
+    return this;
+  }
+
+  public short getReplication() {
+    return replication;
+  }
+
+  /**
+   * @param replication the replication of the new file, or 0 for the default
+   *          of the file system of dst
+   */
+  public RsyncOptions setReplication(short replication) {
+    this.replication = replication;
+    return this;
+  }
+
+  public long getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * @param blockSize the block size of the new file, or 0 for the default of
+   *          the file system of dst
+   */
+  public RsyncOptions setBlockSize(long blockSize) {
+    this.blockSize = blockSize;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "RsyncOptions(method=" + method + ", chunkSize=" + chunkSize
+        + ", bminRatio=" + bminRatio + ", bmaxRatio=" + bmaxRatio
+        + ", parallelism=" + parallelism + ", strongHash=" + strongHash
+        + ", basisPaths=" + Arrays.toString(basisPaths)
+        + ", segmentsCodec=" + segmentsCodec + ")";
+  }
+}
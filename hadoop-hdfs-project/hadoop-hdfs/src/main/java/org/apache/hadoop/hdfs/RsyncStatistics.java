@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * 一个文件的{@link DistributedFileSystem#rsync}结果：多少数据在dst或basis文件中找到
+ * （matched），多少需要从src传送（literal），以及各阶段的耗时，用于为不同的数据选择chunkSize。
+ *
+ * matched的数据由其所在的datanode复制，不必从src传送，即节省的数据量。
+ * 续传时已在上次运行中完成的block计入resumed。
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class RsyncStatistics {
+  private final String srcPath;
+  private final long srcLength;
+  private long matchedBytes;
+  private long literalBytes;
+  private long resumedBytes;
+  private int segments;
+  /** 各阶段的耗时（毫秒），按执行顺序 */
+  private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+  RsyncStatistics(String srcPath, long srcLength) {
+    this.srcPath = srcPath;
+    this.srcLength = srcLength;
+  }
+
+  void addSegment(long length, boolean literal) {
+    if (literal) {
+      literalBytes += length;
+    } else {
+      matchedBytes += length;
+    }
+    segments++;
+  }
+
+  void addResumed(long length) {
+    resumedBytes += length;
+  }
+
+  void addPhase(String phase, long millis) {
+    Long before = phases.get(phase);
+    phases.put(phase, before == null ? millis : before + millis);
+  }
+
+  public long getMatchedBytes() {
+    return matchedBytes;
+  }
+
+  public long getLiteralBytes() {
+    return literalBytes;
+  }
+
+  public long getResumedBytes() {
+    return resumedBytes;
+  }
+
+  /** @return 新文件由多少个segment组成 */
+  public int getSegments() {
+    return segments;
+  }
+
+  /** @return 本次传送的数据中matched的比例 */
+  public double getMatchRatio() {
+    long total = matchedBytes + literalBytes;
+    return total == 0 ? 0 : (double) matchedBytes / total;
+  }
+
+  /** @return 与整个文件从src复制相比，不必传送的数据量 */
+  public long getBytesSaved() {
+    return srcLength - literalBytes;
+  }
+
+  /** @return the time of a phase in milliseconds, or 0 if not run */
+  public long getPhaseTime(String phase) {
+    Long millis = phases.get(phase);
+    return millis == null ? 0 : millis;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder("Rsync statistics of ")
+        .append(srcPath).append(": length=").append(srcLength)
+        .append(", matched=").append(matchedBytes)
+        .append(", literal=").append(literalBytes)
+        .append(", resumed=").append(resumedBytes)
+        .append(", segments=").append(segments)
+        .append(String.format(", matchRatio=%.2f%%",
+            getMatchRatio() * 100))
+        .append(", saved=").append(getBytesSaved());
+    for (Map.Entry<String, Long> phase : phases.entrySet()) {
+      b.append(", ").append(phase.getKey()).append("=")
+          .append(phase.getValue()).append("ms");
+    }
+    return b.toString();
+  }
+}
@@ -26,6 +26,9 @@
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
 import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
 import org.apache.hadoop.hdfs.server.datanode.CachingStrategy;
 import org.apache.hadoop.security.token.Token;
@@ -168,7 +171,8 @@ public void copyBlock(final ExtendedBlock blk,
   /**
    * Get block checksum (MD5 of CRC32).
    * 
-   * @param blk a block.
+   * @param blk a block. If its length is less than that of the replica, the
+   *            checksum is of the first blk.getNumBytes() bytes only.
    * @param blockToken security token for accessing the block.
    * @throws IOException
    */
@@ -181,11 +185,13 @@ public void blockChecksum(final ExtendedBlock blk,
    * @param blk a block.
    * @param blockToken security token for accessing the block.
    * @param bytesPerChunk chunk size
+   * @param strongHash the strong hash of the chunks
    * @throws IOException
    */
   public void chunksChecksum(final ExtendedBlock blk,
       final Token<BlockTokenIdentifier> blockToken,
-      int bytesPerChunk) throws IOException;
+      int bytesPerChunk,
+      StrongHashTypeProto strongHash) throws IOException;
   
   /**
    * Calculate src file block difference from dst file ,return segments information.
@@ -193,14 +199,18 @@ public void chunksChecksum(final ExtendedBlock blk,
    * @param blk a block.
    * @param blockToken security token for accessing the block.
    * @param clientname
-   * @param cntChecksum checksum numbers
+   * @param sessionId the rsync session the dst file signatures belong to,
+   *                  or null.
+   * @param checksums the dst file signatures, or null to use those sent
+   *                  earlier in the session.
+   * @param bytesPerChunk chunk size of the signatures.
    * @throws IOException
    */
   public void calculateSegments(final ExtendedBlock blk,
       final Token<BlockTokenIdentifier> blockToken,
       final String clientname,
-      final List<Integer> simples,
-      final List<byte[]> md5s,
+      final String sessionId,
+      final PackedChecksumsProto checksums,
       int bytesPerChunk) throws IOException;
   
   /**
@@ -227,6 +237,38 @@ public void sendSegment(final ExtendedBlock blk,
       final String blockDirName,
       final DatanodeInfo[] targets) throws IOException;
   
+  /**
+   * Send many segments of a source block from srcDN through the pipeline
+   * of dstDNs over one connection, call by ControlNode. If srcDN is the
+   * first dstDN it copies the segments from its local replica.
+   * 
+   * @param blk the source block.
+   * @param blockToken security token for accessing the block.
+   * @param clientname
+   * @param ranges the ranges of blk to send and their offsets in the new block
+   * @param isClient
+   * @param blockDirName
+   * @param targets the pipeline, or the rest of it if !isClient
+   * @param newBlock the new block, to write the segments straight into its
+   *                 replica, or null to store them as segment files
+   * @param codec the CompressionCodec to compress the ranges sent between
+   *              datanodes with, or null to send them as is
+   * @param newBlockToken security token for writing newBlock, checked by
+   *                      the targets if not null, so that the source block
+   *                      may be in another cluster
+   * @throws IOException
+   */
+  public void sendSegments(final ExtendedBlock blk,
+      final Token<BlockTokenIdentifier> blockToken,
+      final String clientname,
+      final List<SegmentRangeProto> ranges,
+      final boolean isClient,
+      final String blockDirName,
+      final DatanodeInfo[] targets,
+      final ExtendedBlock newBlock,
+      final String codec,
+      final Token<BlockTokenIdentifier> newBlockToken) throws IOException;
+
   /**
    * Called by rsync client, use temp segments information to create new block.
    * 
@@ -245,11 +287,30 @@ public void updateBlock(final ExtendedBlock blk,
    * @param bytesPerChunk chunk size
    * @param bmin
    * @param bmax
+   * @param strongHash the strong hash of the chunks
    * @throws IOException
    */
   public void chunksAdaptiveChecksum(final ExtendedBlock blk,
       final Token<BlockTokenIdentifier> blockToken,
       int bytesPerChunk,
       int bmin,
-      int bmax) throws IOException;
+      int bmax,
+      StrongHashTypeProto strongHash) throws IOException;
+
+  /**
+   * Repair the local corrupt or stale replica of a block from a healthy
+   * replica, pulling only the chunks that differ. Sent by the source of a
+   * repair scheduled by the namenode to its target, which replies whether it
+   * accepts the repair, and then whether the repair succeeded.
+   * 
+   * @param blk the healthy block, with its generation stamp and length.
+   * @param blockToken security token for writing the block.
+   * @param source the datanode of the healthy replica.
+   * @param bytesPerChunk the chunk size to compare the replicas with.
+   * @throws IOException
+   */
+  public void repairBlock(final ExtendedBlock blk,
+      final Token<BlockTokenIdentifier> blockToken,
+      final DatanodeInfo source,
+      final int bytesPerChunk) throws IOException;
 }
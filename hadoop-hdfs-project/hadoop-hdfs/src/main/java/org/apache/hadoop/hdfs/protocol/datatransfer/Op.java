@@ -42,7 +42,9 @@ public enum Op {
   RSYNC_CALCULATE_SEGMENTS((byte)90),
   RSYNC_SEND_SEGMENT((byte)91),
   RSYNC_UPDATE_BLOCK((byte)92),
-  RSYNC_CHUNKS_ADAPTIVE_CHECKSUM((byte)93);
+  RSYNC_CHUNKS_ADAPTIVE_CHECKSUM((byte)93),
+  RSYNC_SEND_SEGMENTS((byte)94),
+  RSYNC_REPAIR_BLOCK((byte)95);
 
   /** The code for this operation. */
   public final byte code;
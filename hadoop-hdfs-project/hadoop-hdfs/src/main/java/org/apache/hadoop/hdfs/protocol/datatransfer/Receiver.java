@@ -22,13 +22,10 @@
 
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
-import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumPairProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpBlockChecksumProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpCalculateSegmentsProto;  
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpChunksAdaptiveChecksumProto;
@@ -36,13 +33,16 @@
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpCopyBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpInflateBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpReadBlockProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpRepairBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpReplaceBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpSendSegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpSendSegmentsProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpTransferBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpRequestShortCircuitAccessProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.CachingStrategyProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpUpdateBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpWriteBlockProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
 import org.apache.hadoop.hdfs.protocolPB.PBHelper;
 import org.apache.hadoop.hdfs.server.datanode.CachingStrategy;
 
@@ -95,6 +95,9 @@ protected final void processOp(Op op) throws IOException {
 		case RSYNC_SEND_SEGMENT:
 			opSendSegment(in);
 			break;
+		case RSYNC_SEND_SEGMENTS:
+			opSendSegments(in);
+			break;
 		case RSYNC_INFLATE_BLOCK:
 			opInflateBlock(in);
 			break;
@@ -104,6 +107,9 @@ protected final void processOp(Op op) throws IOException {
 		case RSYNC_CHUNKS_ADAPTIVE_CHECKSUM:
 			opChunksAdaptiveChecksum(in);
 			break;
+		case RSYNC_REPAIR_BLOCK:
+			opRepairBlock(in);
+			break;
 		case TRANSFER_BLOCK:
 			opTransferBlock(in);
 			break;
@@ -213,7 +219,8 @@ private void opChunksChecksum(DataInputStream in) throws IOException {
 
 		chunksChecksum(PBHelper.convert(proto.getHeader().getBlock()),
 				PBHelper.convert(proto.getHeader().getToken()),
-				proto.getBytesPerChunk());
+				proto.getBytesPerChunk(),
+				proto.getStrongHash());
 	}
 	
 	/** Receive OP_RSYNC_CHUNKS_ADAPTIVE_CHECKSUM **/
@@ -225,7 +232,8 @@ private void opChunksAdaptiveChecksum(DataInputStream in) throws IOException {
 				PBHelper.convert(proto.getHeader().getToken()),
 				proto.getBytesPerChunk(),
 				proto.getBmin(),
-				proto.getBmax());
+				proto.getBmax(),
+				proto.getStrongHash());
 	}
 	
 	/** Receive OP_INFLATE_BLOCK */
@@ -245,22 +253,21 @@ private void opCalculateSegments(DataInputStream in) throws IOException {
 		final OpCalculateSegmentsProto proto = OpCalculateSegmentsProto
 				.parseFrom(vintPrefixed(in));
 		
-		
-		List<ChecksumPairProto> checksums = proto.getChecksumsList();
-		List<Integer> simples = new LinkedList<Integer>();
-		List<byte[]> md5s = new LinkedList<byte[]>();
-		
-		for(ChecksumPairProto cp : checksums){
-			simples.add(cp.getSimple());
-			md5s.add(cp.getMd5().toByteArray());
+		PackedChecksumsProto checksums = null;
+		if (proto.hasPackedChecksums()) {
+			checksums = proto.getPackedChecksums();
+		} else if (!proto.hasSessionId() || proto.getChecksumsCount() > 0) {
+			// a legacy request, one ChecksumPairProto per chunk
+			checksums = RsyncChecksums.fromProto(proto.getChecksumsList())
+					.toProto(false);
 		}
 		
 		calculateSegments(
 				PBHelper.convert(proto.getHeader().getBaseHeader().getBlock()),
 				PBHelper.convert(proto.getHeader().getBaseHeader().getToken()),
 				proto.getHeader().getClientName(),
-				simples,
-				md5s,
+				proto.hasSessionId() ? proto.getSessionId() : null,
+				checksums,
 				proto.getBytesPerChunk());
 	}
 	
@@ -290,6 +297,25 @@ private void opSendSegment(DataInputStream in) throws IOException {
 				datanodes);
 	}
 	
+	/** Receive OP_RSYNC_SEND_SEGMENTS */
+	private void opSendSegments(DataInputStream in) throws IOException {
+		final OpSendSegmentsProto proto = OpSendSegmentsProto
+				.parseFrom(vintPrefixed(in));
+		sendSegments(
+				PBHelper.convert(proto.getHeader().getBaseHeader().getBlock()),
+				PBHelper.convert(proto.getHeader().getBaseHeader().getToken()),
+				proto.getHeader().getClientName(),
+				proto.getRangesList(),
+				proto.getIsClient(),
+				proto.getBlockDirName(),
+				PBHelper.convert(proto.getTargetsList()),
+				proto.hasNewBlock() ? PBHelper.convert(proto.getNewBlock())
+						: null,
+				proto.hasCodec() ? proto.getCodec() : null,
+				proto.hasNewBlockToken() ? PBHelper.convert(proto
+						.getNewBlockToken()) : null);
+	}
+	
 	/** Receive OP_RSYNC_UPDATE_BLOCK **/
 	private void opUpdateBlock(DataInputStream in) throws IOException {
 		OpUpdateBlockProto proto = OpUpdateBlockProto
@@ -298,4 +324,15 @@ private void opUpdateBlock(DataInputStream in) throws IOException {
 		updateBlock(PBHelper.convert(proto.getHeader().getBlock()),
 				PBHelper.convert(proto.getHeader().getToken()));
 	}
+	
+	/** Receive OP_RSYNC_REPAIR_BLOCK **/
+	private void opRepairBlock(DataInputStream in) throws IOException {
+		OpRepairBlockProto proto = OpRepairBlockProto
+				.parseFrom(vintPrefixed(in));
+
+		repairBlock(PBHelper.convert(proto.getHeader().getBlock()),
+				PBHelper.convert(proto.getHeader().getToken()),
+				PBHelper.convert(proto.getSource()),
+				proto.getBytesPerChunk());
+	}
 }
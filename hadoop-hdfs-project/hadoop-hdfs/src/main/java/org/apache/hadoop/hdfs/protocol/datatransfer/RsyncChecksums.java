@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.protocol.datatransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumPairProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.io.MD5Hash;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The chunk signatures of a file sent with RSYNC_CALCULATE_SEGMENTS: a weak
+ * checksum and a strong checksum per chunk, the strong checksums being
+ * digests of the same hash truncated to the same length.
+ *
+ * On the wire they are a {@link PackedChecksumsProto}, the weak checksums
+ * as fixed 4-byte words followed by the strong checksums, so that they cost
+ * (4 + strongLength) bytes per chunk instead of a message each.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class RsyncChecksums {
+  /** The longest strong checksum, a whole digest of any strong hash. */
+  public static final int MAX_STRONG_LENGTH = MD5Hash.MD5_LEN;
+
+  private final int[] weak;
+  private final byte[] strong;
+  private final int strongLength;
+  private final StrongHashTypeProto strongHash;
+
+  /**
+   * @param weak the weak checksums of the chunks, in chunk order
+   * @param strong the MD5 checksums of the chunks, strongLength bytes
+   *               each, in chunk order
+   */
+  public RsyncChecksums(int[] weak, byte[] strong, int strongLength) {
+    this(weak, strong, strongLength, StrongHashTypeProto.MD5);
+  }
+
+  /**
+   * @param weak the weak checksums of the chunks, in chunk order
+   * @param strong the strong checksums of the chunks, strongLength bytes
+   *               each, in chunk order
+   * @param strongHash the hash of the strong checksums
+   */
+  public RsyncChecksums(int[] weak, byte[] strong, int strongLength,
+      StrongHashTypeProto strongHash) {
+    if (strongLength <= 0 || strongLength > MAX_STRONG_LENGTH) {
+      throw new IllegalArgumentException("strongLength = " + strongLength
+          + " is not in [1, " + MAX_STRONG_LENGTH + "]");
+    }
+    if (strong.length != (long) weak.length * strongLength) {
+      throw new IllegalArgumentException("strong.length = " + strong.length
+          + " != " + weak.length + " chunks * " + strongLength);
+    }
+    this.weak = weak;
+    this.strong = strong;
+    this.strongLength = strongLength;
+    this.strongHash = strongHash;
+  }
+
+  /** @return the number of chunks. */
+  public int size() {
+    return weak.length;
+  }
+
+  public int[] getWeak() {
+    return weak;
+  }
+
+  public byte[] getStrong() {
+    return strong;
+  }
+
+  public int getStrongLength() {
+    return strongLength;
+  }
+
+  public StrongHashTypeProto getStrongHash() {
+    return strongHash;
+  }
+
+  /**
+   * @param compress whether to deflate the checksums
+   */
+  public PackedChecksumsProto toProto(boolean compress) {
+    final ByteBuffer buf = ByteBuffer.allocate(
+        weak.length * (4 + strongLength));
+    buf.asIntBuffer().put(weak);
+    buf.position(weak.length * 4);
+    buf.put(strong);
+
+    final PackedChecksumsProto.Builder proto = PackedChecksumsProto
+        .newBuilder()
+        .setCount(weak.length)
+        .setStrongLength(strongLength)
+        .setStrongHash(strongHash);
+    if (compress) {
+      final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(buf.array());
+        deflater.finish();
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+            buf.capacity() / 2 + 64);
+        final byte[] b = new byte[64 * 1024];
+        while (!deflater.finished()) {
+          deflated.write(b, 0, deflater.deflate(b));
+        }
+        proto.setCompressed(true)
+            .setData(ByteString.copyFrom(deflated.toByteArray()));
+      } finally {
+        deflater.end();
+      }
+    } else {
+      proto.setData(ByteString.copyFrom(buf.array()));
+    }
+    return proto.build();
+  }
+
+  /**
+   * @throws IOException if the checksums are malformed
+   */
+  public static RsyncChecksums fromProto(PackedChecksumsProto proto)
+      throws IOException {
+    return fromProto(proto, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param maxCount the most checksums accepted, checked before anything is
+   *                 allocated for them
+   * @throws IOException if the checksums are malformed or too many
+   */
+  public static RsyncChecksums fromProto(PackedChecksumsProto proto,
+      int maxCount) throws IOException {
+    final int count = proto.getCount();
+    final int strongLength = proto.getStrongLength();
+    if (count < 0 || strongLength <= 0 || strongLength > MAX_STRONG_LENGTH) {
+      throw new IOException("Bad packed checksums: count = " + count
+          + ", strongLength = " + strongLength);
+    }
+    if (count > maxCount) {
+      throw new IOException("Too many packed checksums: " + count
+          + " > " + maxCount);
+    }
+    final long length = (long) count * (4 + strongLength);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Too many packed checksums: " + count);
+    }
+
+    final byte[] data;
+    if (proto.getCompressed()) {
+      data = new byte[(int) length];
+      final Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(proto.getData().toByteArray());
+        int n = 0;
+        while (n < data.length && !inflater.finished()) {
+          final int inflated = inflater.inflate(data, n, data.length - n);
+          if (inflated == 0 && inflater.needsInput()) {
+            break;
+          }
+          n += inflated;
+        }
+        if (n != data.length || !inflater.finished()) {
+          throw new IOException("Packed checksums inflate to " + n
+              + " bytes, expected " + length);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt packed checksums", e);
+      } finally {
+        inflater.end();
+      }
+    } else {
+      if (proto.getData().size() != length) {
+        throw new IOException("Packed checksums have " + proto.getData().size()
+            + " bytes, expected " + length);
+      }
+      data = proto.getData().toByteArray();
+    }
+
+    final ByteBuffer buf = ByteBuffer.wrap(data);
+    final int[] weak = new int[count];
+    buf.asIntBuffer().get(weak);
+    final byte[] strong = new byte[count * strongLength];
+    buf.position(count * 4);
+    buf.get(strong);
+    return new RsyncChecksums(weak, strong, strongLength,
+        proto.getStrongHash());
+  }
+
+  /**
+   * Convert the checksums of the legacy request, one message per chunk
+   * with a whole MD5 digest.
+   *
+   * @throws IOException if a strong checksum is not an MD5 digest
+   */
+  public static RsyncChecksums fromProto(List<ChecksumPairProto> pairs)
+      throws IOException {
+    final int[] weak = new int[pairs.size()];
+    final byte[] strong = new byte[pairs.size() * MAX_STRONG_LENGTH];
+    int i = 0;
+    for (ChecksumPairProto pair : pairs) {
+      if (pair.getMd5().size() != MAX_STRONG_LENGTH) {
+        throw new IOException("Checksum " + i + " has an MD5 of "
+            + pair.getMd5().size() + " bytes");
+      }
+      weak[i] = pair.getSimple();
+      pair.getMd5().copyTo(strong, i * MAX_STRONG_LENGTH);
+      i++;
+    }
+    return new RsyncChecksums(weak, strong, MAX_STRONG_LENGTH);
+  }
+}
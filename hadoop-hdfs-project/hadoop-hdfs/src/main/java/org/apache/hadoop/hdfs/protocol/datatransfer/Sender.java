@@ -28,7 +28,6 @@
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
-import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumPairProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ClientOperationHeaderProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpBlockChecksumProto;
@@ -38,13 +37,18 @@
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpCopyBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpInflateBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpReadBlockProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpRepairBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpReplaceBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpSendSegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpSendSegmentsProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpTransferBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpRequestShortCircuitAccessProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.CachingStrategyProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpUpdateBlockProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpWriteBlockProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
 import org.apache.hadoop.hdfs.protocolPB.PBHelper;
 import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
 import org.apache.hadoop.hdfs.server.datanode.CachingStrategy;
@@ -52,7 +56,6 @@
 import org.apache.hadoop.util.DataChecksum;
 
 import com.google.protobuf.Message;
-import com.google.protobuf.ByteString;
 
 /** Sender */
 @InterfaceAudience.Private
@@ -215,12 +218,14 @@ public void blockChecksum(final ExtendedBlock blk,
 	@Override
 	public void chunksChecksum(final ExtendedBlock blk,
 			final Token<BlockTokenIdentifier> blockToken,
-			int bytesPerChunk) throws IOException {
+			int bytesPerChunk,
+			StrongHashTypeProto strongHash) throws IOException {
 		OpChunksChecksumProto proto = OpChunksChecksumProto
 				.newBuilder()
 				.setHeader(
 						DataTransferProtoUtil.buildBaseHeader(blk, blockToken))
 				.setBytesPerChunk(bytesPerChunk)
+				.setStrongHash(strongHash)
 				.build();
 		send(out, Op.RSYNC_CHUNKS_CHECKSUM, proto);
 	}
@@ -230,7 +235,8 @@ public void chunksAdaptiveChecksum(final ExtendedBlock blk,
 			final Token<BlockTokenIdentifier> blockToken,
 			int bytesPerChunk,
 			int bmin,
-			int bmax) throws IOException {
+			int bmax,
+			StrongHashTypeProto strongHash) throws IOException {
 		OpChunksAdaptiveChecksumProto proto = OpChunksAdaptiveChecksumProto
 				.newBuilder()
 				.setHeader(
@@ -238,6 +244,7 @@ public void chunksAdaptiveChecksum(final ExtendedBlock blk,
 				.setBytesPerChunk(bytesPerChunk)
 				.setBmin(bmin)
 				.setBmax(bmax)
+				.setStrongHash(strongHash)
 				.build();
 		send(out, Op.RSYNC_CHUNKS_ADAPTIVE_CHECKSUM, proto);
 	}
@@ -262,7 +269,8 @@ public void inflateBlock(final ExtendedBlock block,
 	@Override
 	public void calculateSegments(final ExtendedBlock block,
 			final Token<BlockTokenIdentifier> blockToken,
-			final String clientname,final List<Integer> simples,List<byte[]> md5s,int bytesPerChunk) throws IOException {
+			final String clientname,final String sessionId,
+			final PackedChecksumsProto checksums,int bytesPerChunk) throws IOException {
 		ClientOperationHeaderProto header = DataTransferProtoUtil
 				.buildClientHeader(block, clientname, blockToken);
 		
@@ -270,12 +278,11 @@ public void calculateSegments(final ExtendedBlock block,
 				.setHeader(header)
 				.setBytesPerChunk(bytesPerChunk)
 				.setChunksPerBlock(block.getNumBytes()/bytesPerChunk);
-		for(int i = 0 ; i < simples.size() ; i++){/* 这段代码可以移到PBHelper中，建立新的convert函数 */
-			proto.addChecksums(
-					ChecksumPairProto.newBuilder()
-					.setSimple(simples.get(i))
-					.setMd5(ByteString.copyFrom(md5s.get(i)))
-					.build());
+		if (sessionId != null) {
+			proto.setSessionId(sessionId);
+		}
+		if (checksums != null) {
+			proto.setPackedChecksums(checksums);
 		}
 		
 		send(out,Op.RSYNC_CALCULATE_SEGMENTS,proto.build());
@@ -308,6 +315,39 @@ public void sendSegment(final ExtendedBlock blk,
 		send(out,Op.RSYNC_SEND_SEGMENT,proto.build());
 	}
 	
+	@Override
+	public void sendSegments(final ExtendedBlock blk,
+			final Token<BlockTokenIdentifier> blockToken,
+			final String clientname,
+			final List<SegmentRangeProto> ranges,
+			final boolean isClient,
+			final String blockDirName,
+			final DatanodeInfo[] targets,
+			final ExtendedBlock newBlock,
+			final String codec,
+			final Token<BlockTokenIdentifier> newBlockToken) throws IOException {
+		ClientOperationHeaderProto header = DataTransferProtoUtil
+				.buildClientHeader(blk, clientname, blockToken);
+		
+		OpSendSegmentsProto.Builder proto = OpSendSegmentsProto.newBuilder()
+				.setHeader(header)
+				.addAllRanges(ranges)
+				.setIsClient(isClient)
+				.setBlockDirName(blockDirName)
+				.addAllTargets(PBHelper.convert(targets));
+		if (newBlock != null) {
+			proto.setNewBlock(PBHelper.convert(newBlock));
+		}
+		if (codec != null && !codec.isEmpty()) {
+			proto.setCodec(codec);
+		}
+		if (newBlockToken != null) {
+			proto.setNewBlockToken(PBHelper.convert(newBlockToken));
+		}
+		
+		send(out,Op.RSYNC_SEND_SEGMENTS,proto.build());
+	}
+	
 	@Override
 	public void updateBlock(final ExtendedBlock blk,
 			final Token<BlockTokenIdentifier> blockToken) throws IOException {
@@ -318,4 +358,19 @@ public void updateBlock(final ExtendedBlock blk,
 				.build();
 		send(out, Op.RSYNC_UPDATE_BLOCK, proto);
 	}
+	
+	@Override
+	public void repairBlock(final ExtendedBlock blk,
+			final Token<BlockTokenIdentifier> blockToken,
+			final DatanodeInfo source,
+			final int bytesPerChunk) throws IOException {
+		OpRepairBlockProto proto = OpRepairBlockProto
+				.newBuilder()
+				.setHeader(
+						DataTransferProtoUtil.buildBaseHeader(blk, blockToken))
+				.setSource(PBHelper.convertDatanodeInfo(source))
+				.setBytesPerChunk(bytesPerChunk)
+				.build();
+		send(out, Op.RSYNC_REPAIR_BLOCK, proto);
+	}
 }
@@ -712,6 +712,9 @@ public static BlockCommandProto convert(BlockCommand cmd) {
     case DatanodeProtocol.DNA_SHUTDOWN:
       builder.setAction(BlockCommandProto.Action.SHUTDOWN);
       break;
+    case DatanodeProtocol.DNA_RSYNC_REPAIR:
+      builder.setAction(BlockCommandProto.Action.RSYNC_REPAIR);
+      break;
     default:
       throw new AssertionError("Invalid action");
     }
@@ -765,6 +768,7 @@ public static DatanodeCommandProto convert(DatanodeCommand datanodeCommand) {
     case DatanodeProtocol.DNA_TRANSFER:
     case DatanodeProtocol.DNA_INVALIDATE:
     case DatanodeProtocol.DNA_SHUTDOWN:
+    case DatanodeProtocol.DNA_RSYNC_REPAIR:
       builder.setCmdType(DatanodeCommandProto.Type.BlockCommand).setBlkCmd(
           PBHelper.convert((BlockCommand) datanodeCommand));
       break;
@@ -817,6 +821,9 @@ public static BlockCommand convert(BlockCommandProto blkCmd) {
     case SHUTDOWN:
       action = DatanodeProtocol.DNA_SHUTDOWN;
       break;
+    case RSYNC_REPAIR:
+      action = DatanodeProtocol.DNA_RSYNC_REPAIR;
+      break;
     }
     return new BlockCommand(action, blkCmd.getBlockPoolId(), blocks, targets);
   }
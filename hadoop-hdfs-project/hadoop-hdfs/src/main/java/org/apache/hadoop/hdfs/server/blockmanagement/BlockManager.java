@@ -217,6 +217,14 @@ public int getPendingDataNodeMessageCount() {
   // whether or not to issue block encryption keys.
   final boolean encryptDataTransfer;
 
+  /**
+   * Whether to repair a corrupt replica of an under-replicated block on its
+   * datanode with rsync instead of replicating the block to a new one.
+   */
+  final boolean rsyncRepairEnabled;
+  /** The rsync repairs of corrupt replicas scheduled or failed */
+  private final RsyncRepairs rsyncRepairs = new RsyncRepairs();
+
   /**
    * When running inside a Standby node, the node may receive block reports
    * from datanodes before receiving the corresponding namespace edits from
@@ -296,6 +304,10 @@ public BlockManager(final Namesystem namesystem, final FSClusterStats stats,
     this.encryptDataTransfer =
         conf.getBoolean(DFSConfigKeys.DFS_ENCRYPT_DATA_TRANSFER_KEY,
             DFSConfigKeys.DFS_ENCRYPT_DATA_TRANSFER_DEFAULT);
+
+    this.rsyncRepairEnabled = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_RSYNC_REPAIR_ENABLED_KEY,
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_RSYNC_REPAIR_ENABLED_DEFAULT);
     
     LOG.info("defaultReplication         = " + defaultReplication);
     LOG.info("maxReplication             = " + maxReplication);
@@ -304,6 +316,7 @@ public BlockManager(final Namesystem namesystem, final FSClusterStats stats,
     LOG.info("shouldCheckForEnoughRacks  = " + shouldCheckForEnoughRacks);
     LOG.info("replicationRecheckInterval = " + replicationRecheckInterval);
     LOG.info("encryptDataTransfer        = " + encryptDataTransfer);
+    LOG.info("rsyncRepairEnabled         = " + rsyncRepairEnabled);
   }
 
   private static BlockTokenSecretManager createBlockTokenSecretManager(
@@ -1246,9 +1259,21 @@ int computeReplicationWorkForBlocks(List<List<Block>> blocksToReplicate) {
             } else {
               additionalReplRequired = 1; // Needed on a new rack
             }
-            work.add(new ReplicationWork(block, bc, srcNode,
+            final ReplicationWork rw = new ReplicationWork(block, bc, srcNode,
                 containingNodes, liveReplicaNodes, additionalReplRequired,
-                priority));
+                priority);
+            if (numReplicas.liveReplicas() < requiredReplication) {
+              rw.repairNode = chooseRepairNode(block, srcNode);
+            }
+            if (rw.repairNode == null) {
+              // do not replicate to the nodes which failed to repair it
+              for (DatanodeDescriptor dn : rsyncRepairs.getFailedNodes(block)) {
+                if (!containingNodes.contains(dn)) {
+                  containingNodes.add(dn);
+                }
+              }
+            }
+            work.add(rw);
           }
         }
       }
@@ -1259,6 +1284,12 @@ int computeReplicationWorkForBlocks(List<List<Block>> blocksToReplicate) {
     HashMap<Node, Node> excludedNodes
         = new HashMap<Node, Node>();
     for(ReplicationWork rw : work){
+      if (rw.repairNode != null) {
+        // the node of a corrupt replica rebuilds it from srcNode
+        rw.targets = new DatanodeDescriptor[] { rw.repairNode };
+        continue;
+      }
+
       // Exclude all of the containing nodes from being targets.
       // This list includes decommissioning or corrupt nodes.
       excludedNodes.clear();
@@ -1324,7 +1355,12 @@ int computeReplicationWorkForBlocks(List<List<Block>> blocksToReplicate) {
           }
 
           // Add block to the to be replicated list
-          rw.srcNode.addBlockToBeReplicated(block, targets);
+          if (rw.repairNode != null) {
+            rw.srcNode.addBlockToBeRepaired(block, rw.repairNode);
+            rsyncRepairs.scheduled(block, rw.repairNode);
+          } else {
+            rw.srcNode.addBlockToBeReplicated(block, targets);
+          }
           scheduledWork++;
 
           for (DatanodeDescriptor dn : targets) {
@@ -1423,6 +1459,30 @@ List<DatanodeDescriptor> getDatanodeDescriptors(List<String> nodes) {
     return datanodeDescriptors;
   }
 
+  /**
+   * Choose a node of a corrupt replica of the block to repair its replica
+   * from srcNode with rsync, which pulls only the chunks that differ. A node
+   * which is repairing the block, or failed to repair it, is not chosen.
+   *
+   * @return the node, or null if repairs are disabled or none can repair
+   */
+  private DatanodeDescriptor chooseRepairNode(Block block,
+      DatanodeDescriptor srcNode) {
+    final Collection<DatanodeDescriptor> nodes = corruptReplicas.getNodes(block);
+    if (!rsyncRepairEnabled || nodes == null) {
+      return null;
+    }
+    for (DatanodeDescriptor node : nodes) {
+      if (node != srcNode && node.isAlive
+          && !node.isDecommissionInProgress() && !node.isDecommissioned()
+          && !invalidateBlocks.contains(node.getStorageID(), block)
+          && !rsyncRepairs.isTried(block, node)) {
+        return node;
+      }
+    }
+    return null;
+  }
+
   /**
    * Parse the data-nodes the block belongs to and choose one,
    * which will be the replication source.
@@ -1530,6 +1590,7 @@ private void processPendingReplications() {
       namesystem.writeLock();
       try {
         for (int i = 0; i < timedOutItems.length; i++) {
+          rsyncRepairs.timedOut(timedOutItems[i]);
           NumberReplicas num = countNodes(timedOutItems[i]);
           if (isNeededReplication(timedOutItems[i], getReplication(timedOutItems[i]),
                                  num.liveReplicas())) {
@@ -2252,6 +2313,9 @@ private Block addStoredBlock(final BlockInfo block,
     }
     if ((corruptReplicasCount > 0) && (numLiveReplicas >= fileReplication))
       invalidateCorruptReplicas(storedBlock);
+    if (numLiveReplicas >= fileReplication) {
+      rsyncRepairs.remove(storedBlock);
+    }
     return storedBlock;
   }
 
@@ -2575,6 +2639,10 @@ public void removeStoredBlock(Block block, DatanodeDescriptor node) {
         }
         return;
       }
+      if (rsyncRepairs.replicaRemoved(block, node)) {
+        // the repair failed, no need to wait for it to time out
+        pendingReplications.decrement(block, node);
+      }
 
       //
       // It's possible that the block was removed because of a datanode
@@ -2668,8 +2736,8 @@ private void processAndHandleReportedBlock(DatanodeDescriptor node, Block block,
     Collection<Block> toInvalidate = new LinkedList<Block>();
     Collection<BlockToMarkCorrupt> toCorrupt = new LinkedList<BlockToMarkCorrupt>();
     Collection<StatefulBlockInfo> toUC = new LinkedList<StatefulBlockInfo>();
-    processReportedBlock(node, block, reportedState,
-                              toAdd, toInvalidate, toCorrupt, toUC);
+    final BlockInfo storedBlock = processReportedBlock(node, block,
+        reportedState, toAdd, toInvalidate, toCorrupt, toUC);
     // the block is only in one of the to-do lists
     // if it is in none then data-node already has it
     assert toUC.size() + toAdd.size() + toInvalidate.size() + toCorrupt.size() <= 1
@@ -2693,6 +2761,26 @@ private void processAndHandleReportedBlock(DatanodeDescriptor node, Block block,
     	blockLog.debug("block "+block+" add to markBlockAsCorrupt");
       markBlockAsCorrupt(b, node);
     }
+
+    if (rsyncRepairEnabled && reportedState == ReplicaState.FINALIZED
+        && storedBlock != null && toUC.isEmpty() && toAdd.isEmpty()
+        && toInvalidate.isEmpty() && toCorrupt.isEmpty()
+        && !invalidateBlocks.contains(node.getStorageID(), block)
+        && corruptReplicas.isReplicaCorrupt(storedBlock, node)) {
+      // the node rebuilt its corrupt replica, which now matches the block
+      blockLog.info("BLOCK* addBlock: corrupt replica of " + storedBlock
+          + " on " + node + " is repaired");
+      corruptReplicas.removeFromCorruptReplicasMap(storedBlock, node);
+      rsyncRepairs.repaired(storedBlock, node);
+      updateNeededReplications(storedBlock, 1, 0);
+      if (countNodes(storedBlock).liveReplicas()
+          >= getReplication(storedBlock)) {
+        rsyncRepairs.remove(storedBlock);
+        if (corruptReplicas.numCorruptReplicas(storedBlock) > 0) {
+          invalidateCorruptReplicas(storedBlock);
+        }
+      }
+    }
   }
 
   /**
@@ -2951,6 +3039,7 @@ public void removeBlock(Block block) {
     block.setNumBytes(BlockCommand.NO_ACK);
     addToInvalidates(block);
     corruptReplicas.removeFromCorruptReplicasMap(block);
+    rsyncRepairs.remove(block);
     blocksMap.removeBlock(block);
     // Remove the block from pendingReplications and neededReplications
     pendingReplications.remove(block);
@@ -3107,6 +3196,7 @@ public void removeBlockFromMap(Block block) {
     blocksMap.removeBlock(block);
     // If block is removed from blocksMap remove it from corruptReplicasMap
     corruptReplicas.removeFromCorruptReplicasMap(block);
+    rsyncRepairs.remove(block);
   }
 
   public int getCapacity() {
@@ -3245,6 +3335,8 @@ private static class ReplicationWork {
 
     private DatanodeDescriptor targets[];
     private int priority;
+    /** The node of a corrupt replica to repair instead of choosing targets */
+    private DatanodeDescriptor repairNode;
 
     public ReplicationWork(Block block,
         BlockCollection bc,
@@ -132,6 +132,8 @@ synchronized void clear() {
 
   /** A queue of blocks to be replicated by this datanode */
   private BlockQueue<BlockTargetPair> replicateBlocks = new BlockQueue<BlockTargetPair>();
+  /** A queue of blocks to be repaired on other datanodes from this one */
+  private BlockQueue<BlockTargetPair> repairBlocks = new BlockQueue<BlockTargetPair>();
   /** A queue of blocks to be recovered by this datanode */
   private BlockQueue<BlockInfoUnderConstruction> recoverBlocks =
                                 new BlockQueue<BlockInfoUnderConstruction>();
@@ -295,6 +297,7 @@ public void clearBlockQueues() {
       this.invalidateBlocks.clear();
       this.recoverBlocks.clear();
       this.replicateBlocks.clear();
+      this.repairBlocks.clear();
     }
   }
 
@@ -360,6 +363,16 @@ void addBlockToBeReplicated(Block block, DatanodeDescriptor[] targets) {
     replicateBlocks.offer(new BlockTargetPair(block, targets));
   }
 
+  /**
+   * Store the work of repairing the replica of a block on target from the
+   * replica of this datanode.
+   */
+  void addBlockToBeRepaired(Block block, DatanodeDescriptor target) {
+    assert(block != null && target != null);
+    repairBlocks.offer(new BlockTargetPair(block,
+        new DatanodeDescriptor[] { target }));
+  }
+
   /**
    * Store block recovery work.
    */
@@ -388,7 +401,7 @@ void addBlocksToBeInvalidated(List<Block> blocklist) {
    * The number of work items that are pending to be replicated
    */
   int getNumberOfBlocksToBeReplicated() {
-    return replicateBlocks.size();
+    return replicateBlocks.size() + repairBlocks.size();
   }
 
   /**
@@ -405,6 +418,10 @@ public List<BlockTargetPair> getReplicationCommand(int maxTransfers) {
     return replicateBlocks.poll(maxTransfers);
   }
 
+  public List<BlockTargetPair> getRepairCommand(int maxTransfers) {
+    return repairBlocks.poll(maxTransfers);
+  }
+
   public BlockInfoUnderConstruction[] getLeaseRecoveryCommand(int maxTransfers) {
     List<BlockInfoUnderConstruction> blocks = recoverBlocks.poll(maxTransfers);
     if(blocks == null)
@@ -595,6 +612,10 @@ public String dumpDatanode() {
     if (repl > 0) {
       sb.append(" ").append(repl).append(" blocks to be replicated;");
     }
+    int repair = repairBlocks.size();
+    if (repair > 0) {
+      sb.append(" ").append(repair).append(" blocks to be repaired;");
+    }
     int inval = invalidateBlocks.size();
     if (inval > 0) {
       sb.append(" ").append(inval).append(" blocks to be invalidated;");      
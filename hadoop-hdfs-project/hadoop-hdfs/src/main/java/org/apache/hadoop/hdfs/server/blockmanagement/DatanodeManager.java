@@ -1277,6 +1277,13 @@ public DatanodeCommand[] handleHeartbeat(DatanodeRegistration nodeReg,
           cmds.add(new BlockCommand(DatanodeProtocol.DNA_TRANSFER, blockPoolId,
               pendingList));
         }
+        //check pending rsync repair
+        List<BlockTargetPair> repairList = nodeinfo.getRepairCommand(
+            maxTransfers - (pendingList == null ? 0 : pendingList.size()));
+        if (repairList != null) {
+          cmds.add(new BlockCommand(DatanodeProtocol.DNA_RSYNC_REPAIR,
+              blockPoolId, repairList));
+        }
         //check block invalidation
         Block[] blks = nodeinfo.getInvalidateBlocks(blockInvalidateLimit);
         if (blks != null) {
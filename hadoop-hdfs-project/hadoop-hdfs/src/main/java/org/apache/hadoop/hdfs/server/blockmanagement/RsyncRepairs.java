@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Keeps track of the rsync repairs of corrupt replicas scheduled on their
+ * datanodes, so that a node whose repair of a block failed is not asked to
+ * repair it again and the block is replicated elsewhere instead.
+ *
+ * A repair is pending from the time it is scheduled until the node reports
+ * its repaired replica. It fails when its pending replication times out or
+ * the node drops its replica. The repairs of a block are forgotten once the
+ * block has its expected replicas or is removed.
+ *
+ * Not thread safe: the callers hold the namesystem write lock.
+ */
+class RsyncRepairs {
+  /** The nodes repairing their replica of each block. */
+  private final Map<Block, Collection<DatanodeDescriptor>> pending =
+      new HashMap<Block, Collection<DatanodeDescriptor>>();
+  /** The nodes which failed to repair their replica of each block. */
+  private final Map<Block, Collection<DatanodeDescriptor>> failed =
+      new HashMap<Block, Collection<DatanodeDescriptor>>();
+
+  private static void add(Map<Block, Collection<DatanodeDescriptor>> map,
+      Block block, DatanodeDescriptor node) {
+    Collection<DatanodeDescriptor> nodes = map.get(block);
+    if (nodes == null) {
+      nodes = new HashSet<DatanodeDescriptor>();
+      map.put(block, nodes);
+    }
+    nodes.add(node);
+  }
+
+  private static boolean remove(
+      Map<Block, Collection<DatanodeDescriptor>> map, Block block,
+      DatanodeDescriptor node) {
+    final Collection<DatanodeDescriptor> nodes = map.get(block);
+    if (nodes == null || !nodes.remove(node)) {
+      return false;
+    }
+    if (nodes.isEmpty()) {
+      map.remove(block);
+    }
+    return true;
+  }
+
+  private static boolean contains(
+      Map<Block, Collection<DatanodeDescriptor>> map, Block block,
+      DatanodeDescriptor node) {
+    final Collection<DatanodeDescriptor> nodes = map.get(block);
+    return nodes != null && nodes.contains(node);
+  }
+
+  /** A repair of the replica of the block on the node is scheduled. */
+  void scheduled(Block block, DatanodeDescriptor node) {
+    add(pending, block, node);
+  }
+
+  /** The node reported its repaired replica of the block. */
+  void repaired(Block block, DatanodeDescriptor node) {
+    remove(pending, block, node);
+  }
+
+  /** The pending replication of the block timed out. */
+  void timedOut(Block block) {
+    final Collection<DatanodeDescriptor> nodes = pending.remove(block);
+    if (nodes != null) {
+      for (DatanodeDescriptor node : nodes) {
+        add(failed, block, node);
+      }
+    }
+  }
+
+  /**
+   * The node dropped its replica of the block.
+   *
+   * @return whether the node was repairing the replica, and failed
+   */
+  boolean replicaRemoved(Block block, DatanodeDescriptor node) {
+    if (!remove(pending, block, node)) {
+      return false;
+    }
+    add(failed, block, node);
+    return true;
+  }
+
+  /**
+   * @return whether the node is repairing, or failed to repair, its replica
+   *         of the block
+   */
+  boolean isTried(Block block, DatanodeDescriptor node) {
+    return contains(pending, block, node) || contains(failed, block, node);
+  }
+
+  /** @return the nodes which failed to repair their replica of the block */
+  Collection<DatanodeDescriptor> getFailedNodes(Block block) {
+    final Collection<DatanodeDescriptor> nodes = failed.get(block);
+    return nodes == null ? Collections.<DatanodeDescriptor>emptySet() : nodes;
+  }
+
+  /** Forget the repairs of the block. */
+  void remove(Block block) {
+    pending.remove(block);
+    failed.remove(block);
+  }
+}
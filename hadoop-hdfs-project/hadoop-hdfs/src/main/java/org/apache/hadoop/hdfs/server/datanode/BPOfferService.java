@@ -526,6 +526,10 @@ private boolean processCommandFromActive(DatanodeCommand cmd,
       dn.transferBlocks(bcmd.getBlockPoolId(), bcmd.getBlocks(), bcmd.getTargets());
       dn.metrics.incrBlocksReplicated(bcmd.getBlocks().length);
       break;
+    case DatanodeProtocol.DNA_RSYNC_REPAIR:
+      // Repair the replicas of blocks on other datanodes with rsync
+      dn.repairBlocks(bcmd.getBlockPoolId(), bcmd.getBlocks(), bcmd.getTargets());
+      break;
     case DatanodeProtocol.DNA_INVALIDATE:
       //
       // Some local block(s) are obsolete and can be 
@@ -616,6 +620,7 @@ private boolean processCommandFromStandby(DatanodeCommand cmd,
     case DatanodeProtocol.DNA_FINALIZE:
     case DatanodeProtocol.DNA_RECOVERBLOCK:
     case DatanodeProtocol.DNA_BALANCERBANDWIDTHUPDATE:
+    case DatanodeProtocol.DNA_RSYNC_REPAIR:
       LOG.warn("Got a command from standby NN - ignoring command:" + cmd.getAction());
       break;
     default:
@@ -60,6 +60,11 @@ public class DNConf {
   final boolean syncOnClose;
   final boolean encryptDataTransfer;
   final boolean connectToDnViaHostname;
+  final boolean rsyncSignatureCacheEnabled;
+  final boolean rsyncDirectWriteEnabled;
+  final boolean rsyncRepairEnabled;
+  final int rsyncRepairChunkSize;
+  final int rsyncMaxChecksums;
 
   final long readaheadLength;
   final long heartBeatInterval;
@@ -106,6 +111,21 @@ public DNConf(Configuration conf) {
     connectToDnViaHostname = conf.getBoolean(
         DFSConfigKeys.DFS_DATANODE_USE_DN_HOSTNAME,
         DFSConfigKeys.DFS_DATANODE_USE_DN_HOSTNAME_DEFAULT);
+    rsyncSignatureCacheEnabled = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_SIGNATURE_CACHE_ENABLED_KEY,
+        DFSConfigKeys.DFS_DATANODE_RSYNC_SIGNATURE_CACHE_ENABLED_DEFAULT);
+    rsyncDirectWriteEnabled = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_DIRECT_WRITE_ENABLED_KEY,
+        DFSConfigKeys.DFS_DATANODE_RSYNC_DIRECT_WRITE_ENABLED_DEFAULT);
+    rsyncRepairEnabled = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_ENABLED_KEY,
+        DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_ENABLED_DEFAULT);
+    rsyncRepairChunkSize = conf.getInt(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_CHUNK_SIZE_KEY,
+        DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_CHUNK_SIZE_DEFAULT);
+    rsyncMaxChecksums = conf.getInt(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUMS_MAX_KEY,
+        DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUMS_MAX_DEFAULT);
     this.blockReportInterval = conf.getLong(DFS_BLOCKREPORT_INTERVAL_MSEC_KEY,
     DFS_BLOCKREPORT_INTERVAL_MSEC_DEFAULT);
     
@@ -42,6 +42,7 @@
 import org.apache.hadoop.hdfs.protocol.*;
 import org.apache.hadoop.hdfs.protocol.datatransfer.*;
 import org.apache.hadoop.hdfs.protocol.proto.ClientDatanodeProtocolProtos.ClientDatanodeProtocolService;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.DNTransferAckProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
 import org.apache.hadoop.hdfs.protocol.proto.InterDatanodeProtocolProtos.InterDatanodeProtocolService;
@@ -193,6 +194,7 @@ public static InetSocketAddress createSocketAddr(String target) {
   
   volatile DataBlockScanner blockScanner = null;
   private DirectoryScanner directoryScanner = null;
+  private RsyncTmpReaper rsyncTmpReaper = null;
   
   /** Activated plug-ins. */
   private List<ServicePlugin> plugins;
@@ -468,6 +470,28 @@ private synchronized void shutdownDirectoryScanner() {
     }
   }
   
+  /**
+   * See {@link RsyncTmpReaper}
+   */
+  private void initRsyncTmpReaper(Configuration conf) {
+    final long expiryMs = conf.getLong(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_TMP_EXPIRY_MS_KEY,
+        DFSConfigKeys.DFS_DATANODE_RSYNC_TMP_EXPIRY_MS_DEFAULT);
+    if (expiryMs <= 0) {
+      return;
+    }
+    rsyncTmpReaper = new RsyncTmpReaper(DataXceiver.getRsyncTmpDir(conf),
+        expiryMs);
+    for (Daemon server : new Daemon[] {dataXceiverServer,
+        localDataXceiverServer}) {
+      if (server != null) {
+        rsyncTmpReaper.addReplicaWriters(
+            ((DataXceiverServer) server.getRunnable()).rsyncReplicaWriters);
+      }
+    }
+    rsyncTmpReaper.start();
+  }
+  
   private void initDataXceiver(Configuration conf) throws IOException {
     // find free port or use privileged port provided
     TcpPeerServer tcpPeerServer;
@@ -661,6 +685,7 @@ void startDataNode(Configuration conf,
     // global DN settings
     registerMXBean();
     initDataXceiver(conf);
+    initRsyncTmpReaper(conf);
     startInfoServer(conf);
   
     // BlockPoolTokenSecretManager is required to create ipc server.
@@ -1135,6 +1160,9 @@ public void shutdown() {
         : this.blockPoolManager.getAllNamenodeThreads();
     this.shouldRun = false;
     shutdownPeriodicScanners();
+    if (rsyncTmpReaper != null) {
+      rsyncTmpReaper.shutdown();
+    }
     
     if (infoServer != null) {
       try {
@@ -1283,8 +1311,8 @@ int getXmitsInProgress() {
     return xmitsInProgress.get();
   }
     
-  private void transferBlock(ExtendedBlock block, DatanodeInfo xferTargets[])
-      throws IOException {
+  private void transferBlock(ExtendedBlock block, DatanodeInfo xferTargets[],
+      boolean repair) throws IOException {
     BPOfferService bpos = getBPOSForBlock(block);
     DatanodeRegistration bpReg = getDNRegistrationForBP(block.getBlockPoolId());
     
@@ -1316,12 +1344,12 @@ private void transferBlock(ExtendedBlock block, DatanodeInfo xferTargets[])
           xfersBuilder.append(xferTargets[i]);
           xfersBuilder.append(" ");
         }
-        LOG.info(bpReg + " Starting thread to transfer " + 
-                 block + " to " + xfersBuilder);                       
+        LOG.info(bpReg + " Starting thread to " + (repair ? "repair " : "transfer ")
+                 + block + " to " + xfersBuilder);                       
       }
 
       new Daemon(new DataTransfer(xferTargets, block,
-          BlockConstructionStage.PIPELINE_SETUP_CREATE, "")).start();
+          BlockConstructionStage.PIPELINE_SETUP_CREATE, "", repair)).start();
     }
   }
 
@@ -1329,13 +1357,31 @@ void transferBlocks(String poolId, Block blocks[],
       DatanodeInfo xferTargets[][]) {
     for (int i = 0; i < blocks.length; i++) {
       try {
-        transferBlock(new ExtendedBlock(poolId, blocks[i]), xferTargets[i]);
+        transferBlock(new ExtendedBlock(poolId, blocks[i]), xferTargets[i],
+            false);
       } catch (IOException ie) {
         LOG.warn("Failed to transfer block " + blocks[i], ie);
       }
     }
   }
 
+  /**
+   * Repair the corrupt or stale replicas of the blocks on the targets from
+   * the replicas of this datanode with rsync, see {@link RsyncBlockRepairer}.
+   * A block the target cannot repair is transferred to it instead.
+   */
+  void repairBlocks(String poolId, Block blocks[],
+      DatanodeInfo xferTargets[][]) {
+    for (int i = 0; i < blocks.length; i++) {
+      try {
+        transferBlock(new ExtendedBlock(poolId, blocks[i]), xferTargets[i],
+            true);
+      } catch (IOException ie) {
+        LOG.warn("Failed to repair block " + blocks[i], ie);
+      }
+    }
+  }
+
   /* ********************************************************************
   Protocol when a client reads data from Datanode (Cur Ver: 9):
   
@@ -1437,13 +1483,20 @@ private class DataTransfer implements Runnable {
     final private DatanodeRegistration bpReg;
     final String clientname;
     final CachingStrategy cachingStrategy;
+    /** Whether to ask the target to repair its replica before transferring */
+    final boolean repair;
+
+    DataTransfer(DatanodeInfo targets[], ExtendedBlock b, BlockConstructionStage stage,
+        final String clientname)  {
+      this(targets, b, stage, clientname, false);
+    }
 
     /**
      * Connect to the first item in the target list.  Pass along the 
      * entire target list, the block, and the data.
      */
     DataTransfer(DatanodeInfo targets[], ExtendedBlock b, BlockConstructionStage stage,
-        final String clientname)  {
+        final String clientname, boolean repair)  {
       if (DataTransferProtocol.LOG.isDebugEnabled()) {
         DataTransferProtocol.LOG.debug(getClass().getSimpleName() + ": "
             + b + " (numBytes=" + b.getNumBytes() + ")"
@@ -1459,6 +1512,7 @@ private class DataTransfer implements Runnable {
       this.clientname = clientname;
       this.cachingStrategy =
           new CachingStrategy(true, getDnConf().readaheadLength);
+      this.repair = repair;
     }
 
     /**
@@ -1474,6 +1528,10 @@ public void run() {
       final boolean isClient = clientname.length() > 0;
       
       try {
+        if (repair && targets.length == 1 && repairTarget()) {
+          return;
+        }
+
         final String dnAddr = targets[0].getXferAddr(connectToDnViaHostname);
         InetSocketAddress curTarget = NetUtils.createSocketAddr(dnAddr);
         if (LOG.isDebugEnabled()) {
@@ -1559,6 +1617,94 @@ public void run() {
         IOUtils.closeSocket(sock);
       }
     }
+
+    /**
+     * Ask the target to repair its corrupt or stale replica of the block
+     * from this datanode with rsync, see {@link RsyncBlockRepairer}.
+     *
+     * @return true if the target repaired its replica; false if the target
+     *         has no replica of the block or does not know the op, and the
+     *         block is then transferred as usual
+     * @throws IOException if the target failed the repair, or has repairs
+     *         disabled; either way it deleted its replica, so that the
+     *         NameNode replicates the block elsewhere
+     */
+    private boolean repairTarget() throws IOException {
+      Socket sock = null;
+      DataOutputStream out = null;
+      DataInputStream in = null;
+      try {
+        BlockOpResponseProto response;
+        try {
+          final String dnAddr = targets[0].getXferAddr(connectToDnViaHostname);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Connecting to datanode " + dnAddr);
+          }
+          sock = newSocket();
+          NetUtils.connect(sock, NetUtils.createSocketAddr(dnAddr),
+              dnConf.socketTimeout);
+          // the target and then this datanode scan the block before the reply
+          sock.setSoTimeout(3 * dnConf.socketTimeout);
+
+          OutputStream unbufOut = NetUtils.getOutputStream(sock,
+              dnConf.socketWriteTimeout);
+          InputStream unbufIn = NetUtils.getInputStream(sock);
+          if (dnConf.encryptDataTransfer) {
+            IOStreamPair encryptedStreams =
+                DataTransferEncryptor.getEncryptedStreams(
+                    unbufOut, unbufIn,
+                    blockPoolTokenSecretManager.generateDataEncryptionKey(
+                        b.getBlockPoolId()));
+            unbufOut = encryptedStreams.out;
+            unbufIn = encryptedStreams.in;
+          }
+          out = new DataOutputStream(new BufferedOutputStream(unbufOut,
+              HdfsConstants.SMALL_BUFFER_SIZE));
+          in = new DataInputStream(unbufIn);
+
+          Token<BlockTokenIdentifier> accessToken = BlockTokenSecretManager.DUMMY_TOKEN;
+          if (isBlockTokenEnabled) {
+            accessToken = blockPoolTokenSecretManager.generateToken(b, 
+                EnumSet.of(BlockTokenSecretManager.AccessMode.WRITE));
+          }
+          new Sender(out).repairBlock(b, accessToken, new DatanodeInfo(bpReg),
+              dnConf.rsyncRepairChunkSize);
+          out.flush();
+
+          // the target first replies whether it accepts the repair
+          response = BlockOpResponseProto.parseFrom(PBHelper.vintPrefixed(in));
+        } catch (IOException e) {
+          // e.g. a datanode not knowing the op closes the connection
+          LOG.info(getClass().getSimpleName() + ": " + targets[0]
+              + " cannot repair " + b + ", transferring it instead: " + e);
+          return false;
+        }
+        if (response.getStatus() == Status.ERROR_UNSUPPORTED) {
+          // a transfer would fail on the replica the target holds
+          throw new IOException(targets[0] + " cannot repair " + b + ": "
+              + response.getMessage());
+        }
+        if (response.getStatus() != Status.SUCCESS) {
+          LOG.info(getClass().getSimpleName() + ": " + targets[0]
+              + " cannot repair " + b + ", transferring it instead: "
+              + response.getStatus() + ", " + response.getMessage());
+          return false;
+        }
+
+        response = BlockOpResponseProto.parseFrom(PBHelper.vintPrefixed(in));
+        if (response.getStatus() != Status.SUCCESS) {
+          throw new IOException("Failed to repair " + b + " on " + targets[0]
+              + ": " + response.getMessage());
+        }
+        LOG.info(getClass().getSimpleName() + ": Repaired " + b
+            + " (numBytes=" + b.getNumBytes() + ") on " + targets[0]);
+        return true;
+      } finally {
+        IOUtils.closeStream(out);
+        IOUtils.closeStream(in);
+        IOUtils.closeSocket(sock);
+      }
+    }
   }
   
   /**
@@ -20,6 +20,7 @@
 import static org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status.ERROR;
 import static org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status.ERROR_UNSUPPORTED;
 import static org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status.ERROR_ACCESS_TOKEN;
+import static org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status.ERROR_INVALID;
 import static org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status.SUCCESS;
 import static org.apache.hadoop.util.Time.now;
 import static org.apache.hadoop.hdfs.server.datanode.DataNode.DN_CLIENTTRACE_FORMAT;
@@ -40,14 +41,16 @@
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.URI;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.FileChannel;
 import java.text.NumberFormat;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -56,7 +59,10 @@
 import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.net.Peer;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
@@ -68,6 +74,7 @@
 import org.apache.hadoop.hdfs.protocol.datatransfer.IOStreamPair;
 import org.apache.hadoop.hdfs.protocol.datatransfer.Op;
 import org.apache.hadoop.hdfs.protocol.datatransfer.Receiver;
+import org.apache.hadoop.hdfs.protocol.datatransfer.RsyncChecksums;
 import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumPairProto;
@@ -78,9 +85,12 @@
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpCalculateSegmentsResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpChunksAdaptiveChecksumResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpChunksChecksumResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ReadOpChecksumInfoProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
 import org.apache.hadoop.hdfs.protocolPB.PBHelper;
 import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
 import org.apache.hadoop.hdfs.security.token.block.BlockTokenSecretManager;
@@ -90,6 +100,7 @@
 import org.apache.hadoop.hdfs.server.datanode.DataNode.ShortCircuitFdsVersionException;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.LengthInputStream;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.ReplicaOutputStreams;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeRsyncMetrics;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MD5Hash;
@@ -98,6 +109,7 @@
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.DataChecksum.Type;
+import org.apache.hadoop.util.RollingAdler32;
 
 import com.google.protobuf.ByteString;
 
@@ -116,6 +128,13 @@ class DataXceiver extends Receiver implements Runnable {
 	private final DataXceiverServer dataXceiverServer;
 	private final boolean connectToDnViaHostname;
 	private long opStartTime; // the start time of receiving an Op
+
+	/** The ops counted as active in {@link DataNodeRsyncMetrics}. */
+	private static final EnumSet<Op> RSYNC_OPS = EnumSet.of(
+			Op.RSYNC_CHUNKS_CHECKSUM, Op.RSYNC_CHUNKS_ADAPTIVE_CHECKSUM,
+			Op.RSYNC_INFLATE_BLOCK, Op.RSYNC_CALCULATE_SEGMENTS,
+			Op.RSYNC_SEND_SEGMENT, Op.RSYNC_SEND_SEGMENTS,
+			Op.RSYNC_UPDATE_BLOCK, Op.RSYNC_REPAIR_BLOCK);
 	private final InputStream socketIn;
 	private OutputStream socketOut;
 
@@ -253,7 +272,17 @@ public void run() {
 				}
 
 				opStartTime = now();
-				processOp(op);
+				final boolean rsyncOp = RSYNC_OPS.contains(op);
+				if (rsyncOp) {
+					datanode.metrics.getRsyncMetrics().incrActiveOps();
+				}
+				try {
+					processOp(op);
+				} finally {
+					if (rsyncOp) {
+						datanode.metrics.getRsyncMetrics().decrActiveOps();
+					}
+				}
 				++opsProcessed;
 			} while (!peer.isClosed() && dnConf.socketKeepaliveTimeout > 0);
 		} catch (Throwable t) {
@@ -706,7 +735,7 @@ public void inflateBlock(final ExtendedBlock block,
 		}
 
 		// update metrics
-		datanode.metrics.addWriteBlockOp(elapsed());
+		datanode.metrics.getRsyncMetrics().addInflateBlockOp(elapsed());
 		datanode.metrics.incrWritesFromClient(peer.isLocal());
 	}
 	
@@ -730,36 +759,58 @@ public void transferBlock(final ExtendedBlock blk,
 		}
 	}
 
-	//https://github.com/wen866595/jrsync/tree/master/src/bruce/rsync
-	//网上找的adler32算法java版
-	public final static int MOD_ADLER = 65521;
-	public static int adler32(byte[] buf, int offset, int length) {
-		int i;
-		int s1,s2;
-		s1 = s2 = 0;
-		for(i = offset ; i < length + offset ; i++){
-			s1 = (s1+(int)(buf[i]&0xff))%MOD_ADLER;
-			s2 = (s1+s2)%MOD_ADLER;
-		}
-		
-		return ((s1&0xffff)+(s2<<16))&0xffffffff;
-	}
-	public static int nextAdler32(int oldAdler32, byte preByte, byte nextByte, int chunkSize) {
-		int s1,s2;
-		s1 = oldAdler32 & 0xffff;
-		s2 = (oldAdler32 >> 16)& 0xffff;
-		s1 = (s1-(int)(preByte&0xff) + (int)(nextByte&0xff) + MOD_ADLER)%MOD_ADLER;
-		s2 = (s2+s1-(chunkSize*(int)(preByte&0xff))%MOD_ADLER + MOD_ADLER)%MOD_ADLER;
-		return ((s1&0xffff)+(s2<<16))&0xffffffff;
-	}
-	
 	@Override
 	public void chunksChecksum(final ExtendedBlock block,
 			final Token<BlockTokenIdentifier> blockToken,
-			int bytesPerChunk) throws IOException {
+			int bytesPerChunk,
+			StrongHashTypeProto strongHash) throws IOException {
 		final DataOutputStream out = new DataOutputStream(getOutputStream());
 		checkAccess(out, true, block, blockToken, Op.RSYNC_CHUNKS_CHECKSUM,
 				BlockTokenSecretManager.AccessMode.READ);
+		if (!acquireRsyncQuota(Op.RSYNC_CHUNKS_CHECKSUM, block, out)) {
+			return;
+		}
+		final String signatureKey = "fixed_" + bytesPerChunk
+				+ RsyncStrongHash.getSignatureKeySuffix(strongHash);
+		try {
+			OpChunksChecksumResponseProto response = null;
+			if (dnConf.rsyncSignatureCacheEnabled) {
+				response = RsyncSignatureFile.read(datanode.data, block,
+						signatureKey, OpChunksChecksumResponseProto.PARSER);
+			}
+			if (response != null) {
+				datanode.metrics.getRsyncMetrics().incrSignatureCacheHits();
+			} else {
+				response = computeChunksChecksum(block, bytesPerChunk, strongHash);
+				if (dnConf.rsyncSignatureCacheEnabled) {
+					RsyncSignatureFile.write(datanode.data, block, signatureKey,
+							response);
+				}
+			}
+
+			// write reply
+			BlockOpResponseProto.newBuilder().setStatus(SUCCESS)
+					.setChunksChecksumResponse(response)
+					.build()
+					.writeDelimitedTo(out);
+			out.flush();
+		} finally {
+			IOUtils.closeStream(out);
+			dataXceiverServer.rsyncThrottler.release();
+		}
+
+		// update metrics
+		datanode.metrics.getRsyncMetrics().addChunksChecksumOp(elapsed());
+	}
+
+	/**
+	 * Read the block and its meta file to compute the checksums of every
+	 * chunk of the block. The CRC32C_MURMUR3_128 strong checksums are
+	 * computed from the CRC32C of the meta file when possible.
+	 */
+	private OpChunksChecksumResponseProto computeChunksChecksum(
+			final ExtendedBlock block, int bytesPerChunk,
+			StrongHashTypeProto strongHash) throws IOException {
 		updateCurrentThreadName("Reading metadata for block " + block);
 		final LengthInputStream metadataIn = datanode.data
 				.getMetaDataInputStream(block);
@@ -779,61 +830,88 @@ public void chunksChecksum(final ExtendedBlock block,
 					.getHeaderSize()) / checksum.getChecksumSize();
 			
 			final List<ChecksumPairProto> checksums = new LinkedList<ChecksumPairProto>();
+			final RsyncStrongHash hash = RsyncStrongHash.newInstance(strongHash);
+			final byte[] strong = new byte[RsyncStrongHash.LENGTH];
+			// the meta file is digested as a whole for the block checksum
+			final MessageDigest metaDigester = MD5Hash.getDigester();
+			final byte[] crcs = hash instanceof RsyncStrongHash.Crc32cMurmur3
+					&& RsyncStrongHash.Crc32cMurmur3.canUseMeta(checksum,
+							bytesPerChunk)
+					? new byte[bytesPerChunk / bytesPerCRC
+							* checksum.getChecksumSize()]
+					: null;
 
 			//generate checksum, chunk = 1MB = 1 * 2^20 B
 			byte[] buf = new byte[bytesPerChunk];
 			blockIn = datanode.data.getBlockInputStream(block, 0);
-			//Adler32 cs = new Adler32();
 			
 			int bytesRead = 0;
-			while((bytesRead=blockIn.read(buf)) != -1){
-				//cs.reset();
-				//cs.update(buf);
-				//checksums.add((int)cs.getValue());
-				int simple = adler32(buf,0,bytesRead);
-				MD5Hash md5s = MD5Hash.digest(buf,0,bytesRead);
-				//md5Checksums.add(ByteString.copyFrom(md5s.getDigest()));
+			long bytesScanned = 0;
+			while((bytesRead=readChunk(blockIn, buf)) > 0){
+				bytesScanned += bytesRead;
+				dataXceiverServer.rsyncThrottler.throttle(bytesRead);
+				int simple = RollingAdler32.checksum(buf, 0, bytesRead);
+				if (crcs != null) {
+					final int crcLength = (bytesRead + bytesPerCRC - 1)
+							/ bytesPerCRC * checksum.getChecksumSize();
+					checksumIn.readFully(crcs, 0, crcLength);
+					metaDigester.update(crcs, 0, crcLength);
+					((RsyncStrongHash.Crc32cMurmur3) hash).updateCrcs(crcs, 0,
+							crcLength);
+				} else {
+					hash.update(buf, 0, bytesRead);
+				}
+				hash.digest(strong, 0);
 				checksums.add(
 						ChecksumPairProto.newBuilder()
 							.setSimple(simple)
-							.setMd5(ByteString.copyFrom(md5s.getDigest()))
+							.setMd5(ByteString.copyFrom(strong))
 							.build());
 			}
-			blockIn.close();
 			
 			// compute block checksum
-			final MD5Hash md5 = MD5Hash.digest(checksumIn);
+			final byte[] metaBuf = new byte[HdfsConstants.IO_FILE_BUFFER_SIZE];
+			for (int n; (n = checksumIn.read(metaBuf)) > 0;) {
+				metaDigester.update(metaBuf, 0, n);
+			}
+			final MD5Hash md5 = new MD5Hash(metaDigester.digest());
+			datanode.metrics.getRsyncMetrics().incrBytesScanned(bytesScanned);
 
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("block=" + block + ", bytesPerCRC=" + bytesPerCRC
-						+ ", crcPerBlock=" + crcPerBlock + ", md5=" + md5);
+						+ ", crcPerBlock=" + crcPerBlock + ", md5=" + md5
+						+ ", bytesPerChunk=" + bytesPerChunk);
 			}
 			
-			LOG.warn("total length "+metadataIn.getLength());
-			LOG.warn("header length "+BlockMetadataHeader.getHeaderSize());
-			LOG.warn("bytesPerChunk "+bytesPerChunk);
-			
-			// write reply
-			BlockOpResponseProto.newBuilder().setStatus(SUCCESS)
-					.setChunksChecksumResponse(OpChunksChecksumResponseProto
-							.newBuilder().setBytesPerCrc(bytesPerCRC)
-							.setCrcPerBlock(crcPerBlock)
-							.addAllChecksums(checksums)
-							.setMd5(ByteString.copyFrom(md5.getDigest()))
-							.setCrcType(PBHelper.convert(checksum.getChecksumType()))
-							)
-					.build()
-					.writeDelimitedTo(out);
-			out.flush();
+			return OpChunksChecksumResponseProto
+					.newBuilder().setBytesPerCrc(bytesPerCRC)
+					.setCrcPerBlock(crcPerBlock)
+					.addAllChecksums(checksums)
+					.setMd5(ByteString.copyFrom(md5.getDigest()))
+					.setCrcType(PBHelper.convert(checksum.getChecksumType()))
+					.setStrongHash(strongHash)
+					.build();
 		} finally {
-			IOUtils.closeStream(out);
 			IOUtils.closeStream(checksumIn);
 			IOUtils.closeStream(metadataIn);
 			IOUtils.closeStream(blockIn);
 		}
+	}
 
-		// update metrics
-		datanode.metrics.addBlockChecksumOp(elapsed());
+	/**
+	 * Read a whole chunk unless the end of the block is reached.
+	 * @return the number of bytes read, 0 at the end of the block
+	 */
+	private static int readChunk(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			final int r = in.read(buf, n, buf.length - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		return n;
 	}
 
 	@Override
@@ -841,11 +919,67 @@ public void chunksAdaptiveChecksum(final ExtendedBlock block,
 			final Token<BlockTokenIdentifier> blockToken,
 			int bytesPerChunk,
 			int bmin,
-			int bmax) throws IOException {
-		LOG.warn("chunksAdaptiveChecksum is called.");
+			int bmax,
+			StrongHashTypeProto strongHash) throws IOException {
 		final DataOutputStream out = new DataOutputStream(getOutputStream());
 		checkAccess(out, true, block, blockToken, Op.RSYNC_CHUNKS_ADAPTIVE_CHECKSUM,
 				BlockTokenSecretManager.AccessMode.READ);
+		if (!acquireRsyncQuota(Op.RSYNC_CHUNKS_ADAPTIVE_CHECKSUM, block, out)) {
+			return;
+		}
+		final String signatureKey = "cdc_" + bytesPerChunk + "_" + bmin
+				+ "_" + bmax + RsyncStrongHash.getSignatureKeySuffix(strongHash);
+		try {
+			try {
+				RsyncContentDefinedChunker.checkSizes(bmin, bytesPerChunk, bmax);
+			} catch (IllegalArgumentException e) {
+				writeResponse(ERROR_INVALID, e.getMessage(), out);
+				return;
+			}
+			OpChunksAdaptiveChecksumResponseProto response = null;
+			if (dnConf.rsyncSignatureCacheEnabled) {
+				response = RsyncSignatureFile.read(datanode.data, block,
+						signatureKey, OpChunksAdaptiveChecksumResponseProto.PARSER);
+			}
+			if (response != null) {
+				datanode.metrics.getRsyncMetrics().incrSignatureCacheHits();
+			} else {
+				try {
+					response = computeChunksAdaptiveChecksum(block, bytesPerChunk,
+							bmin, bmax, strongHash);
+				} catch (IllegalArgumentException e) {
+					writeResponse(ERROR_INVALID, e.getMessage(), out);
+					return;
+				}
+				if (dnConf.rsyncSignatureCacheEnabled) {
+					RsyncSignatureFile.write(datanode.data, block, signatureKey,
+							response);
+				}
+			}
+
+			// write reply
+			BlockOpResponseProto.newBuilder().setStatus(SUCCESS)
+					.setChunksAdaptiveChecksumResponse(response)
+					.build()
+					.writeDelimitedTo(out);
+			out.flush();
+		} finally {
+			IOUtils.closeStream(out);
+			dataXceiverServer.rsyncThrottler.release();
+		}
+
+		// update metrics
+		datanode.metrics.getRsyncMetrics().addChunksAdaptiveChecksumOp(
+				elapsed());
+	}
+
+	/**
+	 * Read the block and its meta file to compute the checksums of the
+	 * content defined chunks of the block.
+	 */
+	private OpChunksAdaptiveChecksumResponseProto computeChunksAdaptiveChecksum(
+			final ExtendedBlock block, int bytesPerChunk, int bmin, int bmax,
+			StrongHashTypeProto strongHash) throws IOException {
 		updateCurrentThreadName("Reading metadata for block " + block);
 		final LengthInputStream metadataIn = datanode.data
 				.getMetaDataInputStream(block);
@@ -864,305 +998,153 @@ public void chunksAdaptiveChecksum(final ExtendedBlock block,
 			final long crcPerBlock = (metadataIn.getLength() - BlockMetadataHeader
 					.getHeaderSize()) / checksum.getChecksumSize();
 
-			//generate checksum, chunk = 1MB = 1 * 2^20 B
-			byte[] buf = new byte[(int) block.getNumBytes()];
-			blockIn = datanode.data.getBlockInputStream(block, 0);
-			blockIn.read(buf);
-			blockIn.close();
-			//Adler32 cs = new Adler32();
-			MessageDigest mdInst = null;
-			try{
-				mdInst = MessageDigest.getInstance("MD5");
-			}catch(NoSuchAlgorithmException e){
-				LOG.warn("no such algorithm : "+e); 
-			}
-
-			List<ChecksumStrongProto> checksums = new LinkedList<ChecksumStrongProto>();
-			
-			class idxCS{
-				public int index;
-				public int checksum;
-				public idxCS pre;
-				public idxCS next;
-				idxCS(int index,int checksum){
-					this.index = index;
-					this.checksum = checksum;
-					this.pre = null;
-					this.next = null;
-				}
-			}
-			
-			//List<StrongChecksum> checksums = new LinkedList<StrongChecksum>();
-			idxCS head = new idxCS(0,Integer.MAX_VALUE);
-			idxCS tail = new idxCS(buf.length,Integer.MAX_VALUE);
-			head.next = tail;
-			tail.pre = head;
-			idxCS cur = head;
-			
-			int preCS = adler32(buf, 0, bytesPerChunk);
-			int cs = nextAdler32(preCS, buf[0], buf[bytesPerChunk], bytesPerChunk);
-			for(int i = 2 ; i < buf.length-bytesPerChunk-bmin ; i++){
-				int nextCS = nextAdler32(cs, buf[i], buf[i+bytesPerChunk], bytesPerChunk);
-				if((cs > preCS)&&(cs > nextCS)){
-					idxCS newNode = new idxCS(i,cs);
-					/*
-					newNode.pre = cur;
-					newNode.next = cur.next;
-					cur.next.pre = newNode;
-					cur.next = newNode;
-					cur = cur.next;
-					*/
-					boolean remove = true;
-					boolean insert = true;
-					cur = tail.pre;
-					while((cur != head)&&(cur != tail)&&(remove == true)){
-						remove = false;
-						if(newNode.index - cur.index < bmin){
-							if(newNode.checksum > cur.checksum){
-								//System.out.println("cur.index "+cur.index+"; cur.checksum "+cur.checksum);
-								cur.pre.next = cur.next;
-								cur.next.pre = cur.pre;
-								cur = cur.pre;
-								remove = true;
-							}else{
-								insert = false;
-								remove = false;
-							}
-						}
-					}
-					
-					if((insert == true)&&(newNode.index < buf.length-bytesPerChunk-bmin)){
-						newNode.pre = tail.pre;
-						newNode.next = tail;
-						tail.pre.next = newNode;
-						tail.pre = newNode;
-					}
-				}
-				preCS = cs;
-				cs = nextCS;
+			// cut the block into content defined chunks while reading it
+			final List<ChecksumStrongProto> checksums;
+			blockIn = dataXceiverServer.rsyncThrottler.throttle(datanode.data
+					.getBlockInputStream(block, 0));
+			try {
+				checksums = new RsyncContentDefinedChunker(bmin, bytesPerChunk,
+						bmax, strongHash).chunk(blockIn, block.getNumBytes());
+			} finally {
+				IOUtils.closeStream(blockIn);
 			}
+			final int index = checksums.size();
+			datanode.metrics.getRsyncMetrics().incrBytesScanned(
+					block.getNumBytes());
 			
-			int offset = 0;
-			int index = 1;
-			idxCS nextOffset = head.next;
-			while(nextOffset != tail){
-				mdInst.update(buf, offset, nextOffset.index-offset);
-				checksums.add(ChecksumStrongProto.newBuilder()
-						.setIndex(index)
-						.setLength(nextOffset.index-offset)
-						.setOffset(offset)
-						.setMd5(ByteString.copyFrom(mdInst.digest()))
-						.build());
-				index++;
-				offset = nextOffset.index;
-				nextOffset = nextOffset.next;
-			}
-			mdInst.update(buf, offset, buf.length-offset);
-			checksums.add(ChecksumStrongProto.newBuilder()
-					.setIndex(index)
-					.setLength(buf.length-offset)
-					.setOffset(offset)
-					.setMd5(ByteString.copyFrom(mdInst.digest()))
-					.build());
-			LOG.warn("checksums size "+checksums.size());
-			for(int i = 0 ; i < checksums.size() ; i++){
-				LOG.warn("Index "+checksums.get(i).getIndex()+
-						" offset "+checksums.get(i).getOffset()+
-						" length "+checksums.get(i).getLength());
-			}
 			// compute block checksum
 			final MD5Hash md5 = MD5Hash.digest(checksumIn);
 
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("block=" + block + ", bytesPerCRC=" + bytesPerCRC
-						+ ", crcPerBlock=" + crcPerBlock + ", md5=" + md5);
+						+ ", crcPerBlock=" + crcPerBlock + ", md5=" + md5
+						+ ", chunks=" + index);
 			}
 			
-			LOG.warn("total length "+metadataIn.getLength());
-			LOG.warn("header length "+BlockMetadataHeader.getHeaderSize());
-			LOG.warn("bytesPerChunk "+bytesPerChunk);
-			
-			// write reply
-			BlockOpResponseProto.newBuilder().setStatus(SUCCESS)
-					.setChunksAdaptiveChecksumResponse(OpChunksAdaptiveChecksumResponseProto
-							.newBuilder().setBytesPerCrc(bytesPerCRC)
-							.setCrcPerBlock(crcPerBlock)
-							.addAllChecksums(checksums)
-							.setMd5(ByteString.copyFrom(md5.getDigest()))
-							.setCrcType(PBHelper.convert(checksum.getChecksumType()))
-							.setChunksInBlock(index)
-							)
-					.build()
-					.writeDelimitedTo(out);
-			out.flush();
+			return OpChunksAdaptiveChecksumResponseProto
+					.newBuilder().setBytesPerCrc(bytesPerCRC)
+					.setCrcPerBlock(crcPerBlock)
+					.addAllChecksums(checksums)
+					.setMd5(ByteString.copyFrom(md5.getDigest()))
+					.setCrcType(PBHelper.convert(checksum.getChecksumType()))
+					.setChunksInBlock(index)
+					.setStrongHash(strongHash)
+					.build();
 		} finally {
-			IOUtils.closeStream(out);
 			IOUtils.closeStream(checksumIn);
 			IOUtils.closeStream(metadataIn);
 			IOUtils.closeStream(blockIn);
 		}
-
-		// update metrics
-		datanode.metrics.addBlockChecksumOp(elapsed());
 	}
 	
 	@Override
 	public void calculateSegments(final ExtendedBlock blk,
 		      final Token<BlockTokenIdentifier> blockToken,
 		      final String clientname,
-		      final List<Integer> simples,
-		      final List<byte[]> md5s,
+		      final String sessionId,
+		      final PackedChecksumsProto checksums,
 		      int bytesPerChunk) throws IOException{
-		LOG.warn("CalculateSegments is called.");
-		LOG.warn("Client name : "+clientname);
-		LOG.warn("Chunk checksum list size : "+simples.size());
-		LOG.warn("BytesPerChunk " + bytesPerChunk);
-		MessageDigest mdInst = null;
-		try{
-			mdInst = MessageDigest.getInstance("MD5");
-		}catch(NoSuchAlgorithmException e){
-			LOG.warn("no such algorithm : "+e); 
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Calculating segments of " + blk + " for " + clientname
+					+ ", session " + sessionId + ", checksums "
+					+ (checksums == null ? "cached" : checksums.getCount()
+							+ " sent") + ", bytesPerChunk " + bytesPerChunk);
 		}
 		final DataOutputStream out = new DataOutputStream(getOutputStream());
+		checkAccess(out, true, blk, blockToken, Op.RSYNC_CALCULATE_SEGMENTS,
+				BlockTokenSecretManager.AccessMode.READ);
+		if (!acquireRsyncQuota(Op.RSYNC_CALCULATE_SEGMENTS, blk, out)) {
+			return;
+		}
 		
-		final LengthInputStream metadataIn = datanode.data
-				.getMetaDataInputStream(blk);
-		final DataInputStream checksumIn = new DataInputStream(
-				new BufferedInputStream(metadataIn,
-						HdfsConstants.IO_FILE_BUFFER_SIZE));
-
-		updateCurrentThreadName("Calculating segments for block " + blk);
+		// the dst file signatures, sent once per session
+		final RsyncChecksumIndex checksumIndex;
 		try {
-			// read metadata file
-			final BlockMetadataHeader header = BlockMetadataHeader
-					.readHeader(checksumIn);
-			final DataChecksum checksum = header.getChecksum();
-			final int bytesPerCRC = checksum.getBytesPerChecksum();
-			final long crcPerBlock = (metadataIn.getLength() - BlockMetadataHeader
-					.getHeaderSize()) / checksum.getChecksumSize();
-			//final int bytesPerChunk = 1024*1024;
-			//final long chunksPerBlock = (datanode.getConf().getLong("dfs.blocksize", 128*1024*1024) - BlockMetadataHeader
-			//		.getHeaderSize() + bytesPerChunk - 1) / bytesPerChunk;
-			
-			//Initialize dst file checksum hashtable
-			class ChecksumPair{
-				public int index;
-				public int simple;
-				public byte[] md5;
-				ChecksumPair(int index,int simple,byte[] md5){
-					this.index = index;
-					this.simple = simple;
-					this.md5 = md5;
-				}
+			checksumIndex = getRsyncChecksumIndex(sessionId, clientname,
+					checksums);
+		} catch (IOException e) {
+			LOG.info("Cannot calculate segments for " + blk + ": " + e);
+			try {
+				writeResponse(ERROR_INVALID, e.getMessage(), out);
+			} finally {
+				IOUtils.closeStream(out);
+				dataXceiverServer.rsyncThrottler.release();
 			}
-			HashMap<Integer,List<ChecksumPair> > checksumMap = new HashMap<Integer,List<ChecksumPair> >();
-			for(int i = 0 ; i < simples.size() ; i++){
-				if(checksumMap.containsKey(simples.get(i))){
-					checksumMap.get(simples.get(i)).add(new ChecksumPair(i,simples.get(i),md5s.get(i)));
-				}else{
-					List<ChecksumPair>  md5 = new LinkedList<ChecksumPair>();
-					md5.add(new ChecksumPair(i,simples.get(i),md5s.get(i)));
-					checksumMap.put(simples.get(i), md5);
-				}
+			return;
+		}
+		
+		updateCurrentThreadName("Calculating segments for block " + blk);
+		try {
+			//read src file block through a sliding window to generate segments info
+			final long blockSize = blk.getNumBytes();
+			final List<SegmentProto> segments;
+			InputStream blockIn = dataXceiverServer.rsyncThrottler
+					.throttle(datanode.data.getBlockInputStream(blk, 0));
+			try {
+				segments = new RsyncSegmentCalculator(checksumIndex, bytesPerChunk)
+						.calculate(blockIn, blockSize);
+			} finally {
+				IOUtils.closeStream(blockIn);
 			}
-
-			//read src file block checksum to generate segments info
-			long blockSize = blk.getNumBytes();
-			LOG.warn("Buffer block size " + blockSize);
-			byte[] buf = new byte[(int) blockSize];
-			InputStream blockIn = datanode.data.getBlockInputStream(blk, 0);
-			blockIn.read(buf);
-			blockIn.close();
-			//Adler32 cs = new Adler32();
 			
-			List<SegmentProto> segments = new LinkedList<SegmentProto>();
-			int startOffset = 0;//上次segment保存的偏移
-			int nowOffset = bytesPerChunk;//目前读到的偏移
-			int simple = adler32(buf,nowOffset-bytesPerChunk,bytesPerChunk);
-			
-			int loopTimes = 0;
-			int loopEnd = (int) blockSize;
-			do{
-				long steps = 0;
-				boolean found = false;
-				if(checksumMap.containsKey(simple)){
-					mdInst.update(buf,nowOffset-bytesPerChunk,bytesPerChunk);
-					byte[] md5 = mdInst.digest();
-					for(ChecksumPair cp : checksumMap.get(simple)){
-						//find a match chunk
-						if(MessageDigest.isEqual(md5, cp.md5)){
-							found = true;
-							if(nowOffset-startOffset > bytesPerChunk){
-								segments.add(SegmentProto
-										.newBuilder()
-										.setOffset(startOffset)
-										.setLength(nowOffset-startOffset-bytesPerChunk)
-										.setIndex(-1)
-										.build());
-							}
-							
-							LOG.warn("found a chunk : index "+cp.index+" offset "+Long.toHexString(nowOffset-bytesPerChunk));
-							segments.add(SegmentProto
-									.newBuilder()
-									.setOffset(nowOffset-bytesPerChunk > 0 ? nowOffset - bytesPerChunk : 0)
-									.setIndex(cp.index)
-									.setLength(bytesPerChunk)
-									.build());
-							startOffset = nowOffset;
-							
-							steps = blockSize - nowOffset > bytesPerChunk ? bytesPerChunk : blockSize - nowOffset;
-							nowOffset += steps;
-							break;
-						}
-					}
-					
-					if(found == false){
-						steps = blockSize - nowOffset > 1 ? 1 : blockSize - nowOffset;
-						nowOffset += steps;
-					}
-				}else{
-					steps = blockSize - nowOffset > 1 ? 1 : blockSize - nowOffset;
-					nowOffset += steps;
+			long matched = 0;
+			for (SegmentProto segment : segments) {
+				if (segment.getIndex() != -1) {
+					matched += segment.getLength();
 				}
-				
-				//simple = adler32(buf,nowOffset-bytesPerChunk,bytesPerChunk);
-				if(found == false)
-					simple = nextAdler32(simple,buf[nowOffset-bytesPerChunk-1],buf[nowOffset-1],bytesPerChunk);
-				else
-					simple = adler32(buf,nowOffset-bytesPerChunk,bytesPerChunk);
-				if(nowOffset%(1024*1024) == 0) LOG.warn("Calculate "+nowOffset+" bytes now.");
-				if(steps < 1) LOG.warn("steps is "+steps+"; nowOffset "+nowOffset+"; startOffset "+startOffset);
-				loopTimes++;
-			}while((nowOffset < blockSize) && (loopTimes < loopEnd));
-			
-			if(nowOffset-startOffset > 0){
-				segments.add(SegmentProto
-						.newBuilder()
-						.setOffset(startOffset)
-						.setLength(nowOffset-startOffset)
-						.setIndex(-1)
-						.build());
 			}
-			
-			// compute block checksum
-			final MD5Hash md5 = MD5Hash.digest(checksumIn);
+			final DataNodeRsyncMetrics rsyncMetrics = datanode.metrics
+					.getRsyncMetrics();
+			rsyncMetrics.incrBytesScanned(blockSize);
+			rsyncMetrics.incrSegmentBytes(matched, blockSize - matched);
 			
 			// write reply
 			BlockOpResponseProto.newBuilder().setStatus(SUCCESS)
 					.setCalculateSegmentsResponse(OpCalculateSegmentsResponseProto
 							.newBuilder().setNumSegments(segments.size())
-							.addAllSegments(segments))
+							.addAllSegments(segments)
+							.setStrongHash(checksumIndex.getStrongHash()))
 					.build()
 					.writeDelimitedTo(out);
 			out.flush();
 		} finally {
 			IOUtils.closeStream(out);
-			IOUtils.closeStream(checksumIn);
-			IOUtils.closeStream(metadataIn);
+			dataXceiverServer.rsyncThrottler.release();
 		}
 
 		// update metrics
-		datanode.metrics.addBlockChecksumOp(elapsed());
+		datanode.metrics.getRsyncMetrics().addCalculateSegmentsOp(elapsed());
+	}
+	
+	/**
+	 * @return the index of the dst file signatures sent, kept for the
+	 *         session of the client if any, or else of those kept for the
+	 *         session of the client.
+	 * @throws IOException if the signatures are malformed or too many, were
+	 *         neither sent nor kept, or the session is another client's.
+	 */
+	private RsyncChecksumIndex getRsyncChecksumIndex(String sessionId,
+			String clientname, PackedChecksumsProto checksums)
+			throws IOException {
+		final RsyncChecksumSessions sessions = dataXceiverServer.rsyncChecksumSessions;
+		if (checksums == null) {
+			final RsyncChecksumIndex index = sessionId == null ? null
+					: sessions.get(sessionId, clientname);
+			if (index == null) {
+				throw new IOException("Unknown rsync session " + sessionId);
+			}
+			return index;
+		}
+		final RsyncChecksums unpacked = RsyncChecksums.fromProto(checksums,
+				dnConf.rsyncMaxChecksums);
+		final RsyncChecksumIndex index = new RsyncChecksumIndex(
+				unpacked.getWeak(), unpacked.getStrong(),
+				unpacked.getStrongLength(), unpacked.getStrongHash());
+		if (sessionId != null && !sessions.put(sessionId, clientname, index)) {
+			throw new IOException("Rsync session " + sessionId
+					+ " belongs to another client than " + clientname);
+		}
+		return index;
 	}
 	
 	@Override
@@ -1176,16 +1158,20 @@ public void sendSegment(final ExtendedBlock blk,
 		      final String segmentName,
 		      final String blockDirName,
 		      final DatanodeInfo[] targets) throws IOException {
-		LOG.warn("sendSegment is called. blk "+blk+
-				",block offset "+Long.toHexString(blockOffset)+
-				",length "+Long.toHexString(length)+";isClient = "+isClient);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("sendSegment is called. blk "+blk+
+					",block offset "+Long.toHexString(blockOffset)+
+					",length "+Long.toHexString(length)+";isClient = "+isClient);
+		}
 		DataOutputStream out = null;
 		Socket sock = null;
 		InputStream blockIn = null;
 		//TODO:try-catch-finally的逻辑还是有问题的，
 		//修改的内容：finally中在出现异常时需要释放的资源统一释放
 		if(isClient){
-			LOG.warn("source datanode");
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("source datanode");
+			}
 			boolean finished = false;
 			for(DatanodeInfo target : targets){
 				try {
@@ -1220,7 +1206,9 @@ public void sendSegment(final ExtendedBlock blk,
 			        out.writeLong(checksum.getValue());
 			        out.write(buffer);
 			        out.flush();
-			        LOG.warn("Sender bytesToRead "+length + "; checksum "+checksum.getValue()+"; bytesRead "+bytesRead);
+			        if (LOG.isDebugEnabled()) {
+			          LOG.debug("Sender bytesToRead "+length + "; checksum "+checksum.getValue()+"; bytesRead "+bytesRead);
+			        }
 			        //response 
 			        final BlockOpResponseProto reply = BlockOpResponseProto
 							.parseFrom(PBHelper.vintPrefixed(in));
@@ -1247,29 +1235,15 @@ public void sendSegment(final ExtendedBlock blk,
 			IOUtils.closeStream(out);
 			if(sock != null)IOUtils.closeSocket(sock);
 		}else{
-			LOG.warn("destination datanode");
-			out = new DataOutputStream(getOutputStream());
-			String dfsDataPath = null;
-			if (System.getProperty("os.name").toUpperCase().indexOf("WINDOWS") != -1){
-				dfsDataPath = "C:/tmp";
-			}else{
-				dfsDataPath = datanode.getConf().get("dfs.datanode.data.dir",null);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("destination datanode");
 			}
-			if(dfsDataPath == null){
-				LOG.warn("dfs.datanode.data.dir is not set");
+			out = new DataOutputStream(getOutputStream());
+			File blockDir = getRsyncBlockDir(datanode.getConf(), blockDirName);
+			if(blockDir == null){
 				return;
 			}
-			
-			File dfsDataRoot = new File(dfsDataPath);
-			if(!dfsDataRoot.exists() || dfsDataRoot.isFile()){
-				LOG.warn("Directory "+dfsDataPath+"does not exist.");
-			}
-			String dfsTmpPath = "/current/rsync_tmp";
-			String blkPath = "/"+blockDirName;//blk.getBlockId()+"_"+blk.getGenerationStamp(); 
-			String segmentPath = "/"+segmentName;
-			
-			File blockDir = new File(dfsDataPath+dfsTmpPath+blkPath);
-			File segmentFile = new File(dfsDataPath+dfsTmpPath+blkPath+segmentPath);
+			File segmentFile = new File(blockDir, segmentName);
 			
 			//如果没有blockDir的文件夹，新建一个，如果之前有写入中断的，可能会留下残缺文件，删除就行了。
 			if(!blockDir.exists()) blockDir.mkdirs();
@@ -1281,7 +1255,9 @@ public void sendSegment(final ExtendedBlock blk,
 			try{
 				long bytesToRead = in.readLong();
 				long checksum = in.readLong();
-				LOG.warn("Receiver bytesToRead "+bytesToRead + "; checksum "+checksum);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Receiver bytesToRead "+bytesToRead + "; checksum "+checksum);
+				}
 				int bytesRead = -1;
 				long bytesSum = 0;
 				byte[] buffer = new byte[1024*1024];
@@ -1289,8 +1265,8 @@ public void sendSegment(final ExtendedBlock blk,
 						((bytesRead = in.read(buffer)) != -1)){
 					bytesSum += bytesRead;
 					outFile.write(buffer,0,bytesRead);
-					if(bytesSum > bytesToRead){
-						LOG.warn("Get more data than expact.");
+					if(bytesSum > bytesToRead && LOG.isDebugEnabled()){
+						LOG.debug("Get more data than expected.");
 					}
 				}
 				outFile.flush();
@@ -1305,6 +1281,646 @@ public void sendSegment(final ExtendedBlock blk,
 			}
 			
 		}
+
+		// update metrics
+		datanode.metrics.getRsyncMetrics().addSendSegmentOp(elapsed());
+	}
+	
+	/**
+	 * @return the writer of the replica of newBlock, which is created with
+	 *         the replica by the first segments received for newBlock,
+	 *         or null to store the segments as segment files
+	 */
+	private RsyncReplicaWriter getRsyncReplicaWriter(ExtendedBlock newBlock)
+			throws IOException {
+		if (newBlock == null || !dnConf.rsyncDirectWriteEnabled) {
+			return null;
+		}
+		synchronized (dataXceiverServer.rsyncReplicaWriters) {
+			RsyncReplicaWriter writer = dataXceiverServer.rsyncReplicaWriters
+					.get(newBlock);
+			if (writer == null) {
+				final ExtendedBlock b = new ExtendedBlock(newBlock);
+				b.setNumBytes(dataXceiverServer.estimateBlockSize);
+				final ReplicaInPipelineInterface replica = datanode.data
+						.createRbw(b);
+				datanode.notifyNamenodeReceivingBlock(b);
+				writer = new RsyncReplicaWriter(b, replica, newRsyncChecksum());
+				dataXceiverServer.rsyncReplicaWriters.put(b, writer);
+			} else if (writer.getBlock().getGenerationStamp() != newBlock
+					.getGenerationStamp()) {
+				throw new IOException("Block " + newBlock
+						+ " is being rebuilt as " + writer.getBlock());
+			}
+			return writer;
+		}
+	}
+	
+	/** @return the checksum of the blocks rebuilt by rsync */
+	private DataChecksum newRsyncChecksum() {
+		return DataChecksum.newDataChecksum(Type.CRC32C, datanode.getConf()
+				.getInt(DFSConfigKeys.DFS_BYTES_PER_CHECKSUM_KEY,
+						DFSConfigKeys.DFS_BYTES_PER_CHECKSUM_DEFAULT));
+	}
+	
+	/** The ranges sent ahead of the acks of the next datanode. */
+	static final int SEND_SEGMENTS_ACK_WINDOW = 64;
+	
+	/** @return the name of the segment file stored at destOffset of a new block */
+	static String getSegmentName(long destOffset, long length) {
+		return String.format("%064d", destOffset) + "_"
+				+ String.format("%064d", length);
+	}
+	
+	/**
+	 * The segment files of a new block are kept under current/rsync_tmp of
+	 * the first data directory until updateBlock assembles them.
+	 * 
+	 * @return the directory of the segment files of a new block,
+	 *         or null if dfs.datanode.data.dir is not set
+	 */
+	static File getRsyncBlockDir(Configuration conf, String blockDirName) {
+		final File tmpDir = getRsyncTmpDir(conf);
+		return tmpDir == null ? null : new File(tmpDir, blockDirName);
+	}
+	
+	/**
+	 * @return the directory of the segment file directories,
+	 *         or null if dfs.datanode.data.dir is not set
+	 */
+	static File getRsyncTmpDir(Configuration conf) {
+		File dfsDataRoot = null;
+		if (System.getProperty("os.name").toUpperCase().indexOf("WINDOWS") != -1){
+			dfsDataRoot = new File("C:/tmp");
+		}else{
+			Collection<URI> dataDirs = DataNode.getStorageDirs(conf);
+			if(dataDirs.isEmpty()){
+				LOG.warn("dfs.datanode.data.dir is not set");
+				return null;
+			}
+			dfsDataRoot = new File(dataDirs.iterator().next());
+		}
+		return new File(dfsDataRoot, "current/rsync_tmp");
+	}
+	
+	@Override
+	public void sendSegments(final ExtendedBlock blk,
+			final Token<BlockTokenIdentifier> blockToken,
+			final String clientname,
+			final List<SegmentRangeProto> ranges,
+			final boolean isClient,
+			final String blockDirName,
+			final DatanodeInfo[] targets,
+			final ExtendedBlock newBlock,
+			final String codecName,
+			final Token<BlockTokenIdentifier> newBlockToken) throws IOException {
+		updateCurrentThreadName("Sending " + ranges.size() + " segments of "
+				+ blk + (isClient ? "" : " to " + blockDirName));
+		final DataOutputStream out = new DataOutputStream(getOutputStream());
+		if (newBlock != null && newBlockToken == null) {
+			// writing newBlock takes a token of its own
+			try {
+				writeResponse(ERROR_ACCESS_TOKEN, "No access token for "
+						+ newBlock, out);
+			} finally {
+				IOUtils.closeStream(out);
+			}
+			return;
+		}
+		// the first target holds blk, no need to send the ranges over the
+		// network
+		final boolean copyLocally = isClient && targets.length > 0
+				&& datanode.getStorageId().equals(targets[0].getStorageID());
+		if (!isClient && newBlock != null) {
+			// a target writes newBlock, blk may be in the cluster of the source
+			checkAccess(out, true, newBlock, newBlockToken,
+					Op.RSYNC_SEND_SEGMENTS, BlockTokenSecretManager.AccessMode.WRITE);
+		} else {
+			checkAccess(out, true, blk, blockToken, Op.RSYNC_SEND_SEGMENTS,
+					BlockTokenSecretManager.AccessMode.READ);
+			if (copyLocally && newBlock != null) {
+				// so does the source copying the ranges locally
+				checkAccess(out, true, newBlock, newBlockToken,
+						Op.RSYNC_SEND_SEGMENTS,
+						BlockTokenSecretManager.AccessMode.WRITE);
+			}
+		}
+		final RsyncSegmentCodec codec = RsyncSegmentCodec.newInstance(
+				datanode.getConf(), codecName);
+		try {
+			if (isClient) {
+				// source datanode, the head of the pipeline; the datanodes
+				// down the pipeline are not counted against their quota, the
+				// op having been let in by the head already
+				if (!acquireRsyncQuota(Op.RSYNC_SEND_SEGMENTS, blk, out)) {
+					return;
+				}
+				String error = null;
+				try {
+					DatanodeInfo[] pipeline = targets;
+					if (copyLocally) {
+						copySegments(blk, ranges, blockDirName, newBlock);
+						pipeline = Arrays.copyOfRange(targets, 1,
+								targets.length);
+					}
+					if (pipeline.length > 0) {
+						sendSegmentsTo(blk, blockToken, clientname, ranges,
+								blockDirName, pipeline, newBlock, codec,
+								newBlockToken);
+					}
+				} catch (IOException ie) {
+					LOG.warn("Failed to send " + ranges.size()
+							+ " segments of " + blk + " to "
+							+ Arrays.asList(targets), ie);
+					error = ie.getMessage();
+				} finally {
+					dataXceiverServer.rsyncThrottler.release();
+				}
+				writeResponse(error == null ? SUCCESS : ERROR, error, out);
+			} else {
+				// destination datanode, targets are the rest of the pipeline
+				receiveSegments(blk, blockToken, clientname, ranges,
+						blockDirName, targets, newBlock, codec, newBlockToken,
+						out);
+			}
+		} finally {
+			if (codec != null) {
+				codec.close();
+			}
+			IOUtils.closeStream(out);
+		}
+
+		// update metrics
+		datanode.metrics.getRsyncMetrics().addSendSegmentsOp(elapsed());
+	}
+	
+	/**
+	 * Send the ranges of blk through the pipeline of targets. The first
+	 * target acks every range once all the targets have stored it; up to
+	 * {@link #SEND_SEGMENTS_ACK_WINDOW} ranges are sent before their acks
+	 * are read. The ranges are framed by codec if it is not null.
+	 */
+	private void sendSegmentsTo(ExtendedBlock blk,
+			Token<BlockTokenIdentifier> blockToken, String clientname,
+			List<SegmentRangeProto> ranges, String blockDirName,
+			DatanodeInfo[] targets, ExtendedBlock newBlock,
+			RsyncSegmentCodec codec, Token<BlockTokenIdentifier> newBlockToken)
+			throws IOException {
+		final SegmentsMirror mirror = new SegmentsMirror(blk, blockToken,
+				clientname, ranges, blockDirName, targets, newBlock, codec,
+				newBlockToken);
+		try {
+			mirror.connect();
+			final byte[] buf = newSegmentBuffer(codec);
+			int acked = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				sendRange(blk, ranges.get(i), buf, codec, mirror.out);
+				if (i - acked >= SEND_SEGMENTS_ACK_WINDOW) {
+					mirror.out.flush();
+					checkSegmentAck(blk, ranges.get(acked++), mirror);
+				}
+			}
+			mirror.out.flush();
+			while (acked < ranges.size()) {
+				checkSegmentAck(blk, ranges.get(acked++), mirror);
+			}
+		} finally {
+			mirror.close();
+		}
+	}
+	
+	/**
+	 * Copy the ranges of the local replica of blk into the replica of the
+	 * new block, or into its segment files with FileChannel#transferTo if
+	 * the replica is a file.
+	 */
+	private void copySegments(ExtendedBlock blk,
+			List<SegmentRangeProto> ranges, String blockDirName,
+			ExtendedBlock newBlock) throws IOException {
+		final RsyncReplicaWriter writer = getRsyncReplicaWriter(newBlock);
+		if (writer != null) {
+			for (SegmentRangeProto range : ranges) {
+				final InputStream blockIn = dataXceiverServer.rsyncThrottler
+						.throttle(datanode.data.getBlockInputStream(blk,
+								range.getOffset()));
+				final RsyncReplicaWriter.SegmentOutputStream segmentOut = writer
+						.newSegment(range.getDestOffset());
+				try {
+					IOUtils.copyBytes(blockIn, segmentOut, range.getLength(),
+							false);
+					segmentOut.close();
+					segmentOut.commit();
+				} finally {
+					IOUtils.closeStream(blockIn);
+				}
+				datanode.metrics.getRsyncMetrics().incrSegmentsSent(
+						range.getLength());
+			}
+			return;
+		}
+		final File blockDir = getRsyncBlockDir(datanode.getConf(),
+				blockDirName);
+		if (blockDir == null) {
+			throw new IOException("dfs.datanode.data.dir is not set");
+		}
+		if (!blockDir.mkdirs() && !blockDir.isDirectory()) {
+			throw new IOException("Failed to create " + blockDir);
+		}
+		for (SegmentRangeProto range : ranges) {
+			final File segmentFile = new File(blockDir, getSegmentName(
+					range.getDestOffset(), range.getLength()));
+			final InputStream blockIn = datanode.data.getBlockInputStream(
+					blk, range.getOffset());
+			final FileOutputStream segmentOut = new FileOutputStream(
+					segmentFile);
+			try {
+				if (blockIn instanceof FileInputStream) {
+					// the stream of a replica file is positioned at the offset
+					final FileChannel channel = ((FileInputStream) blockIn)
+							.getChannel();
+					long position = channel.position();
+					long remaining = range.getLength();
+					while (remaining > 0) {
+						final long n = channel.transferTo(position, remaining,
+								segmentOut.getChannel());
+						if (n <= 0) {
+							throw new EOFException("Premature EOF copying "
+									+ segmentFile + " from " + blk);
+						}
+						position += n;
+						remaining -= n;
+						dataXceiverServer.rsyncThrottler.throttle(n);
+					}
+				} else {
+					IOUtils.copyBytes(dataXceiverServer.rsyncThrottler
+							.throttle(blockIn), segmentOut, range.getLength(),
+							false);
+				}
+			} finally {
+				IOUtils.closeStream(segmentOut);
+				IOUtils.closeStream(blockIn);
+			}
+			datanode.metrics.getRsyncMetrics().incrSegmentsSent(
+					range.getLength());
+		}
+	}
+	
+	/** @return the buffer to send or receive the ranges through */
+	private static byte[] newSegmentBuffer(RsyncSegmentCodec codec) {
+		return new byte[codec == null ? HdfsConstants.IO_FILE_BUFFER_SIZE
+				: RsyncSegmentCodec.FRAME_SIZE];
+	}
+	
+	/**
+	 * Send the data of a range of blk, as is or in frames of codec,
+	 * followed by the Adler-32 of the data.
+	 */
+	private void sendRange(ExtendedBlock blk, SegmentRangeProto range,
+			byte[] buf, RsyncSegmentCodec codec, DataOutputStream out)
+			throws IOException {
+		final InputStream blockIn = datanode.data.getBlockInputStream(blk,
+				range.getOffset());
+		long sent = 0;
+		try {
+			final Adler32 checksum = new Adler32();
+			long remaining = range.getLength();
+			while (remaining > 0) {
+				final int n = (int) Math.min(buf.length, remaining);
+				IOUtils.readFully(blockIn, buf, 0, n);
+				checksum.update(buf, 0, n);
+				final int written;
+				if (codec == null) {
+					out.write(buf, 0, n);
+					written = n;
+				} else {
+					written = codec.writeFrame(buf, 0, n, out);
+				}
+				remaining -= n;
+				sent += written;
+				dataXceiverServer.rsyncThrottler.throttle(written);
+			}
+			out.writeLong(checksum.getValue());
+		} finally {
+			IOUtils.closeStream(blockIn);
+		}
+		datanode.metrics.getRsyncMetrics().incrSegmentsSent(range.getLength());
+		datanode.metrics.getRsyncMetrics().incrBytesSentOnWire(sent);
+	}
+	
+	private static void checkSegmentAck(ExtendedBlock blk,
+			SegmentRangeProto range, SegmentsMirror mirror)
+			throws IOException {
+		final BlockOpResponseProto reply = BlockOpResponseProto
+				.parseFrom(PBHelper.vintPrefixed(mirror.in));
+		if (reply.getStatus() != SUCCESS) {
+			throw new IOException("Bad response " + reply + " for segment ["
+					+ range.getOffset() + ", " + range.getLength() + "] of "
+					+ blk + " from datanode " + mirror.getTarget());
+		}
+	}
+	
+	/**
+	 * Store every range sent upstream as a segment file of the new block
+	 * while forwarding it to the next target, like BlockReceiver mirrors a
+	 * write pipeline. A range is acked upstream once its Adler-32 is
+	 * verified and the downstream targets have acked it; if the mirror
+	 * fails the following acks carry it as firstBadLink. The frames of codec
+	 * are forwarded as received.
+	 */
+	private void receiveSegments(ExtendedBlock blk,
+			Token<BlockTokenIdentifier> blockToken, String clientname,
+			List<SegmentRangeProto> ranges, String blockDirName,
+			DatanodeInfo[] targets, ExtendedBlock newBlock,
+			RsyncSegmentCodec codec, Token<BlockTokenIdentifier> newBlockToken,
+			DataOutputStream out) throws IOException {
+		final RsyncReplicaWriter writer = getRsyncReplicaWriter(newBlock);
+		final File blockDir = getRsyncBlockDir(datanode.getConf(),
+				blockDirName);
+		if (writer == null) {
+			if (blockDir == null) {
+				writeResponse(ERROR, "dfs.datanode.data.dir is not set", out);
+				return;
+			}
+			if (!blockDir.mkdirs() && !blockDir.isDirectory()) {
+				throw new IOException("Failed to create " + blockDir);
+			}
+		}
+		final SegmentsMirror mirror = targets.length == 0 ? null
+				: new SegmentsMirror(blk, blockToken, clientname, ranges,
+						blockDirName, targets, newBlock, codec, newBlockToken);
+		try {
+			if (mirror != null) {
+				try {
+					mirror.connect();
+				} catch (IOException e) {
+					mirror.fail(e);
+				}
+			}
+			final Status[] statuses = new Status[ranges.size()];
+			final byte[] buf = newSegmentBuffer(codec);
+			int acked = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				statuses[i] = receiveRange(blk, ranges.get(i), writer,
+						blockDir, buf, codec, mirror);
+				if (mirror == null || mirror.failed()) {
+					acked = ackSegments(acked, i + 1, statuses, mirror, out);
+				} else if (i - acked >= SEND_SEGMENTS_ACK_WINDOW) {
+					mirror.flush();
+					acked = ackSegments(acked, acked + 1, statuses, mirror, out);
+				}
+			}
+			if (mirror != null) {
+				mirror.flush();
+			}
+			ackSegments(acked, ranges.size(), statuses, mirror, out);
+		} finally {
+			if (mirror != null) {
+				mirror.close();
+			}
+		}
+	}
+	
+	/**
+	 * Receive a range into the replica of the new block if writer is not
+	 * null, or else into its segment file, and forward it to the mirror.
+	 */
+	private Status receiveRange(ExtendedBlock blk, SegmentRangeProto range,
+			RsyncReplicaWriter writer, File blockDir, byte[] buf,
+			RsyncSegmentCodec codec, SegmentsMirror mirror) throws IOException {
+		final File segmentFile = new File(blockDir, getSegmentName(
+				range.getDestOffset(), range.getLength()));
+		final Adler32 checksum = new Adler32();
+		final RsyncReplicaWriter.SegmentOutputStream replicaOut = writer == null ? null
+				: writer.newSegment(range.getDestOffset());
+		final OutputStream segmentOut = replicaOut != null ? replicaOut
+				: new FileOutputStream(segmentFile);
+		try {
+			long remaining = range.getLength();
+			while (remaining > 0) {
+				final int n;
+				final int received;
+				if (codec == null) {
+					n = (int) Math.min(buf.length, remaining);
+					IOUtils.readFully(in, buf, 0, n);
+					if (mirror != null) {
+						mirror.write(buf, 0, n);
+					}
+					received = n;
+				} else {
+					n = codec.readFrame(in, buf);
+					if (n > remaining) {
+						throw new IOException("Frame of " + n + " bytes past"
+								+ " the end of segment [" + range.getDestOffset()
+								+ ", " + range.getLength() + "] of " + blk);
+					}
+					received = codec.getFrameLength();
+					if (mirror != null) {
+						mirror.write(codec.getFrame(), 0, received);
+					}
+				}
+				checksum.update(buf, 0, n);
+				segmentOut.write(buf, 0, n);
+				remaining -= n;
+				dataXceiverServer.rsyncThrottler.throttle(received);
+			}
+		} finally {
+			segmentOut.close();
+		}
+		final long expected = in.readLong();
+		if (mirror != null) {
+			mirror.writeLong(expected);
+		}
+		if (expected != checksum.getValue()) {
+			if (replicaOut != null) {
+				// left uncommitted, the range is a hole in the new block
+				LOG.warn("Checksum error in segment [" + range.getDestOffset()
+						+ ", " + range.getLength() + "] of " + writer.getBlock()
+						+ " from " + blk);
+			} else {
+				LOG.warn("Checksum error in segment " + segmentFile + " of "
+						+ blk);
+				if (!segmentFile.delete()) {
+					LOG.warn("Failed to delete " + segmentFile);
+				}
+			}
+			return Status.ERROR_CHECKSUM;
+		}
+		if (replicaOut != null) {
+			replicaOut.commit();
+		}
+		datanode.metrics.getRsyncMetrics().incrSegmentsReceived(
+				range.getLength());
+		return SUCCESS;
+	}
+	
+	/**
+	 * Ack the ranges [from, to) upstream, each with its own status or the
+	 * failure of the downstream targets.
+	 * 
+	 * @return to
+	 */
+	private static int ackSegments(int from, int to, Status[] statuses,
+			SegmentsMirror mirror, DataOutputStream out) throws IOException {
+		for (int i = from; i < to; i++) {
+			final BlockOpResponseProto.Builder ack = BlockOpResponseProto
+					.newBuilder().setStatus(statuses[i]);
+			if (mirror != null) {
+				final BlockOpResponseProto downstream = mirror.readAck();
+				if (downstream == null) {
+					ack.setStatus(ERROR).setFirstBadLink(
+							mirror.getTarget().getXferAddr());
+				} else if (downstream.getStatus() != SUCCESS) {
+					ack.setStatus(downstream.getStatus());
+					ack.setFirstBadLink(downstream.hasFirstBadLink() ? downstream
+							.getFirstBadLink() : mirror.getTarget().getXferAddr());
+				}
+			}
+			ack.build().writeDelimitedTo(out);
+		}
+		out.flush();
+		return to;
+	}
+	
+	/**
+	 * The connection to the next datanode of a RSYNC_SEND_SEGMENTS pipeline.
+	 * Once it fails, writes are dropped and {@link #readAck()} returns null.
+	 */
+	private class SegmentsMirror {
+		private final ExtendedBlock blk;
+		private final Token<BlockTokenIdentifier> blockToken;
+		private final String clientname;
+		private final List<SegmentRangeProto> ranges;
+		private final String blockDirName;
+		private final DatanodeInfo[] targets;
+		private final ExtendedBlock newBlock;
+		private final RsyncSegmentCodec codec;
+		private final Token<BlockTokenIdentifier> newBlockToken;
+		private Socket sock;
+		private DataOutputStream out;
+		private DataInputStream in;
+		private boolean failed = false;
+
+		SegmentsMirror(ExtendedBlock blk,
+				Token<BlockTokenIdentifier> blockToken, String clientname,
+				List<SegmentRangeProto> ranges, String blockDirName,
+				DatanodeInfo[] targets, ExtendedBlock newBlock,
+				RsyncSegmentCodec codec,
+				Token<BlockTokenIdentifier> newBlockToken) {
+			this.blk = blk;
+			this.blockToken = blockToken;
+			this.clientname = clientname;
+			this.ranges = ranges;
+			this.blockDirName = blockDirName;
+			this.targets = targets;
+			this.newBlock = newBlock;
+			this.codec = codec;
+			this.newBlockToken = newBlockToken;
+		}
+
+		DatanodeInfo getTarget() {
+			return targets[0];
+		}
+
+		/** Connect to the first target and pass it the rest of the pipeline. */
+		void connect() throws IOException {
+			final String dnAddr = getTarget().getXferAddr(connectToDnViaHostname);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Connecting to datanode " + dnAddr);
+			}
+			sock = datanode.newSocket();
+			NetUtils.connect(sock, NetUtils.createSocketAddr(dnAddr),
+					dnConf.socketTimeout);
+			sock.setSoTimeout(targets.length * dnConf.socketTimeout);
+			final long writeTimeout = dnConf.socketWriteTimeout
+					+ HdfsServerConstants.WRITE_TIMEOUT_EXTENSION
+					* (targets.length - 1);
+			OutputStream unbufOut = NetUtils.getOutputStream(sock, writeTimeout);
+			InputStream unbufIn = NetUtils.getInputStream(sock);
+			if (dnConf.encryptDataTransfer) {
+				// the targets write newBlock, which may be in another cluster
+				final String bpid = newBlock != null ? newBlock.getBlockPoolId()
+						: blk.getBlockPoolId();
+				if (!datanode.blockPoolTokenSecretManager
+						.isBlockPoolRegistered(bpid)) {
+					throw new IOException("Cannot encrypt the segments of " + blk
+							+ " to " + dnAddr + ": block pool " + bpid
+							+ " is in another cluster");
+				}
+				IOStreamPair encryptedStreams = DataTransferEncryptor
+						.getEncryptedStreams(unbufOut, unbufIn,
+								datanode.blockPoolTokenSecretManager
+										.generateDataEncryptionKey(bpid));
+				unbufOut = encryptedStreams.out;
+				unbufIn = encryptedStreams.in;
+			}
+			out = new DataOutputStream(new BufferedOutputStream(unbufOut,
+					HdfsConstants.SMALL_BUFFER_SIZE));
+			in = new DataInputStream(unbufIn);
+			new Sender(out).sendSegments(blk, blockToken, clientname, ranges,
+					false, blockDirName,
+					Arrays.copyOfRange(targets, 1, targets.length), newBlock,
+					codec == null ? null : codec.getName(), newBlockToken);
+		}
+
+		boolean failed() {
+			return failed;
+		}
+
+		void fail(IOException e) {
+			LOG.warn("Failed to mirror segments of " + blk + " to "
+					+ getTarget(), e);
+			failed = true;
+			close();
+		}
+
+		void write(byte[] b, int off, int len) {
+			if (!failed) {
+				try {
+					out.write(b, off, len);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		void writeLong(long v) {
+			if (!failed) {
+				try {
+					out.writeLong(v);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		void flush() {
+			if (!failed) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		/** @return the next ack of the downstream targets, or null if failed */
+		BlockOpResponseProto readAck() {
+			if (!failed) {
+				try {
+					return BlockOpResponseProto.parseFrom(PBHelper
+							.vintPrefixed(in));
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+			return null;
+		}
+
+		void close() {
+			IOUtils.closeStream(in);
+			IOUtils.closeStream(out);
+			IOUtils.closeSocket(sock);
+		}
 	}
 	
 	@Override
@@ -1327,11 +1943,19 @@ public void blockChecksum(final ExtendedBlock block,
 					.readHeader(checksumIn);
 			final DataChecksum checksum = header.getChecksum();
 			final int bytesPerCRC = checksum.getBytesPerChecksum();
-			final long crcPerBlock = (metadataIn.getLength() - BlockMetadataHeader
+			long crcPerBlock = (metadataIn.getLength() - BlockMetadataHeader
 					.getHeaderSize()) / checksum.getChecksumSize();
 
-			// compute block checksum
-			final MD5Hash md5 = MD5Hash.digest(checksumIn);
+			// compute block checksum, of the first block.getNumBytes() bytes
+			// only if the replica is longer
+			final long requestLength = block.getNumBytes();
+			final MD5Hash md5;
+			if (requestLength < datanode.data.getReplicaVisibleLength(block)) {
+				md5 = digestPrefix(block, checksum, checksumIn, requestLength);
+				crcPerBlock = (requestLength + bytesPerCRC - 1) / bytesPerCRC;
+			} else {
+				md5 = MD5Hash.digest(checksumIn);
+			}
 
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("block=" + block + ", bytesPerCRC=" + bytesPerCRC
@@ -1362,20 +1986,91 @@ public void blockChecksum(final ExtendedBlock block,
 		// update metrics
 		datanode.metrics.addBlockChecksumOp(elapsed());
 	}
+	
+	/**
+	 * Digest the checksums of the first length bytes of a replica as the
+	 * meta file of a replica of that length would hold them: the CRCs of the
+	 * whole chunks, read from the meta file, then the CRC of the partial last
+	 * chunk, computed from the data. The MD5 matches that of a replica whose
+	 * data is the prefix, e.g. the replica a file was appended after.
+	 */
+	private MD5Hash digestPrefix(ExtendedBlock block, DataChecksum checksum,
+			DataInputStream checksumIn, long length) throws IOException {
+		final int bytesPerCRC = checksum.getBytesPerChecksum();
+		final int checksumSize = checksum.getChecksumSize();
+		final long wholeChunks = length / bytesPerCRC;
+		final int partialLength = (int) (length % bytesPerCRC);
+		final MessageDigest digester = MD5Hash.getDigester();
+
+		final byte[] buf = new byte[HdfsConstants.IO_FILE_BUFFER_SIZE];
+		long remaining = wholeChunks * checksumSize;
+		while (remaining > 0) {
+			final int n = (int) Math.min(buf.length, remaining);
+			IOUtils.readFully(checksumIn, buf, 0, n);
+			digester.update(buf, 0, n);
+			remaining -= n;
+		}
+		if (partialLength > 0 && checksumSize > 0) {
+			final byte[] data = new byte[partialLength];
+			final InputStream blockIn = datanode.data.getBlockInputStream(
+					block, wholeChunks * bytesPerCRC);
+			try {
+				IOUtils.readFully(blockIn, data, 0, partialLength);
+			} finally {
+				IOUtils.closeStream(blockIn);
+			}
+			checksum.reset();
+			checksum.update(data, 0, partialLength);
+			final byte[] crc = new byte[checksumSize];
+			checksum.writeValue(crc, 0, true);
+			digester.update(crc);
+		}
+		return new MD5Hash(digester.digest());
+	}
 
 	@Override
 	public void updateBlock(final ExtendedBlock block,
 			final Token<BlockTokenIdentifier> blockToken) throws IOException {
-		LOG.warn("updateBlock start.");
 		final DataOutputStream out = new DataOutputStream(getOutputStream());
 		checkAccess(out, true, block, blockToken, Op.RSYNC_UPDATE_BLOCK,
 				BlockTokenSecretManager.AccessMode.WRITE);
 		
+		final RsyncReplicaWriter writer;
+		synchronized (dataXceiverServer.rsyncReplicaWriters) {
+			writer = dataXceiverServer.rsyncReplicaWriters.remove(block);
+		}
+		if (writer != null) {
+			// the segments are in the replica already
+			final long blockLength;
+			boolean finalized = false;
+			try {
+				blockLength = writer.finalizeReplica();
+				block.setNumBytes(blockLength);
+				datanode.data.finalizeBlock(block);
+				finalized = true;
+			} catch (IOException e) {
+				LOG.warn("Failed to finalize " + block, e);
+				writeResponse(ERROR, e.getMessage(), out);
+				return;
+			} finally {
+				if (!finalized) {
+					// the replica files are closed by finalizeReplica; drop
+					// the unfinished replica as the repair path does
+					RsyncBlockRepairer.deleteReplica(datanode, block);
+				}
+			}
+			datanode.closeBlock(block, DataNode.EMPTY_DEL_HINT);
+			writeResponse(SUCCESS, null, out);
+			datanode.metrics.incrBytesWritten((int) blockLength);
+			datanode.metrics.getRsyncMetrics().incrBlocksUpdated();
+			datanode.metrics.getRsyncMetrics().addUpdateBlockOp(elapsed());
+			return;
+		}
+		
 		//如果isCreate为false的话，需要检查已存在的block的信息是否完整，所以应当置为true，同时如果原block存在的话，应当删除
 		//如果requestedChecksum
 		boolean isCreate = true;
-		int bytesPerChecksum = Integer.parseInt(datanode.getConf().get("dfs.bytes-per-checksum","512"));
-		DataChecksum requestedChecksum = DataChecksum.newDataChecksum(Type.CRC32C, bytesPerChecksum);
+		DataChecksum requestedChecksum = newRsyncChecksum();
 		
 		block.setNumBytes(dataXceiverServer.estimateBlockSize);
 		
@@ -1387,25 +2082,15 @@ public void updateBlock(final ExtendedBlock block,
 		OutputStream dout = streams.getDataOut();
 		
 		//get segments file path
-		String dfsDataPath = null;
-		if (System.getProperty("os.name").toUpperCase().indexOf("WINDOWS") != -1){
-			dfsDataPath = "C:/tmp";
-		}else{
-			dfsDataPath = datanode.getConf().get("dfs.datanode.data.dir",null);
-		}
-		
-		if(dfsDataPath == null){
-			LOG.warn("dfs.datanode.data.dir is not set");
+		File blockDir = getRsyncBlockDir(datanode.getConf(),
+				block.getBlockId()+"_"+block.getGenerationStamp());
+		if(blockDir == null){
 			return;
 		}
-		
-		String dfsTmpPath = "/current/rsync_tmp";
-		String blkPath = "/"+block.getBlockId()+"_"+block.getGenerationStamp();
-		File blockDir = new File(dfsDataPath+dfsTmpPath+blkPath);
 
 		String[] segmentFiles = blockDir.list();
 		if(segmentFiles == null){
-			LOG.warn(dfsDataPath+dfsTmpPath+blkPath+"is not exist or has no files.");
+			LOG.warn(blockDir+" is not exist or has no files.");
 			writeResponse(Status.ERROR_EXISTS,null,out);
 			out.close();
 			return;
@@ -1433,61 +2118,25 @@ public void updateBlock(final ExtendedBlock block,
 		OutputStream cout = new FileOutputStream(fBlockMetaFile);
 		*/
 		DataOutputStream checksumOut = new DataOutputStream(new BufferedOutputStream(cout,HdfsConstants.SMALL_BUFFER_SIZE));
-		
-		ByteBuffer dataBuf = ByteBuffer.allocate(1024*bytesPerChecksum);
-		ByteBuffer checksumBuf = ByteBuffer.allocate(1024*requestedChecksum.getChecksumSize());
-		
 		BlockMetadataHeader.writeHeader(checksumOut, requestedChecksum);
-		long blockLength = 0;
-		long startOffset = 0;
 		byte[] lastChecksum = new byte[requestedChecksum.getChecksumSize()];
-		for(String segmentFile : segmentFiles){
-			File segment = new File(dfsDataPath+dfsTmpPath+blkPath+"/"+segmentFile);
-			LOG.warn("Read segment "+segment.getName());
-			long bytesLeft = segment.length();
-			FileInputStream segmentIn = new FileInputStream(segment);
-			do{
-				long bytesToRead = bytesLeft > dataBuf.capacity() - startOffset ? dataBuf.capacity() - startOffset : bytesLeft;
-				LOG.warn("Read "+bytesToRead+" bytes.");
-				segmentIn.read(dataBuf.array(), (int)startOffset, (int)bytesToRead);
-				startOffset += bytesToRead;
-				bytesLeft -= bytesToRead;
-				if(startOffset == dataBuf.capacity()){//data full, need write to file
-					requestedChecksum.calculateChunkedSums(dataBuf, checksumBuf);
-					int offset = checksumBuf.capacity()-requestedChecksum.getChecksumSize();
-					int length = requestedChecksum.getChecksumSize();
-					LOG.warn("lastChecksum offset "+offset+" length "+length);
-					System.arraycopy(checksumBuf.array(), offset, lastChecksum, 0, length);
-					dout.write(dataBuf.array());
-					checksumOut.write(checksumBuf.array());
-					startOffset = 0;
-					blockLength += dataBuf.capacity();
-				}
-			}while(bytesLeft > 0);
-			segmentIn.close();
+		long blockLength;
+		try {
+			blockLength = assembleSegments(blockDir, segmentFiles, dout,
+					checksumOut, requestedChecksum, lastChecksum,
+					dataXceiverServer.rsyncThrottler);
+			dout.close();
+			checksumOut.close();
+		} finally {
+			IOUtils.closeStream(dout);
+			IOUtils.closeStream(checksumOut);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Assembled " + block + " of " + blockLength + " bytes");
+		}
+		if (!FileUtil.fullyDelete(blockDir)) {
+			LOG.warn("Failed to delete " + blockDir);
 		}
-		
-		if(startOffset > 0){
-			blockLength += startOffset;
-			ByteBuffer leftData = ByteBuffer.allocate((int)startOffset);
-			dataBuf.get(leftData.array(), 0, (int)startOffset);
-			requestedChecksum.calculateChunkedSums(leftData, checksumBuf);
-			dout.write(leftData.array());
-			cout.write(checksumBuf.array(),0,
-					(int)(startOffset+bytesPerChecksum-1)/bytesPerChecksum*requestedChecksum.getChecksumSize());
-			
-			int offset = (int)(startOffset+bytesPerChecksum-1)/
-					bytesPerChecksum*requestedChecksum.getChecksumSize()-
-					requestedChecksum.getChecksumSize();
-			int length = requestedChecksum.getChecksumSize();
-			LOG.warn("lastChecksum offset "+offset+" length "+length);
-			System.arraycopy(checksumBuf.array(), offset, lastChecksum, 0, length);
-		}
-		dout.flush();
-		dout.close();
-		checksumOut.flush();
-		checksumOut.close();
-		LOG.warn("block length is "+blockLength);
 		replicaInfo.setNumBytes(blockLength);
 		replicaInfo.setBytesAcked(blockLength);
 		replicaInfo.setLastChecksumAndDataLen(blockLength, lastChecksum);
@@ -1500,9 +2149,125 @@ public void updateBlock(final ExtendedBlock block,
 		writeResponse(Status.SUCCESS,null,out);
 		
 		datanode.metrics.incrBytesWritten((int)blockLength);
-		datanode.metrics.addBlockChecksumOp(elapsed());
+		datanode.metrics.getRsyncMetrics().incrBlocksUpdated();
+		datanode.metrics.getRsyncMetrics().addUpdateBlockOp(elapsed());
 	}
 	
+	/** The chunks of data assembled, checksummed and written at a time. */
+	static final int ASSEMBLE_CHUNKS = 1024;
+	
+	/**
+	 * Concatenate the segment files into the data file of a replica and
+	 * write their checksums to its meta file. Every segment is read once
+	 * into a buffer of whole chunks, checksummed in place and written from
+	 * the same buffer; the checksums of a buffer are written in one batch.
+	 * 
+	 * @param lastChecksum set to the checksum of the last chunk
+	 * @param throttler throttled for the data written
+	 * @return the length of the block
+	 */
+	private static long assembleSegments(File blockDir, String[] segmentFiles,
+			OutputStream dout, OutputStream cout, DataChecksum checksum,
+			byte[] lastChecksum, DataXceiverServer.RsyncThrottler throttler)
+			throws IOException {
+		final ByteBuffer dataBuf = ByteBuffer.allocate(ASSEMBLE_CHUNKS
+				* checksum.getBytesPerChecksum());
+		final ByteBuffer checksumBuf = ByteBuffer.allocate(ASSEMBLE_CHUNKS
+				* checksum.getChecksumSize());
+		long blockLength = 0;
+		for (String segmentFile : segmentFiles) {
+			final FileInputStream segmentIn = new FileInputStream(new File(
+					blockDir, segmentFile));
+			try {
+				final FileChannel channel = segmentIn.getChannel();
+				do {
+					if (!dataBuf.hasRemaining()) {
+						final int n = writeChunks(dataBuf, checksumBuf,
+								checksum, dout, cout, lastChecksum);
+						throttler.throttle(n);
+						blockLength += n;
+					}
+				} while (channel.read(dataBuf) >= 0);
+			} finally {
+				segmentIn.close();
+			}
+		}
+		if (dataBuf.position() > 0) {
+			blockLength += writeChunks(dataBuf, checksumBuf, checksum, dout,
+					cout, lastChecksum);
+		}
+		return blockLength;
+	}
+	
+	/**
+	 * Write the buffered data and its checksums, then clear the buffer.
+	 * 
+	 * @return the number of bytes written to dout
+	 */
+	private static int writeChunks(ByteBuffer dataBuf, ByteBuffer checksumBuf,
+			DataChecksum checksum, OutputStream dout, OutputStream cout,
+			byte[] lastChecksum) throws IOException {
+		dataBuf.flip();
+		final int length = dataBuf.remaining();
+		final int checksumSize = checksum.getChecksumSize();
+		final int checksumsLength = (length + checksum.getBytesPerChecksum() - 1)
+				/ checksum.getBytesPerChecksum() * checksumSize;
+		checksum.calculateChunkedSums(dataBuf, checksumBuf);
+		dout.write(dataBuf.array(), 0, length);
+		cout.write(checksumBuf.array(), 0, checksumsLength);
+		System.arraycopy(checksumBuf.array(), checksumsLength - checksumSize,
+				lastChecksum, 0, checksumSize);
+		dataBuf.clear();
+		return length;
+	}
+	
+	@Override
+	public void repairBlock(final ExtendedBlock block,
+			final Token<BlockTokenIdentifier> blockToken,
+			final DatanodeInfo source,
+			final int bytesPerChunk) throws IOException {
+		updateCurrentThreadName("Repairing block " + block + " from " + source);
+		final DataOutputStream out = new DataOutputStream(getOutputStream());
+		checkAccess(out, true, block, blockToken, Op.RSYNC_REPAIR_BLOCK,
+				BlockTokenSecretManager.AccessMode.WRITE);
+		try {
+			if (datanode.data.getReplica(block.getBlockPoolId(),
+					block.getBlockId()) == null) {
+				// nothing to repair, the source transfers the block instead
+				writeResponse(ERROR_INVALID,
+						ReplicaNotFoundException.NON_EXISTENT_REPLICA + block, out);
+				return;
+			}
+			if (!dnConf.rsyncRepairEnabled || !dnConf.rsyncDirectWriteEnabled) {
+				// the replica would block a transfer as well: drop it so that
+				// the NameNode replicates the block elsewhere at once
+				final String msg = "Rsync repair is disabled on "
+						+ datanode.getDisplayName() + ", deleted the replica of "
+						+ block;
+				LOG.info(msg);
+				RsyncBlockRepairer.deleteReplica(datanode, block);
+				writeResponse(ERROR_UNSUPPORTED, msg, out);
+				return;
+			}
+			// accept the repair: the source no longer transfers the block
+			writeResponse(SUCCESS, null, out);
+			try {
+				new RsyncBlockRepairer(datanode, dataXceiverServer, block,
+						source, bytesPerChunk, newRsyncChecksum()).repair();
+			} catch (IOException e) {
+				LOG.warn("Failed to repair " + block + " from " + source, e);
+				writeResponse(ERROR, e.getMessage(), out);
+				return;
+			}
+			writeResponse(SUCCESS, null, out);
+		} finally {
+			IOUtils.closeStream(out);
+		}
+
+		// update metrics
+		datanode.metrics.getRsyncMetrics().addRepairBlockOp(elapsed());
+	}
+
 	@Override
 	public void copyBlock(final ExtendedBlock block,
 			final Token<BlockTokenIdentifier> blockToken) throws IOException {
@@ -1725,6 +2490,37 @@ private long elapsed() {
 		return now() - opStartTime;
 	}
 
+	/**
+	 * Wait for the rsync op quota of the datanode, for up to half of the
+	 * socket timeout so that the client gets the reply in time, or else
+	 * reply an error and close out.
+	 * 
+	 * @return whether the op can start; if so, the quota is released by the
+	 *         op when done
+	 */
+	private boolean acquireRsyncQuota(Op op, ExtendedBlock block,
+			DataOutputStream out) throws IOException {
+		try {
+			if (dataXceiverServer.rsyncThrottler
+					.acquire(dnConf.socketTimeout / 2)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			IOUtils.closeStream(out);
+			throw new InterruptedIOException("Interrupted waiting to run "
+					+ op + " for " + block);
+		}
+		final String msg = "Not able to run " + op + " for " + block
+				+ " because the rsync ops quota is exceeded.";
+		LOG.info(msg);
+		try {
+			writeResponse(ERROR, msg, out);
+		} finally {
+			IOUtils.closeStream(out);
+		}
+		return false;
+	}
+
 	/**
 	 * Utility function for sending a response.
 	 * 
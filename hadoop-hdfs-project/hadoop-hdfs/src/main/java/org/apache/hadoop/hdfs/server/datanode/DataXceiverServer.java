@@ -17,10 +17,14 @@
  */
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.nio.channels.AsynchronousCloseException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -28,10 +32,12 @@
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.net.Peer;
 import org.apache.hadoop.hdfs.net.PeerServer;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.server.balancer.Balancer;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Daemon;
+import org.apache.hadoop.util.Time;
 
 
 /**
@@ -93,6 +99,94 @@ synchronized void release() {
   }
 
   BlockBalanceThrottler balanceThrottler;
+
+  /**
+   * Keeps the rsync ops from taking the disks and the network away from the
+   * reads and writes of the clients.
+   *
+   * It limits the number of rsync ops scanning or sending blocks at a time,
+   * and the total bandwidth of the block data the rsync ops read, send,
+   * receive and assemble. Either limit is off when not positive.
+   */
+  static class RsyncThrottler {
+    private final int maxOps;
+    private int numOps;
+    /** null if the bandwidth is not limited */
+    private final DataTransferThrottler throttler;
+
+    RsyncThrottler(int maxOps, long bandwidth) {
+      this.maxOps = maxOps;
+      this.throttler = bandwidth > 0 ? new DataTransferThrottler(bandwidth)
+          : null;
+      if (maxOps > 0 || bandwidth > 0) {
+        LOG.info("Rsync ops are limited to " + maxOps + " at a time and "
+            + bandwidth + " bytes/s");
+      }
+    }
+
+    /**
+     * Wait until an rsync op can start.
+     *
+     * @return true if the op quota is not exceeded within timeout ms and the
+     *         counter is incremented; false otherwise.
+     */
+    synchronized boolean acquire(long timeout) throws InterruptedException {
+      if (maxOps > 0) {
+        final long end = Time.monotonicNow() + timeout;
+        for (long now = Time.monotonicNow(); numOps >= maxOps;
+            now = Time.monotonicNow()) {
+          if (now >= end) {
+            return false;
+          }
+          wait(end - now);
+        }
+      }
+      numOps++;
+      return true;
+    }
+
+    /** Mark that the op is completed. The counter is decremented. */
+    synchronized void release() {
+      numOps--;
+      notify();
+    }
+
+    /** Count block data read or sent, sleeping if it is too fast. */
+    void throttle(long numOfBytes) {
+      if (throttler != null) {
+        throttler.throttle(numOfBytes);
+      }
+    }
+
+    /** @return in, throttled for the bytes read from it */
+    InputStream throttle(InputStream in) {
+      if (throttler == null) {
+        return in;
+      }
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          final int b = super.read();
+          if (b >= 0) {
+            throttler.throttle(1);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          final int n = super.read(b, off, len);
+          // -1 at the end of the stream is not a byte read
+          if (n > 0) {
+            throttler.throttle(n);
+          }
+          return n;
+        }
+      };
+    }
+  }
+
+  final RsyncThrottler rsyncThrottler;
   
   /**
    * We need an estimate for block size to check if the disk partition has
@@ -104,6 +198,16 @@ synchronized void release() {
    */
   long estimateBlockSize;
   
+  /**
+   * The blocks being rebuilt by rsync straight into their replicas, from
+   * their first segment received until RSYNC_UPDATE_BLOCK.
+   */
+  final Map<ExtendedBlock, RsyncReplicaWriter> rsyncReplicaWriters =
+      new HashMap<ExtendedBlock, RsyncReplicaWriter>();
+
+  /** The destination signatures of the rsync sessions. */
+  final RsyncChecksumSessions rsyncChecksumSessions;
+  
   
   DataXceiverServer(PeerServer peerServer, Configuration conf,
       DataNode datanode) {
@@ -122,6 +226,18 @@ synchronized void release() {
     this.balanceThrottler = new BlockBalanceThrottler(
       conf.getLong(DFSConfigKeys.DFS_DATANODE_BALANCE_BANDWIDTHPERSEC_KEY, 
                    DFSConfigKeys.DFS_DATANODE_BALANCE_BANDWIDTHPERSEC_DEFAULT));
+
+    this.rsyncChecksumSessions = new RsyncChecksumSessions(
+        conf.getInt(DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_MAX_KEY,
+            DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_MAX_DEFAULT),
+        conf.getLong(
+            DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_EXPIRY_MS_KEY,
+            DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUM_SESSIONS_EXPIRY_MS_DEFAULT));
+    this.rsyncThrottler = new RsyncThrottler(
+        conf.getInt(DFSConfigKeys.DFS_DATANODE_RSYNC_MAX_CONCURRENT_OPS_KEY,
+            DFSConfigKeys.DFS_DATANODE_RSYNC_MAX_CONCURRENT_OPS_DEFAULT),
+        conf.getLong(DFSConfigKeys.DFS_DATANODE_RSYNC_BANDWIDTHPERSEC_KEY,
+            DFSConfigKeys.DFS_DATANODE_RSYNC_BANDWIDTHPERSEC_DEFAULT));
   }
 
   @Override
@@ -0,0 +1,377 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.protocol.datatransfer.DataTransferEncryptor;
+import org.apache.hadoop.hdfs.protocol.datatransfer.IOStreamPair;
+import org.apache.hadoop.hdfs.protocol.datatransfer.RsyncChecksums;
+import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.hdfs.protocolPB.PBHelper;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenSecretManager;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.ReplicaState;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.RollingAdler32;
+
+/**
+ * Repairs the corrupt or stale replica of a block on this DataNode from a
+ * healthy replica on a source DataNode, so that only the chunks that differ
+ * cross the network.
+ *
+ * The chunk signatures of the local replica are computed from its data
+ * rather than from its meta file, which may be the damaged part, and the
+ * source calculates the segments of the healthy block against them with
+ * RSYNC_CALCULATE_SEGMENTS. The replica is then reopened with the
+ * generation stamp of the healthy block and rebuilt in place: the chunks
+ * matched at their own offset are kept, and the source sends the other
+ * ranges straight into the replica being written with RSYNC_SEND_SEGMENTS.
+ * A replica that cannot be repaired, or is left half rebuilt, is deleted,
+ * so that the NameNode replicates the block to another DataNode instead.
+ */
+class RsyncBlockRepairer {
+  static final Log LOG = DataNode.LOG;
+
+  private final DataNode datanode;
+  private final DataXceiverServer xceiverServer;
+  private final DNConf dnConf;
+  /** The healthy block, with its generation stamp and length. */
+  private final ExtendedBlock block;
+  private final DatanodeInfo source;
+  private final int bytesPerChunk;
+  private final DataChecksum checksum;
+
+  /**
+   * @param checksum the checksum of the repaired replica
+   */
+  RsyncBlockRepairer(DataNode datanode, DataXceiverServer xceiverServer,
+      ExtendedBlock block, DatanodeInfo source, int bytesPerChunk,
+      DataChecksum checksum) {
+    if (bytesPerChunk <= 0) {
+      throw new IllegalArgumentException("bytesPerChunk = " + bytesPerChunk
+          + " <= 0");
+    }
+    this.datanode = datanode;
+    this.xceiverServer = xceiverServer;
+    this.dnConf = datanode.getDnConf();
+    this.block = block;
+    this.source = source;
+    this.bytesPerChunk = bytesPerChunk;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Repair the local replica, finalize it and report it to the NameNode.
+   *
+   * @return the bytes of the block pulled from the source
+   * @throws ReplicaNotFoundException if there is no local replica of the
+   *         block, nothing is changed then
+   * @throws IOException if the replica is not repaired
+   */
+  long repair() throws IOException {
+    final String bpid = block.getBlockPoolId();
+    final Replica replica = datanode.data.getReplica(bpid,
+        block.getBlockId());
+    if (replica == null) {
+      throw new ReplicaNotFoundException(
+          ReplicaNotFoundException.NON_EXISTENT_REPLICA + block);
+    }
+    final ExtendedBlock local = new ExtendedBlock(bpid,
+        replica.getBlockId(), replica.getNumBytes(),
+        replica.getGenerationStamp());
+    if (replica.getState() != ReplicaState.FINALIZED
+        || replica.getGenerationStamp() > block.getGenerationStamp()) {
+      deleteReplica(datanode, block);
+      throw new IOException("Cannot repair " + replica + " from " + block
+          + ", deleted it");
+    }
+
+    // plan the repair before touching the replica
+    final List<SegmentProto> segments;
+    try {
+      segments = calculateSegments(local);
+    } catch (IOException e) {
+      deleteReplica(datanode, block);
+      throw new IOException("Failed to compare " + local + " with " + block
+          + " on " + source + ", deleted it", e);
+    }
+    final List<SegmentRangeProto> kept = new ArrayList<SegmentRangeProto>();
+    final List<SegmentRangeProto> literals = new ArrayList<SegmentRangeProto>();
+    long bytesPulled = 0;
+    for (SegmentProto segment : segments) {
+      if (segment.getIndex() != -1
+          && segment.getIndex() * bytesPerChunk == segment.getOffset()) {
+        addRange(kept, segment);
+      } else {
+        // chunks matched elsewhere are pulled too, the replica being
+        // rebuilt in place
+        addRange(literals, segment);
+        bytesPulled += segment.getLength();
+      }
+    }
+
+    final ExtendedBlock newBlock = new ExtendedBlock(block);
+    final ReplicaInPipelineInterface rbw;
+    try {
+      rbw = datanode.data.append(local, block.getGenerationStamp(),
+          local.getNumBytes());
+    } catch (IOException e) {
+      deleteReplica(datanode, block);
+      throw new IOException("Failed to reopen " + local + ", deleted it", e);
+    }
+    RsyncReplicaWriter writer = null;
+    boolean repaired = false;
+    try {
+      writer = new RsyncReplicaWriter(newBlock, rbw, checksum);
+      synchronized (xceiverServer.rsyncReplicaWriters) {
+        if (xceiverServer.rsyncReplicaWriters.containsKey(newBlock)) {
+          throw new IOException("Block " + newBlock + " is being rebuilt");
+        }
+        xceiverServer.rsyncReplicaWriters.put(newBlock, writer);
+      }
+      for (SegmentRangeProto range : kept) {
+        writer.keep(range.getOffset(), range.getOffset() + range.getLength());
+      }
+      if (!literals.isEmpty()) {
+        sendSegments(literals, newBlock);
+      }
+
+      synchronized (xceiverServer.rsyncReplicaWriters) {
+        xceiverServer.rsyncReplicaWriters.remove(newBlock);
+      }
+      final long length = writer.finalizeReplica();
+      writer = null;
+      if (length != block.getNumBytes()) {
+        throw new IOException("Repaired " + newBlock + " to " + length
+            + " bytes, expected " + block.getNumBytes());
+      }
+      newBlock.setNumBytes(length);
+      datanode.data.finalizeBlock(newBlock);
+      repaired = true;
+    } finally {
+      if (writer != null) {
+        synchronized (xceiverServer.rsyncReplicaWriters) {
+          xceiverServer.rsyncReplicaWriters.remove(newBlock);
+        }
+        writer.close();
+      }
+      if (!repaired) {
+        deleteReplica(datanode, block);
+      }
+    }
+    datanode.closeBlock(newBlock, DataNode.EMPTY_DEL_HINT);
+    datanode.metrics.incrBytesWritten((int) bytesPulled);
+    datanode.metrics.getRsyncMetrics().incrBlocksRepaired(bytesPulled);
+    LOG.info("Repaired " + local + " as " + newBlock + " from " + source
+        + ", pulled " + bytesPulled + " bytes in " + literals.size()
+        + " ranges");
+    return bytesPulled;
+  }
+
+  /** Add a segment to ranges, merged with the last range if adjacent. */
+  private static void addRange(List<SegmentRangeProto> ranges,
+      SegmentProto segment) {
+    final int last = ranges.size() - 1;
+    if (last >= 0) {
+      final SegmentRangeProto range = ranges.get(last);
+      if (range.getOffset() + range.getLength() == segment.getOffset()) {
+        ranges.set(last, range.toBuilder()
+            .setLength(range.getLength() + segment.getLength())
+            .build());
+        return;
+      }
+    }
+    ranges.add(SegmentRangeProto.newBuilder()
+        .setOffset(segment.getOffset())
+        .setLength(segment.getLength())
+        .setDestOffset(segment.getOffset())
+        .build());
+  }
+
+  /**
+   * Compute the signatures of the whole chunks of the local replica from
+   * its data, and have the source calculate the segments of the block
+   * against them.
+   */
+  private List<SegmentProto> calculateSegments(ExtendedBlock local)
+      throws IOException {
+    final int chunks = (int) (local.getNumBytes() / bytesPerChunk);
+    final int[] weak = new int[chunks];
+    final byte[] strong = new byte[chunks * RsyncStrongHash.LENGTH];
+    final RsyncStrongHash hash = RsyncStrongHash.newInstance(
+        StrongHashTypeProto.MD5);
+    final byte[] buf = new byte[bytesPerChunk];
+    final InputStream blockIn = xceiverServer.rsyncThrottler.throttle(
+        datanode.data.getBlockInputStream(local, 0));
+    try {
+      for (int i = 0; i < chunks; i++) {
+        IOUtils.readFully(blockIn, buf, 0, bytesPerChunk);
+        weak[i] = RollingAdler32.checksum(buf, 0, bytesPerChunk);
+        hash.update(buf, 0, bytesPerChunk);
+        hash.digest(strong, i * RsyncStrongHash.LENGTH);
+      }
+    } finally {
+      IOUtils.closeStream(blockIn);
+    }
+    datanode.metrics.getRsyncMetrics().incrBytesScanned(
+        (long) chunks * bytesPerChunk);
+
+    final SourceConnection c = new SourceConnection();
+    try {
+      new Sender(c.out).calculateSegments(block,
+          newToken(block, BlockTokenSecretManager.AccessMode.READ), "",
+          null, new RsyncChecksums(weak, strong, RsyncStrongHash.LENGTH,
+              StrongHashTypeProto.MD5).toProto(false), bytesPerChunk);
+      return c.readResponse("calculate the segments of")
+          .getCalculateSegmentsResponse().getSegmentsList();
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Have the source send the ranges of the block through the pipeline of
+   * this datanode alone, straight into the replica of newBlock.
+   */
+  private void sendSegments(List<SegmentRangeProto> ranges,
+      ExtendedBlock newBlock) throws IOException {
+    final DatanodeInfo self = new DatanodeInfo(
+        datanode.getDNRegistrationForBP(block.getBlockPoolId()));
+    final SourceConnection c = new SourceConnection();
+    try {
+      new Sender(c.out).sendSegments(block,
+          newToken(block, BlockTokenSecretManager.AccessMode.READ), "",
+          ranges, true, "", new DatanodeInfo[] { self }, newBlock, null,
+          newToken(newBlock, BlockTokenSecretManager.AccessMode.WRITE));
+      c.readResponse("pull the segments of");
+    } finally {
+      c.close();
+    }
+  }
+
+  private Token<BlockTokenIdentifier> newToken(ExtendedBlock b,
+      BlockTokenSecretManager.AccessMode mode) throws IOException {
+    if (!datanode.isBlockTokenEnabled) {
+      return BlockTokenSecretManager.DUMMY_TOKEN;
+    }
+    return datanode.blockPoolTokenSecretManager.generateToken(b,
+        EnumSet.of(mode));
+  }
+
+  /**
+   * Delete the local replica of the block, whatever its state; the
+   * NameNode forgets the replica once the deletion is reported.
+   */
+  static void deleteReplica(DataNode datanode, ExtendedBlock block) {
+    final String bpid = block.getBlockPoolId();
+    final Replica replica = datanode.data.getReplica(bpid,
+        block.getBlockId());
+    if (replica == null) {
+      return;
+    }
+    try {
+      datanode.data.invalidate(bpid, new Block[] { new Block(
+          replica.getBlockId(), replica.getNumBytes(),
+          replica.getGenerationStamp()) });
+    } catch (IOException e) {
+      LOG.warn("Failed to delete " + replica, e);
+    }
+  }
+
+  /** A connection to the source datanode for one op. */
+  private class SourceConnection {
+    private final Socket sock;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    SourceConnection() throws IOException {
+      final String dnAddr = source.getXferAddr(dnConf.connectToDnViaHostname);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Connecting to datanode " + dnAddr);
+      }
+      sock = datanode.newSocket();
+      boolean success = false;
+      try {
+        NetUtils.connect(sock, NetUtils.createSocketAddr(dnAddr),
+            dnConf.socketTimeout);
+        sock.setSoTimeout(dnConf.socketTimeout);
+        OutputStream unbufOut = NetUtils.getOutputStream(sock,
+            dnConf.socketWriteTimeout);
+        InputStream unbufIn = NetUtils.getInputStream(sock);
+        if (dnConf.encryptDataTransfer) {
+          final IOStreamPair encryptedStreams = DataTransferEncryptor
+              .getEncryptedStreams(unbufOut, unbufIn,
+                  datanode.blockPoolTokenSecretManager
+                      .generateDataEncryptionKey(block.getBlockPoolId()));
+          unbufOut = encryptedStreams.out;
+          unbufIn = encryptedStreams.in;
+        }
+        out = new DataOutputStream(new BufferedOutputStream(unbufOut,
+            HdfsConstants.SMALL_BUFFER_SIZE));
+        in = new DataInputStream(unbufIn);
+        success = true;
+      } finally {
+        if (!success) {
+          IOUtils.closeSocket(sock);
+        }
+      }
+    }
+
+    /** @return the response of the source to the op sent */
+    BlockOpResponseProto readResponse(String what) throws IOException {
+      out.flush();
+      final BlockOpResponseProto response = BlockOpResponseProto.parseFrom(
+          PBHelper.vintPrefixed(in));
+      if (response.getStatus() != Status.SUCCESS) {
+        throw new IOException("Failed to " + what + " " + block + " on "
+            + source + ": " + response.getStatus() + ", "
+            + response.getMessage());
+      }
+      return response;
+    }
+
+    void close() {
+      IOUtils.closeStream(out);
+      IOUtils.closeStream(in);
+      IOUtils.closeSocket(sock);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.util.RollingAdler32;
+
+/**
+ * Index of the destination chunk signatures used by rsync matching.
+ *
+ * The weak checksums are kept in an open addressing table of primitive ints
+ * mapping a weak checksum to the first chunk having it; the following chunks
+ * with the same weak checksum are chained in ascending order. As in classic
+ * rsync, a 16-bit tag bitmap is consulted before the table so that the
+ * per-byte probe of a rolling window is a single bit test in most cases.
+ * Lookups never allocate.
+ */
+class RsyncChecksumIndex {
+  private static final int NONE = -1;
+
+  /** One bit per 16-bit tag of the weak checksums present. */
+  private final long[] tags = new long[RollingAdler32.TAG_BITMAP_LENGTH];
+  /** Weak checksum of each slot. */
+  private final int[] keys;
+  /** First chunk of each slot, NONE for an empty slot. */
+  private final int[] heads;
+  /** Next chunk with the same weak checksum, NONE at the end. */
+  private final int[] next;
+  private final int shift;
+  private final int mask;
+
+  /** The strong checksums, strongLength bytes per chunk. */
+  private final byte[] strongs;
+  private final int strongLength;
+  private final StrongHashTypeProto strongHash;
+  private final int size;
+
+  /**
+   * @param simples weak checksums of the chunks, in chunk order
+   * @param strongs strong checksums of the chunks, all of the same length
+   */
+  RsyncChecksumIndex(List<Integer> simples, List<byte[]> strongs) {
+    this(toArray(simples, strongs), concat(strongs),
+        strongs.isEmpty() ? 0 : strongs.get(0).length);
+  }
+
+  /**
+   * @param weak weak checksums of the chunks, in chunk order
+   * @param strongs MD5 checksums of the chunks, strongLength bytes each;
+   *                kept by the index, not copied
+   */
+  RsyncChecksumIndex(int[] weak, byte[] strongs, int strongLength) {
+    this(weak, strongs, strongLength, StrongHashTypeProto.MD5);
+  }
+
+  /**
+   * @param weak weak checksums of the chunks, in chunk order
+   * @param strongs strong checksums of the chunks, strongLength bytes each;
+   *                kept by the index, not copied
+   * @param strongHash the hash of the strong checksums
+   */
+  RsyncChecksumIndex(int[] weak, byte[] strongs, int strongLength,
+      StrongHashTypeProto strongHash) {
+    if (strongs.length != (long) weak.length * strongLength) {
+      throw new IllegalArgumentException("strongs.length = " + strongs.length
+          + " != " + weak.length + " chunks * " + strongLength);
+    }
+    this.size = weak.length;
+    this.strongLength = strongLength;
+    this.strongHash = strongHash;
+    this.strongs = strongs;
+
+    // keep the load factor at or below 1/2
+    int capacity = Integer.highestOneBit(Math.max(16, 2 * size - 1)) << 1;
+    this.keys = new int[capacity];
+    this.heads = new int[capacity];
+    this.next = new int[size];
+    this.mask = capacity - 1;
+    this.shift = Integer.SIZE - Integer.numberOfTrailingZeros(capacity);
+    for (int i = 0; i < capacity; i++) {
+      heads[i] = NONE;
+    }
+
+    // insert backwards so that every chain is in ascending chunk order
+    for (int i = size - 1; i >= 0; i--) {
+      final int simple = weak[i];
+      RollingAdler32.addTag(tags, simple);
+
+      int slot = slot(simple);
+      while (heads[slot] != NONE && keys[slot] != simple) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = simple;
+      next[i] = heads[slot];
+      heads[slot] = i;
+    }
+  }
+
+  // copy the lists once; they may be linked lists.
+  private static int[] toArray(List<Integer> simples, List<byte[]> strongs) {
+    if (simples.size() != strongs.size()) {
+      throw new IllegalArgumentException("simples.size() = " + simples.size()
+          + " != strongs.size() = " + strongs.size());
+    }
+    final int[] weak = new int[simples.size()];
+    int i = 0;
+    for (Integer simple : simples) {
+      weak[i++] = simple;
+    }
+    return weak;
+  }
+
+  private static byte[] concat(List<byte[]> strongs) {
+    final int strongLength = strongs.isEmpty() ? 0 : strongs.get(0).length;
+    final byte[] concat = new byte[strongs.size() * strongLength];
+    int i = 0;
+    for (byte[] strong : strongs) {
+      if (strong.length != strongLength) {
+        throw new IllegalArgumentException("Strong checksum " + i
+            + " has length " + strong.length + " != " + strongLength);
+      }
+      System.arraycopy(strong, 0, concat, i * strongLength, strongLength);
+      i++;
+    }
+    return concat;
+  }
+
+  private int slot(int simple) {
+    return (simple * 0x9E3779B9) >>> shift;
+  }
+
+  /** @return the number of chunks in the index. */
+  int size() {
+    return size;
+  }
+
+  /** @return the length of the strong checksums. */
+  int getStrongLength() {
+    return strongLength;
+  }
+
+  StrongHashTypeProto getStrongHash() {
+    return strongHash;
+  }
+
+  /**
+   * @return the bitmap of the tags of the weak checksums, for
+   *         {@link RollingAdler32#rollUntil}; not to be modified.
+   */
+  long[] getTags() {
+    return tags;
+  }
+
+  /**
+   * @return false if no chunk has this weak checksum; true if some chunk
+   *         may have it.
+   */
+  boolean mightContain(int simple) {
+    return RollingAdler32.hasTag(tags, simple);
+  }
+
+  /**
+   * @return the lowest chunk index with this weak checksum, or -1 if none.
+   */
+  int first(int simple) {
+    if (!mightContain(simple)) {
+      return NONE;
+    }
+    for (int slot = slot(simple); heads[slot] != NONE;
+        slot = (slot + 1) & mask) {
+      if (keys[slot] == simple) {
+        return heads[slot];
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * @return the next chunk index with the same weak checksum as chunk i, or
+   *         -1 if none.
+   */
+  int next(int i) {
+    return next[i];
+  }
+
+  /**
+   * @return whether the strong checksum of chunk i equals
+   *         digest[offset, offset + getStrongLength()).
+   */
+  boolean strongEquals(int i, byte[] digest, int offset) {
+    final int base = i * strongLength;
+    for (int j = 0; j < strongLength; j++) {
+      if (strongs[base + j] != digest[offset + j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.util.Time;
+
+/**
+ * The destination signatures of the rsync sessions, indexed, so that a
+ * client uploads them to a DataNode once per session instead of once per
+ * block.
+ *
+ * At most maxSessions sessions are kept, the least recently used one being
+ * dropped beyond; a session not used for expiryMs is dropped as well. The
+ * client of a dropped session uploads its signatures again.
+ *
+ * A session belongs to the client that created it: another client can
+ * neither use its signatures nor replace them.
+ */
+class RsyncChecksumSessions {
+  private final int maxSessions;
+  private final long expiryMs;
+
+  /** The sessions in access order, the least recently used first. */
+  private final LinkedHashMap<String, Session> sessions;
+
+  private static class Session {
+    private final String clientName;
+    private final RsyncChecksumIndex index;
+    private long lastUsed;
+
+    private Session(String clientName, RsyncChecksumIndex index, long now) {
+      this.clientName = clientName;
+      this.index = index;
+      this.lastUsed = now;
+    }
+  }
+
+  RsyncChecksumSessions(final int maxSessions, long expiryMs) {
+    this.maxSessions = maxSessions;
+    this.expiryMs = expiryMs;
+    this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+        return size() > maxSessions;
+      }
+    };
+  }
+
+  /**
+   * Keep the signatures of a session, replacing any kept before for the
+   * same client.
+   *
+   * @return false if the session belongs to another client, its signatures
+   *         being left as they are
+   */
+  synchronized boolean put(String sessionId, String clientName,
+      RsyncChecksumIndex index) {
+    final long now = Time.monotonicNow();
+    expire(now);
+    final Session session = sessions.get(sessionId);
+    if (session != null && !session.clientName.equals(clientName)) {
+      return false;
+    }
+    if (maxSessions > 0) {
+      sessions.put(sessionId, new Session(clientName, index, now));
+    }
+    return true;
+  }
+
+  /**
+   * @return the signatures of a session, or null if not kept or kept for
+   *         another client.
+   */
+  synchronized RsyncChecksumIndex get(String sessionId, String clientName) {
+    final long now = Time.monotonicNow();
+    expire(now);
+    final Session session = sessions.get(sessionId);
+    if (session == null || !session.clientName.equals(clientName)) {
+      return null;
+    }
+    session.lastUsed = now;
+    return session.index;
+  }
+
+  /** @return the number of sessions kept. */
+  synchronized int size() {
+    return sessions.size();
+  }
+
+  private void expire(long now) {
+    for (Iterator<Session> i = sessions.values().iterator(); i.hasNext();) {
+      if (now - i.next().lastUsed < expiryMs) {
+        // the following sessions were used later
+        return;
+      }
+      i.remove();
+    }
+  }
+}
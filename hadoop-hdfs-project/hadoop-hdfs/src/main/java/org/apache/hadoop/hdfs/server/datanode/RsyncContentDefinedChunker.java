@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumStrongProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Splits a block into content defined chunks for adaptive rsync, and
+ * computes the strong hash of each chunk.
+ *
+ * A boundary is cut where a gear rolling hash of the last 64 bytes has its
+ * top bits clear, so the same content gives the same chunks at any offset.
+ * No chunk is cut before minSize bytes or grows beyond maxSize bytes. In
+ * between, the chunking is normalized as in FastCDC: a boundary is half as
+ * likely as 1/avgGap before minSize + avgGap bytes and twice as likely
+ * after, which keeps most chunks close to minSize + avgGap bytes.
+ *
+ * The block is read once through a fixed buffer and every chunk is hashed
+ * as it is read, so the memory used per request does not depend on the
+ * block or chunk sizes.
+ */
+class RsyncContentDefinedChunker {
+  /** The size of the read buffer. */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /** A random 64-bit value per byte value, the same on every DataNode. */
+  private static final long[] GEAR = new long[256];
+  static {
+    // splitmix64 with a fixed seed
+    long seed = 0x5DEECE66DL;
+    for (int i = 0; i < GEAR.length; i++) {
+      long z = (seed += 0x9E3779B97F4A7C15L);
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private final int minSize;
+  private final int normalSize;
+  private final int maxSize;
+  /** The masks of the hash bits to be clear before and from normalSize. */
+  private final long hardMask;
+  private final long easyMask;
+
+  private final RsyncStrongHash strongHash;
+  private final byte[] buf = new byte[BUFFER_SIZE];
+
+  /**
+   * @param minSize the minimum chunk size
+   * @param avgGap the average chunk size beyond minSize, rounded down to a
+   *               power of two
+   * @param maxSize the maximum chunk size, above minSize + avgGap
+   */
+  RsyncContentDefinedChunker(int minSize, int avgGap, int maxSize) {
+    this(minSize, avgGap, maxSize, StrongHashTypeProto.MD5);
+  }
+
+  /**
+   * @param minSize the minimum chunk size
+   * @param avgGap the average chunk size beyond minSize, rounded down to a
+   *               power of two
+   * @param maxSize the maximum chunk size, above minSize + avgGap
+   * @param strongHash the hash of the chunks
+   */
+  RsyncContentDefinedChunker(int minSize, int avgGap, int maxSize,
+      StrongHashTypeProto strongHash) {
+    checkSizes(minSize, avgGap, maxSize);
+    final int bits = 31 - Integer.numberOfLeadingZeros(avgGap);
+    this.minSize = minSize;
+    this.normalSize = minSize + (1 << bits);
+    this.maxSize = maxSize;
+    this.hardMask = -1L << (Long.SIZE - bits - 1);
+    this.easyMask = -1L << (Long.SIZE - bits + 1);
+    this.strongHash = RsyncStrongHash.newInstance(strongHash);
+  }
+
+  /**
+   * Check the chunk sizes requested, before any work is done for them.
+   *
+   * @throws IllegalArgumentException if they cannot be honoured
+   */
+  static void checkSizes(int minSize, int avgGap, int maxSize) {
+    if (minSize < 0) {
+      throw new IllegalArgumentException("minSize = " + minSize + " < 0");
+    }
+    if (avgGap < 4) {
+      throw new IllegalArgumentException("avgGap = " + avgGap + " < 4");
+    }
+    final long normalSize = (long) minSize
+        + Integer.highestOneBit(avgGap);
+    if (maxSize <= normalSize) {
+      throw new IllegalArgumentException("maxSize = " + maxSize
+          + " <= minSize + avgGap = " + normalSize);
+    }
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Read a block and compute its chunks.
+   *
+   * @param in input stream positioned at the beginning of the block
+   * @param length number of bytes in the block
+   * @return the chunks covering [0, length) in order, indexed from 1
+   * @throws IOException if the block cannot be read
+   */
+  List<ChecksumStrongProto> chunk(InputStream in, long length)
+      throws IOException {
+    final List<ChecksumStrongProto> chunks = new ArrayList<ChecksumStrongProto>();
+    long chunkStart = 0;
+    int chunkLength = 0;
+    long hash = 0;
+    long offset = 0;
+    while (offset < length) {
+      final int n = in.read(buf, 0,
+          (int) Math.min(buf.length, length - offset));
+      if (n < 0) {
+        throw new IOException("Block ended at " + offset + " < " + length);
+      }
+      int hashed = 0;
+      for (int i = 0; i < n; i++) {
+        chunkLength++;
+        boolean cut;
+        if (chunkLength <= minSize) {
+          cut = false;
+        } else {
+          hash = (hash << 1) + GEAR[buf[i] & 0xff];
+          cut = (hash & (chunkLength < normalSize ? hardMask : easyMask)) == 0
+              || chunkLength == maxSize;
+        }
+        if (cut) {
+          strongHash.update(buf, hashed, i + 1 - hashed);
+          hashed = i + 1;
+          chunks.add(newChunk(chunks.size() + 1, chunkStart, chunkLength));
+          chunkStart += chunkLength;
+          chunkLength = 0;
+          hash = 0;
+        }
+      }
+      strongHash.update(buf, hashed, n - hashed);
+      offset += n;
+    }
+    if (chunkLength > 0) {
+      chunks.add(newChunk(chunks.size() + 1, chunkStart, chunkLength));
+    }
+    return chunks;
+  }
+
+  private ChecksumStrongProto newChunk(int index, long offset, int length) {
+    return ChecksumStrongProto.newBuilder()
+        .setIndex(index)
+        .setOffset((int) offset)
+        .setLength(length)
+        .setMd5(ByteString.copyFrom(strongHash.digest()))
+        .build();
+  }
+}
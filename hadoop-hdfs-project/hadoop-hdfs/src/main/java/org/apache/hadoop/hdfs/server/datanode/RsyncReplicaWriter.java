@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.ReplicaOutputStreams;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Writes the segments of a block rebuilt by rsync straight into its replica
+ * being written, so that RSYNC_UPDATE_BLOCK only has to finalize it.
+ *
+ * The segments may arrive in any order, from concurrent RSYNC_SEND_SEGMENTS
+ * requests. Each one is written at its offset in the block file, and the
+ * chunks lying wholly inside it are checksummed as the data lands. The
+ * chunks across segment boundaries and the last chunk are checksummed from
+ * the block file on {@link #finalizeReplica()}.
+ */
+class RsyncReplicaWriter {
+  /** The chunks whose checksums are written to the meta file at a time. */
+  static final int CHECKSUM_BATCH_CHUNKS = 1024;
+
+  private final ExtendedBlock block;
+  private final ReplicaInfo replica;
+  private final DataChecksum checksum;
+  private final int bytesPerChecksum;
+  private final int checksumSize;
+  private final ReplicaOutputStreams streams;
+  private final FileChannel dataOut;
+  private final FileChannel checksumOut;
+
+  /** The chunks whose checksums are written. */
+  private final BitSet checksummed = new BitSet();
+  /** The start and end offsets of the segments written, merged. */
+  private final TreeMap<Long, Long> written = new TreeMap<Long, Long>();
+  /** The monotonic time of the last segment data written. */
+  private volatile long lastUsed = Time.monotonicNow();
+
+  /**
+   * @param replica the replica being written of block, just created
+   */
+  RsyncReplicaWriter(ExtendedBlock block, ReplicaInPipelineInterface replica,
+      DataChecksum checksum) throws IOException {
+    if (!(replica instanceof ReplicaInfo)) {
+      throw new IOException("Replica " + replica + " of " + block
+          + " cannot be written in place");
+    }
+    this.block = block;
+    this.replica = (ReplicaInfo) replica;
+    this.checksum = checksum;
+    this.bytesPerChecksum = checksum.getBytesPerChecksum();
+    this.checksumSize = checksum.getChecksumSize();
+    this.streams = replica.createStreams(true, checksum);
+    if (!(streams.getDataOut() instanceof FileOutputStream)
+        || !(streams.getChecksumOut() instanceof FileOutputStream)) {
+      close();
+      throw new IOException("Replica " + replica + " of " + block
+          + " cannot be written in place");
+    }
+    this.dataOut = ((FileOutputStream) streams.getDataOut()).getChannel();
+    this.checksumOut = ((FileOutputStream) streams.getChecksumOut())
+        .getChannel();
+
+    final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    BlockMetadataHeader.writeHeader(new DataOutputStream(header), checksum);
+    writeFully(checksumOut, ByteBuffer.wrap(header.toByteArray()), 0);
+  }
+
+  ExtendedBlock getBlock() {
+    return block;
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  /**
+   * @return a stream writing a segment from offset in the block. The
+   *         segment counts as written once the stream is closed and then
+   *         {@link SegmentOutputStream#commit()}ed.
+   */
+  SegmentOutputStream newSegment(long offset) {
+    lastUsed = Time.monotonicNow();
+    return new SegmentOutputStream(offset);
+  }
+
+  /**
+   * Count [start, end) of the block file as written: the replica was
+   * reopened with the data in place. Its chunks are checksummed on
+   * {@link #finalizeReplica()}.
+   */
+  void keep(long start, long end) {
+    lastUsed = Time.monotonicNow();
+    commit(start, end, 0, 0);
+  }
+
+  private long getChecksumOffset(long chunk) {
+    return BlockMetadataHeader.getHeaderSize() + chunk * checksumSize;
+  }
+
+  private synchronized void commit(long start, long end, long firstChunk,
+      long endChunk) {
+    checksummed.set((int) firstChunk, (int) endChunk);
+    long mergedStart = start;
+    long mergedEnd = end;
+    final Map.Entry<Long, Long> before = written.floorEntry(start);
+    if (before != null && before.getValue() >= start) {
+      mergedStart = before.getKey();
+      mergedEnd = Math.max(end, before.getValue());
+    }
+    Map.Entry<Long, Long> after = written.ceilingEntry(mergedStart);
+    while (after != null && after.getKey() <= mergedEnd) {
+      mergedEnd = Math.max(mergedEnd, after.getValue());
+      written.remove(after.getKey());
+      after = written.ceilingEntry(mergedStart);
+    }
+    written.put(mergedStart, mergedEnd);
+  }
+
+  /**
+   * Checksum the chunks not checksummed yet and finalize the length and
+   * the last checksum of the replica. The replica files are closed.
+   *
+   * @return the length of the block
+   * @throws IOException if the segments written leave a hole in the block
+   */
+  synchronized long finalizeReplica() throws IOException {
+    try {
+      long length = 0;
+      if (!written.isEmpty()) {
+        if (written.size() > 1 || written.firstKey() != 0) {
+          throw new IOException("Segments missing in " + block
+              + ", written " + written);
+        }
+        length = written.firstEntry().getValue();
+      }
+      final long chunks = (length + bytesPerChecksum - 1) / bytesPerChecksum;
+      final byte[] lastChecksum = new byte[checksumSize];
+      if (chunks > 0) {
+        // the replica keeps the checksum of its last chunk in memory
+        checksummed.clear((int) chunks - 1);
+        final RandomAccessFile blockIn = new RandomAccessFile(
+            replica.getBlockFile(), "r");
+        try {
+          final byte[] buf = new byte[bytesPerChecksum];
+          for (int i = checksummed.nextClearBit(0); i < chunks;
+              i = checksummed.nextClearBit(i + 1)) {
+            final long offset = (long) i * bytesPerChecksum;
+            final int n = (int) Math.min(bytesPerChecksum, length - offset);
+            blockIn.seek(offset);
+            blockIn.readFully(buf, 0, n);
+            checksum.reset();
+            checksum.update(buf, 0, n);
+            checksum.writeValue(lastChecksum, 0, true);
+            writeFully(checksumOut, ByteBuffer.wrap(lastChecksum),
+                getChecksumOffset(i));
+          }
+        } finally {
+          blockIn.close();
+        }
+      }
+      dataOut.truncate(length);
+      checksumOut.truncate(getChecksumOffset(chunks));
+
+      replica.setNumBytes(length);
+      ((ReplicaInPipelineInterface) replica).setBytesAcked(length);
+      ((ReplicaInPipelineInterface) replica).setLastChecksumAndDataLen(
+          length, lastChecksum);
+      return length;
+    } finally {
+      close();
+    }
+  }
+
+  /** Close the replica files. */
+  void close() {
+    IOUtils.closeStream(streams.getDataOut());
+    IOUtils.closeStream(streams.getChecksumOut());
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf,
+      long position) throws IOException {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  /** Writes a segment sequentially and checksums its whole chunks. */
+  class SegmentOutputStream extends OutputStream {
+    private final long start;
+    /** The first chunk starting inside the segment. */
+    private final long firstChunk;
+    private long position;
+    /** The checksums not written yet, of the chunks from batchChunk. */
+    private final ByteBuffer checksums = ByteBuffer.allocate(
+        CHECKSUM_BATCH_CHUNKS * checksumSize);
+    private long batchChunk;
+    private final DataChecksum summer = DataChecksum.newDataChecksum(
+        checksum.getChecksumType(), bytesPerChecksum);
+
+    private SegmentOutputStream(long start) {
+      this.start = start;
+      this.position = start;
+      this.firstChunk = (start + bytesPerChecksum - 1) / bytesPerChecksum;
+      this.batchChunk = firstChunk;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      lastUsed = Time.monotonicNow();
+      writeFully(dataOut, ByteBuffer.wrap(b, off, len), position);
+      final long chunkAligned = firstChunk * bytesPerChecksum;
+      int i = 0;
+      while (i < len) {
+        final long p = position + i;
+        if (p < chunkAligned) {
+          // the head of the segment is in a chunk started before it
+          i += (int) Math.min(len - i, chunkAligned - p);
+          continue;
+        }
+        final int inChunk = (int) (p % bytesPerChecksum);
+        final int n = Math.min(len - i, bytesPerChecksum - inChunk);
+        summer.update(b, off + i, n);
+        i += n;
+        if (inChunk + n == bytesPerChecksum) {
+          summer.writeValue(checksums.array(), checksums.position(), true);
+          checksums.position(checksums.position() + checksumSize);
+          if (!checksums.hasRemaining()) {
+            flushChecksums();
+          }
+        }
+      }
+      position += len;
+    }
+
+    private void flushChecksums() throws IOException {
+      checksums.flip();
+      final int n = checksums.remaining() / checksumSize;
+      writeFully(checksumOut, checksums, getChecksumOffset(batchChunk));
+      batchChunk += n;
+      checksums.clear();
+    }
+
+    /** Write the checksums of the whole chunks written. */
+    @Override
+    public void close() throws IOException {
+      flushChecksums();
+    }
+
+    /** Count the segment as written. */
+    void commit() {
+      RsyncReplicaWriter.this.commit(start, position, firstChunk, batchChunk);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.RollingAdler32;
+
+/**
+ * Splits a source block into segments for rsync, given the chunk checksums
+ * of the destination file.
+ *
+ * A segment either references a destination chunk whose weak (adler32) and
+ * strong checksums match a window of the block, or is a literal range
+ * of the block which has to be shipped as is.
+ *
+ * The block is scanned through a sliding window of twice the chunk size, so
+ * the memory used per request is O(bytesPerChunk) instead of O(blockSize).
+ * The rolling checksum is rolled over all the buffered bytes at once, and
+ * only stops at the offsets whose tag is one of the destination chunks.
+ * An instance is used for a single block.
+ */
+class RsyncSegmentCalculator {
+  private final int bytesPerChunk;
+  private final RsyncChecksumIndex checksumIndex;
+  private final RsyncStrongHash strongHash;
+  private final RollingAdler32 roller;
+  private final byte[] digest = new byte[RsyncStrongHash.LENGTH];
+
+  /** Sliding window over the block, holds [windowStart, windowEnd). */
+  private final byte[] window;
+  private long windowStart;
+  private long windowEnd;
+  private InputStream blockIn;
+  private long blockSize;
+
+  /**
+   * @param simples weak checksums of the destination chunks
+   * @param md5s strong checksums of the destination chunks
+   * @param bytesPerChunk chunk size used to compute the checksums
+   */
+  RsyncSegmentCalculator(List<Integer> simples, List<byte[]> md5s,
+      int bytesPerChunk) {
+    this(new RsyncChecksumIndex(simples, md5s), bytesPerChunk);
+  }
+
+  /**
+   * @param checksumIndex index of the destination chunks, whose strong
+   *                      checksums may be digests truncated
+   * @param bytesPerChunk chunk size used to compute the checksums
+   */
+  RsyncSegmentCalculator(RsyncChecksumIndex checksumIndex,
+      int bytesPerChunk) {
+    if (bytesPerChunk <= 0) {
+      throw new IllegalArgumentException("bytesPerChunk = " + bytesPerChunk
+          + " <= 0");
+    }
+    if (checksumIndex.getStrongLength() > RsyncStrongHash.LENGTH) {
+      throw new IllegalArgumentException("Strong checksums of "
+          + checksumIndex.getStrongLength() + " bytes are longer than "
+          + checksumIndex.getStrongHash());
+    }
+    this.bytesPerChunk = bytesPerChunk;
+    this.window = new byte[2 * bytesPerChunk];
+    this.checksumIndex = checksumIndex;
+    this.strongHash = RsyncStrongHash.newInstance(
+        checksumIndex.getStrongHash());
+    this.roller = new RollingAdler32(bytesPerChunk);
+  }
+
+  /**
+   * Scan a block and compute its segments.
+   *
+   * @param in input stream positioned at the beginning of the block
+   * @param length number of bytes in the block
+   * @return the segments covering [0, length) in order
+   * @throws IOException if the block cannot be read
+   */
+  List<SegmentProto> calculate(InputStream in, long length)
+      throws IOException {
+    this.blockIn = in;
+    this.blockSize = length;
+    this.windowStart = 0;
+    this.windowEnd = 0;
+
+    final List<SegmentProto> segments = new ArrayList<SegmentProto>();
+    if (blockSize < bytesPerChunk) {
+      // not even one chunk to compare, the whole block is literal.
+      if (blockSize > 0) {
+        segments.add(newSegment(0, blockSize, -1));
+      }
+      return segments;
+    }
+
+    long startOffset = 0; // end of the last segment
+    long nowOffset = bytesPerChunk; // end of the current window
+    fill(nowOffset, 0);
+    int simple = roller.reset(window, 0);
+    do {
+      final int index = findChunk(simple, nowOffset - bytesPerChunk);
+      if (index >= 0) {
+        if (nowOffset - startOffset > bytesPerChunk) {
+          segments.add(newSegment(startOffset,
+              nowOffset - startOffset - bytesPerChunk, -1));
+        }
+        segments.add(newSegment(nowOffset - bytesPerChunk, bytesPerChunk,
+            index));
+        startOffset = nowOffset;
+
+        // jump over the matched chunk and start a fresh window
+        nowOffset += Math.min(bytesPerChunk, blockSize - nowOffset);
+        if (nowOffset < blockSize) {
+          fill(nowOffset, nowOffset - bytesPerChunk);
+          simple = roller.reset(window,
+              (int) (nowOffset - bytesPerChunk - windowStart));
+        }
+      } else if (nowOffset < blockSize) {
+        // roll the window over the buffered bytes up to the next candidate
+        fill(nowOffset + 1, nowOffset - bytesPerChunk);
+        nowOffset += roller.rollUntil(window,
+            (int) (nowOffset - bytesPerChunk - windowStart),
+            (int) (windowEnd - nowOffset), checksumIndex.getTags());
+        simple = roller.getValue();
+      }
+    } while (nowOffset < blockSize);
+
+    if (nowOffset - startOffset > 0) {
+      segments.add(newSegment(startOffset, nowOffset - startOffset, -1));
+    }
+    return segments;
+  }
+
+  /**
+   * @return the index of the first destination chunk whose checksums match
+   *         the window starting at offset, or -1 if there is none.
+   */
+  private int findChunk(int simple, long offset) {
+    int i = checksumIndex.first(simple);
+    if (i < 0) {
+      return -1;
+    }
+    strongHash.update(window, (int) (offset - windowStart), bytesPerChunk);
+    strongHash.digest(digest, 0);
+    for (; i >= 0; i = checksumIndex.next(i)) {
+      if (checksumIndex.strongEquals(i, digest, 0)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Make sure the window holds the block data up to end, keeping the data
+   * from keepFrom on. The window is only shifted when it is exhausted, so
+   * each block byte is copied about once.
+   */
+  private void fill(long end, long keepFrom) throws IOException {
+    if (end <= windowEnd) {
+      return;
+    }
+    if (end - windowStart > window.length) {
+      final int keep = (int) (windowEnd - keepFrom);
+      System.arraycopy(window, (int) (keepFrom - windowStart), window, 0, keep);
+      windowStart = keepFrom;
+    }
+    final int toRead = (int) Math.min(window.length - (windowEnd - windowStart),
+        blockSize - windowEnd);
+    IOUtils.readFully(blockIn, window, (int) (windowEnd - windowStart), toRead);
+    windowEnd += toRead;
+  }
+
+  private static SegmentProto newSegment(long offset, long length,
+      long index) {
+    return SegmentProto.newBuilder()
+        .setOffset(offset)
+        .setLength(length)
+        .setIndex(index)
+        .build();
+  }
+}
@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+
+/**
+ * The framing of the ranges of a RSYNC_SEND_SEGMENTS op sent between
+ * datanodes when the client asks for a codec. Every frame holds up to
+ * {@link #FRAME_SIZE} bytes of a range:
+ * <pre>
+ *   int rawLength, int compressedLength or {@link #STORED}, data
+ * </pre>
+ * A frame is stored as is if compressing it does not save
+ * {@link #MIN_SAVING} of it, and once the first {@link #SAMPLE_FRAMES}
+ * frames of a block did not, the rest of the block is stored without
+ * trying, as the block is most likely compressed already.
+ * <p>
+ * A datanode the codec is not available on, e.g. a native one, sends
+ * stored frames only, so that a session asking for a codec never fails
+ * on the sending side. Frames are forwarded down the pipeline as received.
+ */
+class RsyncSegmentCodec {
+  static final Log LOG = LogFactory.getLog(RsyncSegmentCodec.class);
+
+  static final int FRAME_SIZE = 64 * 1024;
+  static final int FRAME_HEADER_SIZE = 8;
+  static final int STORED = -1;
+  static final int SAMPLE_FRAMES = 4;
+  static final double MIN_SAVING = 0.1;
+
+  private static final CompressionCodec UNAVAILABLE = new DefaultCodec();
+  /** The codecs resolved by name, or {@link #UNAVAILABLE} */
+  private static final ConcurrentMap<String, CompressionCodec> CODECS =
+      new ConcurrentHashMap<String, CompressionCodec>();
+
+  private final String name;
+  private final CompressionCodec codec;
+  private Compressor compressor;
+  private Decompressor decompressor;
+  /** The frame last written or read, header included */
+  private final byte[] frame = new byte[FRAME_HEADER_SIZE + FRAME_SIZE];
+  private int frameLength;
+
+  private int sampledFrames;
+  private long sampledRaw;
+  private long sampledCompressed;
+  private boolean skip;
+
+  private RsyncSegmentCodec(String name, CompressionCodec codec) {
+    this.name = name;
+    this.codec = codec;
+    this.skip = codec == null;
+  }
+
+  /**
+   * @param name the class name or alias of a CompressionCodec, as sent by
+   *             the client
+   * @return the framing of the ranges, or null if name is null or empty
+   */
+  static RsyncSegmentCodec newInstance(Configuration conf, String name) {
+    if (name == null || name.isEmpty()) {
+      return null;
+    }
+    CompressionCodec codec = CODECS.get(name);
+    if (codec == null) {
+      codec = new CompressionCodecFactory(conf).getCodecByName(name);
+      if (codec == null) {
+        LOG.warn("Unknown compression codec " + name
+            + ", sending rsync segments uncompressed");
+        codec = UNAVAILABLE;
+      }
+      CODECS.putIfAbsent(name, codec);
+    }
+    return new RsyncSegmentCodec(name, codec == UNAVAILABLE ? null : codec);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Write len bytes of buf as one frame.
+   *
+   * @return the number of bytes written
+   */
+  int writeFrame(byte[] buf, int off, int len, DataOutputStream out)
+      throws IOException {
+    if (len > FRAME_SIZE) {
+      throw new IllegalArgumentException("len = " + len + " > FRAME_SIZE");
+    }
+    final int compressed = skip ? STORED : compress(buf, off, len);
+    out.writeInt(len);
+    out.writeInt(compressed);
+    if (compressed == STORED) {
+      out.write(buf, off, len);
+    } else {
+      out.write(frame, FRAME_HEADER_SIZE, compressed);
+    }
+    final int written = FRAME_HEADER_SIZE
+        + (compressed == STORED ? len : compressed);
+    if (!skip && sampledFrames < SAMPLE_FRAMES) {
+      sampledRaw += len;
+      sampledCompressed += written - FRAME_HEADER_SIZE;
+      if (++sampledFrames == SAMPLE_FRAMES
+          && sampledCompressed > sampledRaw * (1 - MIN_SAVING)) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Sending the rest of the block uncompressed: "
+              + sampledRaw + " bytes sampled compressed to "
+              + sampledCompressed);
+        }
+        skip = true;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Compress len bytes of buf into the frame.
+   *
+   * @return the compressed length, or {@link #STORED} if it does not save
+   *         {@link #MIN_SAVING} of len
+   */
+  private int compress(byte[] buf, int off, int len) throws IOException {
+    if (compressor == null) {
+      try {
+        compressor = CodecPool.getCompressor(codec);
+      } catch (RuntimeException e) {
+        // e.g. the native library of the codec is not loaded
+        LOG.warn("Compression codec " + name + " is not available,"
+            + " sending rsync segments uncompressed", e);
+        CODECS.put(name, UNAVAILABLE);
+        skip = true;
+        return STORED;
+      }
+    }
+    final int limit = FRAME_HEADER_SIZE + (int) (len * (1 - MIN_SAVING));
+    compressor.reset();
+    compressor.setInput(buf, off, len);
+    compressor.finish();
+    int n = FRAME_HEADER_SIZE;
+    while (!compressor.finished() && n < limit) {
+      final int c = compressor.compress(frame, n, limit - n);
+      if (c <= 0) {
+        break;
+      }
+      n += c;
+    }
+    return compressor.finished() ? n - FRAME_HEADER_SIZE : STORED;
+  }
+
+  /**
+   * Read a frame, keeping it as received for {@link #getFrame()}.
+   *
+   * @param buf the buffer to read the data of the frame into, of
+   *            {@link #FRAME_SIZE} bytes at least
+   * @return the length of the data
+   */
+  int readFrame(DataInputStream in, byte[] buf) throws IOException {
+    final int rawLength = in.readInt();
+    final int compressed = in.readInt();
+    if (rawLength <= 0 || rawLength > Math.min(buf.length, FRAME_SIZE)
+        || compressed < STORED || compressed >= rawLength) {
+      throw new IOException("Corrupt frame header: rawLength=" + rawLength
+          + ", compressedLength=" + compressed);
+    }
+    writeHeader(rawLength, compressed);
+    if (compressed == STORED) {
+      IOUtils.readFully(in, buf, 0, rawLength);
+      System.arraycopy(buf, 0, frame, FRAME_HEADER_SIZE, rawLength);
+      frameLength = FRAME_HEADER_SIZE + rawLength;
+      return rawLength;
+    }
+    IOUtils.readFully(in, frame, FRAME_HEADER_SIZE, compressed);
+    frameLength = FRAME_HEADER_SIZE + compressed;
+    if (codec == null) {
+      throw new IOException("Compression codec " + name
+          + " is not available");
+    }
+    if (decompressor == null) {
+      try {
+        decompressor = CodecPool.getDecompressor(codec);
+      } catch (RuntimeException e) {
+        throw new IOException("Compression codec " + name
+            + " is not available", e);
+      }
+    }
+    decompressor.reset();
+    decompressor.setInput(frame, FRAME_HEADER_SIZE, compressed);
+    int n = 0;
+    while (n < rawLength) {
+      final int d = decompressor.decompress(buf, n, rawLength - n);
+      if (d <= 0) {
+        break;
+      }
+      n += d;
+    }
+    if (n != rawLength) {
+      throw new IOException("Corrupt frame: " + n + " bytes decompressed"
+          + " from " + compressed + ", expected " + rawLength);
+    }
+    return rawLength;
+  }
+
+  private void writeHeader(int rawLength, int compressed) {
+    writeInt(rawLength, 0);
+    writeInt(compressed, 4);
+  }
+
+  private void writeInt(int v, int off) {
+    frame[off] = (byte) (v >>> 24);
+    frame[off + 1] = (byte) (v >>> 16);
+    frame[off + 2] = (byte) (v >>> 8);
+    frame[off + 3] = (byte) v;
+  }
+
+  /** @return the frame last read, header included */
+  byte[] getFrame() {
+    return frame;
+  }
+
+  int getFrameLength() {
+    return frameLength;
+  }
+
+  /** Return the compressor and decompressor to the pool. */
+  void close() {
+    if (compressor != null) {
+      CodecPool.returnCompressor(compressor);
+      compressor = null;
+    }
+    if (decompressor != null) {
+      CodecPool.returnDecompressor(decompressor);
+      decompressor = null;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsDatasetSpi;
+import org.apache.hadoop.io.IOUtils;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+/**
+ * Reads and writes the rsync signatures cached for finalized replicas, see
+ * {@link FsDatasetSpi#getRsyncSignatureFile(ExtendedBlock, String)}.
+ *
+ * A signature file holds a version, the length of the replica and the
+ * delimited signature response exactly as it is sent to the client, so that
+ * serving a cached response costs O(signatures) instead of O(block) reads.
+ * Failures to read or write a signature file are logged and otherwise
+ * ignored; the signatures are then computed from the block.
+ */
+class RsyncSignatureFile {
+  static final Log LOG = DataNode.LOG;
+  static final short VERSION = 1;
+
+  private RsyncSignatureFile() {}
+
+  /**
+   * @return the cached signatures of the replica,
+   *         or null if they are not cached or the cache is unusable.
+   */
+  static <T extends MessageLite> T read(FsDatasetSpi<?> data, ExtendedBlock b,
+      String key, Parser<T> parser) throws IOException {
+    final File f = data.getRsyncSignatureFile(b, key);
+    if (f == null || !f.exists()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(f),
+          HdfsConstants.IO_FILE_BUFFER_SIZE));
+      final short version = in.readShort();
+      final long length = in.readLong();
+      if (version != VERSION || length != data.getLength(b)) {
+        LOG.info("Ignoring stale rsync signature file " + f + ": version="
+            + version + ", length=" + length);
+        return null;
+      }
+      return parser.parseDelimitedFrom(in);
+    } catch (IOException e) {
+      LOG.warn("Failed to read rsync signature file " + f, e);
+      return null;
+    } finally {
+      IOUtils.closeStream(in);
+    }
+  }
+
+  /**
+   * Cache the signatures of a replica if it is still finalized with the
+   * generation stamp of b.
+   */
+  static void write(FsDatasetSpi<?> data, ExtendedBlock b, String key,
+      MessageLite signatures) throws IOException {
+    final File f = data.getRsyncSignatureFile(b, key);
+    if (f == null) {
+      return;
+    }
+    final long length = data.getLength(b);
+    File tmpFile = null;
+    try {
+      // unique, as concurrent requests may compute the same signatures
+      tmpFile = File.createTempFile(f.getName() + "_", ".tmp",
+          f.getParentFile());
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmpFile),
+              HdfsConstants.IO_FILE_BUFFER_SIZE));
+      try {
+        out.writeShort(VERSION);
+        out.writeLong(length);
+        signatures.writeDelimitedTo(out);
+      } finally {
+        out.close();
+      }
+      data.saveRsyncSignatureFile(b, key, tmpFile);
+    } catch (IOException e) {
+      LOG.warn("Failed to write rsync signature file " + f, e);
+      if (tmpFile != null && tmpFile.exists() && !tmpFile.delete()) {
+        LOG.warn("Failed to delete " + tmpFile);
+      }
+    }
+  }
+}
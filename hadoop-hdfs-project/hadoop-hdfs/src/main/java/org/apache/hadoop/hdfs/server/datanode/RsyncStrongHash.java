@@ -0,0 +1,298 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * The strong hash of the rsync chunks, computed incrementally: the bytes of
+ * a chunk are given by any number of {@link #update} calls, then
+ * {@link #digest} writes their hash and starts the next chunk.
+ *
+ * Every hash is {@link #LENGTH} bytes long. An instance is not thread safe.
+ */
+abstract class RsyncStrongHash {
+  /** The length of every strong hash, that of an MD5 digest. */
+  static final int LENGTH = MD5Hash.MD5_LEN;
+  /** The bytes per CRC32C of {@link StrongHashTypeProto#CRC32C_MURMUR3_128}. */
+  static final int BYTES_PER_CRC = 512;
+
+  /** @return a new instance of the given hash. */
+  static RsyncStrongHash newInstance(StrongHashTypeProto type) {
+    switch (type) {
+    case MD5:
+      return new Md5();
+    case MURMUR3_128:
+      return new Murmur3();
+    case CRC32C_MURMUR3_128:
+      return new Crc32cMurmur3();
+    default:
+      throw new IllegalArgumentException("Unknown strong hash " + type);
+    }
+  }
+
+  /**
+   * @return the suffix of the cached signatures of the given hash, empty for
+   *         MD5 so that the signatures cached before remain valid.
+   */
+  static String getSignatureKeySuffix(StrongHashTypeProto type) {
+    return type == StrongHashTypeProto.MD5 ? ""
+        : "_" + type.name().toLowerCase();
+  }
+
+  abstract StrongHashTypeProto getType();
+
+  /** Hash len bytes of b from off. */
+  abstract void update(byte[] b, int off, int len);
+
+  /**
+   * Write the hash of the bytes given since the last digest to
+   * [off, off + LENGTH) of out, and reset.
+   */
+  abstract void digest(byte[] out, int off);
+
+  /** @return the hash of the bytes given since the last digest, and reset. */
+  byte[] digest() {
+    final byte[] d = new byte[LENGTH];
+    digest(d, 0);
+    return d;
+  }
+
+  /** MD5, the strong hash of rsync. */
+  static class Md5 extends RsyncStrongHash {
+    private final MessageDigest digester = MD5Hash.getDigester();
+
+    @Override
+    StrongHashTypeProto getType() {
+      return StrongHashTypeProto.MD5;
+    }
+
+    @Override
+    void update(byte[] b, int off, int len) {
+      digester.update(b, off, len);
+    }
+
+    @Override
+    void digest(byte[] out, int off) {
+      try {
+        digester.digest(out, off, LENGTH);
+      } catch (DigestException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** MurmurHash3 x64 128-bit with seed 0, h1 then h2 in little-endian. */
+  static class Murmur3 extends RsyncStrongHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private long h1;
+    private long h2;
+    private long length;
+    /** The bytes given beyond the last 16-byte block. */
+    private final byte[] tail = new byte[16];
+    private int tailLength;
+
+    @Override
+    StrongHashTypeProto getType() {
+      return StrongHashTypeProto.MURMUR3_128;
+    }
+
+    @Override
+    void update(byte[] b, int off, int len) {
+      length += len;
+      if (tailLength > 0) {
+        final int n = Math.min(tail.length - tailLength, len);
+        System.arraycopy(b, off, tail, tailLength, n);
+        tailLength += n;
+        off += n;
+        len -= n;
+        if (tailLength < tail.length) {
+          return;
+        }
+        block(getLong(tail, 0), getLong(tail, 8));
+        tailLength = 0;
+      }
+      for (; len >= 16; off += 16, len -= 16) {
+        block(getLong(b, off), getLong(b, off + 8));
+      }
+      System.arraycopy(b, off, tail, 0, len);
+      tailLength = len;
+    }
+
+    private void block(long k1, long k2) {
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    @Override
+    void digest(byte[] out, int off) {
+      long k1 = 0;
+      long k2 = 0;
+      for (int i = tailLength - 1; i >= 8; i--) {
+        k2 |= (tail[i] & 0xffL) << ((i - 8) * 8);
+      }
+      for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+        k1 |= (tail[i] & 0xffL) << (i * 8);
+      }
+      if (tailLength > 8) {
+        h2 ^= mixK2(k2);
+      }
+      if (tailLength > 0) {
+        h1 ^= mixK1(k1);
+      }
+
+      h1 ^= length;
+      h2 ^= length;
+      h1 += h2;
+      h2 += h1;
+      h1 = fmix(h1);
+      h2 = fmix(h2);
+      h1 += h2;
+      h2 += h1;
+      putLong(h1, out, off);
+      putLong(h2, out, off + 8);
+
+      h1 = 0;
+      h2 = 0;
+      length = 0;
+      tailLength = 0;
+    }
+
+    private static long mixK1(long k1) {
+      return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+      return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+      k ^= k >>> 33;
+      k *= 0xff51afd7ed558ccdL;
+      k ^= k >>> 33;
+      k *= 0xc4ceb9fe1a85ec53L;
+      k ^= k >>> 33;
+      return k;
+    }
+
+    private static long getLong(byte[] b, int off) {
+      return (b[off] & 0xffL)
+          | (b[off + 1] & 0xffL) << 8
+          | (b[off + 2] & 0xffL) << 16
+          | (b[off + 3] & 0xffL) << 24
+          | (b[off + 4] & 0xffL) << 32
+          | (b[off + 5] & 0xffL) << 40
+          | (b[off + 6] & 0xffL) << 48
+          | (b[off + 7] & 0xffL) << 56;
+    }
+
+    private static void putLong(long v, byte[] b, int off) {
+      for (int i = 0; i < 8; i++) {
+        b[off + i] = (byte) (v >>> (i * 8));
+      }
+    }
+  }
+
+  /**
+   * MurmurHash3 of the big-endian CRC32C of every {@link #BYTES_PER_CRC}
+   * bytes, the last ones possibly fewer. These are the checksums of a block
+   * meta file of the same type and bytes per checksum, so the hash of a
+   * chunk aligned to them can be computed from the meta file alone with
+   * {@link #updateCrcs}.
+   */
+  static class Crc32cMurmur3 extends RsyncStrongHash {
+    private final Murmur3 murmur = new Murmur3();
+    private final Checksum crc = new PureJavaCrc32C();
+    /** The bytes given to crc since its last reset. */
+    private int crcLength;
+    private final byte[] crcBytes = new byte[4];
+
+    /**
+     * @return whether the checksums of a meta file are usable by
+     *         {@link #updateCrcs} for chunks of bytesPerChunk bytes.
+     */
+    static boolean canUseMeta(DataChecksum checksum, int bytesPerChunk) {
+      return checksum.getChecksumType() == DataChecksum.Type.CRC32C
+          && checksum.getBytesPerChecksum() == BYTES_PER_CRC
+          && bytesPerChunk % BYTES_PER_CRC == 0;
+    }
+
+    @Override
+    StrongHashTypeProto getType() {
+      return StrongHashTypeProto.CRC32C_MURMUR3_128;
+    }
+
+    @Override
+    void update(byte[] b, int off, int len) {
+      while (len > 0) {
+        final int n = Math.min(BYTES_PER_CRC - crcLength, len);
+        crc.update(b, off, n);
+        crcLength += n;
+        off += n;
+        len -= n;
+        if (crcLength == BYTES_PER_CRC) {
+          flushCrc();
+        }
+      }
+    }
+
+    /**
+     * Hash the checksums read from a meta file, len / 4 big-endian CRC32C
+     * of the next bytes of the chunk.
+     */
+    void updateCrcs(byte[] crcs, int off, int len) {
+      if (crcLength > 0) {
+        throw new IllegalStateException("The chunk data given before is not"
+            + " aligned to " + BYTES_PER_CRC + " bytes");
+      }
+      murmur.update(crcs, off, len);
+    }
+
+    private void flushCrc() {
+      final int v = (int) crc.getValue();
+      crcBytes[0] = (byte) (v >>> 24);
+      crcBytes[1] = (byte) (v >>> 16);
+      crcBytes[2] = (byte) (v >>> 8);
+      crcBytes[3] = (byte) v;
+      murmur.update(crcBytes, 0, crcBytes.length);
+      crc.reset();
+      crcLength = 0;
+    }
+
+    @Override
+    void digest(byte[] out, int off) {
+      if (crcLength > 0) {
+        flushCrc();
+      }
+      murmur.digest(out, off);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.util.Daemon;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Removes what the rsync clients that went away left behind on a DataNode:
+ * the segment file directories under current/rsync_tmp of the blocks never
+ * updated, and the writers of the replicas never finalized. Either is
+ * reaped once it has not been written to for expiryMs; the replica itself
+ * is left to the NameNode, which invalidates the replicas of the blocks
+ * the client abandoned.
+ */
+class RsyncTmpReaper implements Runnable {
+  static final Log LOG = DataNode.LOG;
+
+  private final File tmpDir;
+  private final long expiryMs;
+  private final List<Map<ExtendedBlock, RsyncReplicaWriter>> writers =
+      new ArrayList<Map<ExtendedBlock, RsyncReplicaWriter>>();
+  private volatile boolean shouldRun = true;
+  private Daemon daemon;
+
+  /**
+   * @param tmpDir the rsync_tmp directory, or null if there is none
+   */
+  RsyncTmpReaper(File tmpDir, long expiryMs) {
+    this.tmpDir = tmpDir;
+    this.expiryMs = expiryMs;
+  }
+
+  /** Also reap the replica writers of a DataXceiverServer. */
+  void addReplicaWriters(Map<ExtendedBlock, RsyncReplicaWriter> map) {
+    writers.add(map);
+  }
+
+  void start() {
+    daemon = new Daemon(this);
+    daemon.setName("RsyncTmpReaper");
+    daemon.start();
+  }
+
+  void shutdown() {
+    shouldRun = false;
+    if (daemon != null) {
+      daemon.interrupt();
+      try {
+        daemon.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    LOG.info("Reaping rsync temporary files unused for " + expiryMs + " ms");
+    while (shouldRun) {
+      try {
+        Thread.sleep(Math.max(expiryMs / 4, 1000));
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        reapSegmentDirs(Time.now());
+        reapReplicaWriters(Time.monotonicNow());
+      } catch (Throwable t) {
+        LOG.warn("Failed to reap rsync temporary files", t);
+      }
+    }
+  }
+
+  /**
+   * Delete the segment file directories not written to since now - expiryMs.
+   *
+   * @param now the current wall clock time
+   * @return the number of directories deleted
+   */
+  int reapSegmentDirs(long now) {
+    final File[] dirs = tmpDir == null ? null : tmpDir.listFiles();
+    if (dirs == null) {
+      return 0;
+    }
+    int reaped = 0;
+    for (File dir : dirs) {
+      if (now - getLastModified(dir) > expiryMs) {
+        LOG.info("Delete orphaned rsync segments " + dir);
+        if (FileUtil.fullyDelete(dir)) {
+          reaped++;
+        }
+      }
+    }
+    return reaped;
+  }
+
+  /** @return the last time a segment file was written in dir */
+  private static long getLastModified(File dir) {
+    long lastModified = dir.lastModified();
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        lastModified = Math.max(lastModified, f.lastModified());
+      }
+    }
+    return lastModified;
+  }
+
+  /**
+   * Close and drop the replica writers not written to since now - expiryMs.
+   *
+   * @param now the current monotonic time
+   * @return the number of writers dropped
+   */
+  int reapReplicaWriters(long now) {
+    int reaped = 0;
+    for (Map<ExtendedBlock, RsyncReplicaWriter> map : writers) {
+      final List<RsyncReplicaWriter> expired =
+          new ArrayList<RsyncReplicaWriter>();
+      synchronized (map) {
+        for (Iterator<RsyncReplicaWriter> i = map.values().iterator();
+            i.hasNext();) {
+          final RsyncReplicaWriter writer = i.next();
+          if (now - writer.getLastUsed() > expiryMs) {
+            i.remove();
+            expired.add(writer);
+          }
+        }
+      }
+      for (RsyncReplicaWriter writer : expired) {
+        LOG.info("Drop orphaned rsync replica writer of "
+            + writer.getBlock());
+        writer.close();
+        reaped++;
+      }
+    }
+    return reaped;
+  }
+}
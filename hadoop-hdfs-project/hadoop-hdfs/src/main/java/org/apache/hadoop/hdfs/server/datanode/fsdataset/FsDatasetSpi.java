@@ -123,6 +123,34 @@ public LengthInputStream getMetaDataInputStream(ExtendedBlock b
    */
   public long getLength(ExtendedBlock b) throws IOException;
 
+  /**
+   * Get the file caching the rsync signatures of a finalized replica.
+   * It is stored next to the meta file and is only valid for the current
+   * generation stamp of the replica.
+   *
+   * @param b the block
+   * @param key identifies the kind and the parameters of the signatures
+   * @return the signature file, which may not exist yet;
+   *         or null if the signatures of the replica cannot be cached.
+   * @throws IOException
+   */
+  public File getRsyncSignatureFile(ExtendedBlock b, String key
+      ) throws IOException;
+
+  /**
+   * Move a newly written signature file to
+   * {@link #getRsyncSignatureFile(ExtendedBlock, String)} if the replica is
+   * still finalized with the same generation stamp, otherwise delete it.
+   *
+   * @param b the block
+   * @param key identifies the kind and the parameters of the signatures
+   * @param tmpFile the new signature file
+   * @return true if the signature file is saved
+   * @throws IOException if the file cannot be moved
+   */
+  public boolean saveRsyncSignatureFile(ExtendedBlock b, String key,
+      File tmpFile) throws IOException;
+
   /**
    * Get reference to the replica meta info in the replicasMap. 
    * To be called from methods that are synchronized on {@link FSDataset}
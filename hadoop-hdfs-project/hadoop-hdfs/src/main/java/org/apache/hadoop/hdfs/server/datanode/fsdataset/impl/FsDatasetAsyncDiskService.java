@@ -197,6 +197,8 @@ public void run() {
         if(block.getLocalBlock().getNumBytes() != BlockCommand.NO_ACK){
           datanode.notifyNamenodeDeletedBlock(block);
         }
+        FsDatasetUtil.deleteRsyncSignatureFiles(blockFile,
+            block.getGenerationStamp());
         volume.decDfsUsed(block.getBlockPoolId(), dfsBytes);
         LOG.info("Deleted " + block.getBlockPoolId() + " "
             + block.getLocalBlock() + " file " + blockFile);
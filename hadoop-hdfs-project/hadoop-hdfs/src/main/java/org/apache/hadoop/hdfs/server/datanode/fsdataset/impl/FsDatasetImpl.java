@@ -166,6 +166,33 @@ public LengthInputStream getMetaDataInputStream(ExtendedBlock b)
     return new LengthInputStream(new FileInputStream(meta), meta.length());
   }
     
+  @Override // FsDatasetSpi
+  public synchronized File getRsyncSignatureFile(ExtendedBlock b, String key)
+      throws IOException {
+    final ReplicaInfo info = volumeMap.get(b.getBlockPoolId(),
+        b.getLocalBlock());
+    if (info == null || info.getState() != ReplicaState.FINALIZED) {
+      return null;
+    }
+    return FsDatasetUtil.getRsyncSignatureFile(info.getBlockFile(),
+        info.getGenerationStamp(), key);
+  }
+
+  @Override // FsDatasetSpi
+  public synchronized boolean saveRsyncSignatureFile(ExtendedBlock b,
+      String key, File tmpFile) throws IOException {
+    final File f = getRsyncSignatureFile(b, key);
+    if (f == null) {
+      // the replica has been deleted, reopened or recovered meanwhile
+      if (!tmpFile.delete()) {
+        LOG.warn("Failed to delete rsync signature file " + tmpFile);
+      }
+      return false;
+    }
+    NativeIO.renameTo(tmpFile, f);
+    return true;
+  }
+    
   final DataNode datanode;
   final FsVolumeList volumes;
   final ReplicaMap volumeMap;
@@ -584,6 +611,8 @@ private synchronized ReplicaBeingWritten append(String bpid,
     
     // Replace finalized replica by a RBW replica in replicas map
     volumeMap.add(bpid, newReplicaInfo);
+    FsDatasetUtil.deleteRsyncSignatureFiles(blkfile,
+        replicaInfo.getGenerationStamp());
     
     return newReplicaInfo;
   }
@@ -694,6 +723,7 @@ private void bumpReplicaGS(ReplicaInfo replicaInfo,
                             " Unable to move meta file  " + oldmeta +
                             " to " + newmeta, e);
     }
+    FsDatasetUtil.deleteRsyncSignatureFiles(replicaInfo.getBlockFile(), oldGS);
   }
 
   @Override // FsDatasetSpi
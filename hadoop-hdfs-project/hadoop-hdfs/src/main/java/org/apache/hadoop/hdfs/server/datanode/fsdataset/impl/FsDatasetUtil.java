@@ -30,6 +30,8 @@
 /** Utility methods. */
 @InterfaceAudience.Private
 public class FsDatasetUtil {
+  static final String RSYNC_SIGNATURE_EXTENSION = ".rsync";
+
   static boolean isUnlinkTmpFile(File f) {
     return f.getName().endsWith(DatanodeUtil.UNLINK_BLOCK_SUFFIX);
   }
@@ -49,6 +51,36 @@ static File getMetaFile(File f, long gs) {
         DatanodeUtil.getMetaName(f.getName(), gs));
   }
 
+  /** @return the rsync signature file of a block file and generation stamp. */
+  static File getRsyncSignatureFile(File f, long gs, String key) {
+    return new File(f.getParent(), f.getName() + "_" + gs
+        + RSYNC_SIGNATURE_EXTENSION + "_" + key);
+  }
+
+  /**
+   * Delete the rsync signature files, including the partially written ones,
+   * of a block file and generation stamp.
+   */
+  static void deleteRsyncSignatureFiles(File blockFile, long gs) {
+    final String prefix = blockFile.getName() + "_" + gs
+        + RSYNC_SIGNATURE_EXTENSION;
+    final File parent = blockFile.getParentFile();
+    final File[] matches = parent.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(prefix);
+      }
+    });
+    if (matches == null) {
+      return;
+    }
+    for (File f : matches) {
+      if (!f.delete() && f.exists()) {
+        FsDatasetImpl.LOG.warn("Failed to delete rsync signature file " + f);
+      }
+    }
+  }
+
   /** Find the corresponding meta data file from a given block file */
   static File findMetaFile(final File blockFile) throws IOException {
     final String prefix = blockFile.getName() + "_";
@@ -79,7 +111,9 @@ static long getGenerationStampFromFile(File[] listdir, File blockFile) {
     String blockName = blockFile.getName();
     for (int j = 0; j < listdir.length; j++) {
       String path = listdir[j].getName();
-      if (!path.startsWith(blockName)) {
+      // skip the other files of the block, e.g. rsync signature files
+      if (!path.startsWith(blockName)
+          || !path.endsWith(Block.METADATA_EXTENSION)) {
         continue;
       }
       if (blockFile == listdir[j]) {
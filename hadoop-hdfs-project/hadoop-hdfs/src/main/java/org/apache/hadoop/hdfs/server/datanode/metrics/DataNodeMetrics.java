@@ -91,10 +91,14 @@ public class DataNodeMetrics {
 
   final MetricsRegistry registry = new MetricsRegistry("datanode");
   final String name;
+  final DataNodeRsyncMetrics rsyncMetrics;
 
   public DataNodeMetrics(String name, String sessionId, int[] intervals) {
     this.name = name;
     registry.tag(SessionId, sessionId);
+    rsyncMetrics = new DataNodeRsyncMetrics(
+        name.replaceFirst("^DataNodeActivity", "DataNodeRsyncActivity"),
+        sessionId, intervals);
     
     final int len = intervals.length;
     packetAckRoundTripTimeNanosQuantiles = new MutableQuantiles[len];
@@ -137,12 +141,19 @@ public static DataNodeMetrics create(Configuration conf, String dnName) {
     int[] intervals = 
         conf.getInts(DFSConfigKeys.DFS_METRICS_PERCENTILES_INTERVALS_KEY);
     
-    return ms.register(name, null, new DataNodeMetrics(name, sessionId,
-        intervals));
+    final DataNodeMetrics metrics = ms.register(name, null,
+        new DataNodeMetrics(name, sessionId, intervals));
+    ms.register(metrics.rsyncMetrics.name(), null, metrics.rsyncMetrics);
+    return metrics;
   }
 
   public String name() { return name; }
 
+  /** @return the metrics of the rsync ops */
+  public DataNodeRsyncMetrics getRsyncMetrics() {
+    return rsyncMetrics;
+  }
+
   public void addHeartbeat(long latency) {
     heartbeats.add(latency);
   }
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode.metrics;
+
+import static org.apache.hadoop.metrics2.impl.MsInfo.SessionId;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.metrics2.annotation.Metric;
+import org.apache.hadoop.metrics2.annotation.Metrics;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableGaugeInt;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The statistics of the rsync ops of a DataNode, published as a metrics
+ * source of their own next to {@link DataNodeMetrics}, which creates and
+ * registers it.
+ * <p>
+ * The bytes scanned are those read to compute the chunk checksums or the
+ * segments of a block. The segments of a source block are either matched
+ * against the destination signatures or literal; the segments sent are
+ * the ranges read by a source datanode for a new block, whether copied
+ * locally or sent to the pipeline; the bytes sent on the wire are those
+ * of the ranges sent to the pipeline once compressed, if the client asked
+ * for a codec. The blocks repaired are the corrupt or stale replicas of
+ * the datanode rebuilt from a healthy replica, of which only the bytes
+ * repaired were pulled. The latencies are in milliseconds.
+ */
+@InterfaceAudience.Private
+@Metrics(about="DataNode rsync metrics", context="dfs")
+public class DataNodeRsyncMetrics {
+
+  @Metric MutableCounterLong bytesScanned;
+  @Metric MutableCounterLong bytesMatched;
+  @Metric MutableCounterLong bytesLiteral;
+  @Metric MutableCounterLong segmentsSent;
+  @Metric MutableCounterLong bytesSent;
+  @Metric("Bytes of segments sent to the pipeline, as framed and compressed")
+  MutableCounterLong bytesSentOnWire;
+  @Metric MutableCounterLong segmentsReceived;
+  @Metric MutableCounterLong bytesReceived;
+  @Metric MutableCounterLong signatureCacheHits;
+  @Metric MutableCounterLong blocksUpdated;
+  @Metric MutableCounterLong blocksRepaired;
+  @Metric("Bytes pulled from healthy replicas to repair replicas")
+  MutableCounterLong bytesRepaired;
+
+  @Metric("Rsync ops in progress") MutableGaugeInt activeOps;
+
+  @Metric MutableRate chunksChecksumOp;
+  MutableQuantiles[] chunksChecksumOpQuantiles;
+  @Metric MutableRate chunksAdaptiveChecksumOp;
+  MutableQuantiles[] chunksAdaptiveChecksumOpQuantiles;
+  @Metric MutableRate calculateSegmentsOp;
+  MutableQuantiles[] calculateSegmentsOpQuantiles;
+  @Metric MutableRate sendSegmentOp;
+  MutableQuantiles[] sendSegmentOpQuantiles;
+  @Metric MutableRate sendSegmentsOp;
+  MutableQuantiles[] sendSegmentsOpQuantiles;
+  @Metric MutableRate inflateBlockOp;
+  MutableQuantiles[] inflateBlockOpQuantiles;
+  @Metric MutableRate updateBlockOp;
+  MutableQuantiles[] updateBlockOpQuantiles;
+  @Metric MutableRate repairBlockOp;
+  MutableQuantiles[] repairBlockOpQuantiles;
+
+  final MetricsRegistry registry = new MetricsRegistry("datanodersync");
+  final String name;
+
+  public DataNodeRsyncMetrics(String name, String sessionId, int[] intervals) {
+    this.name = name;
+    registry.tag(SessionId, sessionId);
+
+    chunksChecksumOpQuantiles = newQuantiles("chunksChecksumOp",
+        "Rsync chunk checksum latency in ms", intervals);
+    chunksAdaptiveChecksumOpQuantiles = newQuantiles(
+        "chunksAdaptiveChecksumOp",
+        "Rsync content defined chunk checksum latency in ms", intervals);
+    calculateSegmentsOpQuantiles = newQuantiles("calculateSegmentsOp",
+        "Rsync segment calculation latency in ms", intervals);
+    sendSegmentOpQuantiles = newQuantiles("sendSegmentOp",
+        "Rsync single segment sending latency in ms", intervals);
+    sendSegmentsOpQuantiles = newQuantiles("sendSegmentsOp",
+        "Rsync segment sending latency in ms", intervals);
+    inflateBlockOpQuantiles = newQuantiles("inflateBlockOp",
+        "Rsync block inflation latency in ms", intervals);
+    updateBlockOpQuantiles = newQuantiles("updateBlockOp",
+        "Rsync block update latency in ms", intervals);
+    repairBlockOpQuantiles = newQuantiles("repairBlockOp",
+        "Rsync block repair latency in ms", intervals);
+  }
+
+  private MutableQuantiles[] newQuantiles(String name, String desc,
+      int[] intervals) {
+    final MutableQuantiles[] quantiles = new MutableQuantiles[intervals.length];
+    for (int i = 0; i < intervals.length; i++) {
+      quantiles[i] = registry.newQuantiles(name + intervals[i] + "s", desc,
+          "ops", "latency", intervals[i]);
+    }
+    return quantiles;
+  }
+
+  private static void add(MutableRate rate, MutableQuantiles[] quantiles,
+      long latency) {
+    rate.add(latency);
+    for (MutableQuantiles q : quantiles) {
+      q.add(latency);
+    }
+  }
+
+  public String name() { return name; }
+
+  @VisibleForTesting
+  public long getBytesScanned() {
+    return bytesScanned.value();
+  }
+
+  @VisibleForTesting
+  public long getBytesMatched() {
+    return bytesMatched.value();
+  }
+
+  @VisibleForTesting
+  public long getBytesLiteral() {
+    return bytesLiteral.value();
+  }
+
+  @VisibleForTesting
+  public long getBytesSentOnWire() {
+    return bytesSentOnWire.value();
+  }
+
+  @VisibleForTesting
+  public long getBlocksRepaired() {
+    return blocksRepaired.value();
+  }
+
+  @VisibleForTesting
+  public long getBytesRepaired() {
+    return bytesRepaired.value();
+  }
+
+  public void incrBytesScanned(long delta) {
+    bytesScanned.incr(delta);
+  }
+
+  /** Count the segments calculated for a source block. */
+  public void incrSegmentBytes(long matched, long literal) {
+    bytesMatched.incr(matched);
+    bytesLiteral.incr(literal);
+  }
+
+  public void incrSegmentsSent(long bytes) {
+    segmentsSent.incr();
+    bytesSent.incr(bytes);
+  }
+
+  public void incrBytesSentOnWire(long bytes) {
+    bytesSentOnWire.incr(bytes);
+  }
+
+  public void incrSegmentsReceived(long bytes) {
+    segmentsReceived.incr();
+    bytesReceived.incr(bytes);
+  }
+
+  public void incrSignatureCacheHits() {
+    signatureCacheHits.incr();
+  }
+
+  public void incrBlocksUpdated() {
+    blocksUpdated.incr();
+  }
+
+  /** Count a replica repaired by pulling bytes from a healthy replica. */
+  public void incrBlocksRepaired(long bytes) {
+    blocksRepaired.incr();
+    bytesRepaired.incr(bytes);
+  }
+
+  public void incrActiveOps() {
+    activeOps.incr();
+  }
+
+  public void decrActiveOps() {
+    activeOps.decr();
+  }
+
+  public void addChunksChecksumOp(long latency) {
+    add(chunksChecksumOp, chunksChecksumOpQuantiles, latency);
+  }
+
+  public void addChunksAdaptiveChecksumOp(long latency) {
+    add(chunksAdaptiveChecksumOp, chunksAdaptiveChecksumOpQuantiles, latency);
+  }
+
+  public void addCalculateSegmentsOp(long latency) {
+    add(calculateSegmentsOp, calculateSegmentsOpQuantiles, latency);
+  }
+
+  public void addSendSegmentOp(long latency) {
+    add(sendSegmentOp, sendSegmentOpQuantiles, latency);
+  }
+
+  public void addSendSegmentsOp(long latency) {
+    add(sendSegmentsOp, sendSegmentsOpQuantiles, latency);
+  }
+
+  public void addInflateBlockOp(long latency) {
+    add(inflateBlockOp, inflateBlockOpQuantiles, latency);
+  }
+
+  public void addUpdateBlockOp(long latency) {
+    add(updateBlockOp, updateBlockOpQuantiles, latency);
+  }
+
+  public void addRepairBlockOp(long latency) {
+    add(repairBlockOp, repairBlockOpQuantiles, latency);
+  }
+}
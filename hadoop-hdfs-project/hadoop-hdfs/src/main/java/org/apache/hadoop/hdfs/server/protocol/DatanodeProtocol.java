@@ -74,6 +74,7 @@ public interface DatanodeProtocol {
   final static int DNA_RECOVERBLOCK = 6;  // request a block recovery
   final static int DNA_ACCESSKEYUPDATE = 7;  // update access key
   final static int DNA_BALANCERBANDWIDTHUPDATE = 8; // update balancer bandwidth
+  final static int DNA_RSYNC_REPAIR = 9; // repair blocks on another datanode
 
   /** 
    * Register Datanode.
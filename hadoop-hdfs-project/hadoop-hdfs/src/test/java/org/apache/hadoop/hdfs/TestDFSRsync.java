@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Test {@link DistributedFileSystem#rsync(Path, Path, RsyncOptions)}. */
+public class TestDFSRsync {
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private static MiniDFSCluster cluster;
+  private static DistributedFileSystem fs;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(2).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static void writeFile(Path path, byte[] data) throws IOException {
+    final FSDataOutputStream out = fs.create(path, true);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] readFile(Path path) throws IOException {
+    final byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+    final FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  @Test
+  public void testRsync() throws IOException {
+    final Random r = new Random();
+    final byte[] old = new byte[2 * BLOCK_SIZE + CHUNK_SIZE];
+    r.nextBytes(old);
+    final byte[] data = old.clone();
+    for (int i = 0; i < 100; i++) {
+      data[BLOCK_SIZE + i] ^= 0x5a;
+    }
+    final Path src = new Path("/testRsync/src");
+    final Path dst = new Path("/testRsync/dst");
+    writeFile(src, data);
+    writeFile(dst, old);
+
+    final RsyncStatistics stats = fs.rsync(src, dst, new RsyncOptions()
+        .setChunkSize(CHUNK_SIZE).setParallelism(2).setAppend(false));
+    assertArrayEquals(data, readFile(dst));
+    // only about the modified chunk is sent from src
+    assertEquals(data.length,
+        stats.getLiteralBytes() + stats.getMatchedBytes());
+    assertTrue("literal = " + stats.getLiteralBytes(),
+        stats.getLiteralBytes() < 2 * CHUNK_SIZE);
+    assertFalse(fs.exists(new Path(dst + ".rsync")));
+    assertFalse(fs.exists(new Path(RsyncManifest.getPath(dst.toString()))));
+  }
+
+  /** Adaptive chunking with the default ratios. */
+  @Test
+  public void testRsyncAdaptive() throws IOException {
+    final Random r = new Random();
+    final byte[] old = new byte[2 * BLOCK_SIZE + CHUNK_SIZE];
+    r.nextBytes(old);
+    final byte[] data = old.clone();
+    for (int i = 0; i < 100; i++) {
+      data[BLOCK_SIZE + i] ^= 0x5a;
+    }
+    final Path src = new Path("/testRsyncAdaptive/src");
+    final Path dst = new Path("/testRsyncAdaptive/dst");
+    writeFile(src, data);
+    writeFile(dst, old);
+
+    final RsyncOptions options = new RsyncOptions()
+        .setMethod(RsyncOptions.METHOD_ADAPTIVE).setChunkSize(CHUNK_SIZE)
+        .setAppend(false);
+    assertTrue(options.getBmaxRatio() > options.getBminRatio() + 1);
+    final RsyncStatistics stats = fs.rsync(src, dst, options);
+    assertArrayEquals(data, readFile(dst));
+    assertTrue("matched = " + stats.getMatchedBytes(),
+        stats.getMatchedBytes() > 0);
+  }
+
+  @Test
+  public void testBadRatios() throws IOException {
+    final Path src = new Path("/testBadRatios/src");
+    final Path dst = new Path("/testBadRatios/dst");
+    writeFile(src, new byte[1]);
+    writeFile(dst, new byte[2]);
+    final int[][] ratios = { { 2, 2 }, { 2, 3 }, { -1, 4 }, { 1, 1 << 20 } };
+    for (int[] ratio : ratios) {
+      try {
+        fs.rsync(src, dst, new RsyncOptions()
+            .setMethod(RsyncOptions.METHOD_ADAPTIVE).setChunkSize(CHUNK_SIZE)
+            .setBminRatio(ratio[0]).setBmaxRatio(ratio[1]));
+        fail("Rsync with bminRatio = " + ratio[0] + ", bmaxRatio = "
+            + ratio[1]);
+      } catch (IOException e) {
+        GenericTestUtils.assertExceptionContains("bminRatio", e);
+      }
+    }
+    assertEquals(2, fs.getFileStatus(dst).getLen());
+  }
+
+  @Test
+  public void testBadOptions() {
+    try {
+      new RsyncOptions().setChunkSize(0);
+      fail("chunkSize = 0");
+    } catch (IllegalArgumentException e) {
+      GenericTestUtils.assertExceptionContains("chunkSize", e);
+    }
+    try {
+      new RsyncOptions().setParallelism(0);
+      fail("parallelism = 0");
+    } catch (IllegalArgumentException e) {
+      GenericTestUtils.assertExceptionContains("parallelism", e);
+    }
+    try {
+      new RsyncOptions().setMaxRequestsPerDatanode(0);
+      fail("maxRequestsPerDatanode = 0");
+    } catch (IllegalArgumentException e) {
+      GenericTestUtils.assertExceptionContains("maxRequestsPerDatanode", e);
+    }
+  }
+
+  @Test
+  public void testNotInHdfs() throws IOException {
+    final Path dst = new Path("/testNotInHdfs/dst");
+    writeFile(dst, new byte[1]);
+    try {
+      fs.rsync(new Path("file:///tmp/testNotInHdfs"), dst,
+          new RsyncOptions());
+      fail("Rsync from the local file system");
+    } catch (IOException e) {
+      GenericTestUtils.assertExceptionContains("not in HDFS", e);
+    }
+    assertTrue(fs.exists(dst));
+  }
+}
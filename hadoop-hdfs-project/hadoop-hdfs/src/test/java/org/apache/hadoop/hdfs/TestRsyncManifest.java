@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Test {@link RsyncManifest}. */
+public class TestRsyncManifest {
+  private static RsyncManifest newManifest(long... srcBlockIds) {
+    return new RsyncManifest("/src", "BP-1", 100L, 1L, 200L, 2L, 1, 4096,
+        1, 4, "MD5", srcBlockIds);
+  }
+
+  private static byte[] toBytes(RsyncManifest manifest) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    manifest.write(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static RsyncManifest fromBytes(byte[] bytes) throws IOException {
+    return RsyncManifest.read(new DataInputStream(new ByteArrayInputStream(
+        bytes)), bytes.length);
+  }
+
+  /** 用count替换最后写入的int */
+  private static byte[] setLastInt(byte[] bytes, int count) {
+    byte[] b = Arrays.copyOf(bytes, bytes.length);
+    int i = b.length - 4;
+    b[i] = (byte) (count >>> 24);
+    b[i + 1] = (byte) (count >>> 16);
+    b[i + 2] = (byte) (count >>> 8);
+    b[i + 3] = (byte) count;
+    return b;
+  }
+
+  private static void assertInvalid(byte[] bytes) {
+    try {
+      fromBytes(bytes);
+      fail("Read a corrupt manifest");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid number"));
+    }
+  }
+
+  @Test
+  public void testReadWrite() throws IOException {
+    RsyncManifest manifest = newManifest(11L, 12L);
+    List<RsyncManifest.Segment> plan = new ArrayList<RsyncManifest.Segment>();
+    plan.add(new RsyncManifest.Segment("BP-1", 11L, 0L, 10L, 0L));
+    plan.add(new RsyncManifest.Segment("BP-2", 11L, 5L, 20L, 10L));
+    manifest.setPlan(0, plan);
+    manifest.setFinished(0, 21L, 1001L, 30L);
+    manifest.setClientName("client");
+    manifest.setFileId(7L);
+
+    RsyncManifest read = fromBytes(toBytes(manifest));
+    assertTrue(read.isSameSession(manifest));
+    assertEquals("client", read.getClientName());
+    assertEquals(7L, read.getFileId());
+    assertEquals(1, read.getFinishedBlocks());
+    assertEquals(21L, read.getBlock(0).getNewBlockId());
+    assertNull(read.getBlock(1).getPlan());
+    List<RsyncManifest.Segment> segments = read.getBlock(0).getPlan();
+    assertEquals(2, segments.size());
+    assertEquals("BP-2", segments.get(1).poolId);
+    assertEquals(11L, segments.get(1).blockId);
+    assertEquals(10L, segments.get(1).destOffset);
+
+    // 同一blockId在另一个block pool中是另一个会话
+    RsyncManifest other = new RsyncManifest("/src", "BP-2", 100L, 1L, 200L,
+        2L, 1, 4096, 1, 4, "MD5", new long[] { 11L, 12L });
+    assertFalse(read.isSameSession(other));
+  }
+
+  @Test
+  public void testCorruptCounts() throws IOException {
+    // 没有block时，最后写入的int是block数
+    byte[] noBlocks = toBytes(newManifest());
+    assertEquals(0, fromBytes(noBlocks).getFinishedBlocks());
+    assertInvalid(setLastInt(noBlocks, Integer.MAX_VALUE));
+    assertInvalid(setLastInt(noBlocks, -1));
+
+    // 一个block的空传送计划，最后写入的int是segments数
+    RsyncManifest manifest = newManifest(11L);
+    manifest.setPlan(0, new ArrayList<RsyncManifest.Segment>());
+    byte[] emptyPlan = toBytes(manifest);
+    assertEquals(0, fromBytes(emptyPlan).getBlock(0).getPlan().size());
+    assertInvalid(setLastInt(emptyPlan, Integer.MAX_VALUE));
+    assertInvalid(setLastInt(emptyPlan, -2));
+  }
+}
@@ -29,6 +29,7 @@
 import org.apache.hadoop.hdfs.protocolPB.DatanodeProtocolClientSideTranslatorPB;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsDatasetSpi;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.impl.FsDatasetTestUtil;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeRsyncMetrics;
 import org.apache.hadoop.hdfs.server.namenode.NameNode;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.InterDatanodeProtocol;
@@ -148,6 +149,11 @@ public static FsDatasetSpi<?> getFSDataset(DataNode dn) {
     return dn.getFSDataset();
   }
 
+  /** @return the metrics of the rsync ops of the datanode */
+  public static DataNodeRsyncMetrics getRsyncMetrics(DataNode dn) {
+    return dn.getMetrics().getRsyncMetrics();
+  }
+
   public static File getFile(DataNode dn, String bpid, long bid) {
     return FsDatasetTestUtil.getFile(dn.getFSDataset(), bpid, bid);
   }
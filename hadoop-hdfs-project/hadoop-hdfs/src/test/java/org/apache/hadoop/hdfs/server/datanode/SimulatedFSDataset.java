@@ -719,6 +719,20 @@ public synchronized LengthInputStream getMetaDataInputStream(ExtendedBlock b
     return new LengthInputStream(sin, sin.getLength());
   }
 
+  @Override // FsDatasetSpi
+  public File getRsyncSignatureFile(ExtendedBlock b, String key) {
+    // simulated replicas have no files
+    return null;
+  }
+
+  @Override // FsDatasetSpi
+  public boolean saveRsyncSignatureFile(ExtendedBlock b, String key,
+      File tmpFile) {
+    // simulated replicas have no files to keep it with: not cached
+    tmpFile.delete();
+    return false;
+  }
+
   @Override
   public void checkDataDir() throws DiskErrorException {
     // nothing to check for simulated data set
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.hdfs.server.datanode.TestRsyncSegmentCalculator.Signatures;
+import org.apache.hadoop.util.RollingAdler32;
+import org.junit.Test;
+
+/** Test {@link RsyncChecksumIndex}. */
+public class TestRsyncChecksumIndex {
+  private static final Random RAN = new Random();
+
+  private static byte[] strong(int i) {
+    final byte[] b = new byte[16];
+    b[0] = (byte) i;
+    b[1] = (byte) (i >>> 8);
+    b[2] = (byte) (i >>> 16);
+    return b;
+  }
+
+  @Test
+  public void testLookup() {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final int n = 10000;
+    final List<Integer> simples = new LinkedList<Integer>();
+    final List<byte[]> strongs = new LinkedList<byte[]>();
+    final Map<Integer, List<Integer>> expected =
+        new HashMap<Integer, List<Integer>>();
+    for (int i = 0; i < n; i++) {
+      // plenty of collisions on the weak checksum
+      final int simple = r.nextInt(n / 4);
+      simples.add(simple);
+      strongs.add(strong(i));
+      if (!expected.containsKey(simple)) {
+        expected.put(simple, new ArrayList<Integer>());
+      }
+      expected.get(simple).add(i);
+    }
+
+    final RsyncChecksumIndex index = new RsyncChecksumIndex(simples, strongs);
+    assertEquals(n, index.size());
+    assertEquals(16, index.getStrongLength());
+    for (int simple = -10; simple < n / 4 + 10; simple++) {
+      final List<Integer> chunks = new ArrayList<Integer>();
+      for (int i = index.first(simple); i >= 0; i = index.next(i)) {
+        chunks.add(i);
+        assertTrue(index.mightContain(simple));
+        assertTrue(index.strongEquals(i, strong(i), 0));
+        assertFalse(index.strongEquals(i, strong(i + 1), 0));
+      }
+      final List<Integer> e = expected.get(simple);
+      assertEquals("seed=" + seed + ", simple=" + simple,
+          e == null ? new ArrayList<Integer>() : e, chunks);
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    final RsyncChecksumIndex index = new RsyncChecksumIndex(
+        new ArrayList<Integer>(), new ArrayList<byte[]>());
+    assertEquals(0, index.size());
+    assertFalse(index.mightContain(0));
+    assertEquals(-1, index.first(0));
+    assertEquals(-1, index.first(Integer.MIN_VALUE));
+  }
+
+  /**
+   * Measure the bytes per second matched by the rolling window with the
+   * boxed HashMap lookup it replaced and with {@link RsyncChecksumIndex}.
+   * Run with
+   *
+   *   java ... 'org.apache.hadoop.hdfs.server.datanode.TestRsyncChecksumIndex$PerformanceTest' [blockSizeMB]
+   */
+  public static class PerformanceTest {
+    public static void main(String[] args) throws Exception {
+      final int blockSize = (args.length > 0 ? Integer.parseInt(args[0]) : 64)
+          << 20;
+      doBench(blockSize, System.out);
+    }
+
+    private static void doBench(int blockSize, PrintStream out)
+        throws Exception {
+      final Random r = new Random(0);
+      out.printf("\nBlock size %d MB (the unit is MB/sec)"
+          + "\n|| Chunk || HashMap probe || index probe || segments ||\n",
+          blockSize >> 20);
+      for (int bytesPerChunk = 64 << 10; bytesPerChunk <= 4 << 20;
+          bytesPerChunk <<= 1) {
+        final byte[] dst = new byte[blockSize];
+        r.nextBytes(dst);
+        final Signatures sigs = new Signatures(dst, bytesPerChunk);
+        final byte[] src = TestRsyncSegmentCalculator.mutate(dst,
+            bytesPerChunk, blockSize, r);
+
+        final Map<Integer, List<Integer>> map =
+            new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < sigs.simples.size(); i++) {
+          if (!map.containsKey(sigs.simples.get(i))) {
+            map.put(sigs.simples.get(i), new LinkedList<Integer>());
+          }
+          map.get(sigs.simples.get(i)).add(i);
+        }
+        final RsyncChecksumIndex index =
+            new RsyncChecksumIndex(sigs.simples, sigs.md5s);
+
+        // warm up
+        probeMap(src, bytesPerChunk, map);
+        probeIndex(src, bytesPerChunk, index);
+
+        long start = System.nanoTime();
+        final long mapHits = probeMap(src, bytesPerChunk, map);
+        final double mapRate = rate(blockSize, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        final long indexHits = probeIndex(src, bytesPerChunk, index);
+        final double indexRate = rate(blockSize, System.nanoTime() - start);
+        if (mapHits != indexHits) {
+          throw new RuntimeException("hits: " + mapHits + " != " + indexHits);
+        }
+
+        start = System.nanoTime();
+        new RsyncSegmentCalculator(sigs.simples, sigs.md5s, bytesPerChunk)
+            .calculate(new ByteArrayInputStream(src), src.length);
+        final double segmentsRate = rate(blockSize, System.nanoTime() - start);
+
+        out.printf("| %d | %.1f | %.1f | %.1f |\n", bytesPerChunk, mapRate,
+            indexRate, segmentsRate);
+      }
+    }
+
+    private static long probeMap(byte[] buf, int bytesPerChunk,
+        Map<Integer, List<Integer>> map) {
+      long hits = 0;
+      int simple = RollingAdler32.checksum(buf, 0, bytesPerChunk);
+      for (int i = bytesPerChunk; i < buf.length; i++) {
+        if (map.containsKey(simple)) {
+          hits += map.get(simple).get(0);
+        }
+        simple = RollingAdler32.roll(simple, buf[i - bytesPerChunk],
+            buf[i], bytesPerChunk);
+      }
+      return hits;
+    }
+
+    private static long probeIndex(byte[] buf, int bytesPerChunk,
+        RsyncChecksumIndex index) {
+      long hits = 0;
+      int simple = RollingAdler32.checksum(buf, 0, bytesPerChunk);
+      for (int i = bytesPerChunk; i < buf.length; i++) {
+        final int first = index.first(simple);
+        if (first >= 0) {
+          hits += first;
+        }
+        simple = RollingAdler32.roll(simple, buf[i - bytesPerChunk],
+            buf[i], bytesPerChunk);
+      }
+      return hits;
+    }
+
+    private static double rate(long bytes, long nanos) {
+      return bytes * 1000.0 / nanos;
+    }
+  }
+}
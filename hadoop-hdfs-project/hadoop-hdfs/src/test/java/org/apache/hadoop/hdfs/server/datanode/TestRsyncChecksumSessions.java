@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.datatransfer.RsyncChecksums;
+import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenSecretManager;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.token.Token;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Test the destination signatures kept by the DataNode per rsync session.
+ */
+public class TestRsyncChecksumSessions {
+  private static final int BYTES_PER_CHUNK = 4 * 1024;
+  private static final int STRONG_LENGTH = 8;
+  private static final long FILE_LEN = 10 * BYTES_PER_CHUNK + 100;
+  private static final int MAX_CHECKSUMS = 16;
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private DataNode dn;
+
+  @Before
+  public void setUp() throws IOException {
+    startCluster(new HdfsConfiguration());
+  }
+
+  private void startCluster(Configuration conf) throws IOException {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_RSYNC_CHECKSUMS_MAX_KEY,
+        MAX_CHECKSUMS);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    dn = cluster.getDataNodes().get(0);
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private BlockOpResponseProto calculateSegments(ExtendedBlock block,
+      String sessionId, PackedChecksumsProto checksums) throws IOException {
+    return calculateSegments(block, BlockTokenSecretManager.DUMMY_TOKEN,
+        "client", sessionId, checksums);
+  }
+
+  private BlockOpResponseProto calculateSegments(ExtendedBlock block,
+      Token<BlockTokenIdentifier> blockToken, String clientName,
+      String sessionId, PackedChecksumsProto checksums) throws IOException {
+    final Socket sock = new Socket();
+    try {
+      sock.connect(NetUtils.createSocketAddr(
+          dn.getDatanodeId().getXferAddr()), HdfsServerConstants.READ_TIMEOUT);
+      final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+      new Sender(out).calculateSegments(block, blockToken, clientName,
+          sessionId, checksums, BYTES_PER_CHUNK);
+      out.flush();
+      return BlockOpResponseProto.parseDelimitedFrom(
+          new DataInputStream(sock.getInputStream()));
+    } finally {
+      sock.close();
+    }
+  }
+
+  private byte[] readFile(Path path) throws IOException {
+    final byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+    final FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  /** @return the packed signatures of data */
+  private static PackedChecksumsProto pack(byte[] data) {
+    final TestRsyncSegmentCalculator.Signatures sigs =
+        new TestRsyncSegmentCalculator.Signatures(data, BYTES_PER_CHUNK);
+    final int[] weak = new int[sigs.simples.size()];
+    final byte[] strong = new byte[weak.length * STRONG_LENGTH];
+    for (int i = 0; i < weak.length; i++) {
+      weak[i] = sigs.simples.get(i);
+      System.arraycopy(sigs.md5s.get(i), 0, strong, i * STRONG_LENGTH,
+          STRONG_LENGTH);
+    }
+    return new RsyncChecksums(weak, strong, STRONG_LENGTH).toProto(true);
+  }
+
+  @Test
+  public void testSession() throws Exception {
+    final Path path = new Path("/testSession");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final byte[] data = readFile(path);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, path);
+
+    final TestRsyncSegmentCalculator.Signatures sigs =
+        new TestRsyncSegmentCalculator.Signatures(data, BYTES_PER_CHUNK);
+    final PackedChecksumsProto checksums = pack(data);
+    final List<SegmentProto> expected = new RsyncSegmentCalculator(
+        sigs.simples, sigs.md5s, BYTES_PER_CHUNK).calculate(
+            new ByteArrayInputStream(data), data.length);
+
+    // a session unknown to the datanode
+    assertEquals(Status.ERROR_INVALID,
+        calculateSegments(block, "session", null).getStatus());
+
+    // the first request of the session sends the signatures
+    BlockOpResponseProto reply = calculateSegments(block, "session",
+        checksums);
+    assertEquals(Status.SUCCESS, reply.getStatus());
+    assertEquals(expected,
+        reply.getCalculateSegmentsResponse().getSegmentsList());
+
+    // the following ones only name the session
+    reply = calculateSegments(block, "session", null);
+    assertEquals(Status.SUCCESS, reply.getStatus());
+    assertEquals(expected,
+        reply.getCalculateSegmentsResponse().getSegmentsList());
+
+    // signatures sent without a session are not kept
+    assertEquals(Status.SUCCESS,
+        calculateSegments(block, null, checksums).getStatus());
+    assertEquals(1, ((DataXceiverServer) dn.dataXceiverServer.getRunnable())
+        .rsyncChecksumSessions.size());
+
+    // another client can neither use the session nor replace its signatures
+    assertEquals(Status.ERROR_INVALID, calculateSegments(block,
+        BlockTokenSecretManager.DUMMY_TOKEN, "other", "session", null)
+        .getStatus());
+    assertEquals(Status.ERROR_INVALID, calculateSegments(block,
+        BlockTokenSecretManager.DUMMY_TOKEN, "other", "session", checksums)
+        .getStatus());
+    reply = calculateSegments(block, "session", null);
+    assertEquals(Status.SUCCESS, reply.getStatus());
+    assertEquals(expected,
+        reply.getCalculateSegmentsResponse().getSegmentsList());
+  }
+
+  @Test
+  public void testTooManyChecksums() throws Exception {
+    final Path path = new Path("/testTooManyChecksums");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, path);
+
+    // a few bytes claiming nearly 2 GB of signatures once inflated
+    final PackedChecksumsProto forged = PackedChecksumsProto.newBuilder()
+        .setCount(Integer.MAX_VALUE / (4 + RsyncChecksums.MAX_STRONG_LENGTH))
+        .setStrongLength(RsyncChecksums.MAX_STRONG_LENGTH)
+        .setStrongHash(StrongHashTypeProto.MD5)
+        .setCompressed(true)
+        .setData(ByteString.copyFrom(new byte[16]))
+        .build();
+    BlockOpResponseProto reply = calculateSegments(block, "session", forged);
+    assertEquals(Status.ERROR_INVALID, reply.getStatus());
+    assertTrue(reply.getMessage(),
+        reply.getMessage().contains("Too many packed checksums"));
+
+    // well formed signatures beyond the limit
+    final byte[] data = new byte[(MAX_CHECKSUMS + 1) * BYTES_PER_CHUNK];
+    reply = calculateSegments(block, "session", pack(data));
+    assertEquals(Status.ERROR_INVALID, reply.getStatus());
+    assertEquals(0, ((DataXceiverServer) dn.dataXceiverServer.getRunnable())
+        .rsyncChecksumSessions.size());
+  }
+
+  @Test
+  public void testBlockToken() throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_BLOCK_ACCESS_TOKEN_ENABLE_KEY, true);
+    startCluster(conf);
+
+    final Path path = new Path("/testBlockToken");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final LocatedBlock located = DFSTestUtil.getAllBlocks(fs, path).get(0);
+    final PackedChecksumsProto checksums = pack(readFile(path));
+
+    // neither a missing token nor one for another block is accepted, and
+    // no signatures are kept for them
+    assertEquals(Status.ERROR_ACCESS_TOKEN, calculateSegments(
+        located.getBlock(), BlockTokenSecretManager.DUMMY_TOKEN, "client",
+        "session", checksums).getStatus());
+    final ExtendedBlock other = new ExtendedBlock(located.getBlock());
+    other.setBlockId(other.getBlockId() + 1);
+    assertEquals(Status.ERROR_ACCESS_TOKEN, calculateSegments(other,
+        located.getBlockToken(), "client", "session", checksums)
+        .getStatus());
+    assertEquals(0, ((DataXceiverServer) dn.dataXceiverServer.getRunnable())
+        .rsyncChecksumSessions.size());
+
+    assertEquals(Status.SUCCESS, calculateSegments(located.getBlock(),
+        located.getBlockToken(), "client", "session", checksums)
+        .getStatus());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    final RsyncChecksumIndex index = new RsyncChecksumIndex(new int[0],
+        new byte[0], STRONG_LENGTH);
+    final RsyncChecksumSessions sessions = new RsyncChecksumSessions(2,
+        60 * 1000);
+    assertTrue(sessions.put("a", "client", index));
+    assertTrue(sessions.put("b", "client", index));
+    assertSame(index, sessions.get("a", "client"));
+    // the least recently used session is dropped
+    assertTrue(sessions.put("c", "client", index));
+    assertEquals(2, sessions.size());
+    assertNull(sessions.get("b", "client"));
+    assertNotNull(sessions.get("a", "client"));
+    assertNotNull(sessions.get("c", "client"));
+
+    // a session is only the client's that created it
+    assertNull(sessions.get("a", "other"));
+    assertFalse(sessions.put("a", "other", new RsyncChecksumIndex(
+        new int[0], new byte[0], STRONG_LENGTH)));
+    assertSame(index, sessions.get("a", "client"));
+
+    // idle sessions expire
+    final RsyncChecksumSessions expiring = new RsyncChecksumSessions(2, 100);
+    expiring.put("a", "client", index);
+    Thread.sleep(200);
+    assertNull(expiring.get("a", "client"));
+    assertEquals(0, expiring.size());
+  }
+}
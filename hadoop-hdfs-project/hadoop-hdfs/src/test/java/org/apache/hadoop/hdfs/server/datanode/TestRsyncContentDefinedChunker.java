@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumStrongProto;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/** Test {@link RsyncContentDefinedChunker}. */
+public class TestRsyncContentDefinedChunker {
+  private static final Random RAN = new Random();
+  private static final int MIN = 2 * 1024;
+  private static final int AVG_GAP = 4 * 1024;
+  private static final int MAX = 16 * 1024;
+
+  private static List<ChecksumStrongProto> chunk(byte[] data, int min,
+      int avgGap, int max) throws IOException {
+    return new RsyncContentDefinedChunker(min, avgGap, max).chunk(
+        new ByteArrayInputStream(data), data.length);
+  }
+
+  /** The chunks cover the data in order, with the MD5 of their bytes. */
+  private static void assertChunks(byte[] data,
+      List<ChecksumStrongProto> chunks, int min, int max) {
+    long offset = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      final ChecksumStrongProto c = chunks.get(i);
+      assertEquals(i + 1, c.getIndex());
+      assertEquals(offset, c.getOffset());
+      assertTrue(c.getLength() <= max);
+      if (i < chunks.size() - 1) {
+        assertTrue(c.getLength() > min);
+      }
+      assertArrayEquals(MD5Hash.digest(data, c.getOffset(), c.getLength())
+          .getDigest(), c.getMd5().toByteArray());
+      offset += c.getLength();
+    }
+    assertEquals(data.length, offset);
+  }
+
+  @Test
+  public void testBounds() throws Exception {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final byte[] data = new byte[4 * 1024 * 1024 + r.nextInt(1024)];
+    r.nextBytes(data);
+    final List<ChecksumStrongProto> chunks = chunk(data, MIN, AVG_GAP, MAX);
+    assertChunks(data, chunks, MIN, MAX);
+
+    // normalized chunking keeps the average close to MIN + AVG_GAP
+    final double avg = (double) data.length / chunks.size();
+    assertTrue("seed=" + seed + ", avg=" + avg,
+        avg > 0.75 * (MIN + AVG_GAP) && avg < 1.25 * (MIN + AVG_GAP));
+
+    // data without boundaries is cut at the maximum size
+    final byte[] zeros = new byte[10 * MAX + 1];
+    final List<ChecksumStrongProto> cut = chunk(zeros, MIN, AVG_GAP, MAX);
+    assertChunks(zeros, cut, MIN, MAX);
+    assertEquals(11, cut.size());
+
+    assertEquals(MAX,
+        new RsyncContentDefinedChunker(MIN, AVG_GAP, MAX).getMaxSize());
+    assertEquals(0, chunk(new byte[0], MIN, AVG_GAP, MAX).size());
+  }
+
+  /** A maximum size not above MIN + AVG_GAP is refused, not replaced. */
+  @Test
+  public void testBadMaxSize() throws Exception {
+    for (int max : new int[] { 0, MIN, MIN + AVG_GAP }) {
+      try {
+        new RsyncContentDefinedChunker(MIN, AVG_GAP, max);
+        fail("maxSize = " + max + " accepted");
+      } catch (IllegalArgumentException e) {
+        GenericTestUtils.assertExceptionContains("maxSize = " + max, e);
+      }
+    }
+    // avgGap is rounded down to a power of two
+    assertEquals(MIN + AVG_GAP + 1, new RsyncContentDefinedChunker(MIN,
+        AVG_GAP + 100, MIN + AVG_GAP + 1).getMaxSize());
+  }
+
+  /** The chunks do not depend on how the block is read. */
+  @Test
+  public void testShortReads() throws Exception {
+    final byte[] data = new byte[3 * RsyncContentDefinedChunker.BUFFER_SIZE
+        + 123];
+    RAN.nextBytes(data);
+    final InputStream in = new FilterInputStream(
+        new ByteArrayInputStream(data)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 1 + RAN.nextInt(5000)));
+      }
+    };
+    assertEquals(chunk(data, MIN, AVG_GAP, MAX),
+        new RsyncContentDefinedChunker(MIN, AVG_GAP, MAX).chunk(in,
+            data.length));
+  }
+
+  /** An insertion only changes the chunks around it. */
+  @Test
+  public void testInsertion() throws Exception {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final byte[] data = new byte[1024 * 1024];
+    r.nextBytes(data);
+    final byte[] inserted = new byte[data.length + 100];
+    final int at = data.length / 2;
+    System.arraycopy(data, 0, inserted, 0, at);
+    r.nextBytes(inserted);
+    System.arraycopy(data, 0, inserted, 0, at);
+    System.arraycopy(data, at, inserted, at + 100, data.length - at);
+
+    final List<ChecksumStrongProto> before = chunk(data, MIN, AVG_GAP, MAX);
+    final Set<ByteString> md5s = new HashSet<ByteString>();
+    for (ChecksumStrongProto c : before) {
+      md5s.add(c.getMd5());
+    }
+    int changed = 0;
+    for (ChecksumStrongProto c : chunk(inserted, MIN, AVG_GAP, MAX)) {
+      if (!md5s.contains(c.getMd5())) {
+        changed++;
+      }
+    }
+    assertTrue("seed=" + seed + ", changed=" + changed + " of "
+        + before.size(), changed <= 3);
+  }
+}
@@ -0,0 +1,277 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.MiniDFSCluster.DataNodeProperties;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockManager;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockManagerTestUtil;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeRsyncMetrics;
+import org.apache.hadoop.hdfs.server.namenode.FSNamesystem;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.io.Files;
+
+/** Test {@link org.apache.hadoop.hdfs.protocol.datatransfer.Op#RSYNC_REPAIR_BLOCK}. */
+public class TestRsyncRepairBlock {
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private Configuration conf;
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() {
+    conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_INTERVAL_KEY, 1);
+    conf.setBoolean(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_RSYNC_REPAIR_ENABLED_KEY, true);
+    conf.setBoolean(DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_ENABLED_KEY, true);
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_CHUNK_SIZE_KEY,
+        CHUNK_SIZE);
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private void startCluster(int numDataNodes) throws IOException {
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(numDataNodes)
+        .build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  /** Start a datanode with repairs enabled or not. */
+  private DataNode startDataNode(boolean repairEnabled) throws IOException {
+    final Configuration dnConf = new HdfsConfiguration(conf);
+    dnConf.setBoolean(DFSConfigKeys.DFS_DATANODE_RSYNC_REPAIR_ENABLED_KEY,
+        repairEnabled);
+    cluster.startDataNodes(dnConf, 1, true, null, null);
+    cluster.waitActive();
+    return cluster.getDataNodes().get(cluster.getDataNodes().size() - 1);
+  }
+
+  private void markCorrupt(ExtendedBlock block, DataNode dn)
+      throws IOException {
+    final FSNamesystem ns = cluster.getNamesystem();
+    ns.writeLock();
+    try {
+      ns.getBlockManager().findAndMarkBlockAsCorrupt(block, new DatanodeInfo(
+          DataNodeTestUtils.getDNRegistrationForBP(dn,
+              block.getBlockPoolId())), "TEST");
+    } finally {
+      ns.writeUnlock();
+    }
+    assertEquals(1, ns.getBlockManager().numCorruptReplicas(
+        block.getLocalBlock()));
+  }
+
+  private static boolean hasReplica(DataNode dn, ExtendedBlock block) {
+    return dn.getFSDataset().getReplica(block.getBlockPoolId(),
+        block.getBlockId()) != null;
+  }
+
+  @Test
+  public void testRepairCorruptReplica() throws Exception {
+    // with two datanodes the corrupt replica can only be repaired in place
+    startCluster(2);
+    final Path file = new Path("/testRepairCorruptReplica");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE, (short) 2, 0L);
+    DFSTestUtil.waitReplication(fs, file, (short) 2);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, file);
+    final byte[] data = Files.toByteArray(
+        MiniDFSCluster.getBlockFile(0, block));
+
+    assertTrue(MiniDFSCluster.corruptReplica(1, block));
+    final DataNode dn = cluster.getDataNodes().get(1);
+    markCorrupt(block, dn);
+
+    waitRepaired(cluster.getNamesystem().getBlockManager(), block);
+    assertArrayEquals(data, Files.toByteArray(
+        MiniDFSCluster.getBlockFile(1, block)));
+    final DataNodeRsyncMetrics metrics = DataNodeTestUtils.getRsyncMetrics(dn);
+    assertEquals(1, metrics.getBlocksRepaired());
+    // only about the corrupt chunk is pulled from the healthy replica
+    assertTrue("repaired = " + metrics.getBytesRepaired(),
+        metrics.getBytesRepaired() <= 2 * CHUNK_SIZE);
+    DFSTestUtil.waitReplication(fs, file, (short) 2);
+  }
+
+  @Test
+  public void testRepairStaleReplica() throws Exception {
+    startCluster(2);
+    final Path file = new Path("/testRepairStaleReplica");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE / 2, (short) 2, 0L);
+    DFSTestUtil.waitReplication(fs, file, (short) 2);
+
+    // the block is appended to while the second datanode is down
+    final String dnName = cluster.getDataNodes().get(1).getDatanodeId()
+        .getXferAddr();
+    final DataNodeProperties dnprop = cluster.stopDataNode(1);
+    BlockManagerTestUtil.noticeDeadDatanode(cluster.getNameNode(), dnName);
+    DFSTestUtil.appendFile(fs, file, CHUNK_SIZE);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, file);
+    final byte[] data = Files.toByteArray(
+        MiniDFSCluster.getBlockFile(0, block));
+    assertEquals(BLOCK_SIZE / 2 + CHUNK_SIZE, data.length);
+
+    // it comes back with a replica of the old generation stamp
+    assertTrue(cluster.restartDataNode(dnprop, true));
+    cluster.waitActive();
+    final DataNode dn = cluster.getDataNodes().get(1);
+
+    waitRepaired(cluster.getNamesystem().getBlockManager(), block);
+    assertEquals(block.getGenerationStamp(), dn.getFSDataset().getReplica(
+        block.getBlockPoolId(), block.getBlockId()).getGenerationStamp());
+    assertArrayEquals(data, Files.toByteArray(
+        MiniDFSCluster.getBlockFile(1, block)));
+    final DataNodeRsyncMetrics metrics = DataNodeTestUtils.getRsyncMetrics(dn);
+    assertEquals(1, metrics.getBlocksRepaired());
+    // only about the appended chunk is pulled from the healthy replica
+    assertTrue("repaired = " + metrics.getBytesRepaired(),
+        metrics.getBytesRepaired() <= 2 * CHUNK_SIZE);
+  }
+
+  /**
+   * A source with repairs enabled replicates a block to a new datanode with
+   * repairs disabled as usual.
+   */
+  @Test
+  public void testReplicateToNewDataNode() throws Exception {
+    startCluster(1);
+    final Path file = new Path("/testReplicateToNewDataNode");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE, (short) 1, 0L);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, file);
+    final byte[] data = Files.toByteArray(
+        MiniDFSCluster.getBlockFile(0, block));
+
+    final DataNode dn = startDataNode(false);
+    fs.setReplication(file, (short) 2);
+    DFSTestUtil.waitReplication(fs, file, (short) 2);
+    assertArrayEquals(data, Files.toByteArray(
+        MiniDFSCluster.getBlockFile(1, block)));
+    assertEquals(0, DataNodeTestUtils.getRsyncMetrics(dn).getBlocksRepaired());
+  }
+
+  /**
+   * A datanode with repairs disabled deletes its corrupt replica when asked
+   * to repair it, and the block is replicated to another datanode without
+   * waiting for the pending replication to time out.
+   */
+  @Test
+  public void testRepairDisabled() throws Exception {
+    startCluster(1);
+    final DataNode dn = startDataNode(false);
+    final Path file = new Path("/testRepairDisabled");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE, (short) 2, 0L);
+    DFSTestUtil.waitReplication(fs, file, (short) 2);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, file);
+    final byte[] data = Files.toByteArray(
+        MiniDFSCluster.getBlockFile(0, block));
+    final DataNode other = startDataNode(true);
+
+    assertTrue(MiniDFSCluster.corruptReplica(1, block));
+    markCorrupt(block, dn);
+
+    // well within the pending replication timeout
+    waitRepaired(cluster.getNamesystem().getBlockManager(), block);
+    assertTrue(hasReplica(other, block));
+    assertFalse(hasReplica(dn, block));
+    assertEquals(0, DataNodeTestUtils.getRsyncMetrics(dn).getBlocksRepaired());
+    final File otherFile = MiniDFSCluster.getBlockFile(2, block);
+    assertNotNull(otherFile);
+    assertArrayEquals(data, Files.toByteArray(otherFile));
+  }
+
+  /**
+   * A datanode which fails to repair its replica deletes it, and the block
+   * is replicated to another datanode.
+   */
+  @Test
+  public void testRepairFailed() throws Exception {
+    startCluster(2);
+    final Path file = new Path("/testRepairFailed");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE, (short) 2, 0L);
+    DFSTestUtil.waitReplication(fs, file, (short) 2);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, file);
+    final byte[] data = Files.toByteArray(
+        MiniDFSCluster.getBlockFile(0, block));
+    final DataNode other = startDataNode(true);
+
+    // the replica cannot even be read to the length of the block
+    final File blockFile = MiniDFSCluster.getBlockFile(1, block);
+    final RandomAccessFile raf = new RandomAccessFile(blockFile, "rw");
+    try {
+      raf.setLength(BLOCK_SIZE / 2);
+    } finally {
+      raf.close();
+    }
+    final DataNode dn = cluster.getDataNodes().get(1);
+    markCorrupt(block, dn);
+
+    final BlockManager bm = cluster.getNamesystem().getBlockManager();
+    waitRepaired(bm, block);
+    assertTrue(hasReplica(other, block));
+    assertFalse(hasReplica(dn, block));
+    assertEquals(0, DataNodeTestUtils.getRsyncMetrics(dn).getBlocksRepaired());
+    final File otherFile = MiniDFSCluster.getBlockFile(2, block);
+    assertNotNull(otherFile);
+    assertArrayEquals(data, Files.toByteArray(otherFile));
+  }
+
+  private static void waitRepaired(final BlockManager bm,
+      final ExtendedBlock block) throws TimeoutException,
+      InterruptedException {
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return bm.numCorruptReplicas(block.getLocalBlock()) == 0
+            && bm.countNodes(block.getLocalBlock()).liveReplicas() == 2;
+      }
+    }, 100, 30000);
+  }
+}
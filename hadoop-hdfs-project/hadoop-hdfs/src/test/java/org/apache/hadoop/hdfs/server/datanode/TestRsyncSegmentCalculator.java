@@ -0,0 +1,351 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hdfs.protocol.datatransfer.RsyncChecksums;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.PackedChecksumsProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.RollingAdler32;
+import org.junit.Test;
+
+/**
+ * Test {@link RsyncSegmentCalculator} against the original in-memory
+ * implementation of DataXceiver#calculateSegments.
+ */
+public class TestRsyncSegmentCalculator {
+  private static final Random RAN = new Random();
+
+  /** The chunk checksums of a destination file. */
+  static class Signatures {
+    final List<Integer> simples = new ArrayList<Integer>();
+    final List<byte[]> md5s = new ArrayList<byte[]>();
+
+    Signatures(byte[] dst, int bytesPerChunk) {
+      // like the client, only full chunks are sent
+      for (int off = 0; off + bytesPerChunk <= dst.length;
+          off += bytesPerChunk) {
+        simples.add(RollingAdler32.checksum(dst, off, bytesPerChunk));
+        md5s.add(MD5Hash.digest(dst, off, bytesPerChunk).getDigest());
+      }
+    }
+  }
+
+  /** Build a source block sharing some chunks with dst. */
+  static byte[] mutate(byte[] dst, int bytesPerChunk, int blockSize,
+      Random r) {
+    final byte[] src = new byte[blockSize];
+    r.nextBytes(src);
+    final int chunks = dst.length / bytesPerChunk;
+    for (int off = r.nextInt(bytesPerChunk);
+        off + bytesPerChunk <= blockSize && chunks > 0;
+        off += bytesPerChunk + r.nextInt(bytesPerChunk)) {
+      final int chunk = r.nextInt(chunks);
+      System.arraycopy(dst, chunk * bytesPerChunk, src, off, bytesPerChunk);
+    }
+    return src;
+  }
+
+  /**
+   * The original algorithm, which reads the whole block into memory.
+   */
+  static List<SegmentProto> legacyCalculate(byte[] buf,
+      List<Integer> simples, List<byte[]> md5s, int bytesPerChunk)
+      throws Exception {
+    final MessageDigest mdInst = MessageDigest.getInstance("MD5");
+    class ChecksumPair {
+      public int index;
+      public byte[] md5;
+      ChecksumPair(int index, byte[] md5) {
+        this.index = index;
+        this.md5 = md5;
+      }
+    }
+    HashMap<Integer, List<ChecksumPair>> checksumMap =
+        new HashMap<Integer, List<ChecksumPair>>();
+    for (int i = 0; i < simples.size(); i++) {
+      if (!checksumMap.containsKey(simples.get(i))) {
+        checksumMap.put(simples.get(i), new LinkedList<ChecksumPair>());
+      }
+      checksumMap.get(simples.get(i)).add(new ChecksumPair(i, md5s.get(i)));
+    }
+
+    final long blockSize = buf.length;
+    List<SegmentProto> segments = new LinkedList<SegmentProto>();
+    int startOffset = 0;
+    int nowOffset = bytesPerChunk;
+    int simple = RollingAdler32.checksum(buf, nowOffset - bytesPerChunk,
+        bytesPerChunk);
+    do {
+      long steps = 0;
+      boolean found = false;
+      if (checksumMap.containsKey(simple)) {
+        mdInst.update(buf, nowOffset - bytesPerChunk, bytesPerChunk);
+        byte[] md5 = mdInst.digest();
+        for (ChecksumPair cp : checksumMap.get(simple)) {
+          if (MessageDigest.isEqual(md5, cp.md5)) {
+            found = true;
+            if (nowOffset - startOffset > bytesPerChunk) {
+              segments.add(SegmentProto.newBuilder().setOffset(startOffset)
+                  .setLength(nowOffset - startOffset - bytesPerChunk)
+                  .setIndex(-1).build());
+            }
+            segments.add(SegmentProto.newBuilder()
+                .setOffset(nowOffset - bytesPerChunk).setIndex(cp.index)
+                .setLength(bytesPerChunk).build());
+            startOffset = nowOffset;
+            steps = blockSize - nowOffset > bytesPerChunk ? bytesPerChunk
+                : blockSize - nowOffset;
+            nowOffset += steps;
+            break;
+          }
+        }
+      }
+      if (!found) {
+        steps = blockSize - nowOffset > 1 ? 1 : blockSize - nowOffset;
+        nowOffset += steps;
+        simple = RollingAdler32.roll(simple,
+            buf[nowOffset - bytesPerChunk - 1], buf[nowOffset - 1],
+            bytesPerChunk);
+      } else {
+        simple = RollingAdler32.checksum(buf, nowOffset - bytesPerChunk,
+            bytesPerChunk);
+      }
+    } while (nowOffset < blockSize);
+
+    if (nowOffset - startOffset > 0) {
+      segments.add(SegmentProto.newBuilder().setOffset(startOffset)
+          .setLength(nowOffset - startOffset).setIndex(-1).build());
+    }
+    return segments;
+  }
+
+  private static List<SegmentProto> calculate(byte[] src, Signatures sigs,
+      int bytesPerChunk) throws IOException {
+    return new RsyncSegmentCalculator(sigs.simples, sigs.md5s, bytesPerChunk)
+        .calculate(new ByteArrayInputStream(src), src.length);
+  }
+
+  /** The segments must cover the block without gaps or overlaps. */
+  private static void assertCovers(List<SegmentProto> segments, long length) {
+    long offset = 0;
+    for (SegmentProto s : segments) {
+      assertEquals(offset, s.getOffset());
+      offset += s.getLength();
+    }
+    assertEquals(length, offset);
+  }
+
+  @Test
+  public void testSameAsLegacy() throws Exception {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    for (int bytesPerChunk : new int[] { 16, 100, 512, 4096 }) {
+      for (int i = 0; i < 10; i++) {
+        final byte[] dst = new byte[bytesPerChunk * (1 + r.nextInt(20))
+            + r.nextInt(bytesPerChunk)];
+        r.nextBytes(dst);
+        final Signatures sigs = new Signatures(dst, bytesPerChunk);
+        final int blockSize = bytesPerChunk + 1 + r.nextInt(30 * bytesPerChunk);
+        final byte[] src = mutate(dst, bytesPerChunk, blockSize, r);
+
+        final List<SegmentProto> expected =
+            legacyCalculate(src, sigs.simples, sigs.md5s, bytesPerChunk);
+        final List<SegmentProto> actual = calculate(src, sigs, bytesPerChunk);
+        assertEquals("seed=" + seed + ", bytesPerChunk=" + bytesPerChunk,
+            expected, actual);
+        assertCovers(actual, blockSize);
+      }
+    }
+  }
+
+  @Test
+  public void testIdenticalBlock() throws Exception {
+    final int bytesPerChunk = 1024;
+    final byte[] dst = new byte[bytesPerChunk * 8];
+    RAN.nextBytes(dst);
+    final byte[] src = Arrays.copyOf(dst, dst.length);
+
+    final List<SegmentProto> segments = calculate(src,
+        new Signatures(dst, bytesPerChunk), bytesPerChunk);
+    assertEquals(8, segments.size());
+    // as in the original implementation, the window ending at the end of
+    // the block is not compared, so the last chunk is sent as a literal.
+    for (int i = 0; i < segments.size(); i++) {
+      assertEquals(i < 7 ? i : -1, segments.get(i).getIndex());
+      assertEquals(bytesPerChunk, segments.get(i).getLength());
+    }
+  }
+
+  @Test
+  public void testShortBlocks() throws Exception {
+    final int bytesPerChunk = 512;
+    final byte[] dst = new byte[bytesPerChunk * 4];
+    RAN.nextBytes(dst);
+    final Signatures sigs = new Signatures(dst, bytesPerChunk);
+
+    assertEquals(0, calculate(new byte[0], sigs, bytesPerChunk).size());
+
+    // a block shorter than a chunk is a single literal segment
+    final byte[] small = Arrays.copyOf(dst, bytesPerChunk - 1);
+    final List<SegmentProto> segments = calculate(small, sigs, bytesPerChunk);
+    assertEquals(1, segments.size());
+    assertEquals(-1, segments.get(0).getIndex());
+    assertEquals(small.length, segments.get(0).getLength());
+
+    // a block of exactly one unmatched chunk
+    final byte[] one = new byte[bytesPerChunk];
+    RAN.nextBytes(one);
+    assertCovers(calculate(one, sigs, bytesPerChunk), bytesPerChunk);
+  }
+
+  /** Packed, truncated and compressed signatures find the same matches. */
+  @Test
+  public void testPackedSignatures() throws Exception {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final int bytesPerChunk = 512;
+    final byte[] dst = new byte[bytesPerChunk * 40 + 100];
+    r.nextBytes(dst);
+    final Signatures sigs = new Signatures(dst, bytesPerChunk);
+    final byte[] src = mutate(dst, bytesPerChunk, 50 * bytesPerChunk, r);
+    final List<SegmentProto> expected =
+        legacyCalculate(src, sigs.simples, sigs.md5s, bytesPerChunk);
+
+    for (int strongLength : new int[] { 4, 8, MD5Hash.MD5_LEN }) {
+      for (boolean compress : new boolean[] { false, true }) {
+        final int[] weak = new int[sigs.simples.size()];
+        final byte[] strong = new byte[weak.length * strongLength];
+        for (int i = 0; i < weak.length; i++) {
+          weak[i] = sigs.simples.get(i);
+          System.arraycopy(sigs.md5s.get(i), 0, strong, i * strongLength,
+              strongLength);
+        }
+        final PackedChecksumsProto packed =
+            new RsyncChecksums(weak, strong, strongLength).toProto(compress);
+        assertEquals(compress, packed.getCompressed());
+        final RsyncChecksums unpacked = RsyncChecksums.fromProto(
+            PackedChecksumsProto.parseFrom(packed.toByteString()));
+        assertArrayEquals(weak, unpacked.getWeak());
+        assertArrayEquals(strong, unpacked.getStrong());
+
+        final RsyncChecksumIndex index = new RsyncChecksumIndex(
+            unpacked.getWeak(), unpacked.getStrong(), strongLength);
+        assertEquals("seed=" + seed + ", strongLength=" + strongLength,
+            expected, new RsyncSegmentCalculator(index, bytesPerChunk)
+                .calculate(new ByteArrayInputStream(src), src.length));
+      }
+    }
+  }
+
+  /**
+   * Compare heap usage and throughput of the original and the streaming
+   * implementations. Run with
+   *
+   *   java ... 'org.apache.hadoop.hdfs.server.datanode.TestRsyncSegmentCalculator$PerformanceTest' [blockSizeMB]
+   */
+  public static class PerformanceTest {
+    public static void main(String[] args) throws Exception {
+      final int blockSize = (args.length > 0 ? Integer.parseInt(args[0]) : 64)
+          << 20;
+      doBench(blockSize, System.out);
+    }
+
+    private static void doBench(int blockSize, PrintStream out)
+        throws Exception {
+      final Random r = new Random(0);
+      out.printf("\nBlock size %d MB (throughput in MB/sec, peak heap in MB)"
+          + "\n|| Chunk || legacy MB/s || legacy heap || streaming MB/s "
+          + "|| streaming heap ||\n", blockSize >> 20);
+      for (int bytesPerChunk = 64 << 10; bytesPerChunk <= 4 << 20;
+          bytesPerChunk <<= 2) {
+        final byte[] dst = new byte[blockSize];
+        r.nextBytes(dst);
+        final Signatures sigs = new Signatures(dst, bytesPerChunk);
+        final byte[] src = mutate(dst, bytesPerChunk, blockSize, r);
+
+        // warm up
+        legacy(src, sigs, bytesPerChunk);
+        calculate(src, sigs, bytesPerChunk);
+
+        resetPeakHeap();
+        long start = System.nanoTime();
+        legacy(src, sigs, bytesPerChunk);
+        final double legacyRate = rate(blockSize, System.nanoTime() - start);
+        final long legacyHeap = peakHeap();
+
+        resetPeakHeap();
+        start = System.nanoTime();
+        calculate(src, sigs, bytesPerChunk);
+        final double streamRate = rate(blockSize, System.nanoTime() - start);
+        final long streamHeap = peakHeap();
+
+        out.printf("| %d | %.1f | %d | %.1f | %d |\n", bytesPerChunk,
+            legacyRate, legacyHeap >> 20, streamRate, streamHeap >> 20);
+      }
+    }
+
+    /** The legacy path copies the block into a buffer of its size first. */
+    private static void legacy(byte[] src, Signatures sigs, int bytesPerChunk)
+        throws Exception {
+      final byte[] buf = new byte[src.length];
+      new ByteArrayInputStream(src).read(buf);
+      legacyCalculate(buf, sigs.simples, sigs.md5s, bytesPerChunk);
+    }
+
+    private static double rate(long bytes, long nanos) {
+      return bytes * 1000.0 / nanos;
+    }
+
+    private static void resetPeakHeap() {
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        }
+      }
+    }
+
+    private static long peakHeap() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          peak += pool.getPeakUsage().getUsed();
+        }
+      }
+      return peak;
+    }
+  }
+}
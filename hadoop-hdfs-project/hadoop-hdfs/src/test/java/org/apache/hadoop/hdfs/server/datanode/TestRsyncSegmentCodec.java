@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.junit.Test;
+
+/** Test {@link RsyncSegmentCodec}. */
+public class TestRsyncSegmentCodec {
+  private static final Configuration CONF = new Configuration();
+
+  /**
+   * Write data in frames with the codec of name and read them back.
+   *
+   * @return the number of bytes written
+   */
+  private static int roundTrip(String name, byte[] data) throws IOException {
+    final RsyncSegmentCodec writer = RsyncSegmentCodec.newInstance(CONF, name);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    int written = 0;
+    try {
+      for (int off = 0; off < data.length; off += RsyncSegmentCodec.FRAME_SIZE) {
+        written += writer.writeFrame(data, off,
+            Math.min(RsyncSegmentCodec.FRAME_SIZE, data.length - off), out);
+      }
+    } finally {
+      writer.close();
+    }
+    out.flush();
+    assertEquals(bytes.size(), written);
+
+    final RsyncSegmentCodec reader = RsyncSegmentCodec.newInstance(CONF, name);
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+        bytes.toByteArray()));
+    final byte[] buf = new byte[RsyncSegmentCodec.FRAME_SIZE];
+    final ByteArrayOutputStream read = new ByteArrayOutputStream();
+    try {
+      while (read.size() < data.length) {
+        read.write(buf, 0, reader.readFrame(in, buf));
+      }
+    } finally {
+      reader.close();
+    }
+    assertArrayEquals(data, read.toByteArray());
+    return written;
+  }
+
+  @Test
+  public void testNoCodec() {
+    assertNull(RsyncSegmentCodec.newInstance(CONF, null));
+    assertNull(RsyncSegmentCodec.newInstance(CONF, ""));
+  }
+
+  @Test
+  public void testCompressible() throws IOException {
+    final byte[] data = new byte[10 * RsyncSegmentCodec.FRAME_SIZE + 7];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ("0123456789abcdef\n".charAt(i % 17));
+    }
+    final int written = roundTrip(DefaultCodec.class.getName(), data);
+    assertTrue("written = " + written, written < data.length / 4);
+  }
+
+  @Test
+  public void testIncompressible() throws IOException {
+    // the rest of the block is stored without trying once the sampled
+    // frames did not compress
+    final byte[] data = new byte[10 * RsyncSegmentCodec.FRAME_SIZE];
+    new Random(0).nextBytes(data);
+    final int frames = data.length / RsyncSegmentCodec.FRAME_SIZE;
+    assertEquals(data.length + frames * RsyncSegmentCodec.FRAME_HEADER_SIZE,
+        roundTrip("default", data));
+  }
+
+  @Test
+  public void testUnknownCodec() throws IOException {
+    // frames are stored, and read back by a datanode not knowing the codec
+    final byte[] data = Arrays.copyOf("rsync".getBytes("UTF-8"), 1000);
+    assertEquals(data.length + RsyncSegmentCodec.FRAME_HEADER_SIZE,
+        roundTrip("org.example.NoSuchCodec", data));
+  }
+}
@@ -0,0 +1,299 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.apache.hadoop.test.MetricsAsserts.assertCounter;
+import static org.apache.hadoop.test.MetricsAsserts.assertCounterGt;
+import static org.apache.hadoop.test.MetricsAsserts.getLongCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenSecretManager;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.net.NetUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/** Test {@link org.apache.hadoop.hdfs.protocol.datatransfer.Op#RSYNC_SEND_SEGMENTS}. */
+public class TestRsyncSendSegments {
+  private static final String BLOCK_DIR_NAME = "1073741000_1001";
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    final Configuration conf = new HdfsConfiguration();
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(2).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      for (DataNode dn : cluster.getDataNodes()) {
+        FileUtil.fullyDelete(DataXceiver.getRsyncBlockDir(dn.getConf(),
+            BLOCK_DIR_NAME));
+      }
+      cluster.shutdown();
+    }
+  }
+
+  private static SegmentRangeProto range(long offset, long length,
+      long destOffset) {
+    return SegmentRangeProto.newBuilder().setOffset(offset)
+        .setLength(length).setDestOffset(destOffset).build();
+  }
+
+  private static Status sendSegments(DatanodeInfo source, ExtendedBlock block,
+      List<SegmentRangeProto> ranges, DatanodeInfo[] targets)
+      throws IOException {
+    return sendSegments(source, block, ranges, targets, null);
+  }
+
+  private static Status sendSegments(DatanodeInfo source, ExtendedBlock block,
+      List<SegmentRangeProto> ranges, DatanodeInfo[] targets, String codec)
+      throws IOException {
+    final Socket sock = new Socket();
+    try {
+      sock.connect(NetUtils.createSocketAddr(source.getXferAddr()),
+          HdfsServerConstants.READ_TIMEOUT);
+      final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+      new Sender(out).sendSegments(block, BlockTokenSecretManager.DUMMY_TOKEN,
+          "TestRsyncSendSegments", ranges, true, BLOCK_DIR_NAME, targets, null,
+          codec, null);
+      out.flush();
+      return BlockOpResponseProto.parseDelimitedFrom(
+          new DataInputStream(sock.getInputStream())).getStatus();
+    } finally {
+      sock.close();
+    }
+  }
+
+  private byte[] readFile(Path path, int len) throws IOException {
+    final byte[] data = new byte[len];
+    final FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  @Test
+  public void testSendSegments() throws Exception {
+    final Path path = new Path("/testSendSegments");
+    final int fileLen = 3 * DataXceiver.SEND_SEGMENTS_ACK_WINDOW * 1024 + 123;
+    DFSTestUtil.createFile(fs, path, fileLen, (short) 1, 0L);
+    final byte[] data = readFile(path, fileLen);
+    final LocatedBlock lb = DFSTestUtil.getAllBlocks(fs, path).get(0);
+
+    // more ranges than the ack window, in no particular order, through a
+    // pipeline of both datanodes
+    final List<SegmentRangeProto> ranges = new ArrayList<SegmentRangeProto>();
+    long destOffset = 0;
+    for (int i = 3 * DataXceiver.SEND_SEGMENTS_ACK_WINDOW - 1; i >= 0; i--) {
+      ranges.add(range(i * 1024, 1024, destOffset));
+      destOffset += 1024;
+    }
+    ranges.add(range(fileLen - 123, 123, destOffset));
+
+    final List<DataNode> dns = cluster.getDataNodes();
+    final DatanodeInfo[] targets = new DatanodeInfo[dns.size()];
+    for (int i = 0; i < targets.length; i++) {
+      targets[i] = new DatanodeInfo(dns.get(i).getDatanodeId());
+    }
+    assertEquals(Status.SUCCESS, sendSegments(lb.getLocations()[0],
+        lb.getBlock(), ranges, targets));
+
+    for (DataNode dn : dns) {
+      // the source may copy the ranges locally as well as send them
+      final String metrics = dn.getMetrics().getRsyncMetrics().name();
+      if (dn.getDatanodeId().getXferAddr().equals(
+          lb.getLocations()[0].getXferAddr())) {
+        assertCounterGt("SegmentsSent", ranges.size() - 1,
+            getMetrics(metrics));
+      } else {
+        assertCounter("SegmentsReceived", (long) ranges.size(),
+            getMetrics(metrics));
+        assertCounter("BytesReceived", (long) fileLen, getMetrics(metrics));
+      }
+
+      final File blockDir = DataXceiver.getRsyncBlockDir(dn.getConf(),
+          BLOCK_DIR_NAME);
+      assertEquals(ranges.size(), blockDir.list().length);
+      for (SegmentRangeProto r : ranges) {
+        final File segment = new File(blockDir, DataXceiver.getSegmentName(
+            r.getDestOffset(), r.getLength()));
+        assertArrayEquals(Arrays.copyOfRange(data, (int) r.getOffset(),
+            (int) (r.getOffset() + r.getLength())),
+            Files.toByteArray(segment));
+      }
+    }
+  }
+
+  @Test
+  public void testCompressedSegments() throws Exception {
+    final Path path = new Path("/testCompressedSegments");
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * RsyncSegmentCodec.FRAME_SIZE; i++) {
+      text.append("{\"line\": ").append(i).append(", \"level\": \"INFO\"}\n");
+    }
+    final byte[] data = text.toString().getBytes("UTF-8");
+    final FSDataOutputStream out = fs.create(path, (short) 1);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    final LocatedBlock lb = DFSTestUtil.getAllBlocks(fs, path).get(0);
+
+    // a range of several frames and a small one, through a pipeline of
+    // both datanodes, the second receiving the frames as forwarded
+    final List<SegmentRangeProto> ranges = Arrays.asList(
+        range(100, data.length - 100, 0), range(0, 100, data.length - 100));
+    final DatanodeInfo source = lb.getLocations()[0];
+    final List<DatanodeInfo> targets = new ArrayList<DatanodeInfo>();
+    for (DataNode dn : cluster.getDataNodes()) {
+      if (!dn.getDatanodeId().getXferAddr().equals(source.getXferAddr())) {
+        targets.add(0, new DatanodeInfo(dn.getDatanodeId()));
+      } else {
+        targets.add(new DatanodeInfo(dn.getDatanodeId()));
+      }
+    }
+    assertEquals(Status.SUCCESS, sendSegments(source, lb.getBlock(), ranges,
+        targets.toArray(new DatanodeInfo[targets.size()]),
+        DefaultCodec.class.getName()));
+
+    for (DataNode dn : cluster.getDataNodes()) {
+      final String metrics = dn.getMetrics().getRsyncMetrics().name();
+      if (dn.getDatanodeId().getXferAddr().equals(source.getXferAddr())) {
+        final long onWire = getLongCounter("BytesSentOnWire",
+            getMetrics(metrics));
+        assertTrue("BytesSentOnWire = " + onWire, onWire > 0
+            && onWire < data.length / 2);
+      }
+      final File blockDir = DataXceiver.getRsyncBlockDir(dn.getConf(),
+          BLOCK_DIR_NAME);
+      for (SegmentRangeProto r : ranges) {
+        assertArrayEquals(Arrays.copyOfRange(data, (int) r.getOffset(),
+            (int) (r.getOffset() + r.getLength())),
+            Files.toByteArray(new File(blockDir, DataXceiver.getSegmentName(
+                r.getDestOffset(), r.getLength()))));
+      }
+    }
+  }
+
+  @Test
+  public void testLocalCopy() throws Exception {
+    final Path path = new Path("/testLocalCopy");
+    DFSTestUtil.createFile(fs, path, 4096, (short) 1, 0L);
+    final byte[] data = readFile(path, 4096);
+    final LocatedBlock lb = DFSTestUtil.getAllBlocks(fs, path).get(0);
+    final DatanodeInfo source = lb.getLocations()[0];
+
+    // the source copies the ranges locally and sends them to the other one
+    final List<DatanodeInfo> targets = new ArrayList<DatanodeInfo>();
+    targets.add(source);
+    for (DataNode dn : cluster.getDataNodes()) {
+      if (!dn.getDatanodeId().getXferAddr().equals(source.getXferAddr())) {
+        targets.add(new DatanodeInfo(dn.getDatanodeId()));
+      }
+    }
+    final List<SegmentRangeProto> ranges = Arrays.asList(range(3000, 1096, 0),
+        range(0, 3000, 1096));
+    assertEquals(Status.SUCCESS, sendSegments(source, lb.getBlock(), ranges,
+        targets.toArray(new DatanodeInfo[targets.size()])));
+
+    for (DataNode dn : cluster.getDataNodes()) {
+      final File blockDir = DataXceiver.getRsyncBlockDir(dn.getConf(),
+          BLOCK_DIR_NAME);
+      for (SegmentRangeProto r : ranges) {
+        assertArrayEquals(Arrays.copyOfRange(data, (int) r.getOffset(),
+            (int) (r.getOffset() + r.getLength())),
+            Files.toByteArray(new File(blockDir, DataXceiver.getSegmentName(
+                r.getDestOffset(), r.getLength()))));
+      }
+    }
+  }
+
+  @Test
+  public void testBadLink() throws Exception {
+    final Path path = new Path("/testBadLink");
+    DFSTestUtil.createFile(fs, path, 4096, (short) 1, 0L);
+    final LocatedBlock lb = DFSTestUtil.getAllBlocks(fs, path).get(0);
+    final DataNode dn = cluster.getDataNodes().get(0);
+    final ServerSocket ss = new ServerSocket(0);
+    final int deadPort = ss.getLocalPort();
+    ss.close();
+
+    // the pipeline fails after the first target, which keeps its segments
+    final DatanodeInfo[] targets = { new DatanodeInfo(dn.getDatanodeId()),
+        DFSTestUtil.getLocalDatanodeInfo(deadPort) };
+    assertEquals(Status.ERROR, sendSegments(lb.getLocations()[0],
+        lb.getBlock(), Arrays.asList(range(0, 1024, 0), range(1024, 1024,
+            1024)), targets));
+    assertEquals(2, DataXceiver.getRsyncBlockDir(dn.getConf(), BLOCK_DIR_NAME)
+        .list().length);
+  }
+
+  @Test
+  public void testMissingBlock() throws Exception {
+    final Path path = new Path("/testMissingBlock");
+    DFSTestUtil.createFile(fs, path, 4096, (short) 1, 0L);
+    final LocatedBlock lb = DFSTestUtil.getAllBlocks(fs, path).get(0);
+    final ExtendedBlock missing = new ExtendedBlock(lb.getBlock());
+    missing.setBlockId(missing.getBlockId() + 1000);
+    assertEquals(Status.ERROR, sendSegments(lb.getLocations()[0], missing,
+        Arrays.asList(range(0, 1024, 0)), lb.getLocations()));
+  }
+}
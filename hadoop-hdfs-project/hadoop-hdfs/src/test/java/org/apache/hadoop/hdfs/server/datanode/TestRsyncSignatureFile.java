@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.ChecksumPairProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.OpChunksChecksumResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenSecretManager;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.apache.hadoop.util.RollingAdler32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.protobuf.ByteString;
+
+/** Test the rsync signature files cached by the DataNode. */
+public class TestRsyncSignatureFile {
+  private static final int BYTES_PER_CHUNK = 16 * 1024;
+  private static final String KEY = "fixed_" + BYTES_PER_CHUNK;
+  private static final long FILE_LEN = 5 * BYTES_PER_CHUNK + 1000;
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private DataNode dn;
+
+  @Before
+  public void setUp() throws IOException {
+    final Configuration conf = new HdfsConfiguration();
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    dn = cluster.getDataNodes().get(0);
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private OpChunksChecksumResponseProto chunksChecksum(ExtendedBlock block)
+      throws IOException {
+    return chunksChecksum(block, StrongHashTypeProto.MD5);
+  }
+
+  private OpChunksChecksumResponseProto chunksChecksum(ExtendedBlock block,
+      StrongHashTypeProto strongHash) throws IOException {
+    final Socket sock = new Socket();
+    try {
+      sock.connect(NetUtils.createSocketAddr(
+          dn.getDatanodeId().getXferAddr()), HdfsServerConstants.READ_TIMEOUT);
+      final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+      new Sender(out).chunksChecksum(block, BlockTokenSecretManager.DUMMY_TOKEN,
+          BYTES_PER_CHUNK, strongHash);
+      out.flush();
+      final BlockOpResponseProto reply = BlockOpResponseProto
+          .parseDelimitedFrom(new DataInputStream(sock.getInputStream()));
+      assertEquals(Status.SUCCESS, reply.getStatus());
+      return reply.getChunksChecksumResponse();
+    } finally {
+      sock.close();
+    }
+  }
+
+  private byte[] readFile(Path path) throws IOException {
+    final byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+    final FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private static void assertChecksums(byte[] data,
+      OpChunksChecksumResponseProto response) {
+    assertChecksums(data, response, StrongHashTypeProto.MD5);
+  }
+
+  /** The strong checksums are computed from the data. */
+  private static void assertChecksums(byte[] data,
+      OpChunksChecksumResponseProto response, StrongHashTypeProto strongHash) {
+    assertEquals(strongHash, response.getStrongHash());
+    final RsyncStrongHash hash = RsyncStrongHash.newInstance(strongHash);
+    final int chunks = (data.length + BYTES_PER_CHUNK - 1) / BYTES_PER_CHUNK;
+    assertEquals(chunks, response.getChecksumsCount());
+    for (int i = 0; i < chunks; i++) {
+      final int off = i * BYTES_PER_CHUNK;
+      final int len = Math.min(BYTES_PER_CHUNK, data.length - off);
+      final ChecksumPairProto pair = response.getChecksums(i);
+      assertEquals(RollingAdler32.checksum(data, off, len), pair.getSimple());
+      hash.update(data, off, len);
+      assertArrayEquals(hash.digest(), pair.getMd5().toByteArray());
+    }
+  }
+
+  @Test
+  public void testSignatureFile() throws Exception {
+    final Path path = new Path("/testSignatureFile");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final byte[] data = readFile(path);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, path);
+
+    final File sigFile = dn.getFSDataset().getRsyncSignatureFile(block, KEY);
+    assertNotNull(sigFile);
+    assertFalse(sigFile.exists());
+
+    // the first request computes and saves the signatures
+    final OpChunksChecksumResponseProto computed = chunksChecksum(block);
+    assertChecksums(data, computed);
+    assertTrue(sigFile.exists());
+    assertEquals(computed, RsyncSignatureFile.read(dn.getFSDataset(), block,
+        KEY, OpChunksChecksumResponseProto.PARSER));
+
+    // the following requests are served from the signature file
+    final OpChunksChecksumResponseProto fake = OpChunksChecksumResponseProto
+        .newBuilder(computed).clearChecksums()
+        .addChecksums(ChecksumPairProto.newBuilder().setSimple(1)
+            .setMd5(ByteString.copyFrom(new byte[MD5Hash.MD5_LEN])))
+        .build();
+    RsyncSignatureFile.write(dn.getFSDataset(), block, KEY, fake);
+    assertEquals(fake, chunksChecksum(block));
+
+    // a broken signature file is ignored and rewritten
+    new FileOutputStream(sigFile).close();
+    assertChecksums(data, chunksChecksum(block));
+    assertEquals(computed, RsyncSignatureFile.read(dn.getFSDataset(), block,
+        KEY, OpChunksChecksumResponseProto.PARSER));
+  }
+
+  /** Each strong hash has its own signature file. */
+  @Test
+  public void testStrongHash() throws Exception {
+    final Path path = new Path("/testStrongHash");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final byte[] data = readFile(path);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, path);
+
+    for (StrongHashTypeProto strongHash : StrongHashTypeProto.values()) {
+      // CRC32C_MURMUR3_128 is computed from the meta file
+      final OpChunksChecksumResponseProto computed = chunksChecksum(block,
+          strongHash);
+      assertChecksums(data, computed, strongHash);
+      assertEquals(computed, RsyncSignatureFile.read(dn.getFSDataset(), block,
+          KEY + RsyncStrongHash.getSignatureKeySuffix(strongHash),
+          OpChunksChecksumResponseProto.PARSER));
+      assertEquals(computed, chunksChecksum(block, strongHash));
+    }
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    final Path path = new Path("/testInvalidation");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, path);
+    chunksChecksum(block);
+    final File sigFile = dn.getFSDataset().getRsyncSignatureFile(block, KEY);
+    assertTrue(sigFile.exists());
+
+    // reopening the replica bumps its generation stamp
+    final FSDataOutputStream out = fs.append(path);
+    out.write(new byte[BYTES_PER_CHUNK]);
+    out.hflush();
+    assertFalse(sigFile.exists());
+    assertNull(dn.getFSDataset().getRsyncSignatureFile(block, KEY));
+    out.close();
+
+    final byte[] data = readFile(path);
+    final ExtendedBlock appended = DFSTestUtil.getFirstBlock(fs, path);
+    assertTrue(appended.getGenerationStamp() > block.getGenerationStamp());
+    assertChecksums(data, chunksChecksum(appended));
+    final File appendedSigFile = dn.getFSDataset().getRsyncSignatureFile(
+        appended, KEY);
+    assertTrue(appendedSigFile.exists());
+
+    // deleting the replica deletes its signature files
+    fs.delete(path, false);
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return !appendedSigFile.exists();
+      }
+    }, 100, 10000);
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    cluster.shutdown();
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_DATANODE_RSYNC_SIGNATURE_CACHE_ENABLED_KEY, false);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    dn = cluster.getDataNodes().get(0);
+
+    final Path path = new Path("/testDisabled");
+    DFSTestUtil.createFile(fs, path, FILE_LEN, (short) 1, 0L);
+    final byte[] data = readFile(path);
+    final ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, path);
+    assertChecksums(data, chunksChecksum(block));
+    assertFalse(dn.getFSDataset().getRsyncSignatureFile(block, KEY).exists());
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.RollingAdler32;
+import org.apache.hadoop.util.StringUtils;
+import org.junit.Test;
+
+/** Test {@link RsyncStrongHash}. */
+public class TestRsyncStrongHash {
+  private static final Random RAN = new Random();
+
+  private static byte[] hash(StrongHashTypeProto type, byte[] b, int off,
+      int len) {
+    final RsyncStrongHash hash = RsyncStrongHash.newInstance(type);
+    hash.update(b, off, len);
+    return hash.digest();
+  }
+
+  @Test
+  public void testMurmur3() throws Exception {
+    assertArrayEquals(new byte[RsyncStrongHash.LENGTH],
+        hash(StrongHashTypeProto.MURMUR3_128, new byte[0], 0, 0));
+    final byte[] fox = "The quick brown fox jumps over the lazy dog"
+        .getBytes("US-ASCII");
+    assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", StringUtils.byteToHexString(
+        hash(StrongHashTypeProto.MURMUR3_128, fox, 0, fox.length)));
+  }
+
+  @Test
+  public void testMd5() throws Exception {
+    final byte[] data = new byte[1000];
+    RAN.nextBytes(data);
+    assertArrayEquals(MD5Hash.digest(data, 10, 900).getDigest(),
+        hash(StrongHashTypeProto.MD5, data, 10, 900));
+  }
+
+  /** A hash does not depend on how its bytes are given. */
+  @Test
+  public void testUpdates() throws Exception {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final byte[] data = new byte[10000];
+    r.nextBytes(data);
+    for (StrongHashTypeProto type : StrongHashTypeProto.values()) {
+      final RsyncStrongHash hash = RsyncStrongHash.newInstance(type);
+      for (int len : new int[] {0, 1, 15, 16, 17, 511, 512, 513, 10000}) {
+        final byte[] expected = hash(type, data, 0, len);
+        for (int off = 0; off < len;) {
+          final int n = Math.min(len - off, r.nextInt(40));
+          hash.update(data, off, n);
+          off += n;
+        }
+        // every digest starts the next hash
+        assertArrayEquals("seed=" + seed + ", type=" + type + ", len=" + len,
+            expected, hash.digest());
+      }
+    }
+  }
+
+  /** The CRC32C of a meta file give the hash of the data. */
+  @Test
+  public void testCrcs() throws Exception {
+    final DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.Type.CRC32C, RsyncStrongHash.BYTES_PER_CRC);
+    assertTrue(RsyncStrongHash.Crc32cMurmur3.canUseMeta(checksum, 4096));
+    assertTrue(!RsyncStrongHash.Crc32cMurmur3.canUseMeta(checksum, 4000));
+    assertTrue(!RsyncStrongHash.Crc32cMurmur3.canUseMeta(
+        DataChecksum.newDataChecksum(DataChecksum.Type.CRC32, 512), 4096));
+
+    for (int len : new int[] {1, 512, 4096, 5000}) {
+      final byte[] data = new byte[len];
+      RAN.nextBytes(data);
+      final ByteBuffer crcs = ByteBuffer.allocate(
+          checksum.getChecksumSize() * ((len - 1) / 512 + 1));
+      checksum.calculateChunkedSums(ByteBuffer.wrap(data), crcs);
+
+      final RsyncStrongHash.Crc32cMurmur3 hash =
+          new RsyncStrongHash.Crc32cMurmur3();
+      hash.updateCrcs(crcs.array(), 0, crcs.capacity());
+      assertArrayEquals("len=" + len,
+          hash(StrongHashTypeProto.CRC32C_MURMUR3_128, data, 0, len),
+          hash.digest());
+    }
+  }
+
+  /** The segments are the same with any strong hash. */
+  @Test
+  public void testSegments() throws Exception {
+    final long seed = RAN.nextLong();
+    final Random r = new Random(seed);
+    final int bytesPerChunk = 4096;
+    final byte[] dst = new byte[50 * bytesPerChunk + 123];
+    r.nextBytes(dst);
+    final byte[] src = new byte[dst.length + 1000];
+    r.nextBytes(src);
+    System.arraycopy(dst, 0, src, 0, 10 * bytesPerChunk);
+    System.arraycopy(dst, 10 * bytesPerChunk, src, 10 * bytesPerChunk + 1000,
+        dst.length - 10 * bytesPerChunk);
+
+    List<SegmentProto> expected = null;
+    for (StrongHashTypeProto type : StrongHashTypeProto.values()) {
+      final int chunks = dst.length / bytesPerChunk;
+      final int[] weak = new int[chunks];
+      final byte[] strongs = new byte[chunks * RsyncStrongHash.LENGTH];
+      final RsyncStrongHash hash = RsyncStrongHash.newInstance(type);
+      for (int i = 0; i < chunks; i++) {
+        weak[i] = RollingAdler32.checksum(dst, i * bytesPerChunk, bytesPerChunk);
+        hash.update(dst, i * bytesPerChunk, bytesPerChunk);
+        hash.digest(strongs, i * RsyncStrongHash.LENGTH);
+      }
+      final List<SegmentProto> segments = new RsyncSegmentCalculator(
+          new RsyncChecksumIndex(weak, strongs, RsyncStrongHash.LENGTH, type),
+          bytesPerChunk).calculate(new ByteArrayInputStream(src), src.length);
+      if (expected == null) {
+        expected = segments;
+        // every chunk matched, the inserted bytes and the tail literal
+        assertEquals("seed=" + seed, chunks + 2, segments.size());
+      } else {
+        assertEquals("seed=" + seed + ", type=" + type, expected, segments);
+      }
+    }
+  }
+
+  /**
+   * Compare the throughput per core of the strong hashes. Run with
+   *
+   *   java ... 'org.apache.hadoop.hdfs.server.datanode.TestRsyncStrongHash$PerformanceTest' [dataSizeMB]
+   */
+  public static class PerformanceTest {
+    public static void main(String[] args) throws Exception {
+      final int dataSize = (args.length > 0 ? Integer.parseInt(args[0]) : 256)
+          << 20;
+      doBench(dataSize, System.out);
+    }
+
+    private static void doBench(int dataSize, PrintStream out) {
+      final byte[] data = new byte[dataSize];
+      new Random(0).nextBytes(data);
+      final DataChecksum checksum = DataChecksum.newDataChecksum(
+          DataChecksum.Type.CRC32C, RsyncStrongHash.BYTES_PER_CRC);
+      final ByteBuffer crcs = ByteBuffer.allocate(
+          dataSize / RsyncStrongHash.BYTES_PER_CRC * checksum.getChecksumSize());
+      checksum.calculateChunkedSums(ByteBuffer.wrap(data), crcs);
+
+      out.printf("\nData size %d MB, one thread (throughput in MB/sec)\n||"
+          + " Chunk ||", dataSize >> 20);
+      for (StrongHashTypeProto type : StrongHashTypeProto.values()) {
+        out.printf(" %s ||", type);
+      }
+      out.printf(" %s from meta ||\n",
+          StrongHashTypeProto.CRC32C_MURMUR3_128);
+      for (int bytesPerChunk = 4 << 10; bytesPerChunk <= 4 << 20;
+          bytesPerChunk <<= 2) {
+        out.printf("| %d |", bytesPerChunk);
+        for (StrongHashTypeProto type : StrongHashTypeProto.values()) {
+          final RsyncStrongHash hash = RsyncStrongHash.newInstance(type);
+          hashChunks(hash, data, bytesPerChunk); // warm up
+          final long start = System.nanoTime();
+          hashChunks(hash, data, bytesPerChunk);
+          out.printf(" %.1f |", rate(dataSize, System.nanoTime() - start));
+        }
+        final RsyncStrongHash.Crc32cMurmur3 hash =
+            new RsyncStrongHash.Crc32cMurmur3();
+        final int crcsPerChunk = bytesPerChunk / RsyncStrongHash.BYTES_PER_CRC
+            * checksum.getChecksumSize();
+        hashCrcs(hash, crcs.array(), crcsPerChunk); // warm up
+        final long start = System.nanoTime();
+        hashCrcs(hash, crcs.array(), crcsPerChunk);
+        out.printf(" %.1f |\n", rate(dataSize, System.nanoTime() - start));
+      }
+    }
+
+    private static void hashChunks(RsyncStrongHash hash, byte[] data,
+        int bytesPerChunk) {
+      final byte[] digest = new byte[RsyncStrongHash.LENGTH];
+      for (int off = 0; off < data.length; off += bytesPerChunk) {
+        hash.update(data, off, Math.min(bytesPerChunk, data.length - off));
+        hash.digest(digest, 0);
+      }
+    }
+
+    private static void hashCrcs(RsyncStrongHash.Crc32cMurmur3 hash,
+        byte[] crcs, int crcsPerChunk) {
+      final byte[] digest = new byte[RsyncStrongHash.LENGTH];
+      for (int off = 0; off < crcs.length; off += crcsPerChunk) {
+        hash.updateCrcs(crcs, off, Math.min(crcsPerChunk, crcs.length - off));
+        hash.digest(digest, 0);
+      }
+    }
+
+    private static double rate(long bytes, long nanos) {
+      return bytes * 1000.0 / nanos;
+    }
+  }
+}
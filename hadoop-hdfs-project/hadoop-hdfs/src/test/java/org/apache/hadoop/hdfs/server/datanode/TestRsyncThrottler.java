@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.hadoop.hdfs.server.datanode.DataXceiverServer.RsyncThrottler;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Time;
+import org.junit.Test;
+
+/** Test {@link RsyncThrottler}. */
+public class TestRsyncThrottler {
+
+  @Test(timeout = 10000)
+  public void testMaxOps() throws Exception {
+    final RsyncThrottler throttler = new RsyncThrottler(2, 0);
+    assertTrue(throttler.acquire(0));
+    assertTrue(throttler.acquire(0));
+    assertFalse(throttler.acquire(100));
+
+    // an op waiting gets in once another one is done
+    final Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          return;
+        }
+        throttler.release();
+      }
+    };
+    releaser.start();
+    assertTrue(throttler.acquire(5000));
+    releaser.join();
+  }
+
+  @Test
+  public void testUnlimited() throws Exception {
+    final RsyncThrottler throttler = new RsyncThrottler(0, 0);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(throttler.acquire(0));
+    }
+    final InputStream in = new ByteArrayInputStream(new byte[10]);
+    assertSame(in, throttler.throttle(in));
+  }
+
+  @Test(timeout = 10000)
+  public void testBandwidth() throws Exception {
+    final RsyncThrottler throttler = new RsyncThrottler(0, 64 * 1024);
+    final byte[] data = new byte[128 * 1024];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    final byte[] read = new byte[data.length];
+    final long start = Time.monotonicNow();
+    IOUtils.readFully(throttler.throttle(new ByteArrayInputStream(data)),
+        read, 0, read.length);
+    // twice the bandwidth takes at least a second
+    assertTrue(Time.monotonicNow() - start >= 1000);
+    assertArrayEquals(data, read);
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.util.Time;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test {@link RsyncTmpReaper}. */
+public class TestRsyncTmpReaper {
+  private static final long EXPIRY_MS = 60 * 1000;
+  private static final File TMP_DIR = new File(System.getProperty(
+      "test.build.data", "build/test/data"), "TestRsyncTmpReaper/rsync_tmp");
+
+  @Before
+  public void setUp() {
+    FileUtil.fullyDelete(TMP_DIR);
+    assertTrue(TMP_DIR.mkdirs());
+  }
+
+  private static File newSegmentDir(String name, long lastModified)
+      throws IOException {
+    final File dir = new File(TMP_DIR, name);
+    assertTrue(dir.mkdirs());
+    final File segment = new File(dir,
+        DataXceiver.getSegmentName(0, 3));
+    final FileOutputStream out = new FileOutputStream(segment);
+    try {
+      out.write(new byte[] {1, 2, 3});
+    } finally {
+      out.close();
+    }
+    assertTrue(segment.setLastModified(lastModified));
+    assertTrue(dir.setLastModified(lastModified));
+    return dir;
+  }
+
+  @Test
+  public void testReapSegmentDirs() throws Exception {
+    final long now = Time.now();
+    final File orphaned = newSegmentDir("1_1001", now - 2 * EXPIRY_MS);
+    final File active = newSegmentDir("2_1002", now - 2 * EXPIRY_MS);
+    // a segment just received keeps the whole block directory
+    final File segment = new File(active, DataXceiver.getSegmentName(3, 1));
+    assertTrue(segment.createNewFile());
+    assertTrue(segment.setLastModified(now));
+
+    final RsyncTmpReaper reaper = new RsyncTmpReaper(TMP_DIR, EXPIRY_MS);
+    assertEquals(1, reaper.reapSegmentDirs(now));
+    assertFalse(orphaned.exists());
+    assertTrue(active.exists());
+    assertEquals(0, reaper.reapSegmentDirs(now));
+  }
+
+  @Test
+  public void testNoTmpDir() {
+    assertEquals(0, new RsyncTmpReaper(null, EXPIRY_MS).reapSegmentDirs(
+        Time.now()));
+    assertEquals(0, new RsyncTmpReaper(new File(TMP_DIR, "missing"),
+        EXPIRY_MS).reapSegmentDirs(Time.now()));
+  }
+}
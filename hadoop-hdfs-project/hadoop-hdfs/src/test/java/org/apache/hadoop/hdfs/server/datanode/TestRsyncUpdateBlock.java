@@ -0,0 +1,316 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.datatransfer.Sender;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.SegmentRangeProto;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenSecretManager;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants;
+import org.apache.hadoop.hdfs.server.protocol.NamenodeProtocols;
+import org.apache.hadoop.io.EnumSetWritable;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.util.DataChecksum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/** Test {@link org.apache.hadoop.hdfs.protocol.datatransfer.Op#RSYNC_UPDATE_BLOCK}. */
+public class TestRsyncUpdateBlock {
+  private static final String CLIENT_NAME = "TestRsyncUpdateBlock";
+
+  private final Random random = new Random();
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private final List<File> blockDirs = new ArrayList<File>();
+
+  @Before
+  public void setUp() throws IOException {
+    final Configuration conf = new HdfsConfiguration();
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(2).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      for (File blockDir : blockDirs) {
+        FileUtil.fullyDelete(blockDir);
+      }
+      cluster.shutdown();
+    }
+  }
+
+  private int getDataNodeIndex(DatanodeInfo datanode) {
+    final List<DataNode> dns = cluster.getDataNodes();
+    for (int i = 0; i < dns.size(); i++) {
+      if (dns.get(i).getDatanodeId().getXferAddr().equals(
+          datanode.getXferAddr())) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown datanode " + datanode);
+  }
+
+  private File getBlockDir(DatanodeInfo datanode, ExtendedBlock block) {
+    final File blockDir = DataXceiver.getRsyncBlockDir(cluster.getDataNodes()
+        .get(getDataNodeIndex(datanode)).getConf(), block.getBlockId() + "_"
+        + block.getGenerationStamp());
+    blockDirs.add(blockDir);
+    return blockDir;
+  }
+
+  private static BlockOpResponseProto readResponse(Socket sock)
+      throws IOException {
+    return BlockOpResponseProto.parseDelimitedFrom(new DataInputStream(
+        sock.getInputStream()));
+  }
+
+  private static Status updateBlock(DatanodeInfo datanode, LocatedBlock lb)
+      throws IOException {
+    final Socket sock = new Socket();
+    try {
+      sock.connect(NetUtils.createSocketAddr(datanode.getXferAddr()),
+          HdfsServerConstants.READ_TIMEOUT);
+      final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+      new Sender(out).updateBlock(lb.getBlock(), lb.getBlockToken());
+      out.flush();
+      return readResponse(sock).getStatus();
+    } finally {
+      sock.close();
+    }
+  }
+
+  private static Status sendSegments(DatanodeInfo source, ExtendedBlock block,
+      List<SegmentRangeProto> ranges, DatanodeInfo[] targets,
+      ExtendedBlock newBlock) throws IOException {
+    final Socket sock = new Socket();
+    try {
+      sock.connect(NetUtils.createSocketAddr(source.getXferAddr()),
+          HdfsServerConstants.READ_TIMEOUT);
+      final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+      new Sender(out).sendSegments(block, BlockTokenSecretManager.DUMMY_TOKEN,
+          CLIENT_NAME, ranges, true, newBlock.getBlockId() + "_"
+              + newBlock.getGenerationStamp(), targets, newBlock, null,
+          BlockTokenSecretManager.DUMMY_TOKEN);
+      out.flush();
+      return readResponse(sock).getStatus();
+    } finally {
+      sock.close();
+    }
+  }
+
+  private LocatedBlock addBlock(String src, short replication)
+      throws IOException {
+    final NamenodeProtocols nn = cluster.getNameNodeRpc();
+    final HdfsFileStatus status = nn.create(src,
+        FsPermission.getFileDefault(), CLIENT_NAME,
+        new EnumSetWritable<CreateFlag>(EnumSet.of(CreateFlag.CREATE)), true,
+        replication, 128L * 1024 * 1024);
+    return nn.addBlock(src, CLIENT_NAME, null, null, status.getFileId(),
+        null);
+  }
+
+  private void complete(String src, LocatedBlock lb, long length)
+      throws Exception {
+    final NamenodeProtocols nn = cluster.getNameNodeRpc();
+    final ExtendedBlock block = new ExtendedBlock(lb.getBlock());
+    block.setNumBytes(length);
+    final long fileId = nn.getFileInfo(src).getFileId();
+    while (!nn.complete(src, CLIENT_NAME, block, fileId)) {
+      Thread.sleep(100);
+    }
+  }
+
+  private byte[] readFile(String src, int len) throws IOException {
+    assertEquals(len, fs.getFileStatus(new Path(src)).getLen());
+    final byte[] data = new byte[len];
+    final FSDataInputStream in = fs.open(new Path(src));
+    try {
+      in.readFully(0, data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  /** Check the data and the checksums of the replica on a datanode. */
+  private void assertReplica(DatanodeInfo datanode, ExtendedBlock block,
+      byte[] data) throws IOException {
+    final int dnIndex = getDataNodeIndex(datanode);
+    assertArrayEquals(data, Files.toByteArray(MiniDFSCluster.getBlockFile(
+        dnIndex, block)));
+    final byte[] meta = Files.toByteArray(MiniDFSCluster.getBlockMetadataFile(
+        dnIndex, block));
+    final int headerSize = BlockMetadataHeader.getHeaderSize();
+    final DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.Type.CRC32C, 512);
+    assertEquals(headerSize + (data.length + 511) / 512
+        * checksum.getChecksumSize(), meta.length);
+    checksum.verifyChunkedSums(ByteBuffer.wrap(data), ByteBuffer.wrap(meta,
+        headerSize, meta.length - headerSize), block.toString(), 0);
+  }
+
+  /**
+   * Build a one block file from segment files of random lengths through
+   * updateBlock and check that it reads back with valid checksums.
+   */
+  private void testUpdateBlock(String src, int fileLen) throws Exception {
+    final LocatedBlock lb = addBlock(src, (short) 1);
+    final DatanodeInfo datanode = lb.getLocations()[0];
+
+    final byte[] data = new byte[fileLen];
+    random.nextBytes(data);
+    final File blockDir = getBlockDir(datanode, lb.getBlock());
+    assertTrue(blockDir.mkdirs());
+    for (int off = 0; off < fileLen; ) {
+      final int len = Math.min(fileLen - off, 1 + random.nextInt(100000));
+      final FileOutputStream out = new FileOutputStream(new File(blockDir,
+          DataXceiver.getSegmentName(off, len)));
+      try {
+        out.write(data, off, len);
+      } finally {
+        out.close();
+      }
+      off += len;
+    }
+
+    assertEquals(Status.SUCCESS, updateBlock(datanode, lb));
+    complete(src, lb, fileLen);
+    assertArrayEquals(data, readFile(src, fileLen));
+  }
+
+  @Test
+  public void testUpdateBlock() throws Exception {
+    testUpdateBlock("/testUpdateBlock",
+        3 * DataXceiver.ASSEMBLE_CHUNKS * 512 + 1000);
+  }
+
+  @Test
+  public void testSmallBlock() throws Exception {
+    testUpdateBlock("/testSmallBlock", 1000);
+  }
+
+  /**
+   * Rebuild a block straight into its replicas: the target holding the
+   * source block copies the segments locally and mirrors them to the other.
+   */
+  @Test
+  public void testDirectWrite() throws Exception {
+    final Path srcPath = new Path("/testDirectWriteSource");
+    final int fileLen = 3 * RsyncReplicaWriter.CHECKSUM_BATCH_CHUNKS * 512
+        + 777;
+    DFSTestUtil.createFile(fs, srcPath, fileLen, (short) 1, random.nextLong());
+    final byte[] srcData = readFile(srcPath.toString(), fileLen);
+    final LocatedBlock srcBlock = DFSTestUtil.getAllBlocks(fs, srcPath).get(0);
+    final DatanodeInfo source = srcBlock.getLocations()[0];
+
+    // the source cut in ranges of random lengths, in reverse order
+    final List<SegmentRangeProto> ranges = new ArrayList<SegmentRangeProto>();
+    final byte[] data = new byte[fileLen];
+    int destOffset = 0;
+    for (int end = fileLen; end > 0; ) {
+      final int len = Math.min(end, 1 + random.nextInt(100000));
+      ranges.add(SegmentRangeProto.newBuilder().setOffset(end - len)
+          .setLength(len).setDestOffset(destOffset).build());
+      System.arraycopy(srcData, end - len, data, destOffset, len);
+      destOffset += len;
+      end -= len;
+    }
+
+    final String src = "/testDirectWrite";
+    final LocatedBlock lb = addBlock(src, (short) 2);
+    final DatanodeInfo[] targets = lb.getLocations();
+    assertEquals(2, targets.length);
+    if (!targets[0].equals(source)) {
+      Collections.reverse(Arrays.asList(targets));
+    }
+    assertEquals(Status.SUCCESS, sendSegments(source, srcBlock.getBlock(),
+        ranges, targets, lb.getBlock()));
+
+    for (DatanodeInfo target : targets) {
+      assertFalse(getBlockDir(target, lb.getBlock()).exists());
+      assertEquals(Status.SUCCESS, updateBlock(target, lb));
+    }
+    complete(src, lb, fileLen);
+    final ExtendedBlock block = new ExtendedBlock(lb.getBlock());
+    block.setNumBytes(fileLen);
+    for (DatanodeInfo target : targets) {
+      assertReplica(target, block, data);
+    }
+    assertArrayEquals(data, readFile(src, fileLen));
+  }
+
+  @Test
+  public void testMissingSegment() throws Exception {
+    final Path srcPath = new Path("/testMissingSegmentSource");
+    DFSTestUtil.createFile(fs, srcPath, 4096, (short) 1, 0L);
+    final LocatedBlock srcBlock = DFSTestUtil.getAllBlocks(fs, srcPath).get(0);
+    final DatanodeInfo source = srcBlock.getLocations()[0];
+
+    final LocatedBlock lb = addBlock("/testMissingSegment", (short) 1);
+    final DatanodeInfo target = lb.getLocations()[0];
+    assertEquals(Status.SUCCESS, sendSegments(source, srcBlock.getBlock(),
+        Arrays.asList(SegmentRangeProto.newBuilder().setOffset(0)
+            .setLength(1000).setDestOffset(1000).build()),
+        new DatanodeInfo[] { target }, lb.getBlock()));
+    assertEquals(Status.ERROR, updateBlock(target, lb));
+    // the unfinished replica is dropped, not left in the rbw dir
+    final DataNode dn = cluster.getDataNodes().get(getDataNodeIndex(target));
+    assertNull(dn.getFSDataset().getReplica(lb.getBlock().getBlockPoolId(),
+        lb.getBlock().getBlockId()));
+  }
+}
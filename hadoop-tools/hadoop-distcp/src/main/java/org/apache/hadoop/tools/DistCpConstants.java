@@ -29,6 +29,9 @@ public class DistCpConstants {
   /* Default bandwidth if none specified */
   public static final int DEFAULT_BANDWIDTH_MB = 100;
 
+  /* Default chunk size used by the rsync operations of a delta update */
+  public static final int DEFAULT_DELTA_CHUNK_SIZE = 1024 * 1024;
+
   /* Default strategy for copying. Implementation looked up
      from distcp-default.xml
    */
@@ -50,6 +53,8 @@ public class DistCpConstants {
   public static final String CONF_LABEL_COPY_STRATEGY = "distcp.copy.strategy";
   public static final String CONF_LABEL_SKIP_CRC = "distcp.skip.crc";
   public static final String CONF_LABEL_OVERWRITE = "distcp.copy.overwrite";
+  public static final String CONF_LABEL_DELTA = "distcp.copy.delta";
+  public static final String CONF_LABEL_DELTA_CHUNK_SIZE = "distcp.delta.chunk.size";
   public static final String CONF_LABEL_BANDWIDTH_MB = "distcp.map.bandwidth.mb";
 
   /* Total bytes to be copied. Updated by copylisting. Unfiltered count */
@@ -128,6 +128,15 @@ public enum DistCpOptionSwitch {
       new Option("skipcrccheck", false, "Whether to skip CRC checks between " +
           "source and target paths.")),
 
+  /**
+   * Update existing target-files that differ from the source with the
+   * DataNode rsync operations, sending only the changed ranges, instead of
+   * copying them in full. Applies only when both sides are in HDFS.
+   */
+  DELTA(DistCpConstants.CONF_LABEL_DELTA,
+      new Option("delta", false, "Update changed files with the DataNode " +
+          "rsync operations instead of a full copy. Valid only with update")),
+
   /**
    * Overwrite target-files unconditionally.
    */
@@ -40,6 +40,7 @@ public class DistCpOptions {
   private boolean ignoreFailures = false;
   private boolean overwrite = false;
   private boolean skipCRC = false;
+  private boolean delta = false;
   private boolean blocking = true;
 
   private int maxMaps = DistCpConstants.DEFAULT_MAPS;
@@ -112,6 +113,7 @@ public DistCpOptions(DistCpOptions that) {
       this.ignoreFailures = that.ignoreFailures;
       this.overwrite = that.overwrite;
       this.skipCRC = that.skipCRC;
+      this.delta = that.delta;
       this.blocking = that.blocking;
       this.maxMaps = that.maxMaps;
       this.mapBandwidth = that.mapBandwidth;
@@ -260,6 +262,28 @@ public void setSkipCRC(boolean skipCRC) {
     this.skipCRC = skipCRC;
   }
 
+  /**
+   * Should existing target files be updated with the DataNode rsync
+   * operations, instead of being copied in full
+   *
+   * @return true if only the changed ranges of files should be sent.
+   *         false otherwise
+   */
+  public boolean shouldUseDelta() {
+    return delta;
+  }
+
+  /**
+   * Set if existing target files should be updated with the DataNode rsync
+   * operations, instead of being copied in full
+   *
+   * @param delta - boolean switch
+   */
+  public void setDelta(boolean delta) {
+    validate(DistCpOptionSwitch.DELTA, delta);
+    this.delta = delta;
+  }
+
   /** Get the max number of maps to use for this copy
    *
    * @return Max number of maps
@@ -451,6 +475,8 @@ public void validate(DistCpOptionSwitch option, boolean value) {
         value : this.atomicCommit);
     boolean skipCRC = (option == DistCpOptionSwitch.SKIP_CRC ?
         value : this.skipCRC);
+    boolean delta = (option == DistCpOptionSwitch.DELTA ?
+        value : this.delta);
 
     if (syncFolder && atomicCommit) {
       throw new IllegalArgumentException("Atomic commit can't be used with " +
@@ -471,6 +497,10 @@ public void validate(DistCpOptionSwitch option, boolean value) {
       throw new IllegalArgumentException("Skip CRC is valid only with update options");
     }
 
+    if (!syncFolder && delta) {
+      throw new IllegalArgumentException("Delta is valid only with update options");
+    }
+
   }
 
   /**
@@ -491,6 +521,8 @@ public void appendToConf(Configuration conf) {
         String.valueOf(overwrite));
     DistCpOptionSwitch.addToConf(conf, DistCpOptionSwitch.SKIP_CRC,
         String.valueOf(skipCRC));
+    DistCpOptionSwitch.addToConf(conf, DistCpOptionSwitch.DELTA,
+        String.valueOf(delta));
     DistCpOptionSwitch.addToConf(conf, DistCpOptionSwitch.BANDWIDTH,
         String.valueOf(mapBandwidth));
     DistCpOptionSwitch.addToConf(conf, DistCpOptionSwitch.PRESERVE_STATUS,
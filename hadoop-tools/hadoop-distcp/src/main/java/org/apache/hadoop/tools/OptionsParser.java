@@ -148,6 +148,10 @@ public static DistCpOptions parse(String args[]) throws IllegalArgumentException
       option.setSkipCRC(true);
     }
 
+    if (command.hasOption(DistCpOptionSwitch.DELTA.getSwitch())) {
+      option.setDelta(true);
+    }
+
     if (command.hasOption(DistCpOptionSwitch.BLOCKING.getSwitch())) {
       option.setBlocking(false);
     }
@@ -24,6 +24,9 @@
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSRsync;
+import org.apache.hadoop.hdfs.RsyncManifest;
+import org.apache.hadoop.hdfs.RsyncStatistics;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -57,6 +60,8 @@ public static enum Counter {
     BYTESEXPECTED,// Number of bytes expected to be copied.
     BYTESFAILED,  // Number of bytes that failed to be copied.
     BYTESSKIPPED, // Number of bytes that were skipped from copy.
+    DELTA,        // Number of files updated with the rsync operations.
+    BYTESSAVED,   // Number of bytes the rsync operations did not have to send.
   }
 
   private static Log LOG = LogFactory.getLog(CopyMapper.class);
@@ -67,6 +72,7 @@ public static enum Counter {
   private boolean ignoreFailures = false;
   private boolean skipCrc = false;
   private boolean overWrite = false;
+  private boolean delta = false;
   private EnumSet<FileAttribute> preserve = EnumSet.noneOf(FileAttribute.class);
 
   private FileSystem targetFS = null;
@@ -87,6 +93,7 @@ public void setup(Context context) throws IOException, InterruptedException {
     ignoreFailures = conf.getBoolean(DistCpOptionSwitch.IGNORE_FAILURES.getConfigLabel(), false);
     skipCrc = conf.getBoolean(DistCpOptionSwitch.SKIP_CRC.getConfigLabel(), false);
     overWrite = conf.getBoolean(DistCpOptionSwitch.OVERWRITE.getConfigLabel(), false);
+    delta = conf.getBoolean(DistCpOptionSwitch.DELTA.getConfigLabel(), false);
     preserve = DistCpUtils.unpackAttributes(conf.get(DistCpOptionSwitch.
         PRESERVE_STATUS.getConfigLabel()));
 
@@ -225,7 +232,10 @@ public void map(Text relPath, FileStatus sourceFileStatus, Context context)
         updateSkipCounters(context, sourceCurrStatus);
         context.write(null, new Text("SKIP: " + sourceCurrStatus.getPath()));
       }
-      else {
+      else if (!delta || targetStatus == null
+          || !RetriableFileDeltaCommand.canUpdate(sourceFS, targetFS)
+          || !updateFileWithRetry(description, sourceCurrStatus, target,
+                                  context, fileAttributes)) {
         copyFileWithRetry(description, sourceCurrStatus, target, context,
                           fileAttributes);
       }
@@ -267,6 +277,50 @@ private void copyFileWithRetry(String description, FileStatus sourceFileStatus,
     incrementCounter(context, Counter.COPY, 1);
   }
 
+  /**
+   * Update an existing target file with the rsync operations.
+   * @return true if the target was updated. false if the update failed, in
+   *         which case the file should be copied in full.
+   */
+  private boolean updateFileWithRetry(String description,
+               FileStatus sourceFileStatus, Path target, Context context,
+               EnumSet<DistCpOptions.FileAttribute> fileAttributes) {
+
+    RsyncStatistics statistics;
+    try {
+      statistics = (RsyncStatistics)new RetriableFileDeltaCommand(skipCrc,
+          description).execute(sourceFileStatus, target, context,
+                               fileAttributes);
+    } catch (Exception e) {
+      LOG.warn("Delta update failed: " + sourceFileStatus.getPath() +
+          " --> " + target + ". Falling back to a full copy.", e);
+      deleteRsyncSideFiles(target);
+      return false;
+    }
+    incrementCounter(context, Counter.BYTESEXPECTED, sourceFileStatus.getLen());
+    incrementCounter(context, Counter.BYTESCOPIED, statistics.getLiteralBytes());
+    incrementCounter(context, Counter.BYTESSAVED, statistics.getBytesSaved());
+    incrementCounter(context, Counter.DELTA, 1);
+    incrementCounter(context, Counter.COPY, 1);
+    return true;
+  }
+
+  /**
+   * Delete the temporary file and the manifest a failed delta update may
+   * leave beside the target.
+   */
+  private void deleteRsyncSideFiles(Path target) {
+    for (String path : new String[] {
+            DFSRsync.getTmpPath(target.toString()),
+            RsyncManifest.getPath(target.toString()) }) {
+      try {
+        target.getFileSystem(conf).delete(new Path(path), false);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete " + path, e);
+      }
+    }
+  }
+
   private void createTargetDirsWithRetry(String description,
                    Path target, Context context) throws IOException {
     try {
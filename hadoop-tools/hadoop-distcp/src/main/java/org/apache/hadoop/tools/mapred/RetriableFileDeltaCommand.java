@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.mapred;
+
+import org.apache.hadoop.tools.util.RetriableCommand;
+import org.apache.hadoop.tools.util.DistCpUtils;
+import org.apache.hadoop.tools.DistCpOptions.*;
+import org.apache.hadoop.tools.DistCpConstants;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.RsyncOptions;
+import org.apache.hadoop.hdfs.RsyncStatistics;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.EnumSet;
+
+/**
+ * This class extends RetriableCommand to update an existing target file
+ * in place of a full copy, using the DataNode rsync operations. Only the
+ * ranges of the source that are not found in the target are sent between
+ * the DataNodes; nothing passes through the mapper.
+ */
+public class RetriableFileDeltaCommand extends RetriableCommand {
+
+  private static Log LOG = LogFactory.getLog(RetriableFileDeltaCommand.class);
+  private boolean skipCrc = false;
+
+  /**
+   * Create a RetriableFileDeltaCommand.
+   *
+   * @param skipCrc Whether to skip the crc check.
+   * @param description A verbose description of the copy operation.
+   */
+  public RetriableFileDeltaCommand(boolean skipCrc, String description) {
+    super(description);
+    this.skipCrc = skipCrc;
+  }
+
+  /**
+   * Check if a file can be updated with the rsync operations, i.e. both the
+   * source and the target are in HDFS.
+   * @param sourceFS Source file system.
+   * @param targetFS Target file system.
+   * @return true if the rsync operations can be used. false otherwise.
+   */
+  public static boolean canUpdate(FileSystem sourceFS, FileSystem targetFS) {
+    return sourceFS instanceof DistributedFileSystem
+        && targetFS instanceof DistributedFileSystem;
+  }
+
+  /**
+   * Implementation of RetriableCommand::doExecute().
+   * @param arguments Argument-list to the command.
+   * @return RsyncStatistics of the update.
+   * @throws Exception IOException, on failure to update the target.
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  protected Object doExecute(Object... arguments) throws Exception {
+    assert arguments.length == 4 : "Unexpected argument list.";
+    FileStatus source = (FileStatus)arguments[0];
+    assert !source.isDirectory() : "Unexpected file-status. Expected file.";
+    Path target = (Path)arguments[1];
+    Mapper.Context context = (Mapper.Context)arguments[2];
+    EnumSet<FileAttribute> fileAttributes
+            = (EnumSet<FileAttribute>)arguments[3];
+    return doUpdate(source, target, context, fileAttributes);
+  }
+
+  private RsyncStatistics doUpdate(FileStatus sourceFileStatus, Path target,
+                                   Mapper.Context context,
+                                   EnumSet<FileAttribute> fileAttributes)
+          throws IOException {
+    final Configuration configuration = context.getConfiguration();
+    final Path source = sourceFileStatus.getPath();
+    FileSystem sourceFS = source.getFileSystem(configuration);
+    DistributedFileSystem targetFS =
+            (DistributedFileSystem)target.getFileSystem(configuration);
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Updating " + target + " from " + source);
+    }
+    context.setStatus(description);
+    RsyncStatistics statistics = targetFS.rsync(source, target,
+            getRsyncOptions(configuration, fileAttributes, sourceFileStatus));
+    LOG.info(statistics);
+
+    if (targetFS.getFileStatus(target).getLen() != sourceFileStatus.getLen()) {
+      throw new IOException("Mismatch in length of source:" + source
+                + " and target:" + target);
+    }
+    if ((sourceFileStatus.getLen() != 0) && (!skipCrc)
+        && !DistCpUtils.checksumsAreEqual(sourceFS, source, targetFS, target)) {
+      throw new IOException("Check-sum mismatch between " + source + " and "
+                + target + " after delta update.");
+    }
+    return statistics;
+  }
+
+  private static RsyncOptions getRsyncOptions(Configuration configuration,
+          EnumSet<FileAttribute> fileAttributes, FileStatus sourceFile) {
+    RsyncOptions options = new RsyncOptions().setChunkSize(
+            configuration.getInt(DistCpConstants.CONF_LABEL_DELTA_CHUNK_SIZE,
+                    DistCpConstants.DEFAULT_DELTA_CHUNK_SIZE))
+            // A failed update falls back to a full copy, so there is nothing
+            // to resume later.
+            .setResume(false);
+    if (fileAttributes.contains(FileAttribute.REPLICATION)) {
+      options.setReplication(sourceFile.getReplication());
+    }
+    if (fileAttributes.contains(FileAttribute.BLOCKSIZE)) {
+      options.setBlockSize(sourceFile.getBlockSize());
+    }
+    return options;
+  }
+}
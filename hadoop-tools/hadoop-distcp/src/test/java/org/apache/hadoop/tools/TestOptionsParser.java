@@ -145,6 +145,30 @@ public void testParseSkipCRC() {
     Assert.assertTrue(options.shouldSkipCRC());
   }
 
+  @Test
+  public void testParseDelta() {
+    DistCpOptions options = OptionsParser.parse(new String[] {
+        "hdfs://localhost:8020/source/first",
+        "hdfs://localhost:8020/target/"});
+    Assert.assertFalse(options.shouldUseDelta());
+
+    options = OptionsParser.parse(new String[] {
+        "-update",
+        "-delta",
+        "hdfs://localhost:8020/source/first",
+        "hdfs://localhost:8020/target/"});
+    Assert.assertTrue(options.shouldSyncFolder());
+    Assert.assertTrue(options.shouldUseDelta());
+
+    try {
+      OptionsParser.parse(new String[] {
+          "-delta",
+          "hdfs://localhost:8020/source/first",
+          "hdfs://localhost:8020/target/"});
+      Assert.fail("Delta was allowed without update");
+    } catch (IllegalArgumentException ignore) { }
+  }
+
   @Test
   public void testParseAtomicCommit() {
     DistCpOptions options = OptionsParser.parse(new String[] {
@@ -22,11 +22,14 @@
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSRsync;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.RsyncManifest;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.*;
@@ -48,6 +51,7 @@
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Random;
 
 public class TestCopyMapper {
   private static final Log LOG = LogFactory.getLog(TestCopyMapper.class);
@@ -890,4 +894,133 @@ private void testPreserveUserGroupImpl(boolean preserve){
       e.printStackTrace();
     }
   }
+
+  private static void writeFile(FileSystem fs, Path path, byte[] bytes)
+          throws IOException {
+    FSDataOutputStream outputStream = fs.create(path, true);
+    try {
+      outputStream.write(bytes);
+    } finally {
+      IOUtils.cleanup(null, outputStream);
+    }
+  }
+
+  /**
+   * If -delta is specified and the target exists with different contents,
+   * only the changed chunks should be sent.
+   */
+  @Test(timeout=40000)
+  public void testDeltaUpdate() {
+    try {
+      deleteState();
+      final int chunkSize = 4096;
+      byte[] targetBytes = new byte[64 * chunkSize];
+      new Random().nextBytes(targetBytes);
+      byte[] sourceBytes = targetBytes.clone();
+      for (int i = 0; i < 100; ++i) {
+        sourceBytes[10 * chunkSize + i] ^= 0x5a;
+      }
+
+      FileSystem fs = cluster.getFileSystem();
+      Path sourceFilePath = new Path(SOURCE_PATH + "/1").makeQualified(
+              fs.getUri(), fs.getWorkingDirectory());
+      Path targetFilePath = new Path(TARGET_PATH + "/1").makeQualified(
+              fs.getUri(), fs.getWorkingDirectory());
+      writeFile(fs, sourceFilePath, sourceBytes);
+      writeFile(fs, targetFilePath, targetBytes);
+
+      CopyMapper copyMapper = new CopyMapper();
+      StubContext stubContext = new StubContext(getConfiguration(), null, 0);
+      Mapper<Text, FileStatus, Text, Text>.Context context
+              = stubContext.getContext();
+      context.getConfiguration().setBoolean(
+              DistCpOptionSwitch.DELTA.getConfigLabel(), true);
+      context.getConfiguration().setInt(
+              DistCpConstants.CONF_LABEL_DELTA_CHUNK_SIZE, chunkSize);
+      copyMapper.setup(context);
+
+      copyMapper.map(new Text(DistCpUtils.getRelativePath(
+              new Path(SOURCE_PATH), sourceFilePath)),
+              fs.getFileStatus(sourceFilePath), context);
+
+      Assert.assertEquals(fs.getFileChecksum(sourceFilePath),
+              fs.getFileChecksum(targetFilePath));
+      Assert.assertEquals(1, stubContext.getReporter()
+              .getCounter(CopyMapper.Counter.DELTA).getValue());
+      long bytesCopied = stubContext.getReporter()
+              .getCounter(CopyMapper.Counter.BYTESCOPIED).getValue();
+      Assert.assertTrue("bytesCopied = " + bytesCopied,
+              bytesCopied < 2 * chunkSize);
+      Assert.assertEquals(sourceBytes.length - bytesCopied,
+              stubContext.getReporter()
+                      .getCounter(CopyMapper.Counter.BYTESSAVED).getValue());
+    } catch (Exception e) {
+      LOG.error("Unexpected exception: ", e);
+      Assert.fail("Unexpected exception: " + e.getMessage());
+    }
+  }
+
+  /**
+   * If the delta update fails, the target should be copied in full and no
+   * rsync side files should be left beside it.
+   */
+  @Test(timeout=40000)
+  public void testDeltaUpdateFailure() {
+    try {
+      deleteState();
+      final int chunkSize = 4096;
+      byte[] targetBytes = new byte[64 * chunkSize];
+      new Random().nextBytes(targetBytes);
+      byte[] sourceBytes = targetBytes.clone();
+      for (int i = 0; i < 100; ++i) {
+        sourceBytes[10 * chunkSize + i] ^= 0x5a;
+      }
+
+      FileSystem fs = cluster.getFileSystem();
+      Path sourceFilePath = new Path(SOURCE_PATH + "/1").makeQualified(
+              fs.getUri(), fs.getWorkingDirectory());
+      Path targetFilePath = new Path(TARGET_PATH + "/1").makeQualified(
+              fs.getUri(), fs.getWorkingDirectory());
+      writeFile(fs, sourceFilePath, sourceBytes);
+      writeFile(fs, targetFilePath, targetBytes);
+
+      CopyMapper copyMapper = new CopyMapper();
+      StubContext stubContext = new StubContext(getConfiguration(), null, 0);
+      Mapper<Text, FileStatus, Text, Text>.Context context
+              = stubContext.getContext();
+      context.getConfiguration().setBoolean(
+              DistCpOptionSwitch.DELTA.getConfigLabel(), true);
+      context.getConfiguration().setInt(
+              DistCpConstants.CONF_LABEL_DELTA_CHUNK_SIZE, chunkSize);
+      copyMapper.setup(context);
+
+      DFSRsync.faultInjector = new DFSRsync.FaultInjector() {
+        @Override
+        public void blockFinished(int index) throws IOException {
+          throw new IOException("Injected failure");
+        }
+      };
+      try {
+        copyMapper.map(new Text(DistCpUtils.getRelativePath(
+                new Path(SOURCE_PATH), sourceFilePath)),
+                fs.getFileStatus(sourceFilePath), context);
+      } finally {
+        DFSRsync.faultInjector = new DFSRsync.FaultInjector();
+      }
+
+      Assert.assertEquals(fs.getFileChecksum(sourceFilePath),
+              fs.getFileChecksum(targetFilePath));
+      Assert.assertEquals(0, stubContext.getReporter()
+              .getCounter(CopyMapper.Counter.DELTA).getValue());
+      Assert.assertEquals(sourceBytes.length, stubContext.getReporter()
+              .getCounter(CopyMapper.Counter.BYTESCOPIED).getValue());
+      Assert.assertFalse(fs.exists(new Path(
+              DFSRsync.getTmpPath(targetFilePath.toString()))));
+      Assert.assertFalse(fs.exists(new Path(
+              RsyncManifest.getPath(targetFilePath.toString()))));
+    } catch (Exception e) {
+      LOG.error("Unexpected exception: ", e);
+      Assert.fail("Unexpected exception: " + e.getMessage());
+    }
+  }
 }
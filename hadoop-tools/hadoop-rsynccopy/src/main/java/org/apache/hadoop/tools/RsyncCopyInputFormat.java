@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+
+/**
+ * 把{@link RsyncCopyListing}生成的listing文件切分为多个split，
+ * 使每个map任务需要同步的字节数大致相同。
+ */
+public class RsyncCopyInputFormat extends InputFormat<Text, FileStatus> {
+	private static final Log LOG = LogFactory
+			.getLog(RsyncCopyInputFormat.class);
+
+	@Override
+	public List<InputSplit> getSplits(JobContext context) throws IOException,
+			InterruptedException {
+		Configuration conf = context.getConfiguration();
+		int numSplits = conf.getInt(JobContext.NUM_MAPS, 1);
+		long totalBytes = conf.getLong(RsyncCopyJob.TOTAL_BYTES_KEY, 0);
+		Path listing = new Path(conf.get(RsyncCopyJob.LISTING_FILE_KEY));
+
+		List<InputSplit> splits = new ArrayList<InputSplit>(numSplits);
+		long bytesPerSplit = (long) Math.ceil(totalBytes * 1.0
+				/ Math.max(numSplits, 1));
+		Text relPath = new Text();
+		FileStatus status = new FileStatus();
+		long splitBytes = 0;
+		long splitStart = 0;
+		long position = 0;
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+				SequenceFile.Reader.file(listing));
+		try {
+			while (reader.next(relPath, status)) {
+				// 当前文件会使split超过平均字节数时，从它开始新的split
+				if (splitBytes + status.getLen() > bytesPerSplit
+						&& position != 0) {
+					splits.add(new FileSplit(listing, splitStart, position
+							- splitStart, null));
+					splitStart = position;
+					splitBytes = 0;
+				}
+				splitBytes += status.getLen();
+				position = reader.getPosition();
+			}
+			if (position > splitStart) {
+				splits.add(new FileSplit(listing, splitStart, position
+						- splitStart, null));
+			}
+		} finally {
+			IOUtils.closeStream(reader);
+		}
+		LOG.info("Created " + splits.size() + " splits for " + totalBytes
+				+ " bytes");
+		return splits;
+	}
+
+	@Override
+	public RecordReader<Text, FileStatus> createRecordReader(
+			InputSplit split, TaskAttemptContext context) throws IOException,
+			InterruptedException {
+		return new SequenceFileRecordReader<Text, FileStatus>();
+	}
+}
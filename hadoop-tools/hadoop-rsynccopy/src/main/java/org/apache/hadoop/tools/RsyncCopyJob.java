@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Cluster;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobSubmissionFiles;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * 用MapReduce同步两个目录树。
+ * 
+ * 先由{@link RsyncCopyListing}列出src中与dst不同的文件，
+ * 再由{@link RsyncCopyInputFormat}按字节数把这些文件均匀分给各个map任务，
+ * 每个{@link RsyncCopyMapper}同步自己分到的文件。dst中多出的文件不会被删除。
+ */
+public class RsyncCopyJob extends Configured implements Tool {
+	private static final Log LOG = LogFactory.getLog(RsyncCopyJob.class);
+
+	public static final String METHOD_KEY = "rsynccopy.method";
+	public static final int METHOD_DEFAULT = 1;
+	public static final String CHUNK_SIZE_KEY = "rsynccopy.chunk.size";
+	public static final int CHUNK_SIZE_DEFAULT = 1024 * 1024;
+	public static final String BMIN_RATIO_KEY = "rsynccopy.bmin.ratio";
+	public static final int BMIN_RATIO_DEFAULT = 1;
+	public static final String BMAX_RATIO_KEY = "rsynccopy.bmax.ratio";
+	public static final int BMAX_RATIO_DEFAULT = 4;
+	public static final String DST_PATH_KEY = "rsynccopy.dst.path";
+	static final String LISTING_FILE_KEY = "rsynccopy.listing.file.path";
+	static final String TOTAL_BYTES_KEY = "rsynccopy.total.bytes";
+	static final int DEFAULT_MAPS = 20;
+
+	private static final Random RAN = new Random();
+
+	public RsyncCopyJob() {
+	}
+
+	public RsyncCopyJob(Configuration conf) {
+		super(conf);
+	}
+
+	private static int printUsage() {
+		System.err.println("Usage : RsyncCopyJob [-m maps] [-method 1|2]"
+				+ " [-chunk chunkSize] [-bmin bmin] [-bmax bmax] <src> <dst>");
+		ToolRunner.printGenericCommandUsage(System.err);
+		return -1;
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		Configuration conf = getConf();
+		int maps = DEFAULT_MAPS;
+		int i = 0;
+		for (; i < args.length - 2; i += 2) {
+			if ("-m".equals(args[i])) {
+				maps = Integer.parseInt(args[i + 1]);
+			} else if ("-method".equals(args[i])) {
+				conf.setInt(METHOD_KEY, Integer.parseInt(args[i + 1]));
+			} else if ("-chunk".equals(args[i])) {
+				conf.setInt(CHUNK_SIZE_KEY, Integer.parseInt(args[i + 1]));
+			} else if ("-bmin".equals(args[i])) {
+				conf.setInt(BMIN_RATIO_KEY, Integer.parseInt(args[i + 1]));
+			} else if ("-bmax".equals(args[i])) {
+				conf.setInt(BMAX_RATIO_KEY, Integer.parseInt(args[i + 1]));
+			} else {
+				return printUsage();
+			}
+		}
+		if (args.length - i != 2) {
+			return printUsage();
+		}
+		Path src = new Path(args[i]);
+		Path dst = new Path(args[i + 1]);
+		return sync(src, dst, maps) ? 0 : 1;
+	}
+
+	/**
+	 * 同步src到dst，并等待同步完成
+	 * 
+	 * @return 同步是否成功
+	 */
+	public boolean sync(Path src, Path dst, int maps) throws IOException,
+			InterruptedException, ClassNotFoundException {
+		Configuration conf = getConf();
+		src = src.getFileSystem(conf).makeQualified(src);
+		dst = dst.getFileSystem(conf).makeQualified(dst);
+
+		Path metaFolder = new Path(JobSubmissionFiles.getStagingDir(
+				new Cluster(conf), conf), "_rsynccopy" + RAN.nextInt());
+		FileSystem metaFs = metaFolder.getFileSystem(conf);
+		try {
+			Path listingFile = new Path(metaFolder, "fileList.seq");
+			RsyncCopyListing listing = new RsyncCopyListing(conf);
+			listing.build(src, dst, listingFile);
+			if (listing.getFileCount() == 0) {
+				LOG.info("Nothing to sync from " + src + " to " + dst);
+				return true;
+			}
+
+			Job job = Job.getInstance(conf);
+			job.setJobName("rsynccopy: " + src + " to " + dst);
+			job.setJarByClass(RsyncCopyMapper.class);
+			job.setInputFormatClass(RsyncCopyInputFormat.class);
+			job.setMapperClass(RsyncCopyMapper.class);
+			job.setNumReduceTasks(0);
+			job.setOutputFormatClass(NullOutputFormat.class);
+			Configuration jobConf = job.getConfiguration();
+			jobConf.set(DST_PATH_KEY, dst.toString());
+			jobConf.set(LISTING_FILE_KEY, listingFile.toString());
+			jobConf.setLong(TOTAL_BYTES_KEY, listing.getTotalBytes());
+			jobConf.setInt(JobContext.NUM_MAPS,
+					(int) Math.max(1, Math.min(maps, listing.getFileCount())));
+			// 同一个文件不能被两个任务同时更新
+			jobConf.setBoolean(JobContext.MAP_SPECULATIVE, false);
+			return job.waitForCompletion(true);
+		} finally {
+			metaFs.delete(metaFolder, true);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(ToolRunner.run(new RsyncCopyJob(new Configuration()),
+				args));
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * 列出src目录树中需要同步的文件，写入listing文件，供{@link RsyncCopyJob}的map任务使用。
+ * 
+ * src中的每个文件与dst下相同相对路径的文件配对，长度和FileChecksum都相同的文件被跳过。
+ * listing文件是一个SequenceFile，key为相对路径，value为src文件的FileStatus，
+ * 每条记录后都有sync标记，以便按记录切分。
+ */
+class RsyncCopyListing {
+	private static final Log LOG = LogFactory.getLog(RsyncCopyListing.class);
+
+	private final Configuration conf;
+	private long totalBytes = 0;
+	private long fileCount = 0;
+	private long skippedCount = 0;
+
+	RsyncCopyListing(Configuration conf) {
+		this.conf = conf;
+	}
+
+	/**
+	 * 建立listing文件，并在dst下创建src中的所有目录
+	 * 
+	 * @param src
+	 *            源文件或目录
+	 * @param dst
+	 *            目标文件或目录
+	 * @param listing
+	 *            listing文件
+	 */
+	void build(Path src, Path dst, Path listing) throws IOException {
+		FileSystem srcFs = src.getFileSystem(conf);
+		FileSystem dstFs = dst.getFileSystem(conf);
+		FileStatus root = srcFs.getFileStatus(src);
+		String rootPath = root.getPath().toUri().getPath();
+
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+				SequenceFile.Writer.file(listing),
+				SequenceFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(FileStatus.class));
+		try {
+			if (root.isDirectory()) {
+				dstFs.mkdirs(dst);
+				list(srcFs, root, rootPath, dstFs, dst, writer);
+			} else {
+				add(root, "", dstFs, dst, writer);
+			}
+		} finally {
+			IOUtils.closeStream(writer);
+		}
+		LOG.info("Listed " + fileCount + " files (" + totalBytes
+				+ " bytes) to sync, skipped " + skippedCount
+				+ " identical files");
+	}
+
+	private void list(FileSystem srcFs, FileStatus dir, String rootPath,
+			FileSystem dstFs, Path dst, SequenceFile.Writer writer)
+			throws IOException {
+		for (FileStatus status : srcFs.listStatus(dir.getPath())) {
+			String relPath = status.getPath().toUri().getPath()
+					.substring(rootPath.length());
+			if (relPath.startsWith(Path.SEPARATOR)) {
+				relPath = relPath.substring(1);
+			}
+			Path dstPath = new Path(dst, relPath);
+			if (status.isDirectory()) {
+				dstFs.mkdirs(dstPath);
+				list(srcFs, status, rootPath, dstFs, dst, writer);
+			} else {
+				add(status, relPath, dstFs, dstPath, writer);
+			}
+		}
+	}
+
+	private void add(FileStatus src, String relPath, FileSystem dstFs,
+			Path dstPath, SequenceFile.Writer writer) throws IOException {
+		if (isSynced(src, dstFs, dstPath)) {
+			skippedCount++;
+			return;
+		}
+		writer.append(new Text(relPath), src);
+		writer.sync();
+		totalBytes += src.getLen();
+		fileCount++;
+	}
+
+	/** dst文件是否已经与src文件相同 */
+	private boolean isSynced(FileStatus src, FileSystem dstFs, Path dstPath)
+			throws IOException {
+		if (!dstFs.exists(dstPath)) {
+			return false;
+		}
+		FileStatus dst = dstFs.getFileStatus(dstPath);
+		if (dst.isDirectory() || dst.getLen() != src.getLen()) {
+			return false;
+		}
+		FileChecksum srcChecksum = src.getPath().getFileSystem(conf)
+				.getFileChecksum(src.getPath());
+		FileChecksum dstChecksum = dstFs.getFileChecksum(dstPath);
+		return srcChecksum != null && srcChecksum.equals(dstChecksum);
+	}
+
+	long getTotalBytes() {
+		return totalBytes;
+	}
+
+	long getFileCount() {
+		return fileCount;
+	}
+
+	long getSkippedCount() {
+		return skippedCount;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * 同步listing中的一个文件。dst中已存在的文件用{@link RsyncCopy}增量更新，
+ * 不存在的文件直接复制。
+ */
+public class RsyncCopyMapper extends
+		Mapper<Text, FileStatus, NullWritable, NullWritable> {
+	private static final Log LOG = LogFactory.getLog(RsyncCopyMapper.class);
+
+	public static enum Counter {
+		/** 增量同步的文件数 */
+		RSYNCED,
+		/** 直接复制的文件数 */
+		COPIED,
+		/** 同步的src文件字节数 */
+		BYTES
+	}
+
+	private Configuration conf;
+	private Path dstRoot;
+	private int method;
+	private int chunkSize;
+	private int bminRatio;
+	private int bmaxRatio;
+
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		conf = context.getConfiguration();
+		dstRoot = new Path(conf.get(RsyncCopyJob.DST_PATH_KEY));
+		method = conf.getInt(RsyncCopyJob.METHOD_KEY,
+				RsyncCopyJob.METHOD_DEFAULT);
+		chunkSize = conf.getInt(RsyncCopyJob.CHUNK_SIZE_KEY,
+				RsyncCopyJob.CHUNK_SIZE_DEFAULT);
+		bminRatio = conf.getInt(RsyncCopyJob.BMIN_RATIO_KEY,
+				RsyncCopyJob.BMIN_RATIO_DEFAULT);
+		bmaxRatio = conf.getInt(RsyncCopyJob.BMAX_RATIO_KEY,
+				RsyncCopyJob.BMAX_RATIO_DEFAULT);
+	}
+
+	@Override
+	protected void map(Text relPath, FileStatus srcStatus, Context context)
+			throws IOException, InterruptedException {
+		Path src = srcStatus.getPath();
+		Path dst = relPath.getLength() == 0 ? dstRoot : new Path(dstRoot,
+				relPath.toString());
+		FileSystem dstFs = dst.getFileSystem(conf);
+		context.setStatus("Sync " + src + " to " + dst);
+
+		if (dstFs.exists(dst)) {
+			LOG.info("Rsync " + src + " to " + dst);
+			RsyncCopy rc = new RsyncCopy(conf, src.toString(), dst.toString());
+			try {
+				rc.run(method, chunkSize, bminRatio, bmaxRatio);
+			} finally {
+				rc.close();
+			}
+			context.getCounter(Counter.RSYNCED).increment(1);
+		} else {
+			LOG.info("Copy " + src + " to " + dst);
+			if (!FileUtil.copy(src.getFileSystem(conf), src, dstFs, dst, false,
+					true, conf)) {
+				throw new IOException("Failed to copy " + src + " to " + dst);
+			}
+			context.getCounter(Counter.COPIED).increment(1);
+		}
+		context.getCounter(Counter.BYTES).increment(srcStatus.getLen());
+	}
+}
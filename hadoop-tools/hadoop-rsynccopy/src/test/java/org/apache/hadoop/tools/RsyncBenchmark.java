@@ -0,0 +1,380 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.RsyncOptions;
+import org.apache.hadoop.hdfs.RsyncStatistics;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.apache.hadoop.hdfs.server.datanode.DataNodeTestUtils;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeRsyncMetrics;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.StringUtils.TraditionalBinaryPrefix;
+import org.apache.hadoop.util.Time;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * 在{@link MiniDFSCluster}上比较rsync的两种方法和不同chunk大小。
+ * 
+ * 对每种{@link Mutation}，先生成一个随机的旧文件作为dst，修改后作为src，
+ * 再用每种方法和每个chunk大小把dst同步为src，记录耗时、datanode从磁盘读的字节数、
+ * datanode之间传送的字节数和matched的比例。不需要网络和已有的集群，可离线运行：
+ * 
+ * <pre>
+ * hadoop jar hadoop-rsynccopy-*-tests.jar org.apache.hadoop.tools.RsyncBenchmark \
+ *     [-size 64m] [-blockSize 16m] [-chunks 64k,256k,1m] [-methods 1,2] \
+ *     [-mutations EDIT,INSERT_DELETE,APPEND,SHIFT] [-edits 16] \
+ *     [-datanodes 3] [-seed seed]
+ * </pre>
+ */
+public class RsyncBenchmark extends Configured implements Tool {
+	private static final Log LOG = LogFactory.getLog(RsyncBenchmark.class);
+
+	/** src相对于dst的修改方式 */
+	public static enum Mutation {
+		/** 在随机位置改写若干字节 */
+		EDIT {
+			@Override
+			byte[] apply(byte[] old, int edits, int blockSize, Random r) {
+				byte[] data = old.clone();
+				for (int i = 0; i < edits; i++) {
+					int at = r.nextInt(data.length);
+					int end = Math.min(data.length, at + 1 + r.nextInt(16));
+					for (int j = at; j < end; j++) {
+						data[j] ^= (byte) (1 + r.nextInt(255));
+					}
+				}
+				return data;
+			}
+		},
+		/** 在随机位置插入或删除一段数据，其后的数据都错位 */
+		INSERT_DELETE {
+			@Override
+			byte[] apply(byte[] old, int edits, int blockSize, Random r) {
+				int[] offsets = new int[edits];
+				for (int i = 0; i < edits; i++) {
+					offsets[i] = r.nextInt(old.length);
+				}
+				Arrays.sort(offsets);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						old.length + edits * 1024);
+				int from = 0;
+				for (int at : offsets) {
+					if (at < from) {
+						continue;
+					}
+					out.write(old, from, at - from);
+					int length = 1 + r.nextInt(1024);
+					if (r.nextBoolean()) {
+						out.write(randomBytes(length, r), 0, length);
+						from = at;
+					} else {
+						from = Math.min(old.length, at + length);
+					}
+				}
+				out.write(old, from, old.length - from);
+				return out.toByteArray();
+			}
+		},
+		/** 在末尾追加旧文件大小1/10的数据 */
+		APPEND {
+			@Override
+			byte[] apply(byte[] old, int edits, int blockSize, Random r) {
+				byte[] data = Arrays.copyOf(old, old.length
+						+ Math.max(1, old.length / 10));
+				byte[] tail = randomBytes(data.length - old.length, r);
+				System.arraycopy(tail, 0, data, old.length, tail.length);
+				return data;
+			}
+		},
+		/** 在文件开头插入一小段数据，使所有block边界相对于内容移动 */
+		SHIFT {
+			@Override
+			byte[] apply(byte[] old, int edits, int blockSize, Random r) {
+				int length = 1 + r.nextInt(Math.min(blockSize, 4096));
+				byte[] data = new byte[old.length + length];
+				System.arraycopy(randomBytes(length, r), 0, data, 0, length);
+				System.arraycopy(old, 0, data, length, old.length);
+				return data;
+			}
+		};
+
+		/** @return 修改后的数据，不改变old */
+		abstract byte[] apply(byte[] old, int edits, int blockSize, Random r);
+	}
+
+	/** 一次同步的结果 */
+	public static class Result {
+		final Mutation mutation;
+		final int method;
+		final int chunkSize;
+		final long millis;
+		final long bytesScanned;
+		final long bytesOnWire;
+		final RsyncStatistics statistics;
+
+		Result(Mutation mutation, int method, int chunkSize, long millis,
+				long bytesScanned, long bytesOnWire, RsyncStatistics statistics) {
+			this.mutation = mutation;
+			this.method = method;
+			this.chunkSize = chunkSize;
+			this.millis = millis;
+			this.bytesScanned = bytesScanned;
+			this.bytesOnWire = bytesOnWire;
+			this.statistics = statistics;
+		}
+
+		public Mutation getMutation() {
+			return mutation;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		/** @return 同步的耗时，毫秒 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/** @return 各datanode为计算chunk签名和segments从磁盘读的字节数之和 */
+		public long getBytesScanned() {
+			return bytesScanned;
+		}
+
+		/** @return 各datanode发往pipeline的segments字节数之和，压缩后计 */
+		public long getBytesOnWire() {
+			return bytesOnWire;
+		}
+
+		public RsyncStatistics getStatistics() {
+			return statistics;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-14s %6d %9s %9d %11s %11s %11s %7.2f%%",
+					mutation, method, StringUtils.byteDesc(chunkSize), millis,
+					StringUtils.byteDesc(bytesScanned),
+					StringUtils.byteDesc(bytesOnWire),
+					StringUtils.byteDesc(statistics.getLiteralBytes()),
+					statistics.getMatchRatio() * 100);
+		}
+	}
+
+	static final String HEADER = String.format(
+			"%-14s %6s %9s %9s %11s %11s %11s %8s", "mutation", "method",
+			"chunk", "millis", "scanned", "onWire", "literal", "matched");
+
+	private long size = 64L * 1024 * 1024;
+	private long blockSize = 16L * 1024 * 1024;
+	private int[] chunkSizes = { 64 * 1024, 256 * 1024, 1024 * 1024 };
+	private int[] methods = { RsyncOptions.METHOD_FIXED,
+			RsyncOptions.METHOD_ADAPTIVE };
+	private Mutation[] mutations = Mutation.values();
+	private int edits = 16;
+	private int datanodes = 3;
+	private long seed = new Random().nextLong();
+
+	private final List<Result> results = new ArrayList<Result>();
+
+	public RsyncBenchmark() {
+	}
+
+	public RsyncBenchmark(Configuration conf) {
+		super(conf);
+	}
+
+	private static int printUsage() {
+		System.err.println("Usage : RsyncBenchmark [-size size]"
+				+ " [-blockSize blockSize] [-chunks chunkSize,...]"
+				+ " [-methods 1|2,...] [-mutations "
+				+ StringUtils.join(",", Arrays.asList(Mutation.values()))
+				+ "] [-edits edits] [-datanodes datanodes] [-seed seed]");
+		ToolRunner.printGenericCommandUsage(System.err);
+		return -1;
+	}
+
+	private static byte[] randomBytes(int length, Random r) {
+		byte[] bytes = new byte[length];
+		r.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static int[] parseSizes(String s) {
+		String[] strings = StringUtils.getStrings(s);
+		int[] sizes = new int[strings.length];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = (int) TraditionalBinaryPrefix.string2long(strings[i]);
+		}
+		return sizes;
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 == args.length) {
+				return printUsage();
+			} else if ("-size".equals(args[i])) {
+				size = TraditionalBinaryPrefix.string2long(args[i + 1]);
+			} else if ("-blockSize".equals(args[i])) {
+				blockSize = TraditionalBinaryPrefix.string2long(args[i + 1]);
+			} else if ("-chunks".equals(args[i])) {
+				chunkSizes = parseSizes(args[i + 1]);
+			} else if ("-methods".equals(args[i])) {
+				String[] strings = StringUtils.getStrings(args[i + 1]);
+				methods = new int[strings.length];
+				for (int j = 0; j < strings.length; j++) {
+					methods[j] = Integer.parseInt(strings[j]);
+				}
+			} else if ("-mutations".equals(args[i])) {
+				String[] names = StringUtils.getStrings(args[i + 1]);
+				mutations = new Mutation[names.length];
+				for (int j = 0; j < names.length; j++) {
+					mutations[j] = Mutation.valueOf(names[j].toUpperCase());
+				}
+			} else if ("-edits".equals(args[i])) {
+				edits = Integer.parseInt(args[i + 1]);
+			} else if ("-datanodes".equals(args[i])) {
+				datanodes = Integer.parseInt(args[i + 1]);
+			} else if ("-seed".equals(args[i])) {
+				seed = Long.parseLong(args[i + 1]);
+			} else {
+				return printUsage();
+			}
+		}
+		// 文件内容都在内存中
+		if (size > Integer.MAX_VALUE / 2) {
+			System.err.println("File size " + size + " is too large");
+			return -1;
+		}
+
+		Configuration conf = new HdfsConfiguration(getConf());
+		conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, blockSize);
+		MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+				.numDataNodes(datanodes).build();
+		try {
+			cluster.waitActive();
+			run(cluster);
+		} finally {
+			cluster.shutdown();
+		}
+		System.out.println("seed=" + seed + ", size=" + size
+				+ ", blockSize=" + blockSize + ", edits=" + edits);
+		System.out.println(HEADER);
+		for (Result result : results) {
+			System.out.println(result);
+		}
+		return 0;
+	}
+
+	/** 在cluster上运行所有的修改方式、方法和chunk大小 */
+	private void run(MiniDFSCluster cluster) throws IOException {
+		DistributedFileSystem fs = cluster.getFileSystem();
+		Random r = new Random(seed);
+		byte[] old = randomBytes((int) size, r);
+		for (Mutation mutation : mutations) {
+			byte[] data = mutation.apply(old, edits, (int) blockSize, r);
+			Path src = new Path("/benchmark/" + mutation + "/src");
+			Path dst = new Path("/benchmark/" + mutation + "/dst");
+			writeFile(fs, src, data);
+			for (int method : methods) {
+				for (int chunkSize : chunkSizes) {
+					// 每次都从旧文件开始
+					writeFile(fs, dst, old);
+					results.add(rsync(cluster, fs, src, dst, mutation,
+							method, chunkSize));
+				}
+			}
+		}
+	}
+
+	private static void writeFile(DistributedFileSystem fs, Path path,
+			byte[] data) throws IOException {
+		FSDataOutputStream out = fs.create(path, true);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** @return 各datanode的bytesScanned和bytesSentOnWire之和 */
+	private static long[] getCounters(MiniDFSCluster cluster) {
+		long[] counters = new long[2];
+		for (DataNode dn : cluster.getDataNodes()) {
+			DataNodeRsyncMetrics metrics = DataNodeTestUtils.getRsyncMetrics(dn);
+			counters[0] += metrics.getBytesScanned();
+			counters[1] += metrics.getBytesSentOnWire();
+		}
+		return counters;
+	}
+
+	private Result rsync(MiniDFSCluster cluster, DistributedFileSystem fs,
+			Path src, Path dst, Mutation mutation, int method, int chunkSize)
+			throws IOException {
+		// 不走append捷径，也不复用上次的进度，只比较同步算法本身
+		RsyncOptions options = new RsyncOptions().setMethod(method)
+				.setChunkSize(chunkSize).setAppend(false).setResume(false);
+		long[] before = getCounters(cluster);
+		long start = Time.monotonicNow();
+		RsyncStatistics statistics = fs.rsync(src, dst, options);
+		long millis = Time.monotonicNow() - start;
+		long[] after = getCounters(cluster);
+
+		if (!fs.getFileChecksum(src).equals(fs.getFileChecksum(dst))) {
+			throw new IOException("Rsync " + src + " to " + dst + " with "
+					+ options + " did not reproduce the src");
+		}
+		Result result = new Result(mutation, method, chunkSize, millis,
+				after[0] - before[0], after[1] - before[1], statistics);
+		LOG.info(result);
+		return result;
+	}
+
+	/** @return 已运行的同步的结果 */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(ToolRunner.run(new RsyncBenchmark(new HdfsConfiguration()),
+				args));
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.tools.RsyncBenchmark.Mutation;
+import org.apache.hadoop.tools.RsyncBenchmark.Result;
+import org.junit.Test;
+
+/** 用很小的文件运行{@link RsyncBenchmark}，检查每种修改方式都能同步 */
+public class TestRsyncBenchmark {
+
+	@Test
+	public void testBenchmark() throws Exception {
+		RsyncBenchmark benchmark = new RsyncBenchmark(new HdfsConfiguration());
+		assertEquals(0, benchmark.run(new String[] { "-size", "600k",
+				"-blockSize", "256k", "-chunks", "16k,64k", "-edits", "4",
+				"-datanodes", "2", "-seed", "0" }));
+		assertEquals(Mutation.values().length * 2 * 2, benchmark.getResults()
+				.size());
+		for (Result result : benchmark.getResults()) {
+			assertTrue(result.toString(), result.getBytesScanned() > 0);
+			// 每种修改都只改动了文件的一小部分
+			assertTrue(result.toString(),
+					result.getStatistics().getMatchRatio() > 0);
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSRsync;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.RsyncManifest;
+import org.apache.hadoop.hdfs.RsyncStatistics;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.StrongHashTypeProto;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Test {@link RsyncCopy} end to end. */
+public class TestRsyncCopy {
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	/** not a divisor of the block size */
+	private static final int CHUNK_SIZE = 100000;
+	private static final Random RAN = new Random();
+
+	private static MiniDFSCluster cluster;
+	private static DistributedFileSystem fs;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Configuration conf = new HdfsConfiguration();
+		conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+		cluster = new MiniDFSCluster.Builder(conf).numDataNodes(2).build();
+		cluster.waitActive();
+		fs = cluster.getFileSystem();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	private static void writeFile(Path path, byte[] data) throws IOException {
+		FSDataOutputStream out = fs.create(path, true, 4096, (short) 2,
+				BLOCK_SIZE);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFile(Path path) throws IOException {
+		byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+		FSDataInputStream in = fs.open(path);
+		try {
+			in.readFully(0, data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/** @return data with some bytes inserted and some overwritten */
+	private static byte[] modify(byte[] data, Random r) {
+		byte[] modified = new byte[data.length + 1000];
+		int at = data.length / 3;
+		System.arraycopy(data, 0, modified, 0, at);
+		r.nextBytes(modified);
+		System.arraycopy(data, 0, modified, 0, at);
+		System.arraycopy(data, at, modified, at + 1000, data.length - at);
+		for (int i = 0; i < 100; i++) {
+			modified[2 * modified.length / 3 + i] ^= 0x5a;
+		}
+		return modified;
+	}
+
+	private static RsyncStatistics rsync(Configuration conf, Path src,
+			Path dst, int method, int chunkSize) throws Exception {
+		conf.setInt("dfs.replication", 2);
+		conf.setLong("dfs.blocksize", BLOCK_SIZE);
+		RsyncCopy rc = new RsyncCopy(conf, src.toString(), dst.toString());
+		try {
+			rc.run(method, chunkSize, 1, 8);
+			return rc.getSummary();
+		} finally {
+			rc.close();
+		}
+	}
+
+	@Test
+	public void testUnalignedChunks() throws Exception {
+		final Random r = new Random(RAN.nextLong());
+		byte[] old = new byte[3 * BLOCK_SIZE + 12345];
+		r.nextBytes(old);
+		byte[] data = modify(old, r);
+		Path src = new Path("/testUnalignedChunks/src");
+		Path dst = new Path("/testUnalignedChunks/dst");
+		writeFile(src, data);
+		writeFile(dst, old);
+
+		RsyncStatistics summary = rsync(new Configuration(
+				cluster.getConfiguration(0)), src, dst, 1, CHUNK_SIZE);
+		assertArrayEquals(data, readFile(dst));
+		// 只有修改过的chunks需要传送
+		assertEquals(data.length, summary.getMatchedBytes()
+				+ summary.getLiteralBytes());
+		assertTrue(summary.getMatchRatio() > 0.5);
+		assertEquals(data.length - summary.getLiteralBytes(),
+				summary.getBytesSaved());
+		assertTrue(summary.getPhaseTime("update") > 0);
+	}
+
+	@Test
+	public void testBasisFiles() throws Exception {
+		final Random r = new Random(RAN.nextLong());
+		byte[] basis = new byte[2 * BLOCK_SIZE + 777];
+		r.nextBytes(basis);
+		Path basisDir = new Path("/testBasisFiles/basis");
+		writeFile(new Path(basisDir, "part-0"), basis);
+
+		for (int method = 1; method <= 2; method++) {
+			// the old destination shares nothing with the source
+			byte[] old = new byte[BLOCK_SIZE];
+			r.nextBytes(old);
+			byte[] data = modify(basis, r);
+			Path src = new Path("/testBasisFiles/src" + method);
+			Path dst = new Path("/testBasisFiles/dst" + method);
+			writeFile(src, data);
+			writeFile(dst, old);
+
+			Configuration conf = new Configuration(
+					cluster.getConfiguration(0));
+			conf.set(RsyncCopy.RSYNCCOPY_BASIS_PATHS_KEY, basisDir + ",/missing");
+			RsyncStatistics summary = rsync(conf, src, dst, method,
+					method == 1 ? CHUNK_SIZE : 4096);
+			assertArrayEquals("method " + method, data, readFile(dst));
+			assertEquals(data.length, summary.getMatchedBytes()
+					+ summary.getLiteralBytes());
+			// dst与src没有相同的数据，不用basis文件时全部数据都要传送
+			assertTrue("method " + method + " literal "
+					+ summary.getLiteralBytes(),
+					summary.getLiteralBytes() < data.length / 2);
+		}
+	}
+
+	@Test
+	public void testStrongHash() throws Exception {
+		final Random r = new Random(RAN.nextLong());
+		byte[] old = new byte[2 * BLOCK_SIZE + 4321];
+		r.nextBytes(old);
+		for (StrongHashTypeProto strongHash : StrongHashTypeProto.values()) {
+			for (int method = 1; method <= 2; method++) {
+				byte[] data = modify(old, r);
+				Path src = new Path("/testStrongHash/src_" + strongHash + method);
+				Path dst = new Path("/testStrongHash/dst_" + strongHash + method);
+				writeFile(src, data);
+				writeFile(dst, old);
+
+				Configuration conf = new Configuration(
+						cluster.getConfiguration(0));
+				conf.set(RsyncCopy.RSYNCCOPY_STRONG_HASH_KEY,
+						strongHash.name().toLowerCase());
+				// a multiple of the bytes per CRC32C of the meta files
+				rsync(conf, src, dst, method, method == 1 ? 64 * 1024 : 4096);
+				assertArrayEquals(strongHash + " method " + method, data,
+						readFile(dst));
+			}
+		}
+	}
+
+	/** dst为src的前缀时只append多出的部分，不计算签名 */
+	@Test
+	public void testAppend() throws Exception {
+		final Random r = new Random(RAN.nextLong());
+		// the last block of dst ends inside a chunk of 512 bytes
+		byte[] old = new byte[2 * BLOCK_SIZE + 12345];
+		r.nextBytes(old);
+		byte[] data = new byte[old.length + BLOCK_SIZE + 999];
+		r.nextBytes(data);
+		System.arraycopy(old, 0, data, 0, old.length);
+		Path src = new Path("/testAppend/src");
+		Path dst = new Path("/testAppend/dst");
+		// 之前中断的运行留下的临时文件和manifest
+		Path tmp = new Path(dst + ".rsync");
+		Path manifest = new Path(RsyncManifest.getPath(dst.toString()));
+		writeFile(src, data);
+		writeFile(dst, old);
+		writeFile(tmp, new byte[100]);
+		writeFile(manifest, new byte[100]);
+
+		RsyncStatistics summary = rsync(new Configuration(
+				cluster.getConfiguration(0)), src, dst, 1, CHUNK_SIZE);
+		assertArrayEquals(data, readFile(dst));
+		assertEquals(data.length - old.length, summary.getLiteralBytes());
+		assertEquals(old.length, summary.getMatchedBytes());
+		assertEquals(0, summary.getPhaseTime("checksum"));
+		assertFalse(fs.exists(tmp));
+		assertFalse(fs.exists(manifest));
+
+		// identical files, nothing to append
+		summary = rsync(new Configuration(cluster.getConfiguration(0)), src,
+				dst, 2, 4096);
+		assertArrayEquals(data, readFile(dst));
+		assertEquals(0, summary.getLiteralBytes());
+	}
+
+	/** src在一个集群，dst在另一个集群，只有修改过的数据跨集群传送 */
+	@Test
+	public void testCrossCluster() throws Exception {
+		Configuration drConf = new HdfsConfiguration();
+		drConf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+		drConf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(
+				System.getProperty(MiniDFSCluster.PROP_TEST_BUILD_DATA,
+						"build/test/data"), "dr").getAbsolutePath());
+		MiniDFSCluster drCluster = new MiniDFSCluster.Builder(drConf)
+				.numDataNodes(2).build();
+		try {
+			drCluster.waitActive();
+			DistributedFileSystem drFs = drCluster.getFileSystem();
+			final Random r = new Random(RAN.nextLong());
+			byte[] old = new byte[2 * BLOCK_SIZE + 999];
+			r.nextBytes(old);
+			for (int method = 1; method <= 2; method++) {
+				byte[] data = modify(old, r);
+				Path src = fs.makeQualified(new Path("/testCrossCluster/src"
+						+ method));
+				Path dst = drFs.makeQualified(new Path("/testCrossCluster/dst"
+						+ method));
+				writeFile(src, data);
+				FSDataOutputStream out = drFs.create(dst, true, 4096,
+						(short) 2, BLOCK_SIZE);
+				try {
+					out.write(old);
+				} finally {
+					out.close();
+				}
+
+				RsyncStatistics summary = rsync(new Configuration(
+						cluster.getConfiguration(0)), src, dst, method,
+						method == 1 ? CHUNK_SIZE : 4096);
+				byte[] synced = new byte[data.length];
+				FSDataInputStream in = drFs.open(dst);
+				try {
+					in.readFully(0, synced);
+				} finally {
+					in.close();
+				}
+				assertArrayEquals("method " + method, data, synced);
+				assertEquals(data.length, drFs.getFileStatus(dst).getLen());
+				assertTrue("method " + method,
+						summary.getLiteralBytes() < data.length / 2);
+			}
+		} finally {
+			drCluster.shutdown();
+		}
+	}
+
+	/** Start a fresh cluster, whose block IDs start where any other's do. */
+	private static MiniDFSCluster startCluster(String name) throws IOException {
+		Configuration conf = new HdfsConfiguration();
+		conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+		conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(
+				System.getProperty(MiniDFSCluster.PROP_TEST_BUILD_DATA,
+						"build/test/data"), name).getAbsolutePath());
+		MiniDFSCluster c = new MiniDFSCluster.Builder(conf).numDataNodes(2)
+				.build();
+		c.waitActive();
+		return c;
+	}
+
+	private static void writeFile(DistributedFileSystem dfs, Path path,
+			byte[] data) throws IOException {
+		FSDataOutputStream out = dfs.create(path, true, 4096, (short) 2,
+				BLOCK_SIZE);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<LocatedBlock> getBlocks(DistributedFileSystem dfs,
+			Path path) throws IOException {
+		return dfs.getClient().getLocatedBlocks(path.toString(), 0)
+				.getLocatedBlocks();
+	}
+
+	/**
+	 * blockId只在一个集群内唯一：src和dst的block有相同的blockId时，
+	 * literal和matched的segments不能混淆
+	 */
+	@Test
+	public void testCrossClusterSameBlockIds() throws Exception {
+		MiniDFSCluster srcCluster = startCluster("src");
+		MiniDFSCluster drCluster = null;
+		try {
+			drCluster = startCluster("dr");
+			DistributedFileSystem srcFs = srcCluster.getFileSystem();
+			DistributedFileSystem drFs = drCluster.getFileSystem();
+			final Random r = new Random(RAN.nextLong());
+			byte[] old = new byte[3 * BLOCK_SIZE + 999];
+			r.nextBytes(old);
+			byte[][] datas = new byte[3][];
+			Path[] srcs = new Path[3];
+			Path[] dsts = new Path[3];
+			// the same number of blocks in both fresh clusters, before any
+			// rsync allocates blocks in the dst cluster
+			for (int method = 1; method <= 2; method++) {
+				datas[method] = modify(old, r);
+				srcs[method] = srcFs.makeQualified(new Path(
+						"/testCrossClusterSameBlockIds/src" + method));
+				dsts[method] = drFs.makeQualified(new Path(
+						"/testCrossClusterSameBlockIds/dst" + method));
+				writeFile(srcFs, srcs[method], datas[method]);
+				writeFile(drFs, dsts[method], old);
+				List<LocatedBlock> srcBlocks = getBlocks(srcFs, srcs[method]);
+				List<LocatedBlock> dstBlocks = getBlocks(drFs, dsts[method]);
+				assertEquals(srcBlocks.size(), dstBlocks.size());
+				for (int i = 0; i < dstBlocks.size(); i++) {
+					assertEquals(srcBlocks.get(i).getBlock().getBlockId(),
+							dstBlocks.get(i).getBlock().getBlockId());
+				}
+			}
+
+			for (int method = 1; method <= 2; method++) {
+				byte[] data = datas[method];
+				Path src = srcs[method];
+				Path dst = dsts[method];
+				RsyncStatistics summary = rsync(new Configuration(
+						srcCluster.getConfiguration(0)), src, dst, method,
+						method == 1 ? CHUNK_SIZE : 4096);
+				byte[] synced = new byte[data.length];
+				FSDataInputStream in = drFs.open(dst);
+				try {
+					in.readFully(0, synced);
+				} finally {
+					in.close();
+				}
+				assertArrayEquals("method " + method, data, synced);
+				assertEquals(data.length, summary.getMatchedBytes()
+						+ summary.getLiteralBytes());
+				assertTrue("method " + method,
+						summary.getLiteralBytes() < data.length / 2);
+			}
+		} finally {
+			if (drCluster != null) {
+				drCluster.shutdown();
+			}
+			srcCluster.shutdown();
+		}
+	}
+
+	private static List<LocatedBlock> getBlocks(Path path) throws IOException {
+		return fs.getClient().getLocatedBlocks(path.toString(), 0)
+				.getLocatedBlocks();
+	}
+
+	/** 像lease recovery一样，以原lease持有者的身份丢弃未完成的block并关闭文件 */
+	private static void closeTmpFile(Path tmp, Path manifest,
+			List<LocatedBlock> built) throws Exception {
+		ClientProtocol namenode = fs.getClient().getNamenode();
+		String holder = RsyncManifest.load(fs.getClient(), manifest.toString())
+				.getClientName();
+		for (int i = built.size() - 1; i >= 2; i--) {
+			namenode.abandonBlock(built.get(i).getBlock(), tmp.toString(),
+					holder);
+		}
+		ExtendedBlock last = new ExtendedBlock(built.get(1).getBlock());
+		last.setNumBytes(BLOCK_SIZE);
+		long fileId = namenode.getFileInfo(tmp.toString()).getFileId();
+		while (!namenode.complete(tmp.toString(), holder, last, fileId)) {
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * 在第二个block完成后中断，重新运行时续传：.rsync文件仍在构建中时续用其已完成的block，
+	 * 已被关闭时从中复制
+	 */
+	@Test(timeout = 120000)
+	public void testResume() throws Exception {
+		final Random r = new Random(RAN.nextLong());
+		byte[] old = new byte[4 * BLOCK_SIZE + 555];
+		r.nextBytes(old);
+		for (boolean recovered : new boolean[] { false, true }) {
+			byte[] data = modify(old, r);
+			Path src = new Path("/testResume/src_" + recovered);
+			Path dst = new Path("/testResume/dst_" + recovered);
+			Path tmp = new Path(dst + ".rsync");
+			Path manifest = new Path(RsyncManifest.getPath(dst.toString()));
+			writeFile(src, data);
+			writeFile(dst, old);
+			Configuration conf = new Configuration(cluster.getConfiguration(0));
+
+			DFSRsync.faultInjector = new DFSRsync.FaultInjector() {
+				@Override
+				public void blockFinished(int index) throws IOException {
+					if (index == 1) {
+						throw new IOException("Injected failure");
+					}
+				}
+			};
+			try {
+				rsync(conf, src, dst, 1, CHUNK_SIZE);
+				fail("The rsync was not interrupted");
+			} catch (IOException e) {
+				// expected
+			} finally {
+				DFSRsync.faultInjector = new DFSRsync.FaultInjector();
+			}
+			assertTrue(fs.exists(manifest));
+			// 第三个block可能已经addBlock
+			List<LocatedBlock> built = getBlocks(tmp);
+			assertTrue(built.size() >= 2);
+			if (recovered) {
+				closeTmpFile(tmp, manifest, built);
+			}
+
+			rsync(conf, src, dst, 1, CHUNK_SIZE);
+			assertArrayEquals("recovered " + recovered, data, readFile(dst));
+			assertFalse(fs.exists(manifest));
+			assertFalse(fs.exists(tmp));
+			assertFalse(fs.exists(new Path(tmp + ".prev")));
+			if (!recovered) {
+				List<LocatedBlock> blocks = getBlocks(dst);
+				for (int i = 0; i < 2; i++) {
+					assertEquals(built.get(i).getBlock().getBlockId(), blocks
+							.get(i).getBlock().getBlockId());
+				}
+			}
+		}
+	}
+
+	/** 跨集群续传：manifest中的segments以block pool区分src与dst中blockId相同的block */
+	@Test(timeout = 180000)
+	public void testCrossClusterResume() throws Exception {
+		MiniDFSCluster srcCluster = startCluster("resume_src");
+		MiniDFSCluster drCluster = null;
+		try {
+			drCluster = startCluster("resume_dr");
+			DistributedFileSystem srcFs = srcCluster.getFileSystem();
+			DistributedFileSystem drFs = drCluster.getFileSystem();
+			final Random r = new Random(RAN.nextLong());
+			byte[] old = new byte[4 * BLOCK_SIZE + 555];
+			r.nextBytes(old);
+			byte[] data = modify(old, r);
+			Path src = srcFs.makeQualified(new Path("/testCrossClusterResume/src"));
+			Path dst = drFs.makeQualified(new Path("/testCrossClusterResume/dst"));
+			Path manifest = new Path(RsyncManifest.getPath(dst.toString()));
+			writeFile(srcFs, src, data);
+			writeFile(drFs, dst, old);
+			assertEquals(getBlocks(srcFs, src).get(0).getBlock().getBlockId(),
+					getBlocks(drFs, dst).get(0).getBlock().getBlockId());
+			Configuration conf = new Configuration(srcCluster.getConfiguration(0));
+
+			DFSRsync.faultInjector = new DFSRsync.FaultInjector() {
+				@Override
+				public void blockFinished(int index) throws IOException {
+					if (index == 1) {
+						throw new IOException("Injected failure");
+					}
+				}
+			};
+			try {
+				rsync(conf, src, dst, 1, CHUNK_SIZE);
+				fail("The rsync was not interrupted");
+			} catch (IOException e) {
+				// expected
+			} finally {
+				DFSRsync.faultInjector = new DFSRsync.FaultInjector();
+			}
+			assertTrue(drFs.exists(manifest));
+
+			rsync(conf, src, dst, 1, CHUNK_SIZE);
+			byte[] synced = new byte[data.length];
+			FSDataInputStream in = drFs.open(dst);
+			try {
+				in.readFully(0, synced);
+			} finally {
+				in.close();
+			}
+			assertArrayEquals(data, synced);
+			assertFalse(drFs.exists(manifest));
+		} finally {
+			if (drCluster != null) {
+				drCluster.shutdown();
+			}
+			srcCluster.shutdown();
+		}
+	}
+}
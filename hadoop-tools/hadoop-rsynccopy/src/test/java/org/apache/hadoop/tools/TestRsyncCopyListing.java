@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Test {@link RsyncCopyListing} and {@link RsyncCopyInputFormat}. */
+public class TestRsyncCopyListing {
+	private static final long FILE_LEN = 4096;
+
+	private static MiniDFSCluster cluster;
+	private static FileSystem fs;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Configuration conf = new HdfsConfiguration();
+		cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+		cluster.waitActive();
+		fs = cluster.getFileSystem();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void testListing() throws Exception {
+		Path src = new Path("/testListing/src");
+		Path dst = new Path("/testListing/dst");
+		Path listingFile = new Path("/testListing/fileList.seq");
+		// a: 不存在于dst; d/b: 与dst相同; d/c: 与dst不同; e: 空目录
+		DFSTestUtil.createFile(fs, new Path(src, "a"), FILE_LEN, (short) 1, 0L);
+		DFSTestUtil.createFile(fs, new Path(src, "d/b"), FILE_LEN, (short) 1,
+				0L);
+		DFSTestUtil.createFile(fs, new Path(dst, "d/b"), FILE_LEN, (short) 1,
+				0L);
+		DFSTestUtil.createFile(fs, new Path(src, "d/c"), 2 * FILE_LEN,
+				(short) 1, 0L);
+		DFSTestUtil.createFile(fs, new Path(dst, "d/c"), FILE_LEN, (short) 1,
+				0L);
+		fs.mkdirs(new Path(src, "e"));
+
+		Configuration conf = cluster.getConfiguration(0);
+		RsyncCopyListing listing = new RsyncCopyListing(conf);
+		listing.build(fs.makeQualified(src), fs.makeQualified(dst),
+				listingFile);
+		assertEquals(2, listing.getFileCount());
+		assertEquals(1, listing.getSkippedCount());
+		assertEquals(3 * FILE_LEN, listing.getTotalBytes());
+		assertTrue(fs.isDirectory(new Path(dst, "e")));
+
+		List<String> relPaths = new ArrayList<String>();
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+				SequenceFile.Reader.file(fs.makeQualified(listingFile)));
+		try {
+			Text relPath = new Text();
+			FileStatus status = new FileStatus();
+			while (reader.next(relPath, status)) {
+				relPaths.add(relPath.toString());
+				assertEquals(fs.makeQualified(new Path(src, relPath.toString())),
+						status.getPath());
+			}
+		} finally {
+			reader.close();
+		}
+		assertEquals(Arrays.asList("a", "d/c"), relPaths);
+
+		// 每个split分到一个文件
+		conf.set(RsyncCopyJob.LISTING_FILE_KEY, fs.makeQualified(listingFile)
+				.toString());
+		conf.setLong(RsyncCopyJob.TOTAL_BYTES_KEY, listing.getTotalBytes());
+		conf.setInt(JobContext.NUM_MAPS, 2);
+		List<InputSplit> splits = new RsyncCopyInputFormat()
+				.getSplits(new JobContextImpl(conf, new JobID()));
+		assertEquals(2, splits.size());
+		assertEquals(((FileSplit) splits.get(0)).getStart()
+				+ ((FileSplit) splits.get(0)).getLength(),
+				((FileSplit) splits.get(1)).getStart());
+	}
+
+	@Test
+	public void testSingleFile() throws Exception {
+		Path src = new Path("/testSingleFile/src");
+		Path dst = new Path("/testSingleFile/dst");
+		Path listingFile = new Path("/testSingleFile/fileList.seq");
+		DFSTestUtil.createFile(fs, src, FILE_LEN, (short) 1, 0L);
+
+		RsyncCopyListing listing = new RsyncCopyListing(
+				cluster.getConfiguration(0));
+		listing.build(fs.makeQualified(src), fs.makeQualified(dst),
+				listingFile);
+		assertEquals(1, listing.getFileCount());
+
+		// 相同的文件被跳过
+		DFSTestUtil.createFile(fs, dst, FILE_LEN, (short) 1, 0L);
+		listing = new RsyncCopyListing(cluster.getConfiguration(0));
+		listing.build(fs.makeQualified(src), fs.makeQualified(dst),
+				listingFile);
+		assertEquals(0, listing.getFileCount());
+		assertEquals(1, listing.getSkippedCount());
+	}
+}